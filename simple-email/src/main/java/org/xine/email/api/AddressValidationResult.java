@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.api;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Outcome of validating a single address: the parsed address, or the reason it is not valid.
+ */
+public class AddressValidationResult {
+
+    /** The address as given. */
+    private final String input;
+
+    /** The parsed address, null if the address is not valid. */
+    private final InternetAddress address;
+
+    /** The reason the address is not valid, null if it is. */
+    private final String reason;
+
+    /**
+     * Instantiates a result for a valid address.
+     * @param input
+     *            the address as given
+     * @param address
+     *            the parsed address
+     */
+    public AddressValidationResult(final String input, final InternetAddress address) {
+        this.input = input;
+        this.address = address;
+        this.reason = null;
+    }
+
+    /**
+     * Instantiates a result for an address that is not valid.
+     * @param input
+     *            the address as given
+     * @param reason
+     *            the reason it is not valid
+     */
+    public AddressValidationResult(final String input, final String reason) {
+        this.input = input;
+        this.address = null;
+        this.reason = reason;
+    }
+
+    /**
+     * Gets the address as given.
+     * @return the input
+     */
+    public String getInput() {
+        return this.input;
+    }
+
+    /**
+     * Gets the parsed address.
+     * @return the address, null if it is not valid
+     */
+    public InternetAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * Gets the reason the address is not valid.
+     * @return the reason, null if it is valid
+     */
+    public String getReason() {
+        return this.reason;
+    }
+
+    /**
+     * Checks if the address is valid.
+     * @return true if valid
+     */
+    public boolean isValid() {
+        return this.address != null;
+    }
+}
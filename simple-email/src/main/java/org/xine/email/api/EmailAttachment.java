@@ -14,6 +14,8 @@ package org.xine.email.api;
 
 import java.util.Collection;
 
+import javax.activation.DataSource;
+
 /**
  * The Interface EmailAttachment.
  */
@@ -54,4 +56,14 @@ public interface EmailAttachment {
      * @return the bytes
      */
     public byte[] getBytes();
+
+    /**
+     * Gets the source the content is streamed from when the message is written, for attachments
+     * too large to be held in memory. {@link #getBytes()} then reads the whole content on each
+     * call.
+     * @return the data source, or null if the content is given by the bytes
+     */
+    public default DataSource getDataSource() {
+        return null;
+    }
 }
@@ -20,8 +20,10 @@ import javax.mail.internet.InternetAddress;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 import javax.xml.bind.annotation.XmlType;
 
+import org.xine.email.impl.FrozenMessage;
 import org.xine.email.impl.attachments.BaseAttachment;
 
 /**
@@ -29,7 +31,8 @@ import org.xine.email.impl.attachments.BaseAttachment;
  */
 @XmlRootElement
 @XmlType(propOrder = {"messageId", "importance", "charset", "fromAddresses", "replyToAddresses",
-        "toAddresses", "ccAddresses", "bccAddresses", "envelopeFrom", "deliveryReceiptAddresses",
+        "toAddresses", "ccAddresses", "bccAddresses", "envelopeRecipients", "envelopeFrom",
+        "deliveryReceiptAddresses",
         "readReceiptAddresses", "subject", "textBody", "htmlBody", "headers", "rootContentType",
         "type", "attachments" })
 public class EmailMessage {
@@ -61,6 +64,9 @@ public class EmailMessage {
     /** The bcc addresses. */
     private List<InternetAddress> bccAddresses = new ArrayList<>();
 
+    /** The envelope recipients, empty to deliver to every To, Cc and Bcc address. */
+    private List<InternetAddress> envelopeRecipients = new ArrayList<>();
+
     /** The envelope from. */
     private InternetAddress envelopeFrom;
 
@@ -88,6 +94,43 @@ public class EmailMessage {
     /** The importance. */
     private MessagePriority importance = MessagePriority.NORMAL;
 
+    /** The content rendered once, sent in place of the fields above. */
+    private FrozenMessage frozenMessage;
+
+    /**
+     * Instantiates a new, empty email message.
+     */
+    public EmailMessage() {}
+
+    /**
+     * Instantiates a copy of an email message. The address, header and attachment lists are
+     * copied; the attachments themselves are shared.
+     * @param other
+     *            the email message to copy
+     */
+    public EmailMessage(final EmailMessage other) {
+        this.charset = other.charset;
+        this.rootContentType = other.rootContentType;
+        this.type = other.type;
+        this.messageId = other.messageId;
+        this.fromAddresses = new ArrayList<>(other.fromAddresses);
+        this.replyToAddresses = new ArrayList<>(other.replyToAddresses);
+        this.toAddresses.addAll(other.toAddresses);
+        this.ccAddresses = new ArrayList<>(other.ccAddresses);
+        this.bccAddresses = new ArrayList<>(other.bccAddresses);
+        this.envelopeRecipients = new ArrayList<>(other.envelopeRecipients);
+        this.envelopeFrom = other.envelopeFrom;
+        this.headers = new ArrayList<>(other.headers);
+        this.subject = other.subject;
+        this.textBody = other.textBody;
+        this.htmlBody = other.htmlBody;
+        this.attachments = new ArrayList<>(other.attachments);
+        this.deliveryReceiptAddresses = new ArrayList<>(other.deliveryReceiptAddresses);
+        this.readReceiptAddresses = new ArrayList<>(other.readReceiptAddresses);
+        this.importance = other.importance;
+        this.frozenMessage = other.frozenMessage;
+    }
+
     /**
      * Get the charset used to encode the EmailMessage.
      * @return charset of the EmailMessage
@@ -241,6 +284,26 @@ public class EmailMessage {
         this.bccAddresses = bccAddresses;
     }
 
+    /**
+     * Gets the addresses the message is actually delivered to (SMTP RCPT TO). When empty, which
+     * is the default, it goes to every To, Cc and Bcc address; otherwise only to these, while
+     * the To and Cc headers stay as they are.
+     * @return the envelope recipients
+     */
+    @XmlElement
+    public List<InternetAddress> getEnvelopeRecipients() {
+        return Collections.unmodifiableList(this.envelopeRecipients);
+    }
+
+    /**
+     * Sets the envelope recipients, replacing any set before.
+     * @param envelopeRecipients
+     *            the new envelope recipients, empty to deliver to every recipient
+     */
+    public void setEnvelopeRecipients(final List<InternetAddress> envelopeRecipients) {
+        this.envelopeRecipients = new ArrayList<>(envelopeRecipients);
+    }
+
     /**
      * Gets the "Envelope From" address which is used for error messages.
      * @return the envelope from
@@ -399,8 +462,15 @@ public class EmailMessage {
      *            EmailAttachment to be added
      */
     public void addAttachment(final EmailAttachment attachment) {
-        final BaseAttachment ba = new BaseAttachment(attachment.getFileName(),
-                attachment.getMimeType(), attachment.getContentDisposition(), attachment.getBytes());
+        final BaseAttachment ba;
+        if (attachment.getDataSource() != null) {
+            ba = new BaseAttachment(attachment.getFileName(), attachment.getMimeType(),
+                    attachment.getContentDisposition(), null);
+            ba.setDataSource(attachment.getDataSource());
+        } else {
+            ba = new BaseAttachment(attachment.getFileName(), attachment.getMimeType(),
+                    attachment.getContentDisposition(), attachment.getBytes());
+        }
         this.attachments.add(ba);
     }
 
@@ -434,6 +504,26 @@ public class EmailMessage {
         this.attachments = attachments;
     }
 
+    /**
+     * Gets the frozen form of the message, which transports send instead of building the
+     * message from its fields.
+     * @return the frozen message, or null if the message is built afresh on every send
+     * @see FrozenMessage#freeze(org.xine.email.api.EmailMessage, javax.mail.Session)
+     */
+    @XmlTransient
+    public FrozenMessage getFrozenMessage() {
+        return this.frozenMessage;
+    }
+
+    /**
+     * Sets the frozen form of the message.
+     * @param frozenMessage
+     *            the frozen message, or null to build the message from its fields again
+     */
+    public void setFrozenMessage(final FrozenMessage frozenMessage) {
+        this.frozenMessage = frozenMessage;
+    }
+
     public void addHeader(final Header... header) {
         this.headers.addAll(Arrays.asList(header));
     }
@@ -458,4 +548,8 @@ public class EmailMessage {
         this.bccAddresses.addAll(Arrays.asList(internetAddressses));
     }
 
+    public void addEnvelopeRecipient(final InternetAddress... internetAddressses) {
+        this.envelopeRecipients.addAll(Arrays.asList(internetAddressses));
+    }
+
 }
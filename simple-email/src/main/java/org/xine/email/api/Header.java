@@ -15,9 +15,10 @@ package org.xine.email.api;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 
-import javax.mail.internet.MimeUtility;
 import javax.xml.bind.annotation.XmlElement;
 
+import org.xine.email.impl.util.HeaderEncoder;
+
 /**
  * The Class Header.
  */
@@ -50,7 +51,7 @@ public class Header implements Serializable {
         this.name = name;
 
         try {
-            this.value = MimeUtility.fold(name.length() + 2, MimeUtility.encodeText(value));
+            this.value = HeaderEncoder.encode(name, value);
         } catch (final UnsupportedEncodingException e) {
             throw new RuntimeException("Unable to create header", e);
         }
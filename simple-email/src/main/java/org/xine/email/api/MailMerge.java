@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.api;
+
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Sends one {@link MailMessage} to many recipients, each with their own template values. What
+ * the recipients have in common is set up once: the templates are parsed once, attachments and
+ * headers are shared by every message rather than copied, and the values put on the mail message
+ * are the base every recipient's values are laid over. Recipients are read from a stream as the
+ * messages are sent, so a campaign of any size is held in memory only a few messages at a time.
+ */
+public interface MailMerge {
+
+    /**
+     * Builds the message for one recipient, its templates merged. The message is addressed to
+     * the recipient in addition to any recipients of the mail message itself.
+     * @param entry
+     *            the recipient and template values
+     * @return the email message
+     * @throws TemplatingException
+     *             if a template can not be merged
+     */
+    public EmailMessage personalize(MailMergeEntry entry);
+
+    /**
+     * Lazily builds the messages for a stream of recipients.
+     * @param entries
+     *            the recipients and template values
+     * @return the email messages, built as the stream is consumed
+     */
+    public Stream<EmailMessage> personalize(Stream<MailMergeEntry> entries);
+
+    /**
+     * Builds and sends the message of each recipient in turn on the calling thread. A failure,
+     * including a template that can not be merged for a recipient, is recorded in the result of
+     * the message concerned and does not stop the rest.
+     * @param mailTransporter
+     *            the transporter to send with
+     * @param entries
+     *            the recipients and template values
+     * @param results
+     *            receives the result of each message
+     * @return the number of messages sent or attempted
+     */
+    public long send(MailTransporter mailTransporter, Stream<MailMergeEntry> entries,
+            Consumer<SendResult> results);
+
+    /**
+     * Sends the message of each recipient on the given executor, which also merges its
+     * templates, so these must allow merges from several threads at once. At most the given
+     * number of messages are in flight at any time: the calling thread waits when the limit is
+     * reached, and returns once every message has been sent. Failures are recorded as for
+     * {@link #send(MailTransporter, Stream, Consumer)}.
+     * @param mailTransporter
+     *            the transporter to send with
+     * @param entries
+     *            the recipients and template values
+     * @param results
+     *            receives the result of each message, from the threads of the executor
+     * @param maxInFlight
+     *            the number of messages that may be in flight at once
+     * @param executor
+     *            the executor running the sends
+     * @return the number of messages sent or attempted
+     */
+    public long send(MailTransporter mailTransporter, Stream<MailMergeEntry> entries,
+            Consumer<SendResult> results, int maxInFlight, Executor executor);
+}
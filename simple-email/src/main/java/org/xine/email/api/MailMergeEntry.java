@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.api;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.mail.internet.InternetAddress;
+
+import org.xine.email.impl.util.MailUtility;
+
+/**
+ * One recipient of a {@link MailMerge} with the template values for that recipient.
+ */
+public class MailMergeEntry {
+
+    /** The recipient. */
+    private final InternetAddress recipient;
+
+    /** The template values. */
+    private final Map<String, Object> context;
+
+    /**
+     * Instantiates a new mail merge entry.
+     * @param recipient
+     *            the recipient
+     * @param context
+     *            the template values, null for none
+     */
+    public MailMergeEntry(final InternetAddress recipient, final Map<String, Object> context) {
+        this.recipient = recipient;
+        this.context = context != null ? context : Collections.<String, Object> emptyMap();
+    }
+
+    /**
+     * Instantiates a new mail merge entry.
+     * @param address
+     *            the address of the recipient eg "John Doe &lt;john.doe@example.com&gt;"
+     * @param context
+     *            the template values, null for none
+     * @throws InvalidAddressException
+     *             if the address is in an invalid format
+     */
+    public MailMergeEntry(final String address, final Map<String, Object> context) {
+        this(MailUtility.internetAddress(address), context);
+    }
+
+    /**
+     * Instantiates a new mail merge entry.
+     * @param emailContact
+     *            the recipient
+     * @param context
+     *            the template values, null for none
+     * @throws InvalidAddressException
+     *             if the address is in an invalid format
+     */
+    public MailMergeEntry(final EmailContact emailContact, final Map<String, Object> context) {
+        this(MailUtility.internetAddress(emailContact), context);
+    }
+
+    /**
+     * Gets the recipient.
+     * @return the recipient
+     */
+    public InternetAddress getRecipient() {
+        return this.recipient;
+    }
+
+    /**
+     * Gets the template values.
+     * @return the template values
+     */
+    public Map<String, Object> getContext() {
+        return this.context;
+    }
+}
@@ -12,17 +12,23 @@
 
 package org.xine.email.api;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.InputStream;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import javax.mail.internet.InternetAddress;
 
 /**
- * Base interface for creating email messages.
+ * Base interface for creating email messages. A message holding resources, such as attachments
+ * buffered in temporary files, frees them once it has been sent successfully, or when closed if
+ * it was made {@link #reusable()}. A message that is never sent, or is reusable, should be
+ * closed; otherwise its temporary files are only deleted after it has been garbage collected or
+ * when the JVM exits.
  */
-public interface MailMessage {
+public interface MailMessage extends Closeable {
 
     // Begin Recipients
 
@@ -232,7 +238,9 @@ public interface MailMessage {
             ContentDisposition contentDispostion, byte[] bytes);
 
     /**
-     * Adds Attachment to the message
+     * Adds Attachment to the message. Large streams are buffered in a temporary file rather than
+     * in memory. The file is deleted once the message has been sent successfully, or when it is
+     * closed if it is {@link #reusable()}; until then a failed send can be retried.
      * @param fileName
      * @param mimeType
      * @param contentDispostion
@@ -377,6 +385,23 @@ public interface MailMessage {
      */
     public EmailMessage mergeTemplates();
 
+    /**
+     * Starts a mail merge sending this message, as it is now, to many recipients, merging the
+     * templates for each with their own values laid over the values put on this message.
+     * @return the {@link MailMerge}
+     */
+    public MailMerge mailMerge();
+
+    /**
+     * Keeps the resources of the message, such as attachments buffered in temporary files, after
+     * a successful send, so that it can be sent again or used for a {@link #mailMerge()}. A
+     * reusable message must be closed once it is no longer needed.
+     * @return this message
+     */
+    public default MailMessage reusable() {
+        return this;
+    }
+
     /**
      * Send the Message
      * @return {@link EmailMessage} which represents the {@link MailMessage} as sent
@@ -385,6 +410,14 @@ public interface MailMessage {
      */
     public EmailMessage send();
 
+    /**
+     * Send the Message without blocking the calling thread. Templates are merged before this
+     * method returns; the SMTP exchange runs on the configured executor.
+     * @return a future completed with the {@link EmailMessage} as sent, including its Message-ID,
+     *         or completed exceptionally with a {@link SendFailedException}
+     */
+    public CompletableFuture<EmailMessage> sendAsync();
+
     // Templating Specific
 
     /**
@@ -437,4 +470,14 @@ public interface MailMessage {
      *            Map<String, Object> containing the variables to be placed in the context
      */
     public MailMessage put(Map<String, Object> values);
+
+    /**
+     * Frees the resources held by the message once it is no longer to be sent. Sends in progress
+     * and mail merges running at the time keep what they use until they are over, but the
+     * message can not be sent or merged again afterwards. Closing a closed message does nothing.
+     */
+    @Override
+    public default void close() {
+        // Nothing held
+    }
 }
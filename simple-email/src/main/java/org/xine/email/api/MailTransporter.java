@@ -12,6 +12,14 @@
 
 package org.xine.email.api;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.xine.email.impl.util.MailExecutors;
+
 /**
  * The Interface MailTransporter.
  */
@@ -24,4 +32,59 @@ public interface MailTransporter {
      * @return the email message
      */
     public EmailMessage send(EmailMessage emailMessage);
+
+    /**
+     * Sends a batch of messages. A failure is recorded in the result of the message concerned
+     * and does not stop the rest of the batch.
+     * @param emailMessages
+     *            the email messages
+     * @return one {@link SendResult} per message, in iteration order
+     */
+    public default List<SendResult> sendAll(final Collection<EmailMessage> emailMessages) {
+        final List<SendResult> results = new ArrayList<>(emailMessages.size());
+        for (final EmailMessage emailMessage : emailMessages) {
+            results.add(sendForResult(emailMessage));
+        }
+        return results;
+    }
+
+    /**
+     * Sends the message and reports the outcome instead of throwing, down to each envelope
+     * recipient: which ones the server accepted, which were deferred and may be sent to later,
+     * and which were rejected for good.
+     * @param emailMessage
+     *            the email message
+     * @return the result
+     */
+    public default SendResult sendForResult(final EmailMessage emailMessage) {
+        try {
+            return new SendResult(send(emailMessage));
+        } catch (final MailException e) {
+            return new SendResult(emailMessage, e);
+        }
+    }
+
+    /**
+     * Sends the message on the default send executor without blocking the caller.
+     * @param emailMessage
+     *            the email message
+     * @return a future completed with the sent message, its Message-ID filled in
+     * @see MailExecutors#getDefaultExecutor()
+     */
+    public default CompletableFuture<EmailMessage> sendAsync(final EmailMessage emailMessage) {
+        return sendAsync(emailMessage, MailExecutors.getDefaultExecutor());
+    }
+
+    /**
+     * Sends the message on the given executor without blocking the caller.
+     * @param emailMessage
+     *            the email message
+     * @param executor
+     *            the executor running the send
+     * @return a future completed with the sent message, its Message-ID filled in
+     */
+    public default CompletableFuture<EmailMessage> sendAsync(final EmailMessage emailMessage,
+            final Executor executor) {
+        return CompletableFuture.supplyAsync(() -> send(emailMessage), executor);
+    }
 }
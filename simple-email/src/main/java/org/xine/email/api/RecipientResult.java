@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.api;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Outcome of a send for a single envelope recipient.
+ */
+public class RecipientResult {
+
+    /** The address. */
+    private final InternetAddress address;
+
+    /** The status. */
+    private final RecipientStatus status;
+
+    /** The SMTP reply code, -1 if none is known. */
+    private final int replyCode;
+
+    /** The server's reply, null if none is known. */
+    private final String reply;
+
+    /**
+     * Instantiates a new recipient result.
+     * @param address
+     *            the recipient address
+     * @param status
+     *            the status
+     * @param replyCode
+     *            the SMTP reply code, -1 if none is known
+     * @param reply
+     *            the server's reply, null if none is known
+     */
+    public RecipientResult(final InternetAddress address, final RecipientStatus status,
+            final int replyCode, final String reply) {
+        this.address = address;
+        this.status = status;
+        this.replyCode = replyCode;
+        this.reply = reply;
+    }
+
+    /**
+     * Gets the address.
+     * @return the address
+     */
+    public InternetAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * Gets the status.
+     * @return the status
+     */
+    public RecipientStatus getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Gets the SMTP reply code the recipient's fate was decided by: 250 for an accepted
+     * recipient, the RCPT TO reply for one the server turned away, otherwise the code of the
+     * reply that failed the whole message, if any.
+     * @return the reply code, or -1 if none is known
+     */
+    public int getReplyCode() {
+        return this.replyCode;
+    }
+
+    /**
+     * Gets the server's reply.
+     * @return the reply, or null if none is known
+     */
+    public String getReply() {
+        return this.reply;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return this.address + " " + this.status + (this.replyCode >= 0 ? " " + this.replyCode
+                : "");
+    }
+}
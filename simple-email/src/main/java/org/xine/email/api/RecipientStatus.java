@@ -0,0 +1,28 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.api;
+
+/**
+ * What became of one envelope recipient of a send.
+ */
+public enum RecipientStatus {
+
+    /** The server took the message for the recipient. */
+    ACCEPTED,
+
+    /** The recipient was not sent to but may be later: a 4xx reply or a failed connection. */
+    DEFERRED,
+
+    /** The server refused the recipient permanently, or the message could not be sent at all. */
+    REJECTED
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.internet.InternetAddress;
+
+import org.xine.email.impl.transport.SmtpFailures;
+import org.xine.email.impl.util.MailUtility;
+
+/**
+ * Outcome of sending a single {@link EmailMessage}, on its own or as part of a batch, with the
+ * outcome for each of its envelope recipients.
+ */
+public class SendResult {
+
+    /** The email message. */
+    private final EmailMessage emailMessage;
+
+    /** The failure, null if the message was sent. */
+    private final MailException failure;
+
+    /** The outcome per recipient, worked out from the failure on first use unless given. */
+    private List<RecipientResult> recipientResults;
+
+    /**
+     * Instantiates a result for a message that was sent.
+     * @param emailMessage
+     *            the email message
+     */
+    public SendResult(final EmailMessage emailMessage) {
+        this(emailMessage, null);
+    }
+
+    /**
+     * Instantiates a result for a message that failed to be sent.
+     * @param emailMessage
+     *            the email message
+     * @param failure
+     *            the reason the message was not sent
+     */
+    public SendResult(final EmailMessage emailMessage, final MailException failure) {
+        this.emailMessage = emailMessage;
+        this.failure = failure;
+    }
+
+    /**
+     * Instantiates a result whose recipient outcomes are already known, for example because they
+     * were gathered over several attempts.
+     * @param emailMessage
+     *            the email message
+     * @param failure
+     *            the reason the message was not sent to every recipient, or null
+     * @param recipientResults
+     *            the outcome per recipient
+     */
+    public SendResult(final EmailMessage emailMessage, final MailException failure,
+            final List<RecipientResult> recipientResults) {
+        this.emailMessage = emailMessage;
+        this.failure = failure;
+        this.recipientResults = Collections.unmodifiableList(new ArrayList<>(
+                recipientResults));
+    }
+
+    /**
+     * Gets the email message.
+     * @return the email message
+     */
+    public EmailMessage getEmailMessage() {
+        return this.emailMessage;
+    }
+
+    /**
+     * Gets the failure.
+     * @return the exception that prevented sending, or null if the message was sent
+     */
+    public MailException getFailure() {
+        return this.failure;
+    }
+
+    /**
+     * Checks if the message was sent.
+     * @return true if the message was sent
+     */
+    public boolean isSuccess() {
+        return this.failure == null;
+    }
+
+    /**
+     * Gets the outcome for each envelope recipient. Unless given when the result was created it
+     * is read from the failure: the address lists of a javax.mail
+     * {@link javax.mail.SendFailedException} and the RCPT TO replies chained to it, or for a
+     * failure of the whole message, every recipient deferred if the failure is transient and
+     * rejected otherwise.
+     * @return the recipient results, in envelope order
+     */
+    public synchronized List<RecipientResult> getRecipientResults() {
+        if (this.recipientResults == null) {
+            this.recipientResults = Collections.unmodifiableList(SmtpFailures
+                    .getRecipientResults(MailUtility.getEnvelopeRecipients(this.emailMessage),
+                            this.failure));
+        }
+        return this.recipientResults;
+    }
+
+    /**
+     * Gets the recipients with a given outcome.
+     * @param status
+     *            the status
+     * @return the addresses, in envelope order
+     */
+    public List<InternetAddress> getRecipients(final RecipientStatus status) {
+        final List<InternetAddress> addresses = new ArrayList<>();
+        for (final RecipientResult result : getRecipientResults()) {
+            if (result.getStatus() == status) {
+                addresses.add(result.getAddress());
+            }
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.api;
+
+/**
+ * Thrown when a send is abandoned because the SMTP server took longer than the configured
+ * budget for one phase of the exchange, or for the whole send.
+ */
+public class SendTimeoutException extends SendFailedException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The phases of an SMTP exchange with their own time budget.
+     */
+    public enum Phase {
+
+        /** Opening the TCP connection. */
+        CONNECT,
+
+        /** Waiting for the server's 220 greeting. */
+        GREETING,
+
+        /** Waiting for the reply to a command such as EHLO, MAIL FROM or RCPT TO. */
+        COMMAND,
+
+        /** Transferring the message content and waiting for the server to accept it. */
+        DATA,
+
+        /** The overall deadline of the send ran out. */
+        DEADLINE
+    }
+
+    /** The phase that timed out. */
+    private final Phase phase;
+
+    public SendTimeoutException(String message, Phase phase, Throwable cause) {
+        super(message, cause);
+        this.phase = phase;
+    }
+
+    /**
+     * Gets the phase that timed out.
+     * @return the phase
+     */
+    public Phase getPhase() {
+        return this.phase;
+    }
+}
@@ -13,7 +13,8 @@
 package org.xine.email.api;
 
 /**
- * Bean which holds Mail Session configuration options.
+ * Bean which holds Mail Session configuration options. The tuning options have default methods
+ * returning null, which leaves each to the library default.
  */
 public interface SessionConfig {
 
@@ -76,4 +77,105 @@ public interface SessionConfig {
      * @return the jndi session name
      */
     String getJndiSessionName();
+
+    /**
+     * Gets the maximum number of SMTP connections a pooled transporter keeps open.
+     * @return the maximum number of pooled connections, or null for the default of 4
+     */
+    default Integer getPoolMaxConnections() {
+        return null;
+    }
+
+    /**
+     * Gets how long, in milliseconds, a pooled connection may stay idle before it is evicted.
+     * @return the maximum idle time of a pooled connection, or null for the default of 30
+     *         seconds
+     */
+    default Long getPoolMaxIdleTime() {
+        return null;
+    }
+
+    /**
+     * Gets how many messages a pooled connection sends before it is closed and replaced.
+     * @return the maximum number of messages per connection, or null for the default of 100
+     */
+    default Integer getPoolMaxMessagesPerConnection() {
+        return null;
+    }
+
+    /**
+     * Gets how long, in milliseconds, a send waits for a free pooled connection.
+     * @return the borrow timeout, or null for the default of 30 seconds
+     */
+    default Long getPoolBorrowTimeout() {
+        return null;
+    }
+
+    /**
+     * Gets the maximum number of messages per second a rate limited transporter sends.
+     * @return the message rate, or null for no limit
+     */
+    default Double getMaxMessagesPerSecond() {
+        return null;
+    }
+
+    /**
+     * Gets the maximum number of envelope recipients per day a rate limited transporter sends
+     * to.
+     * @return the daily recipient quota, or null for no limit
+     */
+    default Long getMaxRecipientsPerDay() {
+        return null;
+    }
+
+    /**
+     * Gets the maximum number of envelope recipients a chunking transporter puts in one SMTP
+     * transaction.
+     * @return the recipient cap, or null for the default of 100
+     */
+    default Integer getMaxRecipientsPerMessage() {
+        return null;
+    }
+
+    /**
+     * Gets how long, in milliseconds, opening the connection to the server may take.
+     * @return the connect timeout, or null to wait indefinitely
+     */
+    default Long getConnectTimeout() {
+        return null;
+    }
+
+    /**
+     * Gets how long, in milliseconds, the server may take to send its greeting once connected.
+     * @return the greeting timeout, or null for the command timeout
+     */
+    default Long getGreetingTimeout() {
+        return null;
+    }
+
+    /**
+     * Gets how long, in milliseconds, the server may take to answer a command.
+     * @return the command timeout, or null to wait indefinitely
+     */
+    default Long getCommandTimeout() {
+        return null;
+    }
+
+    /**
+     * Gets how long, in milliseconds, writing the message content may stall and the server may
+     * take to accept it once transferred.
+     * @return the DATA timeout, or null for the command timeout
+     */
+    default Long getDataTimeout() {
+        return null;
+    }
+
+    /**
+     * Gets how long, in milliseconds, a whole send may take from connecting to the server's
+     * acceptance of the message, however its phases share the time.
+     * @return the send deadline, or null for no overall limit
+     */
+    default Long getSendDeadline() {
+        return null;
+    }
 }
@@ -18,18 +18,23 @@ import org.xine.email.api.MessagePriority;
 import org.xine.email.api.RecipientType;
 import org.xine.email.impl.attachments.AttachmentPart;
 import org.xine.email.impl.attachments.BaseAttachment;
+import org.xine.email.impl.attachments.EncodedAttachmentCache;
+import org.xine.email.impl.attachments.EncodedContent;
+import org.xine.email.impl.util.HeaderEncoder;
+import org.xine.email.impl.util.IdGenerators;
 import org.xine.email.impl.util.MailUtility;
 
 import com.sun.mail.smtp.SMTPMessage;
 
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 
+import javax.mail.Address;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
@@ -240,7 +245,15 @@ public class BaseMailMessage {
      */
     private void setSubject(final String value, final String charset) {
         try {
-            this.rootMimeMessage.setSubject(value, charset);
+            if (value == null) {
+                this.rootMimeMessage.removeHeader("Subject");
+            } else {
+                this.rootMimeMessage.setHeader("Subject", HeaderEncoder.encode("Subject", value,
+                        charset));
+            }
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("Unable to add subject:" + value
+                    + " to MIME message with charset: " + charset, e);
         } catch (final MessagingException e) {
             throw new RuntimeException("Unable to add subject:" + value
                     + " to MIME message with charset: " + charset, e);
@@ -274,12 +287,7 @@ public class BaseMailMessage {
      */
     private void initializeMessageId() {
         final String mailerDomainName = this.session.getProperty(MailUtility.DOMAIN_PROPERTY_KEY);
-
-        if (mailerDomainName != null && mailerDomainName.length() > 0) {
-            setMessageID(UUID.randomUUID().toString() + "@" + mailerDomainName);
-        } else {
-            setMessageID(UUID.randomUUID().toString() + "@" + MailUtility.getHostName());
-        }
+        setMessageID(IdGenerators.nextMessageId(mailerDomainName));
     }
 
     /**
@@ -291,6 +299,16 @@ public class BaseMailMessage {
         this.rootMimeMessage.setEnvelopeFrom(value);
     }
 
+    /**
+     * Sets the envelope recipients, leaving the recipient headers alone.
+     * @param addresses
+     *            the addresses, empty to deliver to all recipients
+     */
+    public void setEnvelopeRecipients(final Collection<InternetAddress> addresses) {
+        this.rootMimeMessage.setEnvelopeRecipients(addresses.isEmpty() ? null : addresses
+                .toArray(new Address[addresses.size()]));
+    }
+
     /**
      * Adds the delivery reciept addresses.
      * @param addresses
@@ -518,10 +536,27 @@ public class BaseMailMessage {
      *            the email attachment
      */
     public void addAttachment(final BaseAttachment emailAttachment) {
+        if (emailAttachment.getDataSource() != null) {
+            final AttachmentPart attachment = new AttachmentPart(emailAttachment.getDataSource(),
+                    emailAttachment.getContentId(), emailAttachment.getFileName(),
+                    emailAttachment.getHeaders(), emailAttachment.getContentDisposition());
+            this.attachments.put(attachment.getAttachmentFileName(), attachment);
+            return;
+        }
         final AttachmentPart attachment = new AttachmentPart(emailAttachment.getBytes(),
                 emailAttachment.getContentId(), emailAttachment.getFileName(),
                 emailAttachment.getMimeType(), emailAttachment.getHeaders(),
                 emailAttachment.getContentDisposition());
+        try {
+            final EncodedContent encoded = EncodedAttachmentCache.getDefault().get(
+                    emailAttachment);
+            if (encoded != null) {
+                attachment.setEncodedContent(encoded);
+            }
+        } catch (final MessagingException e) {
+            throw new RuntimeException("Unable to encode attachment: "
+                    + emailAttachment.getFileName(), e);
+        }
         this.attachments.put(attachment.getAttachmentFileName(), attachment);
     }
 
@@ -0,0 +1,301 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailException;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.RecipientResult;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendResult;
+import org.xine.email.api.SessionConfig;
+import org.xine.email.impl.transport.SendDeadline;
+import org.xine.email.impl.transport.SmtpFailures;
+import org.xine.email.impl.util.EmailAttachmentUtil;
+import org.xine.email.impl.util.MailUtility;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * {@link MailTransporter} which sends a message with many recipients as several SMTP
+ * transactions of at most a set number of envelope recipients each, over one connection. The
+ * MIME message is built and serialized once, as a {@link FrozenMessage} unless the message
+ * already has one; every transaction sends the same bytes. A message with attachments streamed
+ * from a data source is not frozen, which would read them into memory; it is built once and
+ * every transaction streams it again, with the same Message-ID.
+ * <p>
+ * The cap comes from {@link SessionConfig#getMaxRecipientsPerMessage()}, 100 by default. When
+ * the server answers a RCPT TO with 452 (too many recipients) the cap is lowered to the number
+ * it accepted and the rest go in later transactions; the lowered cap is kept for later messages.
+ * Recipients are deduplicated first and a recipient is never put in a second transaction once
+ * the server has taken the message for it. The session's send deadline applies to each
+ * transaction rather than to the whole list.
+ */
+public class ChunkingMailTransporter implements MailTransporter {
+
+    /** The cap used when the config sets none, the minimum RFC 5321 asks servers to accept. */
+    public static final int DEFAULT_MAX_RECIPIENTS = 100;
+
+    /** The SMTP reply for too many recipients. */
+    private static final int TOO_MANY_RECIPIENTS = 452;
+
+    /** The session. */
+    private final Session session;
+
+    /** The current cap, lowered when the server turns recipients away. */
+    private final AtomicInteger maxRecipients;
+
+    /**
+     * Instantiates a new chunking mail transporter.
+     * @param mailConfig
+     *            the mail config
+     */
+    public ChunkingMailTransporter(final SessionConfig mailConfig) {
+        this(MailSessionRegistry.getDefault().getSession(mailConfig), mailConfig
+                .getMaxRecipientsPerMessage() != null ? mailConfig.getMaxRecipientsPerMessage()
+                : DEFAULT_MAX_RECIPIENTS);
+    }
+
+    /**
+     * Instantiates a new chunking mail transporter.
+     * @param session
+     *            the session
+     * @param maxRecipients
+     *            the maximum number of envelope recipients per transaction
+     */
+    public ChunkingMailTransporter(final Session session, final int maxRecipients) {
+        if (maxRecipients < 1) {
+            throw new IllegalArgumentException("maxRecipients must be at least 1");
+        }
+        this.session = session;
+        this.maxRecipients = new AtomicInteger(maxRecipients);
+    }
+
+    /**
+     * Sends every chunk, failing with the first chunk's failure if any failed. The other chunks
+     * are still sent, so a failed send must not simply be retried; use
+     * {@link #sendChunked(EmailMessage)} to learn which recipients have the message.
+     * @see org.xine.email.api.MailTransporter#send(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public EmailMessage send(final EmailMessage emailMessage) {
+        for (final SendResult result : sendChunked(emailMessage)) {
+            if (!result.isSuccess()) {
+                throw result.getFailure();
+            }
+        }
+        return emailMessage;
+    }
+
+    /**
+     * Sends every chunk and gathers the outcome of each recipient into one result, failed with
+     * the first chunk's failure if any failed.
+     * @see org.xine.email.api.MailTransporter#sendForResult(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public SendResult sendForResult(final EmailMessage emailMessage) {
+        final List<SendResult> chunks;
+        try {
+            chunks = sendChunked(emailMessage);
+        } catch (final MailException e) {
+            return new SendResult(emailMessage, e);
+        }
+        final List<RecipientResult> recipients = new ArrayList<>();
+        MailException failure = null;
+        for (final SendResult chunk : chunks) {
+            recipients.addAll(chunk.getRecipientResults());
+            if (failure == null) {
+                failure = chunk.getFailure();
+            }
+        }
+        return new SendResult(emailMessage, failure, recipients);
+    }
+
+    /**
+     * Sends a message in chunks.
+     * @param emailMessage
+     *            the email message
+     * @return one {@link SendResult} per chunk, holding a copy of the message whose envelope
+     *         recipients are the chunk's recipients
+     * @throws MailException
+     *             if the message can not be built or has no recipients
+     */
+    public List<SendResult> sendChunked(final EmailMessage emailMessage) {
+        final Deque<InternetAddress> pending = new ArrayDeque<>(MailUtility
+                .getEnvelopeRecipients(emailMessage));
+        if (pending.isEmpty()) {
+            throw new SendFailedException("No recipient addresses");
+        }
+        final SMTPMessage msg = serialize(emailMessage);
+        MailUtility.updateMessageId(emailMessage, msg);
+
+        final List<SendResult> results = new ArrayList<>();
+        Transport transport = null;
+        boolean dirty = false;
+        try {
+            while (!pending.isEmpty()) {
+                final List<InternetAddress> chunk = new ArrayList<>();
+                final int limit = this.maxRecipients.get();
+                while (chunk.size() < limit && !pending.isEmpty()) {
+                    chunk.add(pending.poll());
+                }
+
+                final SendDeadline deadline = SendDeadline.start(this.session);
+                try {
+                    if (transport != null && dirty && !MailUtility.reset(transport)) {
+                        MailUtility.closeQuietly(transport);
+                        transport = null;
+                    }
+                    if (transport == null) {
+                        try {
+                            transport = this.session.getTransport("smtp");
+                            transport.connect();
+                        } catch (final MessagingException e) {
+                            transport = null;
+                            chunk.addAll(pending);
+                            pending.clear();
+                            results.add(result(emailMessage, chunk, SmtpFailures.sendFailed(
+                                    "Unable to connect", e)));
+                            continue;
+                        }
+                    }
+
+                    try {
+                        dirty = true;
+                        transport.sendMessage(msg, chunk.toArray(new Address[chunk.size()]));
+                        results.add(result(emailMessage, chunk, null));
+                    } catch (final javax.mail.SendFailedException e) {
+                        handleRejection(emailMessage, chunk, e, pending, results);
+                    } catch (final MessagingException e) {
+                        results.add(result(emailMessage, chunk, SmtpFailures.sendFailed(
+                                "Send Failed", e)));
+                    }
+                    if (!transport.isConnected()) {
+                        MailUtility.closeQuietly(transport);
+                        transport = null;
+                    }
+                } finally {
+                    deadline.close();
+                }
+            }
+        } finally {
+            if (transport != null) {
+                MailUtility.closeQuietly(transport);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Gets the current cap on recipients per transaction.
+     * @return the configured cap, or the lower one learned from the server
+     */
+    public int getMaxRecipients() {
+        return this.maxRecipients.get();
+    }
+
+    /**
+     * Sorts out a transaction the server turned some recipients away from. Recipients the
+     * message was delivered to and permanently rejected ones are reported; if the server only
+     * ran out of room, the cap is lowered and the remaining recipients go back in the queue.
+     */
+    private void handleRejection(final EmailMessage emailMessage,
+            final List<InternetAddress> chunk, final javax.mail.SendFailedException failure,
+            final Deque<InternetAddress> pending, final List<SendResult> results) {
+        final Set<Address> tooMany = new HashSet<>();
+        for (Exception e = failure; e instanceof MessagingException; e = ((MessagingException) e)
+                .getNextException()) {
+            if (e instanceof SMTPAddressFailedException
+                    && ((SMTPAddressFailedException) e).getReturnCode() == TOO_MANY_RECIPIENTS) {
+                tooMany.add(((SMTPAddressFailedException) e).getAddress());
+            }
+        }
+        if (tooMany.isEmpty() || tooMany.size() == chunk.size()) {
+            results.add(result(emailMessage, chunk, new SendFailedException("Send Failed",
+                    failure)));
+            return;
+        }
+
+        final Set<Address> delivered = asSet(failure.getValidSentAddresses());
+        final Set<Address> invalid = asSet(failure.getInvalidAddresses());
+        final List<InternetAddress> sent = new ArrayList<>();
+        final List<InternetAddress> rejected = new ArrayList<>();
+        final List<InternetAddress> retry = new ArrayList<>();
+        for (final InternetAddress address : chunk) {
+            if (delivered.contains(address)) {
+                sent.add(address);
+            } else if (invalid.contains(address)) {
+                rejected.add(address);
+            } else {
+                retry.add(address);
+            }
+        }
+        if (!sent.isEmpty()) {
+            results.add(result(emailMessage, sent, null));
+        }
+        if (!rejected.isEmpty()) {
+            results.add(result(emailMessage, rejected, new SendFailedException(
+                    "Recipients rejected", failure)));
+        }
+
+        final int accepted = chunk.size() - tooMany.size() - rejected.size();
+        this.maxRecipients.accumulateAndGet(Math.max(1, accepted), Math::min);
+        for (int i = retry.size() - 1; i >= 0; i--) {
+            pending.addFirst(retry.get(i));
+        }
+    }
+
+    private SMTPMessage serialize(final EmailMessage emailMessage) {
+        if (emailMessage.getFrozenMessage() == null
+                && EmailAttachmentUtil.hasDataSource(emailMessage.getAttachments())) {
+            final SMTPMessage msg = MailUtility.buildMimeMessage(emailMessage, this.session);
+            try {
+                msg.saveChanges();
+            } catch (final MessagingException e) {
+                throw new SendFailedException("Unable to serialize message", e);
+            }
+            return msg;
+        }
+        final FrozenMessage frozen = emailMessage.getFrozenMessage() != null ? emailMessage
+                .getFrozenMessage() : new FrozenMessage(emailMessage, this.session);
+        return frozen.toMimeMessage(this.session, emailMessage);
+    }
+
+    private static SendResult result(final EmailMessage emailMessage,
+            final List<InternetAddress> recipients, final MailException failure) {
+        final EmailMessage chunk = new EmailMessage(emailMessage);
+        chunk.setEnvelopeRecipients(recipients);
+        return new SendResult(chunk, failure);
+    }
+
+    private static Set<Address> asSet(final Address[] addresses) {
+        return addresses != null ? new HashSet<>(Arrays.asList(addresses))
+                : new HashSet<Address>();
+    }
+}
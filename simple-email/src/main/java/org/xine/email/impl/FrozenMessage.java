@@ -0,0 +1,289 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.impl.util.MailUtility;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * An {@link EmailMessage} rendered once into its final RFC 5322 bytes. Attached to the message
+ * through {@link #freeze(EmailMessage, Session)}, it is what every transport sends from then on:
+ * {@link MailUtility#createMimeMessage(EmailMessage, Session)} hands out a MIME message reading
+ * these bytes instead of building and encoding the message again, so retries, fan-out to several
+ * domains and failover to another server all send the same bytes with the same Message-ID.
+ * <p>
+ * Only the content is frozen. The envelope sender, and the envelope recipients if any were set
+ * through {@link EmailMessage#setEnvelopeRecipients}, are still taken from the message each time
+ * it is sent. Otherwise RCPT TO goes to the To, Cc and Bcc recipients of the frozen headers, not
+ * to the message's current recipients. Later changes to its subject, bodies, headers or
+ * attachments are not seen either until it is frozen again or
+ * {@link EmailMessage#setFrozenMessage} clears the frozen form. Copies made with
+ * {@link EmailMessage#EmailMessage(EmailMessage)} share it.
+ * <p>
+ * The frozen bytes keep the Bcc header, which the recipients are read from; transports send
+ * them without it, as javax.mail does. Freezing reads attachments streamed from a data source
+ * into the bytes along with the rest of the message.
+ */
+public final class FrozenMessage {
+
+    /** The rendered message, never modified. */
+    private final byte[] content;
+
+    /** The Message-ID, without angle brackets. */
+    private final String messageId;
+
+    /**
+     * Renders a message, with a {@link MimeStreamWriter} when it supports the message. The message
+     * is left as it is; see {@link #freeze(EmailMessage, Session)} to have it sent in this form.
+     * @param emailMessage
+     *            the email message
+     * @param session
+     *            the session whose settings the message is built with
+     * @throws SendFailedException
+     *             if the message can not be built
+     */
+    public FrozenMessage(final EmailMessage emailMessage, final Session session) {
+        if (MimeStreamWriter.supports(emailMessage)) {
+            final MimeStreamWriter writer = new MimeStreamWriter(session);
+            final ByteBuffer written = writer.write(emailMessage);
+            this.content = new byte[written.remaining()];
+            written.get(this.content);
+            this.messageId = writer.getMessageId();
+            return;
+        }
+        final SMTPMessage built = MailUtility.buildMimeMessage(emailMessage, session);
+        try {
+            built.saveChanges();
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            built.writeTo(bytes);
+            this.content = bytes.toByteArray();
+            this.messageId = MailUtility.headerStripper(built.getMessageID());
+        } catch (final MessagingException | IOException e) {
+            throw new SendFailedException("Unable to serialize message", e);
+        }
+    }
+
+    /**
+     * Renders a message and attaches the result to it, replacing any earlier frozen form. The
+     * message takes the Message-ID of the rendered form.
+     * @param emailMessage
+     *            the email message
+     * @param session
+     *            the session whose settings the message is built with
+     * @return the frozen message
+     * @throws SendFailedException
+     *             if the message can not be built
+     */
+    public static FrozenMessage freeze(final EmailMessage emailMessage, final Session session) {
+        emailMessage.setFrozenMessage(null);
+        final FrozenMessage frozen = new FrozenMessage(emailMessage, session);
+        emailMessage.setMessageId(frozen.getMessageId());
+        emailMessage.setFrozenMessage(frozen);
+        return frozen;
+    }
+
+    /**
+     * Gets the Message-ID.
+     * @return the message id, without angle brackets
+     */
+    public String getMessageId() {
+        return this.messageId;
+    }
+
+    /**
+     * Gets the size of the rendered message.
+     * @return the size in bytes
+     */
+    public int getSize() {
+        return this.content.length;
+    }
+
+    /**
+     * Gets the rendered message.
+     * @return a read-only buffer over the bytes
+     */
+    public ByteBuffer getContent() {
+        return ByteBuffer.wrap(this.content).asReadOnlyBuffer();
+    }
+
+    /**
+     * Opens a stream over the rendered message.
+     * @return the input stream
+     */
+    public InputStream getInputStream() {
+        return new SharedByteArrayInputStream(this.content);
+    }
+
+    /**
+     * Writes the rendered message.
+     * @param out
+     *            the stream to write to
+     * @throws IOException
+     *             if writing fails
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(this.content);
+    }
+
+    /**
+     * Gets the bytes to transfer as the DATA of an SMTP transaction: the rendered message
+     * without its Bcc and Content-Length headers. When it has neither, which is the common case,
+     * these are the bytes themselves, not a copy, and must not be modified.
+     * @return the bytes
+     */
+    byte[] transferBytes() {
+        final int end = headerEnd(this.content);
+        ByteArrayOutputStream stripped = null;
+        int kept = 0;
+        int line = 0;
+        boolean skipping = false;
+        while (line < end) {
+            int next = line;
+            while (next < end && this.content[next] != '\n') {
+                next++;
+            }
+            next = Math.min(next + 1, end);
+            final byte first = this.content[line];
+            if (first != ' ' && first != '\t') {
+                final boolean skip = isHeader(this.content, line, next, "Bcc")
+                        || isHeader(this.content, line, next, "Content-Length");
+                if (skip && !skipping) {
+                    if (stripped == null) {
+                        stripped = new ByteArrayOutputStream(this.content.length);
+                    }
+                    stripped.write(this.content, kept, line - kept);
+                } else if (!skip && skipping) {
+                    kept = line;
+                }
+                skipping = skip;
+            }
+            line = next;
+        }
+        if (stripped == null) {
+            return this.content;
+        }
+        if (skipping) {
+            kept = end;
+        }
+        stripped.write(this.content, kept, this.content.length - kept);
+        return stripped.toByteArray();
+    }
+
+    /**
+     * Finds the end of the header block: the offset of the empty line ending it, or the end of
+     * the bytes if there is none.
+     */
+    private static int headerEnd(final byte[] b) {
+        int line = 0;
+        while (line < b.length) {
+            if (b[line] == '\n' || b[line] == '\r' && line + 1 < b.length
+                    && b[line + 1] == '\n') {
+                return line;
+            }
+            while (line < b.length && b[line] != '\n') {
+                line++;
+            }
+            line++;
+        }
+        return b.length;
+    }
+
+    /**
+     * Checks whether the header line starting at an offset has the given name.
+     */
+    private static boolean isHeader(final byte[] b, final int start, final int end,
+            final String name) {
+        final int colon = start + name.length();
+        if (colon >= end || b[colon] != ':') {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase((char) b[start + i]) != Character.toLowerCase(name
+                    .charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a MIME message reading the rendered bytes, addressed with the envelope of the given
+     * message. Only the headers are parsed; the body is shared, not copied.
+     * @param session
+     *            the session to send with
+     * @param emailMessage
+     *            the email message giving the envelope
+     * @return the MIME message
+     * @throws SendFailedException
+     *             if the bytes can not be read back
+     */
+    public SMTPMessage toMimeMessage(final Session session, final EmailMessage emailMessage) {
+        try {
+            final FrozenMimeMessage msg = new FrozenMimeMessage(session, this);
+            msg.setEnvelopeFrom(MailUtility.nullSafeAddress(emailMessage.getEnvelopeFrom()));
+            if (!emailMessage.getEnvelopeRecipients().isEmpty()) {
+                msg.setEnvelopeRecipients(MailUtility.getInternetAddressses(emailMessage
+                        .getEnvelopeRecipients()));
+            }
+            return msg;
+        } catch (final MessagingException e) {
+            throw new SendFailedException("Unable to read serialized message", e);
+        }
+    }
+
+    /**
+     * MIME message over the bytes of a {@link FrozenMessage}. Saving changes does nothing, as
+     * there are none to save, and writing it without leaving out any header copies the bytes
+     * straight through.
+     */
+    private static final class FrozenMimeMessage extends RootMimeMessage {
+
+        /** The frozen message. */
+        private final FrozenMessage frozen;
+
+        FrozenMimeMessage(final Session session, final FrozenMessage frozen)
+                throws MessagingException {
+            super(session, frozen.getInputStream());
+            this.frozen = frozen;
+        }
+
+        @Override
+        public void saveChanges() {
+            // Final already
+        }
+
+        @Override
+        public void writeTo(final OutputStream os, final String[] ignoreList) throws IOException,
+                MessagingException {
+            if (ignoreList == null) {
+                markWritten();
+                this.frozen.writeTo(os);
+            } else {
+                super.writeTo(os, ignoreList);
+            }
+        }
+    }
+}
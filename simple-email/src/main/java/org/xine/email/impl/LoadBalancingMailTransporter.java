@@ -0,0 +1,279 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Session;
+
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailException;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SessionConfig;
+import org.xine.email.impl.transport.Relay;
+import org.xine.email.impl.transport.RelaySelectionStrategy;
+import org.xine.email.impl.transport.SmtpFailures;
+import org.xine.email.impl.util.MailExecutors;
+
+/**
+ * {@link MailTransporter} which spreads sends over several SMTP relays.
+ * <p>
+ * A send that fails because of the relay (the connection could not be made or was lost,
+ * authentication failed or the server replied 421) is retried on the next relay; a send the
+ * relay rejected because of the message itself is not, and neither is one that failed after
+ * the relay accepted DATA, since the relay may already have queued the message. After
+ * {@link #setFailureThreshold(int)} consecutive relay failures a relay is taken out of rotation.
+ * It comes back after a successful active probe (see {@link #startProbing(long)}) or a
+ * successful trial send once the retry interval has passed. When every relay is out of rotation
+ * all of them are still tried, least failing first.
+ */
+public class LoadBalancingMailTransporter implements MailTransporter, Closeable {
+
+    /** The relays. */
+    private final List<Relay> relays;
+
+    /** The selection strategy. */
+    private final RelaySelectionStrategy strategy;
+
+    /** The round robin position. */
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    /** The consecutive relay failures after which a relay is taken out of rotation. */
+    private volatile int failureThreshold = 3;
+
+    /** The time, in milliseconds, before a relay out of rotation gets a trial send. */
+    private volatile long retryInterval = 30000L;
+
+    /** The active probe scheduler, or null if relays are not probed. */
+    private ScheduledExecutorService prober;
+
+    /**
+     * Instantiates a new load balancing mail transporter with one {@link MailTransporterImpl}
+     * per configuration.
+     * @param mailConfigs
+     *            one configuration per relay
+     * @param strategy
+     *            the selection strategy
+     */
+    public LoadBalancingMailTransporter(final Collection<? extends SessionConfig> mailConfigs,
+            final RelaySelectionStrategy strategy) {
+        this(createRelays(mailConfigs), strategy);
+    }
+
+    /**
+     * Instantiates a new load balancing mail transporter.
+     * @param relays
+     *            the relays
+     * @param strategy
+     *            the selection strategy
+     */
+    public LoadBalancingMailTransporter(final List<Relay> relays,
+            final RelaySelectionStrategy strategy) {
+        if (relays.isEmpty()) {
+            throw new IllegalArgumentException("At least one relay is required");
+        }
+        this.relays = Collections.unmodifiableList(new ArrayList<>(relays));
+        this.strategy = strategy;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.xine.email.api.MailTransporter#send(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public EmailMessage send(final EmailMessage emailMessage) {
+        MailException lastFailure = null;
+
+        for (final Relay relay : select()) {
+            final long start = System.nanoTime();
+            relay.sendStarted();
+            try {
+                relay.getTransporter().send(emailMessage);
+                relay.sendSucceeded(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return emailMessage;
+            } catch (final MailException e) {
+                if (SmtpFailures.isDeliveryUncertain(e)) {
+                    // The relay may have queued it, so another relay could deliver it twice
+                    relay.sendFailed(this.failureThreshold);
+                    throw e;
+                }
+                if (!SmtpFailures.isRelayFailure(e)) {
+                    relay.sendRejected();
+                    throw e;
+                }
+                relay.sendFailed(this.failureThreshold);
+                lastFailure = e;
+            } catch (final RuntimeException e) {
+                relay.sendRejected();
+                throw e;
+            }
+        }
+
+        throw new SendFailedException("Send failed on every relay", lastFailure);
+    }
+
+    /**
+     * Probes every relay once.
+     */
+    public void probe() {
+        for (final Relay relay : this.relays) {
+            relay.probe(this.failureThreshold);
+        }
+    }
+
+    /**
+     * Starts probing every relay in the background.
+     * @param interval
+     *            the time between probes, in milliseconds
+     */
+    public synchronized void startProbing(final long interval) {
+        if (this.prober != null) {
+            this.prober.shutdownNow();
+        }
+        this.prober = Executors.newSingleThreadScheduledExecutor(MailExecutors
+                .daemonThreadFactory("simple-email-relay-probe"));
+        this.prober.scheduleWithFixedDelay(this::probe, interval, interval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the relays.
+     * @return the relays, in configuration order
+     */
+    public List<Relay> getRelays() {
+        return this.relays;
+    }
+
+    /**
+     * Sets the consecutive relay failures after which a relay is taken out of rotation.
+     * @param failureThreshold
+     *            the failure threshold, 3 by default
+     */
+    public void setFailureThreshold(final int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Sets the time before a relay out of rotation gets a trial send.
+     * @param retryInterval
+     *            the retry interval in milliseconds, 30 seconds by default
+     */
+    public void setRetryInterval(final long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Stops probing and closes every relay transporter that holds resources.
+     */
+    @Override
+    public synchronized void close() {
+        if (this.prober != null) {
+            this.prober.shutdownNow();
+            this.prober = null;
+        }
+        for (final Relay relay : this.relays) {
+            if (relay.getTransporter() instanceof Closeable) {
+                try {
+                    ((Closeable) relay.getTransporter()).close();
+                } catch (final IOException e) {
+                    // Nothing left to clean up
+                }
+            }
+        }
+    }
+
+    /**
+     * Orders the relays to try for one send: the first is the one chosen by the strategy, the
+     * rest are failover candidates.
+     */
+    private List<Relay> select() {
+        final List<Relay> available = new ArrayList<>(this.relays.size());
+        for (final Relay relay : this.relays) {
+            if (relay.isAvailable(this.retryInterval)) {
+                available.add(relay);
+            }
+        }
+        if (available.isEmpty()) {
+            available.addAll(this.relays);
+            Collections.sort(available, Comparator.comparingInt(Relay::getConsecutiveFailures));
+            return available;
+        }
+
+        Collections.rotate(available, -Math.floorMod(this.sequence.getAndIncrement(),
+                available.size()));
+
+        switch (this.strategy) {
+        case LEAST_OUTSTANDING:
+            Collections.sort(available, Comparator.comparingInt(Relay::getOutstanding));
+            break;
+        case LATENCY_WEIGHTED:
+            Collections.sort(available, Comparator.comparingDouble(Relay::getAverageLatency));
+            Collections.swap(available, 0, pickByLatency(available));
+            break;
+        default:
+            break;
+        }
+        return available;
+    }
+
+    /**
+     * Picks a relay at random with a probability inversely proportional to its average latency.
+     * Relays without samples yet weigh as much as the fastest one so they get traffic.
+     */
+    private static int pickByLatency(final List<Relay> relays) {
+        final double[] weights = new double[relays.size()];
+        double fastest = Double.MAX_VALUE;
+        for (final Relay relay : relays) {
+            if (relay.getAverageLatency() > 0) {
+                fastest = Math.min(fastest, relay.getAverageLatency());
+            }
+        }
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            final double latency = relays.get(i).getAverageLatency();
+            weights[i] = 1.0 / (latency > 0 ? latency : fastest == Double.MAX_VALUE ? 1
+                    : fastest);
+            total += weights[i];
+        }
+        double point = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < weights.length; i++) {
+            point -= weights[i];
+            if (point < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    private static List<Relay> createRelays(final Collection<? extends SessionConfig> mailConfigs) {
+        final List<Relay> relays = new ArrayList<>(mailConfigs.size());
+        for (final SessionConfig mailConfig : mailConfigs) {
+            final Session session = MailSessionRegistry.getDefault().getSession(mailConfig);
+            relays.add(new Relay(mailConfig.getServerHost() + ":" + mailConfig.getServerPort(),
+                    new MailTransporterImpl(session), session));
+        }
+        return relays;
+    }
+}
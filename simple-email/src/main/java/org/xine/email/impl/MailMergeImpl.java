@@ -0,0 +1,195 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailContext;
+import org.xine.email.api.MailMerge;
+import org.xine.email.api.MailMergeEntry;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.SendResult;
+import org.xine.email.api.TemplateProvider;
+import org.xine.email.api.TemplatingException;
+import org.xine.email.impl.attachments.SpilledDataSource;
+import org.xine.email.impl.util.EmailAttachmentUtil;
+
+/**
+ * The {@link MailMerge} of a {@link MailMessageImpl}. Each message is a copy of a prototype
+ * taken when the merge is created, sharing its attachment and header objects, so that with the
+ * {@link org.xine.email.impl.attachments.EncodedAttachmentCache} the attachments are also
+ * encoded only once for the whole run. Attachments buffered in temporary files are kept for as
+ * long as a run is sending, even if the message they belong to is closed meanwhile.
+ */
+public class MailMergeImpl implements MailMerge {
+
+    /** The message every recipient's message is copied from. */
+    private final EmailMessage prototype;
+
+    /** The subject template, null to keep the subject of the prototype. */
+    private final TemplateProvider subjectTemplate;
+
+    /** The text body template, null to keep the text body of the prototype. */
+    private final TemplateProvider textTemplate;
+
+    /** The HTML body template, null to keep the HTML body of the prototype. */
+    private final TemplateProvider htmlTemplate;
+
+    /** The template values shared by every recipient. */
+    private final Map<String, Object> context;
+
+    /**
+     * Instantiates a new mail merge.
+     * @param emailMessage
+     *            the message to copy for each recipient; later changes to it are not seen
+     * @param subjectTemplate
+     *            the subject template, null for none
+     * @param textTemplate
+     *            the text body template, null for none
+     * @param htmlTemplate
+     *            the HTML body template, null for none
+     * @param context
+     *            the template values shared by every recipient
+     */
+    public MailMergeImpl(final EmailMessage emailMessage, final TemplateProvider subjectTemplate,
+            final TemplateProvider textTemplate, final TemplateProvider htmlTemplate,
+            final Map<String, Object> context) {
+        this.prototype = new EmailMessage(emailMessage);
+        this.prototype.setMessageId(null);
+        this.prototype.setFrozenMessage(null);
+        this.subjectTemplate = subjectTemplate;
+        this.textTemplate = textTemplate;
+        this.htmlTemplate = htmlTemplate;
+        this.context = new HashMap<String, Object>(context);
+        this.context.put("mailContext", new MailContext(EmailAttachmentUtil
+                .getEmailAttachmentMap(this.prototype.getAttachments())));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.xine.email.api.MailMerge#personalize(org.xine.email.api.MailMergeEntry)
+     */
+    @Override
+    public EmailMessage personalize(final MailMergeEntry entry) {
+        final EmailMessage emailMessage = newMessage(entry);
+        merge(emailMessage, entry);
+        return emailMessage;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.xine.email.api.MailMerge#personalize(java.util.stream.Stream)
+     */
+    @Override
+    public Stream<EmailMessage> personalize(final Stream<MailMergeEntry> entries) {
+        return entries.map(this::personalize);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.xine.email.api.MailMerge#send(org.xine.email.api.MailTransporter,
+     * java.util.stream.Stream, java.util.function.Consumer)
+     */
+    @Override
+    public long send(final MailTransporter mailTransporter, final Stream<MailMergeEntry> entries,
+            final Consumer<SendResult> results) {
+        return send(mailTransporter, entries, results, 1, Runnable::run);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.xine.email.api.MailMerge#send(org.xine.email.api.MailTransporter,
+     * java.util.stream.Stream, java.util.function.Consumer, int, java.util.concurrent.Executor)
+     */
+    @Override
+    public long send(final MailTransporter mailTransporter, final Stream<MailMergeEntry> entries,
+            final Consumer<SendResult> results, final int maxInFlight, final Executor executor) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        final List<SpilledDataSource> retained = EmailAttachmentUtil.retainSpilled(
+                this.prototype.getAttachments());
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        long count = 0;
+        try {
+            for (final Iterator<MailMergeEntry> it = entries.iterator(); it.hasNext();) {
+                final MailMergeEntry entry = it.next();
+                inFlight.acquireUninterruptibly();
+                try {
+                    final EmailMessage emailMessage = newMessage(entry);
+                    executor.execute(() -> {
+                        try {
+                            results.accept(sendForResult(mailTransporter, emailMessage, entry));
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (final RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                count++;
+            }
+        } finally {
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+            EmailAttachmentUtil.releaseSpilled(retained);
+        }
+        return count;
+    }
+
+    /**
+     * Merges the templates of a message and sends it, reporting a merge failure as the result.
+     */
+    private SendResult sendForResult(final MailTransporter mailTransporter,
+            final EmailMessage emailMessage, final MailMergeEntry entry) {
+        try {
+            merge(emailMessage, entry);
+        } catch (final TemplatingException e) {
+            return new SendResult(emailMessage, e);
+        }
+        return mailTransporter.sendForResult(emailMessage);
+    }
+
+    private EmailMessage newMessage(final MailMergeEntry entry) {
+        final EmailMessage emailMessage = new EmailMessage(this.prototype);
+        emailMessage.addTo(entry.getRecipient());
+        return emailMessage;
+    }
+
+    private void merge(final EmailMessage emailMessage, final MailMergeEntry entry) {
+        if (this.subjectTemplate == null && this.textTemplate == null
+                && this.htmlTemplate == null) {
+            return;
+        }
+        final Map<String, Object> values = new HashMap<String, Object>(this.context);
+        values.putAll(entry.getContext());
+        if (this.subjectTemplate != null) {
+            emailMessage.setSubject(this.subjectTemplate.merge(values));
+        }
+        if (this.textTemplate != null) {
+            emailMessage.setTextBody(this.textTemplate.merge(values));
+        }
+        if (this.htmlTemplate != null) {
+            emailMessage.setHtmlBody(this.htmlTemplate.merge(values));
+        }
+    }
+}
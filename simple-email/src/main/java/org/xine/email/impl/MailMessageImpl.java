@@ -11,9 +11,14 @@ package org.xine.email.impl;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
@@ -27,16 +32,20 @@ import org.xine.email.api.EmailMessageType;
 import org.xine.email.api.Header;
 import org.xine.email.api.ICalMethod;
 import org.xine.email.api.MailContext;
+import org.xine.email.api.MailMerge;
 import org.xine.email.api.MailMessage;
 import org.xine.email.api.MailTransporter;
 import org.xine.email.api.MessagePriority;
 import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendTimeoutException;
 import org.xine.email.api.SessionConfig;
 import org.xine.email.api.TemplateProvider;
 import org.xine.email.impl.attachments.BaseAttachment;
 import org.xine.email.impl.attachments.FileAttachment;
 import org.xine.email.impl.attachments.InputStreamAttachment;
+import org.xine.email.impl.attachments.SpilledDataSource;
 import org.xine.email.impl.util.EmailAttachmentUtil;
+import org.xine.email.impl.util.MailExecutors;
 import org.xine.email.impl.util.MailUtility;
 
 public class MailMessageImpl implements MailMessage {
@@ -45,11 +54,14 @@ public class MailMessageImpl implements MailMessage {
     private MailTransporter mailTransporter;
     private Session session;
     private SessionConfig mailConfig;
+    private Executor executor;
     private TemplateProvider subjectTemplate;
     private TemplateProvider textTemplate;
     private TemplateProvider htmlTemplate;
     private final Map<String, Object> templateContext = new HashMap<String, Object>();
     private boolean templatesMerged;
+    private final List<SpilledDataSource> spilled = new ArrayList<SpilledDataSource>();
+    private volatile boolean reusable;
 
     private MailMessageImpl() {
         this.emailMessage = new EmailMessage();
@@ -308,7 +320,14 @@ public class MailMessageImpl implements MailMessage {
     @Override
     public MailMessage addAttachment(final String fileName, final String mimeType,
             final ContentDisposition contentDispostion, final InputStream inputStream) {
-        addAttachment(new InputStreamAttachment(fileName, mimeType, contentDispostion, inputStream));
+        final InputStreamAttachment attachment = new InputStreamAttachment(fileName, mimeType,
+                contentDispostion, inputStream);
+        if (attachment.getDataSource() instanceof SpilledDataSource) {
+            synchronized (this.spilled) {
+                this.spilled.add((SpilledDataSource) attachment.getDataSource());
+            }
+        }
+        addAttachment(attachment);
         return this;
     }
 
@@ -406,6 +425,16 @@ public class MailMessageImpl implements MailMessage {
         this.session = session;
     }
 
+    /**
+     * Sets the executor used by {@link #sendAsync()}. Defaults to
+     * {@link MailExecutors#getDefaultExecutor()}.
+     * @param executor
+     *            the executor
+     */
+    public void setExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
     @Override
     public EmailMessage mergeTemplates() {
 
@@ -430,39 +459,112 @@ public class MailMessageImpl implements MailMessage {
         return this.emailMessage;
     }
 
+    @Override
+    public MailMerge mailMerge() {
+        return new MailMergeImpl(this.emailMessage, this.subjectTemplate, this.textTemplate,
+                this.htmlTemplate, this.templateContext);
+    }
+
+    @Override
+    public MailMessage reusable() {
+        this.reusable = true;
+        return this;
+    }
+
     public EmailMessage send(final MailTransporter mailTransporter) throws SendFailedException {
         if (!this.templatesMerged) {
             mergeTemplates();
         }
 
+        final List<SpilledDataSource> retained = EmailAttachmentUtil.retainSpilled(
+                this.emailMessage.getAttachments());
         try {
             mailTransporter.send(this.emailMessage);
+        } catch (final SendTimeoutException e) {
+            throw e;
         } catch (final Exception e) {
             throw new SendFailedException("Send Failed", e);
+        } finally {
+            EmailAttachmentUtil.releaseSpilled(retained);
+        }
+        if (!this.reusable) {
+            close();
         }
 
         return this.emailMessage;
     }
 
-    private EmailMessage send(final Session session) throws SendFailedException {
-        return send(new MailTransporterImpl(session));
-    }
-
     public EmailMessage send(final SessionConfig mailConfig) {
-        return send(MailUtility.createSession(mailConfig));
+        return send(new MailTransporterImpl(MailSessionRegistry.getDefault().getSession(
+                mailConfig)));
     }
 
-    @Override
-    public EmailMessage send() throws SendFailedException {
+    private MailTransporter resolveMailTransporter() throws SendFailedException {
         if (this.mailTransporter != null) {
-            return send(this.mailTransporter);
+            return this.mailTransporter;
         } else if (this.session != null) {
-            return send(this.session);
+            return new MailTransporterImpl(this.session);
         } else if (this.mailConfig != null) {
-            return send(this.mailConfig);
+            return new MailTransporterImpl(MailSessionRegistry.getDefault().getSession(
+                    this.mailConfig));
         } else {
             throw new SendFailedException(
                     "No Resource availiable to send. How was this constructed?");
         }
     }
+
+    @Override
+    public EmailMessage send() throws SendFailedException {
+        return send(resolveMailTransporter());
+    }
+
+    @Override
+    public CompletableFuture<EmailMessage> sendAsync() {
+        final MailTransporter transporter = resolveMailTransporter();
+
+        if (!this.templatesMerged) {
+            mergeTemplates();
+        }
+
+        final Executor sendExecutor = this.executor != null ? this.executor : MailExecutors
+                .getDefaultExecutor();
+
+        final List<SpilledDataSource> retained = EmailAttachmentUtil.retainSpilled(
+                this.emailMessage.getAttachments());
+        final CompletableFuture<EmailMessage> sending;
+        try {
+            sending = transporter.sendAsync(this.emailMessage, sendExecutor);
+        } catch (final RuntimeException e) {
+            EmailAttachmentUtil.releaseSpilled(retained);
+            throw e;
+        }
+        return sending.handle((sent, failure) -> {
+            EmailAttachmentUtil.releaseSpilled(retained);
+            if (failure == null) {
+                if (!this.reusable) {
+                    close();
+                }
+                return sent;
+            }
+            final Throwable cause = failure instanceof CompletionException
+                    && failure.getCause() != null ? failure.getCause() : failure;
+            if (cause instanceof SendFailedException) {
+                throw (SendFailedException) cause;
+            }
+            throw new SendFailedException("Send Failed", cause);
+        });
+    }
+
+    /**
+     * Releases the temporary files of the attachments this message buffered from streams. A
+     * message that is not reusable is closed by its first successful send.
+     * @see org.xine.email.api.MailMessage#close()
+     */
+    @Override
+    public void close() {
+        synchronized (this.spilled) {
+            EmailAttachmentUtil.releaseSpilled(this.spilled);
+            this.spilled.clear();
+        }
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.Session;
+
+import org.xine.email.api.SessionConfig;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.impl.util.Strings;
+
+/**
+ * Caches the {@link Session} built or looked up for a {@link SessionConfig}, so repeated sends
+ * with the same configuration do not rebuild the session properties or repeat the JNDI lookup.
+ * <p>
+ * Sessions are keyed by a snapshot of the configuration values, not by the configuration object:
+ * two equal configurations share a session, and changing a configuration after use simply maps
+ * it to a different session. A JNDI configuration is keyed by its JNDI name alone. Use
+ * {@link #invalidate(SessionConfig)} or {@link #refresh(SessionConfig)} when the session behind a
+ * configuration has changed, for example after the JNDI resource was redeployed.
+ */
+public final class MailSessionRegistry {
+
+    /** The registry used by the library's own send paths. */
+    private static final MailSessionRegistry DEFAULT = new MailSessionRegistry();
+
+    /** The sessions by configuration key. */
+    private final ConcurrentMap<List<Object>, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the default registry.
+     * @return the default registry
+     */
+    public static MailSessionRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Gets the session for a configuration, creating it on first use.
+     * @param mailConfig
+     *            the mail config
+     * @return the cached session
+     */
+    public Session getSession(final SessionConfig mailConfig) {
+        return this.sessions.computeIfAbsent(key(mailConfig),
+                k -> MailUtility.createSession(mailConfig));
+    }
+
+    /**
+     * Creates the session for a configuration again and replaces the cached one.
+     * @param mailConfig
+     *            the mail config
+     * @return the new session
+     */
+    public Session refresh(final SessionConfig mailConfig) {
+        final Session session = MailUtility.createSession(mailConfig);
+        this.sessions.put(key(mailConfig), session);
+        return session;
+    }
+
+    /**
+     * Drops the cached session for a configuration.
+     * @param mailConfig
+     *            the mail config
+     */
+    public void invalidate(final SessionConfig mailConfig) {
+        this.sessions.remove(key(mailConfig));
+    }
+
+    /**
+     * Drops every cached session.
+     */
+    public void invalidateAll() {
+        this.sessions.clear();
+    }
+
+    /**
+     * Gets the number of cached sessions.
+     * @return the number of cached sessions
+     */
+    public int size() {
+        return this.sessions.size();
+    }
+
+    /**
+     * Builds the normalized key of a configuration from every value
+     * {@link MailUtility#createSession(SessionConfig)} reads.
+     */
+    private static List<Object> key(final SessionConfig mailConfig) {
+        if (!Strings.isNullOrBlank(mailConfig.getJndiSessionName())) {
+            return Arrays.<Object> asList("jndi", mailConfig.getJndiSessionName().trim());
+        }
+        return Arrays.<Object> asList(
+                mailConfig.getServerHost() != null ? mailConfig.getServerHost().trim()
+                        .toLowerCase(Locale.ENGLISH) : null,
+                mailConfig.getServerPort(),
+                Strings.isNullOrBlank(mailConfig.getDomainName()) ? null : mailConfig
+                        .getDomainName(),
+                mailConfig.getUsername(),
+                mailConfig.getPassword(),
+                mailConfig.getEnableTls(),
+                mailConfig.getRequireTls(),
+                mailConfig.getEnableSsl(),
+                mailConfig.getAuth(),
+                mailConfig.getConnectTimeout(),
+                mailConfig.getGreetingTimeout(),
+                mailConfig.getCommandTimeout(),
+                mailConfig.getDataTimeout(),
+                mailConfig.getSendDeadline());
+    }
+}
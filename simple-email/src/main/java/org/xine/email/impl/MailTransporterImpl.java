@@ -14,8 +14,12 @@ package org.xine.email.impl;
 
 import org.xine.email.api.EmailMessage;
 import org.xine.email.api.MailTransporter;
+import org.xine.email.api.SendResult;
 import org.xine.email.impl.util.MailUtility;
 
+import java.util.Collection;
+import java.util.List;
+
 import javax.mail.Session;
 
 /**
@@ -45,4 +49,13 @@ public class MailTransporterImpl implements MailTransporter {
         return emailMessage;
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.xine.email.api.MailTransporter#sendAll(java.util.Collection)
+     */
+    @Override
+    public List<SendResult> sendAll(final Collection<EmailMessage> emailMessages) {
+        return MailUtility.sendAll(emailMessages, this.session);
+    }
+
 }
@@ -0,0 +1,522 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.HeaderTokenizer;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeUtility;
+
+import org.xine.email.api.ContentDisposition;
+import org.xine.email.api.ContentType;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.EmailMessageType;
+import org.xine.email.api.Header;
+import org.xine.email.api.MailHeader;
+import org.xine.email.api.MessagePriority;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.impl.attachments.BaseAttachment;
+import org.xine.email.impl.attachments.EncodedAttachmentCache;
+import org.xine.email.impl.attachments.EncodedContent;
+import org.xine.email.impl.util.HeaderEncoder;
+import org.xine.email.impl.util.IdGenerators;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.impl.util.Strings;
+
+/**
+ * Writes an {@link EmailMessage} straight to RFC 5322 bytes, without building the
+ * {@link BaseMailMessage} tree of MIME parts for javax.mail to walk again when it writes.
+ * <p>
+ * The output has the structure {@link MailUtility#buildMimeMessage} gives the same message: the
+ * same nesting of mixed, related and alternative multiparts, the same headers in the same order,
+ * the same transfer encodings chosen the same way and the same boundary format, so a receiver can
+ * not tell the two apart. Header values and encoders are javax.mail's own. It covers standard
+ * messages with a text body, an HTML body or both, with inline and attached files; anything else,
+ * such as calendar invites or headers that override the MIME structure, is left to javax.mail, see
+ * {@link #supports(EmailMessage)}.
+ * <p>
+ * A writer keeps one output buffer which it reuses from message to message. It is not thread
+ * safe.
+ */
+public class MimeStreamWriter {
+
+    /** Line separator. */
+    private static final byte[] CRLF = {'\r', '\n' };
+
+    /** Numbers the boundaries, like javax.mail does. */
+    private static final AtomicInteger BOUNDARIES = new AtomicInteger();
+
+    /** Whether javax.mail runs with the MIME system properties this writer reproduces. */
+    private static final boolean DEFAULT_MIME_PROPERTIES = !Boolean
+            .getBoolean("mail.mime.encodefilename")
+            && !"false".equalsIgnoreCase(System.getProperty("mail.mime.setcontenttypefilename"))
+            && !"false".equalsIgnoreCase(System.getProperty("mail.mime.setdefaulttextcharset"))
+            && !Boolean.getBoolean("mail.mime.encodeeol.strict");
+
+    /** The session giving the Message-ID domain. */
+    private final Session session;
+
+    /** The reused output buffer. */
+    private final Buffer buffer = new Buffer();
+
+    /** Formats the Date header. */
+    private final MailDateFormat dateFormat = new MailDateFormat();
+
+    /** The Message-ID of the last message written. */
+    private String messageId;
+
+    /**
+     * Instantiates a new MIME stream writer.
+     * @param session
+     *            the session whose domain setting Message-IDs are generated with
+     */
+    public MimeStreamWriter(final Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Tells whether a message has one of the shapes this writer produces. Messages it does not
+     * support must be built with {@link MailUtility#buildMimeMessage}.
+     * @param emailMessage
+     *            the email message
+     * @return true if the message can be written
+     */
+    public static boolean supports(final EmailMessage emailMessage) {
+        if (!DEFAULT_MIME_PROPERTIES || emailMessage.getType() != EmailMessageType.STANDARD) {
+            return false;
+        }
+        if (emailMessage.getTextBody() == null && emailMessage.getHtmlBody() == null
+                && emailMessage.getAttachments().isEmpty()) {
+            return false;
+        }
+        for (final Header header : emailMessage.getHeaders()) {
+            if (isStructural(header.getName())) {
+                return false;
+            }
+        }
+        for (final BaseAttachment attachment : emailMessage.getAttachments()) {
+            if (attachment.getDataSource() != null) {
+                // Streamed while sent rather than buffered with the message
+                return false;
+            }
+            if (attachment.getMimeType() == null || attachment.getBytes() == null
+                    || attachment.getContentDisposition() == null) {
+                return false;
+            }
+            for (final Header header : attachment.getHeaders()) {
+                if (isStructural(header.getName())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a message into the writer's buffer.
+     * @param emailMessage
+     *            the email message
+     * @return a read-only view of the bytes, valid until the next message is written
+     * @throws SendFailedException
+     *             if the message is not supported or can not be encoded
+     */
+    public ByteBuffer write(final EmailMessage emailMessage) {
+        this.buffer.reset();
+        try {
+            writeTo(emailMessage, this.buffer);
+        } catch (final IOException e) {
+            throw new SendFailedException("Unable to write message", e);
+        }
+        return this.buffer.toByteBuffer();
+    }
+
+    /**
+     * Writes a message to a stream.
+     * @param emailMessage
+     *            the email message
+     * @param out
+     *            the stream to write to
+     * @return the Message-ID of the message, without angle brackets
+     * @throws IOException
+     *             if writing to the stream fails
+     * @throws SendFailedException
+     *             if the message is not supported or can not be encoded
+     */
+    public String writeTo(final EmailMessage emailMessage, final OutputStream out)
+            throws IOException {
+        if (!supports(emailMessage)) {
+            throw new SendFailedException("Message shape not supported by the stream writer");
+        }
+        this.messageId = !Strings.isNullOrBlank(emailMessage.getMessageId()) ? emailMessage
+                .getMessageId() : IdGenerators.nextMessageId(this.session
+                .getProperty(MailUtility.DOMAIN_PROPERTY_KEY));
+        try {
+            final Body body = new Body(emailMessage);
+            writeHeaders(out, messageHeaders(emailMessage, body.contentType));
+            body.writeTo(out);
+        } catch (final MessagingException e) {
+            throw new SendFailedException("Unable to write message", e);
+        }
+        return this.messageId;
+    }
+
+    /**
+     * Gets the Message-ID of the last message written.
+     * @return the message id, without angle brackets
+     */
+    public String getMessageId() {
+        return this.messageId;
+    }
+
+    /**
+     * Builds the message headers with the same calls, in the same order, as
+     * {@link MailUtility#buildMimeMessage} and {@link javax.mail.internet.MimeMessage#saveChanges},
+     * so {@link InternetHeaders} orders them the same way.
+     */
+    private InternetHeaders messageHeaders(final EmailMessage e, final String contentType)
+            throws MessagingException {
+        final InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Date", this.dateFormat.format(new Date()));
+        setAddressHeader(headers, "From", e.getFromAddresses());
+        setAddressHeader(headers, "To", e.getToAddresses());
+        setAddressHeader(headers, "Cc", e.getCcAddresses());
+        setAddressHeader(headers, "Bcc", e.getBccAddresses());
+        setAddressHeader(headers, "Reply-To", e.getReplyToAddresses());
+        for (final InternetAddress address : e.getDeliveryReceiptAddresses()) {
+            headers.addHeader(MailHeader.DELIVERY_RECIEPT.headerValue(), "<"
+                    + address.getAddress() + ">");
+        }
+        for (final InternetAddress address : e.getReadReceiptAddresses()) {
+            headers.addHeader(MailHeader.READ_RECIEPT.headerValue(), "<" + address.getAddress()
+                    + ">");
+        }
+        final MessagePriority importance = e.getImportance();
+        if (importance != null && importance != MessagePriority.NORMAL) {
+            headers.setHeader("X-Priority", importance.getX_priority());
+            headers.setHeader("Priority", importance.getPriority());
+            headers.setHeader("Importance", importance.getImportance());
+        }
+        for (final Header header : e.getHeaders()) {
+            headers.addHeader(header.getName(), header.getValue());
+        }
+        if (e.getSubject() != null) {
+            try {
+                headers.setHeader("Subject", HeaderEncoder.encode("Subject", e.getSubject(), e
+                        .getCharset()));
+            } catch (final IOException ex) {
+                throw new MessagingException("Encoding error", ex);
+            }
+        }
+        headers.setHeader("Content-Type", contentType);
+        headers.setHeader("MIME-Version", "1.0");
+        headers.setHeader("Message-ID", "<" + this.messageId + ">");
+        return headers;
+    }
+
+    private static void setAddressHeader(final InternetHeaders headers, final String name,
+            final List<InternetAddress> addresses) {
+        final String value = InternetAddress.toString(addresses
+                .toArray(new InternetAddress[addresses.size()]));
+        if (value != null) {
+            headers.setHeader(name, value);
+        }
+    }
+
+    private static boolean isStructural(final String name) {
+        return "Content-Type".equalsIgnoreCase(name)
+                || "Content-Transfer-Encoding".equalsIgnoreCase(name)
+                || "MIME-Version".equalsIgnoreCase(name);
+    }
+
+    /**
+     * The parts of a message, arranged as {@link BaseMailMessage} arranges them.
+     */
+    private final class Body {
+
+        /** The content type of the root multipart. */
+        final String contentType;
+
+        /** The boundary of the root multipart. */
+        private final String boundary;
+
+        /** The message. */
+        private final EmailMessage emailMessage;
+
+        /** Attachments going into the related multipart. */
+        private final List<BaseAttachment> related = new ArrayList<>();
+
+        /** Attachments going into the root multipart after the body. */
+        private final List<BaseAttachment> mixed = new ArrayList<>();
+
+        Body(final EmailMessage emailMessage) {
+            this.emailMessage = emailMessage;
+            this.boundary = newBoundary();
+            this.contentType = multipartType(emailMessage.getRootContentType().getValue(),
+                    this.boundary);
+
+            // Keyed by file name, as the MIME tree keeps them, which also fixes their order
+            final Map<String, BaseAttachment> attachments = new HashMap<>();
+            for (final BaseAttachment attachment : emailMessage.getAttachments()) {
+                attachments.put(attachment.getFileName(), attachment);
+            }
+            final boolean html = emailMessage.getHtmlBody() != null;
+            for (final BaseAttachment attachment : attachments.values()) {
+                if (html && attachment.getContentDisposition() == ContentDisposition.INLINE) {
+                    this.related.add(attachment);
+                } else {
+                    this.mixed.add(attachment);
+                }
+            }
+        }
+
+        void writeTo(final OutputStream out) throws IOException, MessagingException {
+            final String text = this.emailMessage.getTextBody();
+            final String html = this.emailMessage.getHtmlBody();
+            if (html != null && text != null) {
+                startPart(out, this.boundary);
+                final String relatedBoundary = newBoundary();
+                writeHeaders(out, "Content-Type: "
+                        + multipartType(ContentType.RELATED.getValue(), relatedBoundary));
+                startPart(out, relatedBoundary);
+                final String alternativeBoundary = newBoundary();
+                writeHeaders(out, "Content-Type: "
+                        + multipartType(ContentType.ALTERNATIVE.getValue(), alternativeBoundary));
+                startPart(out, alternativeBoundary);
+                writeTextPart(out, "plain", text);
+                startPart(out, alternativeBoundary);
+                writeTextPart(out, "html", html);
+                endPart(out, alternativeBoundary);
+                writeAttachments(out, relatedBoundary, this.related);
+                endPart(out, relatedBoundary);
+            } else if (html != null) {
+                startPart(out, this.boundary);
+                final String relatedBoundary = newBoundary();
+                writeHeaders(out, "Content-Type: "
+                        + multipartType(ContentType.RELATED.getValue(), relatedBoundary));
+                startPart(out, relatedBoundary);
+                writeTextPart(out, "html", html);
+                writeAttachments(out, relatedBoundary, this.related);
+                endPart(out, relatedBoundary);
+            } else if (text != null) {
+                startPart(out, this.boundary);
+                writeTextPart(out, "plain", text);
+            }
+            writeAttachments(out, this.boundary, this.mixed);
+            endMultipart(out, this.boundary);
+        }
+
+        private void writeTextPart(final OutputStream out, final String subtype,
+                final String body) throws IOException {
+            final String charset = this.emailMessage.getCharset();
+            final byte[] bytes = body.getBytes(MimeUtility.javaCharset(charset));
+            final String encoding = EncodedContent.getEncoding(bytes, false);
+            writeHeaders(out, "Content-Type: text/" + subtype + "; charset="
+                    + MimeUtility.quote(charset, HeaderTokenizer.MIME),
+                    "Content-Transfer-Encoding: " + encoding, "Content-Disposition: "
+                            + ContentDisposition.INLINE.headerValue());
+            writeBody(out, encoding, bytes);
+        }
+
+        /**
+         * Writes the attachments of one multipart, each preceded by its boundary; the caller
+         * ends the multipart.
+         */
+        private void writeAttachments(final OutputStream out, final String partBoundary,
+                final List<BaseAttachment> attachments) throws IOException,
+                MessagingException {
+            for (final BaseAttachment attachment : attachments) {
+                startPart(out, partBoundary);
+                writeAttachment(out, attachment);
+            }
+        }
+
+        /**
+         * Writes an attachment with the header calls of {@code AttachmentPart} followed by
+         * those of {@code MimeBodyPart.updateHeaders}.
+         */
+        private void writeAttachment(final OutputStream out, final BaseAttachment attachment)
+                throws IOException, MessagingException {
+            final InternetHeaders headers = new InternetHeaders();
+            headers.setHeader("Content-ID", "<" + attachment.getContentId() + ">");
+            final String fileName = attachment.getFileName();
+            if (fileName != null) {
+                final javax.mail.internet.ContentDisposition disposition =
+                        new javax.mail.internet.ContentDisposition(
+                                javax.mail.Part.ATTACHMENT);
+                disposition.setParameter("filename", fileName);
+                headers.setHeader("Content-Disposition", disposition.toString());
+            }
+            for (final Header header : attachment.getHeaders()) {
+                headers.addHeader(header.getName(), header.getValue());
+            }
+            final String existing = headers.getHeader("Content-Disposition", null);
+            if (existing != null) {
+                final javax.mail.internet.ContentDisposition disposition =
+                        new javax.mail.internet.ContentDisposition(existing);
+                disposition.setDisposition(attachment.getContentDisposition().headerValue());
+                headers.setHeader("Content-Disposition", disposition.toString());
+            } else {
+                headers.setHeader("Content-Disposition", attachment.getContentDisposition()
+                        .headerValue());
+            }
+
+            EncodedContent encoded = EncodedAttachmentCache.getDefault().get(attachment);
+            if (encoded == null) {
+                encoded = EncodedContent.encode(attachment.getBytes(), attachment.getMimeType());
+            }
+            final javax.mail.internet.ContentType type = new javax.mail.internet.ContentType(
+                    attachment.getMimeType());
+            final boolean text = type.match("text/*");
+            final String encoding = encoded.getEncoding();
+            headers.setHeader("Content-Transfer-Encoding", encoding);
+            String contentType = attachment.getMimeType();
+            if (text && type.getParameter("charset") == null) {
+                type.setParameter("charset", "7bit".equals(encoding) ? "us-ascii"
+                        : defaultMimeCharset());
+                contentType = type.toString();
+            }
+            final String dispositionHeader = headers.getHeader("Content-Disposition", null);
+            if (dispositionHeader != null) {
+                final String name = new javax.mail.internet.ContentDisposition(dispositionHeader)
+                        .getParameter("filename");
+                if (name != null) {
+                    type.setParameter("name", name);
+                    contentType = type.toString();
+                }
+            }
+            headers.setHeader("Content-Type", contentType);
+
+            writeHeaders(out, headers);
+            encoded.writeTo(out);
+            out.write(CRLF);
+        }
+    }
+
+    /**
+     * Gets the charset javax.mail gives text attachments that name none.
+     */
+    private static String defaultMimeCharset() {
+        final String charset = System.getProperty("mail.mime.charset");
+        return charset != null ? charset : MimeUtility.mimeCharset(MimeUtility
+                .getDefaultJavaCharset());
+    }
+
+    private static String newBoundary() {
+        return "----=_Part_" + BOUNDARIES.getAndIncrement() + "_"
+                + (ThreadLocalRandom.current().nextInt() & Integer.MAX_VALUE) + "."
+                + System.currentTimeMillis();
+    }
+
+    private static String multipartType(final String subtype, final String boundary) {
+        final javax.mail.internet.ContentType type = new javax.mail.internet.ContentType(
+                "multipart", subtype, null);
+        type.setParameter("boundary", boundary);
+        return type.toString();
+    }
+
+    private static void startPart(final OutputStream out, final String boundary)
+            throws IOException {
+        writeln(out, "--" + boundary);
+    }
+
+    private static void endMultipart(final OutputStream out, final String boundary)
+            throws IOException {
+        writeln(out, "--" + boundary + "--");
+    }
+
+    /**
+     * Ends a multipart nested in another one, followed by the line break that precedes the next
+     * boundary of the enclosing multipart.
+     */
+    private static void endPart(final OutputStream out, final String boundary)
+            throws IOException {
+        endMultipart(out, boundary);
+        out.write(CRLF);
+    }
+
+    /**
+     * Writes a part body in its transfer encoding, followed by the line break that precedes the
+     * next boundary.
+     */
+    private static void writeBody(final OutputStream out, final String encoding,
+            final byte[] bytes) throws IOException {
+        try {
+            final OutputStream encoder = MimeUtility.encode(out, encoding);
+            encoder.write(bytes);
+            encoder.flush();
+        } catch (final MessagingException e) {
+            throw new IOException("Unable to encode part as " + encoding, e);
+        }
+        out.write(CRLF);
+    }
+
+    private static void writeHeaders(final OutputStream out, final InternetHeaders headers)
+            throws IOException {
+        for (final Enumeration<?> lines = headers.getAllHeaderLines(); lines.hasMoreElements();) {
+            writeln(out, (String) lines.nextElement());
+        }
+        out.write(CRLF);
+    }
+
+    private static void writeHeaders(final OutputStream out, final String... lines)
+            throws IOException {
+        for (final String line : lines) {
+            writeln(out, line);
+        }
+        out.write(CRLF);
+    }
+
+    /**
+     * Writes a line the way javax.mail does, one byte per character.
+     */
+    private static void writeln(final OutputStream out, final String line) throws IOException {
+        final int length = line.length();
+        final byte[] bytes = new byte[length + 2];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) line.charAt(i);
+        }
+        bytes[length] = '\r';
+        bytes[length + 1] = '\n';
+        out.write(bytes);
+    }
+
+    /**
+     * Output buffer handing out views of its array rather than copies.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(8192);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(this.buf, 0, this.count).asReadOnlyBuffer();
+        }
+    }
+}
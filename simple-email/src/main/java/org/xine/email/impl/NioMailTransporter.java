@@ -0,0 +1,249 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailException;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendResult;
+import org.xine.email.api.SessionConfig;
+import org.xine.email.impl.smtp.NioSmtpClient;
+import org.xine.email.impl.util.MailUtility;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * {@link MailTransporter} which delivers through the non-blocking {@link NioSmtpClient} instead
+ * of javax.mail's blocking transport. The MIME message is still built by
+ * {@link MailUtility#createMimeMessage(EmailMessage, Session)}; only the SMTP exchange changes.
+ * The message is rendered into memory once before the exchange starts, attachments streamed
+ * from a data source included, and dot-stuffed chunk by chunk as it is written, so very large
+ * attachments are better sent by a blocking transporter.
+ * <p>
+ * {@link #sendAsync(EmailMessage)} does not occupy a thread while waiting on the server, so a
+ * handful of I/O threads can keep many sessions open at once. Its future completes on an I/O
+ * thread. {@link #sendAll(Collection)} keeps a bounded number of messages in flight, each on
+ * its own session. The transporter should be closed when no longer needed.
+ */
+public class NioMailTransporter implements MailTransporter, Closeable {
+
+    /** The default number of I/O threads. */
+    public static final int DEFAULT_IO_THREADS = 2;
+
+    /** The default number of messages {@link #sendAll(Collection)} sends at once. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+    /** The headers javax.mail leaves out of the DATA bytes. */
+    private static final String[] IGNORED_HEADERS = { "Bcc", "Content-Length" };
+
+    /** The session used to build messages. */
+    private final Session session;
+
+    /** The client. */
+    private final NioSmtpClient client;
+
+    /** The most messages {@link #sendAll(Collection)} sends at once. */
+    private final int maxInFlight;
+
+    /**
+     * Instantiates a new NIO mail transporter.
+     * @param mailConfig
+     *            the mail config
+     */
+    public NioMailTransporter(final SessionConfig mailConfig) {
+        this(MailSessionRegistry.getDefault().getSession(mailConfig), DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * Instantiates a new NIO mail transporter.
+     * @param session
+     *            the session describing the server
+     * @param ioThreads
+     *            the number of threads completing socket I/O
+     */
+    public NioMailTransporter(final Session session, final int ioThreads) {
+        this(session, ioThreads, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Instantiates a new NIO mail transporter.
+     * @param session
+     *            the session describing the server
+     * @param ioThreads
+     *            the number of threads completing socket I/O
+     * @param maxInFlight
+     *            the most messages {@link #sendAll(Collection)} sends at once
+     */
+    public NioMailTransporter(final Session session, final int ioThreads,
+            final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.session = session;
+        this.client = new NioSmtpClient(session, ioThreads);
+        this.maxInFlight = maxInFlight;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.xine.email.api.MailTransporter#send(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public EmailMessage send(final EmailMessage emailMessage) {
+        try {
+            return sendAsync(emailMessage).join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof MailException) {
+                throw (MailException) e.getCause();
+            }
+            throw new SendFailedException("Send Failed", e.getCause());
+        }
+    }
+
+    /**
+     * Builds the message on the calling thread and hands the SMTP exchange to the I/O threads.
+     * @see org.xine.email.api.MailTransporter#sendAsync(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public CompletableFuture<EmailMessage> sendAsync(final EmailMessage emailMessage) {
+        final SMTPMessage msg;
+        final byte[] content;
+        final Address[] recipients;
+        final String envelopeFrom;
+        try {
+            msg = MailUtility.createMimeMessage(emailMessage, this.session);
+            msg.saveChanges();
+            recipients = MailUtility.getEnvelopeRecipients(msg);
+            envelopeFrom = getEnvelopeFrom(msg);
+            if (emailMessage.getFrozenMessage() != null) {
+                content = emailMessage.getFrozenMessage().transferBytes();
+            } else {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                msg.writeTo(out, IGNORED_HEADERS);
+                content = out.toByteArray();
+            }
+        } catch (final MessagingException | IOException e) {
+            return failed(new SendFailedException("Send Failed", e));
+        } catch (final MailException e) {
+            return failed(e);
+        } catch (final RuntimeException e) {
+            return failed(new SendFailedException("Send Failed", e));
+        }
+
+        return this.client.deliver(envelopeFrom, recipients, content).handle((v, t) -> {
+            if (t != null) {
+                MailUtility.updateMessageIdIfDelivered(emailMessage, msg, t);
+                throw t instanceof CompletionException ? (CompletionException) t
+                        : new CompletionException(t);
+            }
+            MailUtility.updateMessageId(emailMessage, msg);
+            return emailMessage;
+        });
+    }
+
+    /**
+     * Builds the message on the given executor; the SMTP exchange still runs on the I/O threads.
+     * @see org.xine.email.api.MailTransporter#sendAsync(org.xine.email.api.EmailMessage,
+     *      java.util.concurrent.Executor)
+     */
+    @Override
+    public CompletableFuture<EmailMessage> sendAsync(final EmailMessage emailMessage,
+            final Executor executor) {
+        return CompletableFuture.supplyAsync(() -> emailMessage, executor).thenCompose(
+                this::sendAsync);
+    }
+
+    /**
+     * Sends the messages with at most the configured number in flight, starting the next as each
+     * one completes, and waits for the whole batch. Only the messages in flight are held in their
+     * rendered form.
+     * @param emailMessages
+     *            the email messages
+     * @return one {@link SendResult} per message, in iteration order
+     */
+    @Override
+    public List<SendResult> sendAll(final Collection<EmailMessage> emailMessages) {
+        final List<CompletableFuture<EmailMessage>> futures = new ArrayList<>(
+                emailMessages.size());
+        final Semaphore inFlight = new Semaphore(this.maxInFlight);
+        for (final EmailMessage emailMessage : emailMessages) {
+            inFlight.acquireUninterruptibly();
+            final CompletableFuture<EmailMessage> future = sendAsync(emailMessage);
+            future.whenComplete((sent, failure) -> inFlight.release());
+            futures.add(future);
+        }
+
+        final List<SendResult> results = new ArrayList<>(futures.size());
+        int i = 0;
+        for (final EmailMessage emailMessage : emailMessages) {
+            try {
+                results.add(new SendResult(futures.get(i++).join()));
+            } catch (final CompletionException e) {
+                results.add(new SendResult(emailMessage, e.getCause() instanceof MailException
+                        ? (MailException) e.getCause() : new SendFailedException("Send Failed",
+                                e.getCause())));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Shuts down the I/O threads.
+     */
+    @Override
+    public void close() {
+        this.client.close();
+    }
+
+    /**
+     * Picks the MAIL FROM address the way javax.mail does: the message's envelope sender, then
+     * {@code mail.smtp.from}, then the first From address.
+     */
+    private String getEnvelopeFrom(final SMTPMessage msg) throws MessagingException {
+        if (msg.getEnvelopeFrom() != null) {
+            return msg.getEnvelopeFrom();
+        }
+        final String from = this.session.getProperty("mail.smtp.from");
+        if (from != null) {
+            return from;
+        }
+        final Address[] addresses = msg.getFrom();
+        if (addresses != null && addresses.length > 0) {
+            return ((InternetAddress) addresses[0]).getAddress();
+        }
+        return null;
+    }
+
+    private static <T> CompletableFuture<T> failed(final Throwable t) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailException;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendResult;
+import org.xine.email.api.SessionConfig;
+import org.xine.email.impl.transport.PooledConnection;
+import org.xine.email.impl.transport.SendDeadline;
+import org.xine.email.impl.transport.SmtpConnectionPool;
+import org.xine.email.impl.transport.SmtpFailures;
+import org.xine.email.impl.util.MailUtility;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * {@link MailTransporter} which sends over a pool of persistent SMTP connections instead of
+ * connecting once per message. Pool sizing is taken from the {@link SessionConfig}.
+ * <p>
+ * A message that fails because the server closed the connection (421) or the socket was reset
+ * is retried once on a fresh connection, unless the server had already accepted DATA and may
+ * have queued it. The transporter should be closed when no longer needed so the pooled
+ * connections are released.
+ */
+public class PooledMailTransporter implements MailTransporter, Closeable {
+
+    /** The pool. */
+    private final SmtpConnectionPool pool;
+
+    /**
+     * Instantiates a new pooled mail transporter.
+     * @param mailConfig
+     *            the mail config used to create the session and size the pool
+     */
+    public PooledMailTransporter(final SessionConfig mailConfig) {
+        this(MailSessionRegistry.getDefault().getSession(mailConfig), mailConfig);
+    }
+
+    /**
+     * Instantiates a new pooled mail transporter.
+     * @param session
+     *            the session used to open connections
+     * @param mailConfig
+     *            the mail config used to size the pool
+     */
+    public PooledMailTransporter(final Session session, final SessionConfig mailConfig) {
+        this(new SmtpConnectionPool(session,
+                valueOrDefault(mailConfig.getPoolMaxConnections(), 4),
+                valueOrDefault(mailConfig.getPoolMaxIdleTime(), 30000L),
+                valueOrDefault(mailConfig.getPoolMaxMessagesPerConnection(), 100),
+                valueOrDefault(mailConfig.getPoolBorrowTimeout(), 30000L)));
+    }
+
+    /**
+     * Instantiates a new pooled mail transporter.
+     * @param pool
+     *            the connection pool
+     */
+    public PooledMailTransporter(final SmtpConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.xine.email.api.MailTransporter#send(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public EmailMessage send(final EmailMessage emailMessage) {
+        final SMTPMessage msg = MailUtility.createMimeMessage(emailMessage, this.pool.getSession());
+        try {
+            msg.saveChanges();
+        } catch (final MessagingException e) {
+            throw new SendFailedException("Send Failed", e);
+        }
+
+        final SendDeadline deadline = SendDeadline.start(this.pool.getSession());
+        try {
+            for (int attempt = 0;; attempt++) {
+                PooledConnection connection;
+                try {
+                    connection = this.pool.borrow();
+                } catch (final MessagingException e) {
+                    throw SmtpFailures.sendFailed("Send Failed", e);
+                }
+
+                try {
+                    connection.send(msg, MailUtility.getEnvelopeRecipients(msg));
+                    this.pool.release(connection);
+                    break;
+                } catch (final MessagingException e) {
+                    MailUtility.updateMessageIdIfDelivered(emailMessage, msg, e);
+                    final boolean committed = MailUtility.isDataCommitted(msg);
+                    if (!connection.isBroken()) {
+                        this.pool.release(connection);
+                        throw SmtpFailures.sendFailed("Send Failed", e, committed);
+                    }
+                    this.pool.invalidate(connection);
+                    if (attempt > 0 || committed) {
+                        throw SmtpFailures.sendFailed("Send Failed", e, committed);
+                    }
+                } catch (final RuntimeException e) {
+                    this.pool.invalidate(connection);
+                    throw e;
+                }
+            }
+        } finally {
+            deadline.close();
+        }
+
+        MailUtility.updateMessageId(emailMessage, msg);
+        return emailMessage;
+    }
+
+    /**
+     * Sends a batch of messages over one pooled connection, issuing RSET between messages. The
+     * connection is replaced when it fails or reaches the per-connection message cap.
+     * @param emailMessages
+     *            the email messages
+     * @return one {@link SendResult} per message, in iteration order
+     */
+    @Override
+    public List<SendResult> sendAll(final Collection<EmailMessage> emailMessages) {
+        final List<SendResult> results = new ArrayList<>(emailMessages.size());
+        PooledConnection connection = null;
+
+        try {
+            for (final EmailMessage emailMessage : emailMessages) {
+                final SMTPMessage msg;
+                try {
+                    msg = MailUtility.createMimeMessage(emailMessage, this.pool.getSession());
+                    msg.saveChanges();
+                } catch (final MessagingException e) {
+                    results.add(new SendResult(emailMessage, new SendFailedException(
+                            "Send Failed", e)));
+                    continue;
+                } catch (final MailException e) {
+                    results.add(new SendResult(emailMessage, e));
+                    continue;
+                }
+
+                final SendDeadline deadline = SendDeadline.start(this.pool.getSession());
+                try {
+                    for (int attempt = 0;; attempt++) {
+                        final PooledConnection current = connection;
+                        connection = null;
+                        try {
+                            connection = nextConnection(current);
+                        } catch (final MessagingException e) {
+                            results.add(new SendResult(emailMessage, SmtpFailures.sendFailed(
+                                    "Send Failed", e)));
+                            break;
+                        } catch (final MailException e) {
+                            results.add(new SendResult(emailMessage, e));
+                            break;
+                        }
+
+                        try {
+                            connection.send(msg, MailUtility.getEnvelopeRecipients(msg));
+                            MailUtility.updateMessageId(emailMessage, msg);
+                            results.add(new SendResult(emailMessage));
+                            break;
+                        } catch (final MessagingException e) {
+                            MailUtility.updateMessageIdIfDelivered(emailMessage, msg, e);
+                            final boolean committed = MailUtility.isDataCommitted(msg);
+                            if (connection.isBroken()) {
+                                this.pool.invalidate(connection);
+                                connection = null;
+                                if (attempt == 0 && !committed) {
+                                    continue;
+                                }
+                            }
+                            results.add(new SendResult(emailMessage, SmtpFailures.sendFailed(
+                                    "Send Failed", e, committed)));
+                            break;
+                        } catch (final MailException e) {
+                            results.add(new SendResult(emailMessage, e));
+                            break;
+                        }
+                    }
+                } finally {
+                    deadline.close();
+                }
+            }
+        } finally {
+            if (connection != null) {
+                this.pool.release(connection);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Gets the connection pool.
+     * @return the pool
+     */
+    public SmtpConnectionPool getPool() {
+        return this.pool;
+    }
+
+    /**
+     * Closes the connection pool.
+     */
+    @Override
+    public void close() {
+        this.pool.close();
+    }
+
+    /**
+     * Readies the batch connection for the next message: a used connection is RSET, and one
+     * that is retired or does not accept the RSET is swapped for another pooled connection.
+     */
+    private PooledConnection nextConnection(final PooledConnection current)
+            throws MessagingException {
+        if (current != null) {
+            if (this.pool.isRetired(current)) {
+                this.pool.release(current);
+            } else if (MailUtility.reset(current.getTransport())) {
+                return current;
+            } else {
+                this.pool.invalidate(current);
+            }
+        }
+        return this.pool.borrow();
+    }
+
+    private static <T> T valueOrDefault(final T value, final T defaultValue) {
+        return value != null ? value : defaultValue;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SessionConfig;
+import org.xine.email.impl.transport.TokenBucket;
+import org.xine.email.impl.util.MailUtility;
+
+/**
+ * {@link MailTransporter} which paces sends to stay within a relay's quotas: a message rate and
+ * a daily recipient quota, both taken from the {@link SessionConfig}. A send over budget waits
+ * for the budget to refill instead of failing, so bursts are smoothed out before the relay has
+ * to throttle them with 421 or 451 replies. A message with more recipients than the daily quota
+ * could never be sent and is refused at once.
+ * <p>
+ * Both buckets start empty and allow only a small burst: a tenth of a second's messages and an
+ * hour's recipients. The refill rate is lowered by the burst, so that no second or day lets more
+ * than the quota through, and a new instance, such as one created after a restart, does not
+ * start with a full day's budget. Budgets live in this instance, so every sender sharing a relay
+ * should share the transporter. Callers that prefer to back off rather than block can check
+ * {@link #estimateDelay(EmailMessage)} first.
+ */
+public class RateLimitedMailTransporter implements MailTransporter {
+
+    /** The delegate. */
+    private final MailTransporter delegate;
+
+    /** The message bucket, or null if messages are not limited. */
+    private final TokenBucket messages;
+
+    /** The recipient bucket, or null if recipients are not limited. */
+    private final TokenBucket recipients;
+
+    /** The most recipients a single message may have. */
+    private final long maxRecipients;
+
+    /**
+     * Instantiates a new rate limited mail transporter.
+     * @param delegate
+     *            the transporter performing the send
+     * @param mailConfig
+     *            the mail config holding the limits
+     */
+    public RateLimitedMailTransporter(final MailTransporter delegate,
+            final SessionConfig mailConfig) {
+        this(delegate, messageBucket(mailConfig.getMaxMessagesPerSecond()),
+                recipientBucket(mailConfig.getMaxRecipientsPerDay()),
+                mailConfig.getMaxRecipientsPerDay() != null ? mailConfig.getMaxRecipientsPerDay()
+                        : Long.MAX_VALUE);
+    }
+
+    /**
+     * Instantiates a new rate limited mail transporter.
+     * @param delegate
+     *            the transporter performing the send
+     * @param messages
+     *            the bucket taking one token per message, or null for no limit
+     * @param recipients
+     *            the bucket taking one token per envelope recipient, or null for no limit
+     */
+    public RateLimitedMailTransporter(final MailTransporter delegate, final TokenBucket messages,
+            final TokenBucket recipients) {
+        this(delegate, messages, recipients, Long.MAX_VALUE);
+    }
+
+    /**
+     * Instantiates a new rate limited mail transporter.
+     * @param delegate
+     *            the transporter performing the send
+     * @param messages
+     *            the bucket taking one token per message, or null for no limit
+     * @param recipients
+     *            the bucket taking one token per envelope recipient, or null for no limit
+     * @param maxRecipients
+     *            the most envelope recipients a single message may have
+     */
+    public RateLimitedMailTransporter(final MailTransporter delegate, final TokenBucket messages,
+            final TokenBucket recipients, final long maxRecipients) {
+        this.delegate = delegate;
+        this.messages = messages;
+        this.recipients = recipients;
+        this.maxRecipients = maxRecipients;
+    }
+
+    /**
+     * Waits for budget, then sends.
+     * @see org.xine.email.api.MailTransporter#send(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public EmailMessage send(final EmailMessage emailMessage) {
+        final int recipientCount = MailUtility.getRecipientCount(emailMessage);
+        if (recipientCount > this.maxRecipients) {
+            throw new SendFailedException("Message has " + recipientCount
+                    + " recipients, more than the quota of " + this.maxRecipients);
+        }
+        try {
+            if (this.messages != null) {
+                this.messages.acquire(1);
+            }
+            if (this.recipients != null) {
+                this.recipients.acquire(recipientCount);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SendFailedException("Interrupted waiting for send budget", e);
+        }
+        return this.delegate.send(emailMessage);
+    }
+
+    /**
+     * Estimates how long a send of the given message would wait for budget if started now.
+     * @param emailMessage
+     *            the email message
+     * @return the wait in milliseconds, 0 if it could go immediately
+     */
+    public long estimateDelay(final EmailMessage emailMessage) {
+        long wait = 0;
+        if (this.messages != null) {
+            wait = this.messages.estimateWait(1);
+        }
+        if (this.recipients != null) {
+            wait = Math.max(wait, this.recipients.estimateWait(MailUtility
+                    .getRecipientCount(emailMessage)));
+        }
+        return TimeUnit.NANOSECONDS.toMillis(wait);
+    }
+
+    /**
+     * Gets the number of messages that can be sent now without waiting.
+     * @return the message budget, {@link Double#POSITIVE_INFINITY} if not limited
+     */
+    public double getAvailableMessages() {
+        return this.messages != null ? this.messages.getAvailableTokens()
+                : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Gets the number of recipients that can be sent to now without waiting.
+     * @return the recipient budget, {@link Double#POSITIVE_INFINITY} if not limited
+     */
+    public double getAvailableRecipients() {
+        return this.recipients != null ? this.recipients.getAvailableTokens()
+                : Double.POSITIVE_INFINITY;
+    }
+
+    private static TokenBucket messageBucket(final Double maxMessagesPerSecond) {
+        if (maxMessagesPerSecond == null) {
+            return null;
+        }
+        return quotaBucket(maxMessagesPerSecond, maxMessagesPerSecond / 10, TimeUnit.SECONDS);
+    }
+
+    private static TokenBucket recipientBucket(final Long maxRecipientsPerDay) {
+        if (maxRecipientsPerDay == null) {
+            return null;
+        }
+        return quotaBucket(maxRecipientsPerDay, maxRecipientsPerDay / 24.0, TimeUnit.DAYS);
+    }
+
+    private static TokenBucket quotaBucket(final double quota, final double burst,
+            final TimeUnit period) {
+        return new TokenBucket(burst, 0, quota - burst, 1, period);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.internet.InternetAddress;
+
+import org.xine.email.api.CircuitOpenException;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailException;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.RecipientResult;
+import org.xine.email.api.RecipientStatus;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendResult;
+import org.xine.email.impl.transport.CircuitBreaker;
+import org.xine.email.impl.transport.RetryPolicy;
+import org.xine.email.impl.transport.SmtpFailures;
+import org.xine.email.impl.util.MailUtility;
+
+/**
+ * {@link MailTransporter} which retries transient failures and stops calling a failing relay.
+ * <p>
+ * A failure is transient when the relay replied 4xx or the connection failed; it is retried
+ * after the backoff of the {@link RetryPolicy}. A 5xx reply or a message that could not be
+ * built fails immediately. When the relay took the message for some recipients and deferred
+ * others, only the deferred ones are sent to again. Transient failures also feed the relay's
+ * {@link CircuitBreaker}: while it is open sends fail at once with a
+ * {@link CircuitOpenException}, and once its open duration has passed a single send is let
+ * through to test the relay.
+ * <p>
+ * One instance guards one relay; to balance over several relays wrap each relay's transporter
+ * and hand them to a {@link LoadBalancingMailTransporter}, which moves traffic off a relay whose
+ * circuit is open.
+ */
+public class ResilientMailTransporter implements MailTransporter {
+
+    /** The delegate. */
+    private final MailTransporter delegate;
+
+    /** The retry policy. */
+    private final RetryPolicy retryPolicy;
+
+    /** The circuit breaker of the relay behind the delegate. */
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * Instantiates a new resilient mail transporter with the default retry policy and a circuit
+     * breaker opening for 30 seconds after 5 consecutive transient failures.
+     * @param delegate
+     *            the transporter performing the send
+     */
+    public ResilientMailTransporter(final MailTransporter delegate) {
+        this(delegate, new RetryPolicy(), new CircuitBreaker(5, 30000L));
+    }
+
+    /**
+     * Instantiates a new resilient mail transporter.
+     * @param delegate
+     *            the transporter performing the send
+     * @param retryPolicy
+     *            the retry policy
+     * @param circuitBreaker
+     *            the circuit breaker of the relay behind the delegate
+     */
+    public ResilientMailTransporter(final MailTransporter delegate,
+            final RetryPolicy retryPolicy, final CircuitBreaker circuitBreaker) {
+        this.delegate = delegate;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Sends the message, retrying transient failures.
+     * @see org.xine.email.api.MailTransporter#send(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public EmailMessage send(final EmailMessage emailMessage) {
+        final SendResult result = sendForResult(emailMessage);
+        if (!result.isSuccess()) {
+            throw result.getFailure();
+        }
+        return emailMessage;
+    }
+
+    /**
+     * Sends the message, retrying only the recipients still deferred: those the server has
+     * accepted are never sent to twice and those it rejected permanently are dropped. The result
+     * gathers every recipient's final outcome. It fails with the last attempt's failure, or if
+     * the last attempt succeeded, with the failure that rejected recipients earlier.
+     * @see org.xine.email.api.MailTransporter#sendForResult(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public SendResult sendForResult(final EmailMessage emailMessage) {
+        final Map<InternetAddress, RecipientResult> outcomes = new LinkedHashMap<>();
+        for (final InternetAddress recipient : MailUtility.getEnvelopeRecipients(emailMessage)) {
+            outcomes.put(recipient, null);
+        }
+        EmailMessage attempt = emailMessage;
+        MailException lastFailure = null;
+        MailException rejection = null;
+
+        for (int attemptNumber = 1;; attemptNumber++) {
+            if (!this.circuitBreaker.allowRequest()) {
+                final CircuitOpenException open = new CircuitOpenException(
+                        "Circuit open, relay is not being called", lastFailure);
+                return result(emailMessage, open, outcomes, new SendResult(attempt, open));
+            }
+
+            final SendResult result;
+            try {
+                result = this.delegate.sendForResult(attempt);
+            } catch (final RuntimeException e) {
+                this.circuitBreaker.recordIgnored();
+                throw e;
+            }
+            if (result.isSuccess()) {
+                this.circuitBreaker.recordSuccess();
+                if (attempt != emailMessage) {
+                    emailMessage.setMessageId(result.getEmailMessage().getMessageId());
+                }
+                return result(emailMessage, rejection, outcomes, result);
+            }
+
+            final MailException failure = result.getFailure();
+            final boolean isTransient = SmtpFailures.isTransient(failure);
+            final List<RecipientResult> recipients = result.getRecipientResults();
+            final List<InternetAddress> deferred = result.getRecipients(RecipientStatus.DEFERRED);
+            if (!result.getRecipients(RecipientStatus.ACCEPTED).isEmpty()) {
+                this.circuitBreaker.recordSuccess();
+            } else if (isTransient) {
+                this.circuitBreaker.recordFailure();
+            } else if (SmtpFailures.getReturnCode(failure) >= 0) {
+                this.circuitBreaker.recordSuccess();
+            } else {
+                this.circuitBreaker.recordIgnored();
+            }
+
+            final boolean retry = recipients.isEmpty() ? isTransient : !deferred.isEmpty();
+            if (!retry || attemptNumber >= this.retryPolicy.getMaxAttempts()) {
+                return result(emailMessage, failure, outcomes, result);
+            }
+            lastFailure = failure;
+            if (deferred.size() < recipients.size()) {
+                if (!result.getRecipients(RecipientStatus.REJECTED).isEmpty()) {
+                    rejection = failure;
+                }
+                settle(outcomes, result);
+                attempt = new EmailMessage(emailMessage);
+                attempt.setMessageId(result.getEmailMessage().getMessageId());
+                attempt.setEnvelopeRecipients(deferred);
+            }
+
+            try {
+                Thread.sleep(this.retryPolicy.getDelay(attemptNumber));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return result(emailMessage, new SendFailedException(
+                        "Interrupted waiting to retry", lastFailure), outcomes, result);
+            }
+        }
+    }
+
+    /**
+     * Gets the circuit breaker.
+     * @return the circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Records the outcomes an attempt settled for good: accepted and rejected recipients.
+     */
+    private static void settle(final Map<InternetAddress, RecipientResult> outcomes,
+            final SendResult result) {
+        for (final RecipientResult recipient : result.getRecipientResults()) {
+            if (recipient.getStatus() != RecipientStatus.DEFERRED) {
+                outcomes.put(recipient.getAddress(), recipient);
+            }
+        }
+    }
+
+    /**
+     * Builds the overall result from the outcomes settled so far and those of the last attempt.
+     */
+    private static SendResult result(final EmailMessage emailMessage,
+            final MailException failure, final Map<InternetAddress, RecipientResult> outcomes,
+            final SendResult last) {
+        final Map<InternetAddress, RecipientResult> merged = new LinkedHashMap<>(outcomes);
+        for (final RecipientResult recipient : last.getRecipientResults()) {
+            if (merged.containsKey(recipient.getAddress())
+                    && merged.get(recipient.getAddress()) == null) {
+                merged.put(recipient.getAddress(), recipient);
+            }
+        }
+        final List<RecipientResult> results = new ArrayList<>(merged.size());
+        for (final RecipientResult recipient : merged.values()) {
+            if (recipient != null) {
+                results.add(recipient);
+            }
+        }
+        return new SendResult(emailMessage, failure, results);
+    }
+}
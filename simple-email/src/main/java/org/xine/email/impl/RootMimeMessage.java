@@ -12,8 +12,11 @@
 
 package org.xine.email.impl;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
+import javax.mail.Address;
 import javax.mail.Header;
 import javax.mail.MessagingException;
 import javax.mail.Session;
@@ -28,6 +31,11 @@ public class RootMimeMessage extends SMTPMessage {
 
     private String messageId;
 
+    private Address[] envelopeRecipients;
+
+    /** Whether the content has been written out, which a transport does once DATA is accepted. */
+    private volatile boolean written;
+
     public RootMimeMessage(final Session session) {
         super(session);
     }
@@ -43,6 +51,29 @@ public class RootMimeMessage extends SMTPMessage {
         setHeader(header.getName(), header.getValue());
     }
 
+    @Override
+    public void writeTo(final OutputStream os, final String[] ignoreList) throws IOException,
+            MessagingException {
+        markWritten();
+        super.writeTo(os, ignoreList);
+    }
+
+    /**
+     * Checks whether the content has been written out. Sent through a transport, it means the
+     * server accepted DATA and may have delivered the message even if the send then failed.
+     * @return true if the content has been written
+     */
+    public boolean isWritten() {
+        return this.written;
+    }
+
+    /**
+     * Records that the content is being written, for subclasses writing it themselves.
+     */
+    protected void markWritten() {
+        this.written = true;
+    }
+
     public String getMessageId() {
         return this.messageId;
     }
@@ -50,4 +81,16 @@ public class RootMimeMessage extends SMTPMessage {
     public void setMessageId(final String messageId) {
         this.messageId = messageId;
     }
+
+    /**
+     * Gets the addresses to deliver to when they differ from the recipient headers.
+     * @return the envelope recipients, or null to deliver to all recipients
+     */
+    public Address[] getEnvelopeRecipients() {
+        return this.envelopeRecipients;
+    }
+
+    public void setEnvelopeRecipients(final Address[] envelopeRecipients) {
+        this.envelopeRecipients = envelopeRecipients;
+    }
 }
@@ -33,6 +33,18 @@ public class SimpleMailConfig implements Serializable, SessionConfig {
     private Boolean enableSsl = Boolean.FALSE;
     private Boolean auth = Boolean.FALSE;
     private String jndiSessionName;
+    private Integer poolMaxConnections = 4;
+    private Long poolMaxIdleTime = 30000L;
+    private Integer poolMaxMessagesPerConnection = 100;
+    private Long poolBorrowTimeout = 30000L;
+    private Double maxMessagesPerSecond;
+    private Long maxRecipientsPerDay;
+    private Integer maxRecipientsPerMessage;
+    private Long connectTimeout;
+    private Long greetingTimeout;
+    private Long commandTimeout;
+    private Long dataTimeout;
+    private Long sendDeadline;
 
     @Override
     public String getServerHost() {
@@ -124,6 +136,114 @@ public class SimpleMailConfig implements Serializable, SessionConfig {
         this.jndiSessionName = jndiSessionName;
     }
 
+    @Override
+    public Integer getPoolMaxConnections() {
+        return this.poolMaxConnections;
+    }
+
+    public void setPoolMaxConnections(final Integer poolMaxConnections) {
+        this.poolMaxConnections = poolMaxConnections;
+    }
+
+    @Override
+    public Long getPoolMaxIdleTime() {
+        return this.poolMaxIdleTime;
+    }
+
+    public void setPoolMaxIdleTime(final Long poolMaxIdleTime) {
+        this.poolMaxIdleTime = poolMaxIdleTime;
+    }
+
+    @Override
+    public Integer getPoolMaxMessagesPerConnection() {
+        return this.poolMaxMessagesPerConnection;
+    }
+
+    public void setPoolMaxMessagesPerConnection(final Integer poolMaxMessagesPerConnection) {
+        this.poolMaxMessagesPerConnection = poolMaxMessagesPerConnection;
+    }
+
+    @Override
+    public Long getPoolBorrowTimeout() {
+        return this.poolBorrowTimeout;
+    }
+
+    public void setPoolBorrowTimeout(final Long poolBorrowTimeout) {
+        this.poolBorrowTimeout = poolBorrowTimeout;
+    }
+
+    @Override
+    public Double getMaxMessagesPerSecond() {
+        return this.maxMessagesPerSecond;
+    }
+
+    public void setMaxMessagesPerSecond(final Double maxMessagesPerSecond) {
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+    }
+
+    @Override
+    public Long getMaxRecipientsPerDay() {
+        return this.maxRecipientsPerDay;
+    }
+
+    public void setMaxRecipientsPerDay(final Long maxRecipientsPerDay) {
+        this.maxRecipientsPerDay = maxRecipientsPerDay;
+    }
+
+    @Override
+    public Integer getMaxRecipientsPerMessage() {
+        return this.maxRecipientsPerMessage;
+    }
+
+    public void setMaxRecipientsPerMessage(final Integer maxRecipientsPerMessage) {
+        this.maxRecipientsPerMessage = maxRecipientsPerMessage;
+    }
+
+    @Override
+    public Long getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    public void setConnectTimeout(final Long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    @Override
+    public Long getGreetingTimeout() {
+        return this.greetingTimeout;
+    }
+
+    public void setGreetingTimeout(final Long greetingTimeout) {
+        this.greetingTimeout = greetingTimeout;
+    }
+
+    @Override
+    public Long getCommandTimeout() {
+        return this.commandTimeout;
+    }
+
+    public void setCommandTimeout(final Long commandTimeout) {
+        this.commandTimeout = commandTimeout;
+    }
+
+    @Override
+    public Long getDataTimeout() {
+        return this.dataTimeout;
+    }
+
+    public void setDataTimeout(final Long dataTimeout) {
+        this.dataTimeout = dataTimeout;
+    }
+
+    @Override
+    public Long getSendDeadline() {
+        return this.sendDeadline;
+    }
+
+    public void setSendDeadline(final Long sendDeadline) {
+        this.sendDeadline = sendDeadline;
+    }
+
     public boolean isValid() {
 
         if (this.jndiSessionName != null && !this.jndiSessionName.trim().isEmpty()) {
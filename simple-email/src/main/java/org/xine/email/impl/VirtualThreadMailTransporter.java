@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailException;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendResult;
+import org.xine.email.impl.util.MailExecutors;
+
+/**
+ * {@link MailTransporter} that runs every asynchronous send on its own virtual thread, so
+ * thousands of blocking SMTP exchanges can be in flight without sizing a platform thread pool.
+ * A concurrency ceiling caps how many sends reach the delegate at once so the relay is not
+ * flooded.
+ * <p>
+ * The module is compiled for Java 8, so virtual threads are looked up at runtime. On a JVM
+ * without them (before Java 21) sends run on a pool of platform threads bounded by the same
+ * ceiling. Note that javax.mail's SMTP transport blocks inside synchronized methods, which pins
+ * the carrier thread on Java 21 to 23; raise {@code jdk.virtualThreadScheduler.maxPoolSize}
+ * there if the ceiling is far above the number of cores.
+ */
+public class VirtualThreadMailTransporter implements MailTransporter, Closeable {
+
+    /** The delegate. */
+    private final MailTransporter delegate;
+
+    /** One permit per send allowed to reach the delegate concurrently. */
+    private final Semaphore permits;
+
+    /** The executor. */
+    private final ExecutorService executor;
+
+    /** True if the executor starts virtual threads. */
+    private final boolean virtualThreads;
+
+    /**
+     * Instantiates a new virtual thread mail transporter.
+     * @param delegate
+     *            the transporter performing the SMTP exchange, typically a
+     *            {@link PooledMailTransporter} or {@link MailTransporterImpl}
+     * @param maxConcurrentSends
+     *            the maximum number of sends in flight at once
+     */
+    public VirtualThreadMailTransporter(final MailTransporter delegate,
+            final int maxConcurrentSends) {
+        if (maxConcurrentSends < 1) {
+            throw new IllegalArgumentException("maxConcurrentSends must be at least 1");
+        }
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConcurrentSends);
+
+        final ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        if (virtual != null) {
+            this.executor = virtual;
+            this.virtualThreads = true;
+        } else {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrentSends,
+                    maxConcurrentSends, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    MailExecutors.daemonThreadFactory("simple-email-send"));
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+            this.virtualThreads = false;
+        }
+    }
+
+    /**
+     * Sends on the calling thread once a slot below the concurrency ceiling is free.
+     * @see org.xine.email.api.MailTransporter#send(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public EmailMessage send(final EmailMessage emailMessage) {
+        acquire();
+        try {
+            return this.delegate.send(emailMessage);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.xine.email.api.MailTransporter#sendAsync(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public CompletableFuture<EmailMessage> sendAsync(final EmailMessage emailMessage) {
+        return sendAsync(emailMessage, this.executor);
+    }
+
+    /**
+     * Sends every message on its own thread and waits for the whole batch. Submission blocks
+     * while the concurrency ceiling is reached, so a large batch never has more than the ceiling
+     * of sends outstanding.
+     * @param emailMessages
+     *            the email messages
+     * @return one {@link SendResult} per message, in iteration order
+     */
+    @Override
+    public List<SendResult> sendAll(final Collection<EmailMessage> emailMessages) {
+        final List<CompletableFuture<EmailMessage>> futures = new ArrayList<>(
+                emailMessages.size());
+
+        for (final EmailMessage emailMessage : emailMessages) {
+            acquire();
+            try {
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return this.delegate.send(emailMessage);
+                    } finally {
+                        this.permits.release();
+                    }
+                }, this.executor));
+            } catch (final RejectedExecutionException e) {
+                this.permits.release();
+                throw new SendFailedException("Transporter has been closed", e);
+            }
+        }
+
+        final List<SendResult> results = new ArrayList<>(futures.size());
+        int i = 0;
+        for (final EmailMessage emailMessage : emailMessages) {
+            try {
+                results.add(new SendResult(futures.get(i++).join()));
+            } catch (final CompletionException e) {
+                results.add(new SendResult(emailMessage, e.getCause() instanceof MailException
+                        ? (MailException) e.getCause() : new SendFailedException("Send Failed",
+                                e.getCause())));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Checks whether sends run on virtual threads.
+     * @return true if the JVM provides virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    /**
+     * Gets the number of sends that may still start before the ceiling is reached.
+     * @return the available send slots
+     */
+    public int getAvailableSlots() {
+        return this.permits.availablePermits();
+    }
+
+    /**
+     * Stops accepting asynchronous sends. Sends already submitted still complete.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdown();
+    }
+
+    private void acquire() {
+        try {
+            this.permits.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SendFailedException("Interrupted waiting for a send slot", e);
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
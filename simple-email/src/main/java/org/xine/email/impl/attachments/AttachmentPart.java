@@ -15,8 +15,11 @@ package org.xine.email.impl.attachments;
 import org.xine.email.api.ContentDisposition;
 import org.xine.email.api.Header;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Enumeration;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
@@ -24,6 +27,8 @@ import javax.mail.MessagingException;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.util.ByteArrayDataSource;
 
+import com.sun.mail.util.LineOutputStream;
+
 /**
  * The Class AttachmentPart.
  */
@@ -32,6 +37,9 @@ public class AttachmentPart extends MimeBodyPart {
     /** The uid. */
     private final String uid;
 
+    /** The content already in its transfer encoding, if any. */
+    private EncodedContent encodedContent;
+
     /**
      * Instantiates a new attachment part.
      * @param dataSource
@@ -153,6 +161,43 @@ public class AttachmentPart extends MimeBodyPart {
         return this.uid;
     }
 
+    /**
+     * Sets the content already in its transfer encoding, which is then written as it is instead
+     * of being encoded again each time the part is written. It must be the encoding of the data
+     * of this part.
+     * @param encodedContent
+     *            the encoded content
+     */
+    public void setEncodedContent(final EncodedContent encodedContent) {
+        try {
+            setHeader("Content-Transfer-Encoding", encodedContent.getEncoding());
+        } catch (final MessagingException e) {
+            throw new RuntimeException("Unable to set Content-Transfer-Encoding on attachment",
+                    e);
+        }
+        this.encodedContent = encodedContent;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see javax.mail.internet.MimeBodyPart#writeTo(java.io.OutputStream)
+     */
+    @Override
+    public void writeTo(final OutputStream os) throws IOException, MessagingException {
+        if (this.encodedContent == null
+                || !this.encodedContent.getEncoding().equalsIgnoreCase(getEncoding())) {
+            super.writeTo(os);
+            return;
+        }
+        final LineOutputStream los = new LineOutputStream(os);
+        for (final Enumeration<?> lines = getAllHeaderLines(); lines.hasMoreElements();) {
+            los.writeln((String) lines.nextElement());
+        }
+        los.writeln();
+        this.encodedContent.writeTo(os);
+        os.flush();
+    }
+
     /**
      * Sets the content disposition.
      * @param contentDisposition
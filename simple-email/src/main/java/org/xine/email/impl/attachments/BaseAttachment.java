@@ -12,17 +12,25 @@
 
 package org.xine.email.impl.attachments;
 
+import org.xine.email.api.AttachmentException;
 import org.xine.email.api.ContentDisposition;
 import org.xine.email.api.EmailAttachment;
 import org.xine.email.api.Header;
+import org.xine.email.impl.util.IdGenerators;
+import org.xine.email.impl.util.Streams;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.UUID;
 
+import javax.activation.DataSource;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlElementWrapper;
+import javax.xml.bind.annotation.XmlTransient;
 
 /**
  * The Class BaseAttachment.
@@ -47,6 +55,12 @@ public class BaseAttachment implements EmailAttachment {
     /** The bytes. */
     private byte[] bytes;
 
+    /** The SHA-256 digest of the bytes, computed when first needed. */
+    private byte[] contentDigest;
+
+    /** The source streaming the content, when it is not held in bytes. */
+    private DataSource dataSource;
+
     /**
      * Instantiates a new base attachment.
      * @param fileName
@@ -91,7 +105,7 @@ public class BaseAttachment implements EmailAttachment {
      * Instantiates a new base attachment.
      */
     public BaseAttachment() {
-        this.contentId = UUID.randomUUID().toString();
+        this.contentId = IdGenerators.nextContentId();
     }
 
     /*
@@ -215,6 +229,14 @@ public class BaseAttachment implements EmailAttachment {
     @Override
     @XmlElement
     public byte[] getBytes() {
+        if (this.bytes == null && this.dataSource != null) {
+            try (InputStream in = this.dataSource.getInputStream()) {
+                return Streams.toByteArray(in);
+            } catch (final IOException e) {
+                throw new AttachmentException("Wasn't able to read email attachment: "
+                        + this.fileName, e);
+            }
+        }
         return this.bytes;
     }
 
@@ -225,5 +247,44 @@ public class BaseAttachment implements EmailAttachment {
      */
     public void setBytes(final byte[] bytes) {
         this.bytes = bytes;
+        this.contentDigest = null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.xine.email.api.EmailAttachment#getDataSource()
+     */
+    @Override
+    @XmlTransient
+    public DataSource getDataSource() {
+        return this.dataSource;
+    }
+
+    /**
+     * Sets the source to stream the content from when the message is written, in place of the
+     * bytes, which are then read from it only when asked for.
+     * @param dataSource
+     *            the new data source
+     */
+    public void setDataSource(final DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Gets the SHA-256 digest of the bytes, computed once. The bytes must not be changed in
+     * place afterwards; replace them through {@link #setBytes(byte[])}.
+     * @return the digest
+     */
+    byte[] getContentDigest() {
+        byte[] digest = this.contentDigest;
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256").digest(this.bytes);
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+            this.contentDigest = digest;
+        }
+        return digest;
     }
 }
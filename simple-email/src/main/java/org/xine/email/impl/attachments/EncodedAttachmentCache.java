@@ -0,0 +1,242 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.attachments;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+
+/**
+ * Cache of attachments in their transfer encoding, so that a file attached to many messages, such
+ * as the brochure and logo of a newsletter, is encoded once rather than once per message. Entries
+ * are keyed by a SHA-256 digest of the content together with the MIME type, which between them
+ * settle the transfer encoding; attachments with the same content share an entry even when they
+ * are different objects.
+ * <p>
+ * The cache is bounded by the total size of the encoded content it holds and evicts the least
+ * recently used entries beyond it. Attachments smaller than the minimum size are not worth the
+ * digest and are encoded afresh each time. The default cache holds up to
+ * {@value #DEFAULT_MAX_BYTES} bytes of attachments of at least {@value #DEFAULT_MIN_SIZE} bytes;
+ * install another through {@link #setDefault(EncodedAttachmentCache)}, with a maximum of 0 to turn
+ * caching off.
+ */
+public class EncodedAttachmentCache {
+
+    /** The default bound on the encoded content held. */
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    /** The default size below which attachments are not cached. */
+    public static final int DEFAULT_MIN_SIZE = 1024;
+
+    /** The cache in use. */
+    private static volatile EncodedAttachmentCache defaultCache = new EncodedAttachmentCache(
+            DEFAULT_MAX_BYTES, DEFAULT_MIN_SIZE);
+
+    /** The bound on the encoded content held, in bytes. */
+    private final long maxBytes;
+
+    /** The size below which attachments are not cached. */
+    private final int minSize;
+
+    /** The entries, least recently used first. Guards {@link #size}. */
+    private final Map<Key, EncodedContent> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The size of the encoded content held. */
+    private long size;
+
+    /** The lookups answered from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The lookups that had to encode. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** The entries evicted to stay within the bound. */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Instantiates a new encoded attachment cache.
+     * @param maxBytes
+     *            the bound on the encoded content held, 0 to cache nothing
+     * @param minSize
+     *            the size below which attachments are not cached
+     */
+    public EncodedAttachmentCache(final long maxBytes, final int minSize) {
+        this.maxBytes = maxBytes;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Gets the cache in use.
+     * @return the cache
+     */
+    public static EncodedAttachmentCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Replaces the cache in use.
+     * @param cache
+     *            the cache
+     */
+    public static void setDefault(final EncodedAttachmentCache cache) {
+        if (cache == null) {
+            throw new IllegalArgumentException("cache must not be null");
+        }
+        defaultCache = cache;
+    }
+
+    /**
+     * Gets an attachment in its transfer encoding, encoding it and keeping the result on a miss.
+     * The content of the attachment must not be changed in place once it has been looked up.
+     * @param attachment
+     *            the attachment
+     * @return the encoded content, or null if the attachment is too small to be cached, is
+     *         streamed from a data source or caching is off
+     * @throws MessagingException
+     *             if the content can not be encoded
+     */
+    public EncodedContent get(final BaseAttachment attachment) throws MessagingException {
+        if (attachment.getDataSource() != null) {
+            return null;
+        }
+        final byte[] bytes = attachment.getBytes();
+        if (this.maxBytes <= 0 || bytes == null || bytes.length < this.minSize
+                || attachment.getMimeType() == null || isComposite(attachment.getMimeType())) {
+            return null;
+        }
+
+        final Key key = new Key(attachment.getContentDigest(), attachment.getMimeType());
+        synchronized (this.entries) {
+            final EncodedContent cached = this.entries.get(key);
+            if (cached != null) {
+                this.hits.incrementAndGet();
+                return cached;
+            }
+        }
+        this.misses.incrementAndGet();
+
+        final EncodedContent encoded = EncodedContent.encode(bytes, attachment.getMimeType());
+        if (encoded.getSize() <= this.maxBytes) {
+            synchronized (this.entries) {
+                final EncodedContent previous = this.entries.put(key, encoded);
+                this.size += encoded.getSize() - (previous != null ? previous.getSize() : 0);
+                final Iterator<EncodedContent> eldest = this.entries.values().iterator();
+                while (this.size > this.maxBytes) {
+                    this.size -= eldest.next().getSize();
+                    eldest.remove();
+                    this.evictions.incrementAndGet();
+                }
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Tells whether a type is one whose transfer encoding javax.mail restricts, which this cache
+     * leaves to it.
+     */
+    private static boolean isComposite(final String mimeType) {
+        final String type = mimeType.trim().toLowerCase(Locale.ENGLISH);
+        return type.startsWith("multipart/") || type.startsWith("message/");
+    }
+
+    /**
+     * Removes every entry. The counters are kept.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+            this.size = 0;
+        }
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     * @return the number of hits
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * Gets the number of lookups that had to encode the attachment.
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Gets the number of entries evicted to stay within the bound.
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     * Gets the number of entries held.
+     * @return the number of entries
+     */
+    public int getEntryCount() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * Gets the size of the encoded content held.
+     * @return the size in bytes
+     */
+    public long getSize() {
+        synchronized (this.entries) {
+            return this.size;
+        }
+    }
+
+    /**
+     * Content digest and MIME type of an attachment.
+     */
+    private static final class Key {
+
+        private final byte[] digest;
+        private final String mimeType;
+        private final int hash;
+
+        Key(final byte[] digest, final String mimeType) {
+            this.digest = digest;
+            this.mimeType = mimeType;
+            this.hash = 31 * Arrays.hashCode(digest) + mimeType.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return Arrays.equals(this.digest, other.digest)
+                    && this.mimeType.equals(other.mimeType);
+        }
+    }
+}
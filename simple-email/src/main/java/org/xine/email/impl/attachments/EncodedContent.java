@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.attachments;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * The body of a MIME part in its transfer encoding, exactly as javax.mail writes it: the
+ * encoding is picked the way {@link MimeUtility} picks it and the bytes come from its encoders.
+ * Immutable, so one instance serves every message carrying the same content.
+ */
+public final class EncodedContent {
+
+    /** Result of the ASCII check: ASCII only, in lines short enough for 7bit. */
+    private static final int ALL_ASCII = 1;
+
+    /** Result of the ASCII check: mostly ASCII. */
+    private static final int MOSTLY_ASCII = 2;
+
+    /** Result of the ASCII check: mostly binary. */
+    private static final int MOSTLY_NONASCII = 3;
+
+    /** The transfer encoding. */
+    private final String encoding;
+
+    /** The encoded bytes, never modified. */
+    private final byte[] encoded;
+
+    private EncodedContent(final String encoding, final byte[] encoded) {
+        this.encoding = encoding;
+        this.encoded = encoded;
+    }
+
+    /**
+     * Encodes content for a part of the given type.
+     * @param bytes
+     *            the content
+     * @param mimeType
+     *            the MIME type of the part
+     * @return the encoded content
+     * @throws MessagingException
+     *             if the type can not be parsed or the content not encoded
+     */
+    public static EncodedContent encode(final byte[] bytes, final String mimeType)
+            throws MessagingException {
+        final String encoding = getEncoding(bytes, !new ContentType(mimeType).match("text/*"));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                "base64".equals(encoding) ? bytes.length / 3 * 4 + bytes.length / 57 * 2 + 6
+                        : bytes.length + 16);
+        try {
+            final OutputStream encoder = MimeUtility.encode(out, encoding);
+            encoder.write(bytes);
+            encoder.flush();
+        } catch (final IOException e) {
+            throw new MessagingException("Unable to encode content as " + encoding, e);
+        }
+        return new EncodedContent(encoding, out.toByteArray());
+    }
+
+    /**
+     * Picks the transfer encoding of content the way {@link MimeUtility} does.
+     * @param bytes
+     *            the content
+     * @param binary
+     *            whether the content is not text, in which case any non-ASCII byte calls for
+     *            base64
+     * @return 7bit, quoted-printable or base64
+     */
+    public static String getEncoding(final byte[] bytes, final boolean binary) {
+        switch (checkAscii(bytes, binary)) {
+        case ALL_ASCII:
+            return "7bit";
+        case MOSTLY_ASCII:
+            return "quoted-printable";
+        default:
+            return "base64";
+        }
+    }
+
+    private static int checkAscii(final byte[] bytes, final boolean breakOnNonAscii) {
+        int ascii = 0;
+        int nonAscii = 0;
+        int lineLength = 0;
+        boolean longLine = false;
+        for (final byte value : bytes) {
+            final int b = value & 0xFF;
+            if (b == '\r' || b == '\n') {
+                lineLength = 0;
+            } else if (++lineLength > 998) {
+                longLine = true;
+            }
+            if (b >= 0177 || b < 040 && b != '\r' && b != '\n' && b != '\t') {
+                if (breakOnNonAscii) {
+                    return MOSTLY_NONASCII;
+                }
+                nonAscii++;
+            } else {
+                ascii++;
+            }
+        }
+        if (nonAscii == 0) {
+            return longLine ? MOSTLY_ASCII : ALL_ASCII;
+        }
+        return ascii > nonAscii ? MOSTLY_ASCII : MOSTLY_NONASCII;
+    }
+
+    /**
+     * Gets the transfer encoding.
+     * @return the encoding
+     */
+    public String getEncoding() {
+        return this.encoding;
+    }
+
+    /**
+     * Gets the size of the encoded content.
+     * @return the size in bytes
+     */
+    public int getSize() {
+        return this.encoded.length;
+    }
+
+    /**
+     * Writes the encoded content.
+     * @param out
+     *            the stream to write to
+     * @throws IOException
+     *             if writing fails
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(this.encoded);
+    }
+}
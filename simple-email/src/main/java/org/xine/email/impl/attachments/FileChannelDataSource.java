@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.attachments;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.activation.DataSource;
+
+/**
+ * Read-only {@link DataSource} over a file. Every stream it hands out reads the file through a
+ * {@link FileChannel} of its own while the message is written, so the content is never held on
+ * the heap and any number of messages can send the same file at once.
+ */
+public class FileChannelDataSource implements DataSource {
+
+    /** The file. */
+    private final Path path;
+
+    /** The content type. */
+    private final String contentType;
+
+    /**
+     * Instantiates a new file channel data source.
+     * @param path
+     *            the file
+     * @param contentType
+     *            the content type, null for application/octet-stream
+     */
+    public FileChannelDataSource(final Path path, final String contentType) {
+        this.path = path;
+        this.contentType = contentType != null ? contentType : "application/octet-stream";
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see javax.activation.DataSource#getInputStream()
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return Channels.newInputStream(FileChannel.open(this.path, StandardOpenOption.READ));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see javax.activation.DataSource#getOutputStream()
+     */
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Attachment file is read only: " + this.path);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see javax.activation.DataSource#getContentType()
+     */
+    @Override
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see javax.activation.DataSource#getName()
+     */
+    @Override
+    public String getName() {
+        return this.path.getFileName().toString();
+    }
+
+    /**
+     * Gets the file.
+     * @return the path
+     */
+    public Path getPath() {
+        return this.path;
+    }
+}
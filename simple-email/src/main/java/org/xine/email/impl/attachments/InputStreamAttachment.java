@@ -20,18 +20,40 @@ import org.xine.email.impl.util.Streams;
 import java.io.IOException;
 import java.io.InputStream;
 
+/**
+ * Attachment read from a stream. Content up to the threshold of a {@link SpillBuffer} is held in
+ * memory; larger content is spilled to a temporary file and streamed from there through a
+ * {@link SpilledDataSource}, which is released once the message owning it has been sent or is
+ * closed.
+ */
 public class InputStreamAttachment extends BaseAttachment {
     public InputStreamAttachment(final String fileName, final String mimeType,
             final ContentDisposition contentDisposition, final InputStream inputStream) {
+        this(fileName, mimeType, contentDisposition, inputStream, SpillBuffer
+                .getDefaultThreshold());
+    }
+
+    public InputStreamAttachment(final String fileName, final String mimeType,
+            final ContentDisposition contentDisposition, final InputStream inputStream,
+            final int spillThreshold) {
         super();
 
+        final SpillBuffer buffer = new SpillBuffer(spillThreshold, null);
         try {
             super.setFileName(fileName);
             super.setMimeType(mimeType);
             super.setContentDisposition(contentDisposition);
-            super.setBytes(Streams.toByteArray(inputStream));
+            Streams.copy(inputStream, buffer);
+            buffer.close();
         } catch (final IOException e) {
-            throw new AttachmentException("Wasn't able to create email attachment from InputStream");
+            buffer.discard();
+            throw new AttachmentException("Wasn't able to create email attachment from InputStream",
+                    e);
+        }
+        if (buffer.isSpilled()) {
+            super.setDataSource(buffer.toDataSource(mimeType));
+        } else {
+            super.setBytes(buffer.toByteArray());
         }
     }
 
@@ -0,0 +1,265 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.attachments;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output stream holding what is written to it in memory up to a threshold and moving it to a
+ * temporary file once the threshold is passed. Kept in memory, the content is held in fixed size
+ * chunks and copied only once, by {@link #toByteArray()}, rather than at every growth step of a
+ * single array. Spilled to disk, it is handed out as a {@link SpilledDataSource} which owns the
+ * file from then on.
+ */
+public final class SpillBuffer extends OutputStream {
+
+    /** The threshold used unless another one is set, 1 MiB. */
+    public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+    /** The size of the chunks held in memory. */
+    private static final int CHUNK_SIZE = 0x2000;
+
+    /** The threshold in use. */
+    private static volatile int defaultThreshold = DEFAULT_THRESHOLD;
+
+    /** The most bytes held in memory. */
+    private final int threshold;
+
+    /** The directory of the file, null for the default temporary directory. */
+    private final Path directory;
+
+    /** The chunks held in memory, the last one possibly not full. */
+    private final List<byte[]> chunks = new ArrayList<>();
+
+    /** The bytes written. */
+    private long size;
+
+    /** The file, once spilled. */
+    private Path file;
+
+    /** The channel writing the file, until closed. */
+    private FileChannel channel;
+
+    /** Whether the buffer has been closed. */
+    private boolean closed;
+
+    /**
+     * Instantiates a new spill buffer with the default threshold, spilling to the default
+     * temporary directory.
+     */
+    public SpillBuffer() {
+        this(defaultThreshold, null);
+    }
+
+    /**
+     * Instantiates a new spill buffer.
+     * @param threshold
+     *            the most bytes held in memory, {@link Integer#MAX_VALUE} to never spill
+     * @param directory
+     *            the directory of the file, null for the default temporary directory
+     */
+    public SpillBuffer(final int threshold, final Path directory) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    /**
+     * Gets the threshold new buffers are created with.
+     * @return the threshold in bytes
+     */
+    public static int getDefaultThreshold() {
+        return defaultThreshold;
+    }
+
+    /**
+     * Sets the threshold new buffers are created with.
+     * @param threshold
+     *            the threshold in bytes, {@link Integer#MAX_VALUE} to never spill
+     */
+    public static void setDefaultThreshold(final int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        defaultThreshold = threshold;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Buffer closed");
+        }
+        if (this.channel == null && this.size + len > this.threshold) {
+            spill();
+        }
+        if (this.channel != null) {
+            writeFully(ByteBuffer.wrap(b, off, len));
+        } else {
+            int pos = off;
+            final int end = off + len;
+            while (pos < end) {
+                final int used = (int) (this.size % CHUNK_SIZE);
+                if (used == 0) {
+                    this.chunks.add(new byte[CHUNK_SIZE]);
+                }
+                final int n = Math.min(CHUNK_SIZE - used, end - pos);
+                System.arraycopy(b, pos, this.chunks.get(this.chunks.size() - 1), used, n);
+                pos += n;
+                this.size += n;
+            }
+            return;
+        }
+        this.size += len;
+    }
+
+    /**
+     * Closes the file, if spilled. The content can be taken out afterwards.
+     * @see java.io.OutputStream#close()
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } finally {
+                this.channel = null;
+            }
+        }
+    }
+
+    /**
+     * Drops the content, deleting the file if spilled. Used when the content could not be
+     * written in full.
+     */
+    public void discard() {
+        try {
+            close();
+        } catch (final IOException e) {
+            // Deleted below
+        }
+        this.chunks.clear();
+        if (this.file != null) {
+            try {
+                Files.deleteIfExists(this.file);
+            } catch (final IOException e) {
+                // Nothing else to do
+            }
+            this.file = null;
+        }
+    }
+
+    /**
+     * Checks whether the content has been moved to a file.
+     * @return true, if spilled
+     */
+    public boolean isSpilled() {
+        return this.file != null;
+    }
+
+    /**
+     * Gets the bytes written.
+     * @return the size
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Copies the content held in memory into one array.
+     * @return the bytes
+     * @throws IllegalStateException
+     *             if the content has been spilled
+     */
+    public byte[] toByteArray() {
+        if (this.file != null) {
+            throw new IllegalStateException("Content spilled to " + this.file);
+        }
+        final byte[] bytes = new byte[(int) this.size];
+        int pos = 0;
+        for (final byte[] chunk : this.chunks) {
+            final int n = Math.min(CHUNK_SIZE, bytes.length - pos);
+            System.arraycopy(chunk, 0, bytes, pos, n);
+            pos += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * Hands the spilled file over to a data source, which deletes it when released.
+     * @param contentType
+     *            the content type
+     * @return the data source
+     * @throws IllegalStateException
+     *             if the content has not been spilled or the buffer is still open
+     */
+    public SpilledDataSource toDataSource(final String contentType) {
+        if (this.file == null || !this.closed) {
+            throw new IllegalStateException("Content not spilled or buffer still open");
+        }
+        return new SpilledDataSource(this.file, contentType);
+    }
+
+    /**
+     * Moves the content held in memory to a new temporary file and writes to it from then on.
+     */
+    private void spill() throws IOException {
+        this.file = this.directory != null ? Files.createTempFile(this.directory, "attachment",
+                ".tmp") : Files.createTempFile("attachment", ".tmp");
+        try {
+            this.channel = FileChannel.open(this.file, StandardOpenOption.WRITE);
+            long left = this.size;
+            for (final byte[] chunk : this.chunks) {
+                final int n = (int) Math.min(CHUNK_SIZE, left);
+                writeFully(ByteBuffer.wrap(chunk, 0, n));
+                left -= n;
+            }
+            this.chunks.clear();
+        } catch (final IOException e) {
+            discard();
+            throw e;
+        }
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+    }
+}
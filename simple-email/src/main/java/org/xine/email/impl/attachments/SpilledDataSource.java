@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.attachments;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xine.email.api.AttachmentException;
+
+/**
+ * {@link FileChannelDataSource} over a temporary file written by a {@link SpillBuffer}, which it
+ * owns. The file can be read any number of times, so a message failing to send can be sent
+ * again, for as long as it is referenced. It starts with one reference, held by whoever created
+ * the attachment; each user that must keep it for a while, such as a send in progress, takes one
+ * more through {@link #retain()}, and every reference is given back through {@link #release()}.
+ * The file is deleted when the last one is. A file whose data source is garbage collected
+ * without having been released is deleted the next time a buffer spills or a file is released,
+ * and files still pending when the JVM exits are deleted by a shutdown hook.
+ */
+public class SpilledDataSource extends FileChannelDataSource {
+
+    /** Receives the references of collected data sources. */
+    private static final ReferenceQueue<SpilledDataSource> COLLECTED = new ReferenceQueue<>();
+
+    /** The references of the data sources whose file still exists. */
+    private static final Set<FileReference> PENDING = Collections
+            .newSetFromMap(new ConcurrentHashMap<FileReference, Boolean>());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(SpilledDataSource::deletePending,
+                "simple-email-spill-cleanup"));
+    }
+
+    /** Deletes the file if this data source is collected first. */
+    private final FileReference reference;
+
+    /** The references held, 0 once the file has been deleted. */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Instantiates a new spilled data source.
+     * @param file
+     *            the temporary file
+     * @param contentType
+     *            the content type, null for application/octet-stream
+     */
+    SpilledDataSource(final Path file, final String contentType) {
+        super(file, contentType);
+        expungeCollected();
+        this.reference = new FileReference(this, file);
+        PENDING.add(this.reference);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.xine.email.impl.attachments.FileChannelDataSource#getInputStream()
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (isReleased()) {
+            throw new IOException("Attachment content has been released: " + getName());
+        }
+        return super.getInputStream();
+    }
+
+    /**
+     * Takes a reference, keeping the file until it is given back.
+     * @throws AttachmentException
+     *             if the file has already been deleted
+     */
+    public void retain() {
+        int held;
+        do {
+            held = this.references.get();
+            if (held <= 0) {
+                throw new AttachmentException("Attachment content has been released: "
+                        + getName());
+            }
+        } while (!this.references.compareAndSet(held, held + 1));
+    }
+
+    /**
+     * Gives back a reference, deleting the file if it was the last one. The content can not be
+     * read afterwards. Releasing a deleted file does nothing.
+     */
+    public void release() {
+        int held;
+        do {
+            held = this.references.get();
+            if (held <= 0) {
+                return;
+            }
+        } while (!this.references.compareAndSet(held, held - 1));
+        if (held == 1) {
+            this.reference.delete();
+        }
+        expungeCollected();
+    }
+
+    /**
+     * Checks whether the file has been deleted.
+     * @return true, if released
+     */
+    public boolean isReleased() {
+        return this.references.get() <= 0;
+    }
+
+    /**
+     * Deletes every file still pending, whether or not its data source is still referenced.
+     */
+    private static void deletePending() {
+        for (final FileReference pending : PENDING.toArray(new FileReference[0])) {
+            pending.delete();
+        }
+    }
+
+    private static void expungeCollected() {
+        Reference<? extends SpilledDataSource> collected;
+        while ((collected = COLLECTED.poll()) != null) {
+            ((FileReference) collected).delete();
+        }
+    }
+
+    /**
+     * Reference to a data source, outliving it to delete its file.
+     */
+    private static final class FileReference extends PhantomReference<SpilledDataSource> {
+
+        /** The file. */
+        private final Path file;
+
+        FileReference(final SpilledDataSource referent, final Path file) {
+            super(referent, COLLECTED);
+            this.file = file;
+        }
+
+        void delete() {
+            if (PENDING.remove(this)) {
+                try {
+                    Files.deleteIfExists(this.file);
+                } catch (final IOException e) {
+                    // Left to the temporary directory's own cleanup
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.attachments;
+
+import org.xine.email.api.AttachmentException;
+import org.xine.email.api.ContentDisposition;
+import org.xine.email.api.Header;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Attachment of a file which, unlike {@link FileAttachment}, is not read when created but
+ * streamed from the file each time the message is written, through a
+ * {@link FileChannelDataSource}. The file must stay in place, unchanged, until the message has
+ * been sent.
+ * <p>
+ * Only the transports writing the MIME message straight to the connection stream it: the
+ * blocking, pooled and chunking transporters. The content is read into memory wherever the
+ * whole message is rendered into bytes first, that is by
+ * {@link org.xine.email.impl.NioMailTransporter}, by {@link org.xine.email.impl.FrozenMessage}
+ * and by callers of {@link #getBytes()}, such as a spool persisting the message.
+ */
+public class StreamingFileAttachment extends BaseAttachment {
+
+    /**
+     * Instantiates a new streaming file attachment.
+     * @param contentDisposition
+     *            the content disposition
+     * @param path
+     *            the file
+     * @throws AttachmentException
+     *             if the file can not be read
+     */
+    public StreamingFileAttachment(final ContentDisposition contentDisposition, final Path path) {
+        super();
+        try {
+            super.setFileName(path.getFileName().toString());
+            super.setMimeType(Files.probeContentType(path));
+            super.setContentDisposition(contentDisposition);
+        } catch (final IOException e) {
+            throw new AttachmentException("Wasn't able to create email attachment from File: "
+                    + path.getFileName().toString(), e);
+        }
+        if (!Files.isReadable(path)) {
+            throw new AttachmentException("Wasn't able to create email attachment from File: "
+                    + path.getFileName().toString());
+        }
+        super.setDataSource(new FileChannelDataSource(path, getMimeType()));
+    }
+
+    /**
+     * Instantiates a new streaming file attachment.
+     * @param contentDisposition
+     *            the content disposition
+     * @param path
+     *            the file
+     * @param contentClass
+     *            the value of the Content-Class header
+     */
+    public StreamingFileAttachment(final ContentDisposition contentDisposition, final Path path,
+            final String contentClass) {
+        this(contentDisposition, path);
+        super.addHeader(new Header("Content-Class", contentClass));
+    }
+
+    /**
+     * Instantiates a new streaming file attachment.
+     * @param contentDisposition
+     *            the content disposition
+     * @param file
+     *            the file
+     */
+    public StreamingFileAttachment(final ContentDisposition contentDisposition, final File file) {
+        this(contentDisposition, file.toPath());
+    }
+
+    /**
+     * Instantiates a new streaming file attachment.
+     * @param contentDisposition
+     *            the content disposition
+     * @param file
+     *            the file
+     * @param contentClass
+     *            the value of the Content-Class header
+     */
+    public StreamingFileAttachment(final ContentDisposition contentDisposition, final File file,
+            final String contentClass) {
+        this(contentDisposition, file.toPath());
+        super.addHeader(new Header("Content-Class", contentClass));
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.queue;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.InternetAddress;
+
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailException;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendResult;
+import org.xine.email.impl.transport.TokenBucket;
+import org.xine.email.impl.util.IdGenerators;
+import org.xine.email.impl.util.MailExecutors;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.impl.util.Strings;
+
+/**
+ * Dispatcher in front of a {@link MailTransporter} which queues mail separately for each
+ * recipient domain. A message addressed to several domains is split into one copy per domain,
+ * each with the same headers and Message-ID but delivered only to that domain's recipients
+ * (see {@link EmailMessage#getEnvelopeRecipients()}). Each domain's queue is drained within the
+ * limits of its {@link DomainPolicy}, so a provider that is slow or throttling only holds up its
+ * own mail.
+ * <p>
+ * Domains without a policy of their own share the default policy's settings, each with its own
+ * limits. A domain's queue is dropped once it is idle and empty, so dispatching to many domains
+ * over time does not accumulate queues.
+ */
+public class DomainDispatcher implements MailTransporter, Closeable {
+
+    /** The delegate. */
+    private final MailTransporter delegate;
+
+    /** The policy of domains without one of their own. */
+    private final DomainPolicy defaultPolicy;
+
+    /** The policies by domain. */
+    private final ConcurrentMap<String, DomainPolicy> policies = new ConcurrentHashMap<>();
+
+    /** The queues by domain. */
+    private final ConcurrentMap<String, DomainQueue> queues = new ConcurrentHashMap<>();
+
+    /** The executor running sends; its size is bounded by the per-domain limits. */
+    private final ExecutorService executor = Executors.newCachedThreadPool(MailExecutors
+            .daemonThreadFactory("simple-email-domain"));
+
+    /** The scheduler waking paced queues. */
+    private final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor(MailExecutors
+                    .daemonThreadFactory("simple-email-domain-pacer"));
+
+    /** The domain of Message-IDs assigned before a message is split. */
+    private final String messageIdDomain = MailUtility.getHostName();
+
+    /** Whether the dispatcher has been closed. */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates a new domain dispatcher with the default {@link DomainPolicy}.
+     * @param delegate
+     *            the transporter performing the sends
+     */
+    public DomainDispatcher(final MailTransporter delegate) {
+        this(delegate, new DomainPolicy());
+    }
+
+    /**
+     * Instantiates a new domain dispatcher.
+     * @param delegate
+     *            the transporter performing the sends
+     * @param defaultPolicy
+     *            the policy of domains without one of their own
+     */
+    public DomainDispatcher(final MailTransporter delegate, final DomainPolicy defaultPolicy) {
+        this.delegate = delegate;
+        this.defaultPolicy = defaultPolicy;
+    }
+
+    /**
+     * Sets the policy of a domain. It applies from the domain's first message, so set it before
+     * dispatching.
+     * @param domain
+     *            the recipient domain, such as {@code example.com}
+     * @param policy
+     *            the policy
+     */
+    public void setPolicy(final String domain, final DomainPolicy policy) {
+        this.policies.put(domain.toLowerCase(Locale.ENGLISH), policy);
+    }
+
+    /**
+     * Queues a message, split by recipient domain.
+     * @param emailMessage
+     *            the email message
+     * @return a future completing once every domain's copy has been sent or has failed, with one
+     *         {@link SendResult} per copy
+     * @throws SendFailedException
+     *             if the message has no recipients or the dispatcher has been closed
+     */
+    public CompletableFuture<List<SendResult>> dispatch(final EmailMessage emailMessage) {
+        if (this.closed) {
+            throw new SendFailedException("Dispatcher has been closed");
+        }
+        final Map<String, List<InternetAddress>> byDomain = groupByDomain(emailMessage);
+        if (byDomain.isEmpty()) {
+            throw new SendFailedException("No recipient addresses");
+        }
+        if (byDomain.size() > 1 && Strings.isNullOrBlank(emailMessage.getMessageId())) {
+            emailMessage.setMessageId(IdGenerators.nextMessageId(this.messageIdDomain));
+        }
+
+        final List<CompletableFuture<SendResult>> parts = new ArrayList<>(byDomain.size());
+        for (final Map.Entry<String, List<InternetAddress>> domain : byDomain.entrySet()) {
+            final EmailMessage part;
+            if (byDomain.size() == 1) {
+                part = emailMessage;
+            } else {
+                part = new EmailMessage(emailMessage);
+                part.setEnvelopeRecipients(domain.getValue());
+            }
+            parts.add(enqueue(domain.getKey(), part));
+        }
+
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()]))
+                .thenApply(done -> {
+                    final List<SendResult> results = new ArrayList<>(parts.size());
+                    for (final CompletableFuture<SendResult> part : parts) {
+                        results.add(part.join());
+                    }
+                    return results;
+                });
+    }
+
+    /**
+     * Queues a message and waits until every domain's copy has been sent.
+     * @see org.xine.email.api.MailTransporter#send(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public EmailMessage send(final EmailMessage emailMessage) {
+        try {
+            return sendAsync(emailMessage).join();
+        } catch (final CompletionException e) {
+            throw (MailException) e.getCause();
+        }
+    }
+
+    /**
+     * Queues a message. The future fails with the first domain's failure if any copy failed.
+     * @see org.xine.email.api.MailTransporter#sendAsync(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public CompletableFuture<EmailMessage> sendAsync(final EmailMessage emailMessage) {
+        return dispatch(emailMessage).thenApply(results -> {
+            for (final SendResult result : results) {
+                if (!result.isSuccess()) {
+                    throw result.getFailure();
+                }
+            }
+            return emailMessage;
+        });
+    }
+
+    /**
+     * Gets the number of messages waiting for a send slot for a domain.
+     * @param domain
+     *            the recipient domain
+     * @return the queued count
+     */
+    public int getQueuedCount(final String domain) {
+        final DomainQueue queue = this.queues.get(domain.toLowerCase(Locale.ENGLISH));
+        return queue != null ? queue.getQueuedCount() : 0;
+    }
+
+    /**
+     * Gets the number of sends in flight for a domain.
+     * @param domain
+     *            the recipient domain
+     * @return the in-flight count
+     */
+    public int getInFlightCount(final String domain) {
+        final DomainQueue queue = this.queues.get(domain.toLowerCase(Locale.ENGLISH));
+        return queue != null ? queue.getInFlightCount() : 0;
+    }
+
+    /**
+     * Gets the number of domains holding a queue: those with messages waiting or in flight, and
+     * paced ones whose bucket has not refilled yet.
+     * @return the domain count
+     */
+    public int getDomainCount() {
+        return this.queues.size();
+    }
+
+    /**
+     * Stops accepting messages. Sends already started still complete; messages still queued
+     * fail.
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.scheduler.shutdownNow();
+        this.executor.shutdown();
+        for (final DomainQueue queue : this.queues.values()) {
+            queue.failQueued(new SendFailedException("Dispatcher has been closed"));
+        }
+    }
+
+    /**
+     * Adds a message to its domain's queue, creating the queue again if it was dropped in the
+     * meantime.
+     */
+    private CompletableFuture<SendResult> enqueue(final String domain,
+            final EmailMessage emailMessage) {
+        for (;;) {
+            final CompletableFuture<SendResult> result = this.queues.computeIfAbsent(domain,
+                    d -> {
+                        final DomainPolicy policy = this.policies.getOrDefault(d,
+                                this.defaultPolicy);
+                        return new DomainQueue(d, policy.getMaxConcurrentSends(), policy
+                                .getMaxMessagesPerSecond());
+                    }).add(emailMessage);
+            if (result != null) {
+                return result;
+            }
+        }
+    }
+
+    private static Map<String, List<InternetAddress>> groupByDomain(
+            final EmailMessage emailMessage) {
+        final Collection<InternetAddress> recipients = new LinkedHashSet<>();
+        if (!emailMessage.getEnvelopeRecipients().isEmpty()) {
+            recipients.addAll(emailMessage.getEnvelopeRecipients());
+        } else {
+            recipients.addAll(emailMessage.getToAddresses());
+            recipients.addAll(emailMessage.getCcAddresses());
+            recipients.addAll(emailMessage.getBccAddresses());
+        }
+
+        final Map<String, List<InternetAddress>> byDomain = new LinkedHashMap<>();
+        for (final InternetAddress recipient : recipients) {
+            byDomain.computeIfAbsent(getDomain(recipient), d -> new ArrayList<>()).add(
+                    recipient);
+        }
+        return byDomain;
+    }
+
+    private static String getDomain(final InternetAddress address) {
+        final String value = address.getAddress();
+        final int at = value != null ? value.lastIndexOf('@') : -1;
+        return at >= 0 ? value.substring(at + 1).toLowerCase(Locale.ENGLISH) : "";
+    }
+
+    /**
+     * The messages waiting for one domain, started as its limits allow.
+     */
+    private final class DomainQueue {
+
+        /** The domain. */
+        private final String domain;
+
+        /** The maximum number of sends in flight. */
+        private final int maxConcurrentSends;
+
+        /** The bucket pacing sends, null if not paced. */
+        private final TokenBucket pacing;
+
+        /** The waiting sends. Guarded by this. */
+        private final Queue<Task> waiting = new ArrayDeque<>();
+
+        /** The sends in flight. Guarded by this. */
+        private int inFlight;
+
+        /** Whether a wake-up is scheduled for the pacing bucket. Guarded by this. */
+        private boolean wakeUpScheduled;
+
+        /** Whether the queue has been dropped from the dispatcher. Guarded by this. */
+        private boolean retired;
+
+        /**
+         * Instantiates a new domain queue.
+         * @param domain
+         *            the domain
+         * @param maxConcurrentSends
+         *            the maximum number of sends in flight
+         * @param maxMessagesPerSecond
+         *            the maximum sends started per second, spaced evenly; null for no limit
+         */
+        DomainQueue(final String domain, final int maxConcurrentSends,
+                final Double maxMessagesPerSecond) {
+            if (maxConcurrentSends < 1) {
+                throw new IllegalArgumentException("maxConcurrentSends must be at least 1");
+            }
+            this.domain = domain;
+            this.maxConcurrentSends = maxConcurrentSends;
+            this.pacing = maxMessagesPerSecond != null ? new TokenBucket(1, maxMessagesPerSecond,
+                    1, TimeUnit.SECONDS) : null;
+        }
+
+        /**
+         * Queues a message, failing it at once if the dispatcher has been closed.
+         * @return the future result, or null if the queue has been dropped and the message must
+         *         go to a new one
+         */
+        CompletableFuture<SendResult> add(final EmailMessage emailMessage) {
+            final Task task = new Task(emailMessage);
+            synchronized (this) {
+                if (this.retired) {
+                    return null;
+                }
+                if (!DomainDispatcher.this.closed) {
+                    this.waiting.add(task);
+                }
+            }
+            if (DomainDispatcher.this.closed) {
+                task.result.complete(new SendResult(emailMessage, new SendFailedException(
+                        "Dispatcher has been closed")));
+                return task.result;
+            }
+            pump();
+            return task.result;
+        }
+
+        synchronized int getQueuedCount() {
+            return this.waiting.size();
+        }
+
+        synchronized int getInFlightCount() {
+            return this.inFlight;
+        }
+
+        void failQueued(final MailException failure) {
+            final List<Task> failed;
+            synchronized (this) {
+                failed = new ArrayList<>(this.waiting);
+                this.waiting.clear();
+            }
+            for (final Task task : failed) {
+                task.result.complete(new SendResult(task.emailMessage, failure));
+            }
+        }
+
+        /**
+         * Starts as many waiting sends as the limits allow, scheduling a wake-up if pacing holds
+         * the rest back.
+         */
+        void pump() {
+            final List<Task> started = new ArrayList<>();
+            RejectedExecutionException rejected = null;
+            synchronized (this) {
+                while (this.inFlight < this.maxConcurrentSends && !this.waiting.isEmpty()) {
+                    if (this.pacing != null && !this.pacing.tryAcquire(1)) {
+                        rejected = scheduleWakeUp(this.pacing.estimateWait(1));
+                        break;
+                    }
+                    started.add(this.waiting.poll());
+                    this.inFlight++;
+                }
+            }
+            if (rejected != null) {
+                failQueued(new SendFailedException("Dispatcher has been closed", rejected));
+            }
+            for (final Task task : started) {
+                try {
+                    DomainDispatcher.this.executor.execute(() -> run(task));
+                } catch (final RejectedExecutionException e) {
+                    finished();
+                    task.result.complete(new SendResult(task.emailMessage,
+                            new SendFailedException("Dispatcher has been closed", e)));
+                }
+            }
+        }
+
+        private void run(final Task task) {
+            SendResult result;
+            try {
+                DomainDispatcher.this.delegate.send(task.emailMessage);
+                result = new SendResult(task.emailMessage);
+            } catch (final MailException e) {
+                result = new SendResult(task.emailMessage, e);
+            } catch (final RuntimeException e) {
+                result = new SendResult(task.emailMessage, new SendFailedException(
+                        "Send Failed", e));
+            }
+            finished();
+            task.result.complete(result);
+            pump();
+            retireIfIdle();
+        }
+
+        private synchronized void finished() {
+            this.inFlight--;
+        }
+
+        /**
+         * Schedules a pump once the pacing bucket has refilled.
+         * @return null, or the rejection if the scheduler has been shut down, in which case the
+         *         waiting sends can never start
+         */
+        private RejectedExecutionException scheduleWakeUp(final long nanos) {
+            if (this.wakeUpScheduled) {
+                return null;
+            }
+            this.wakeUpScheduled = true;
+            try {
+                DomainDispatcher.this.scheduler.schedule(() -> {
+                    synchronized (this) {
+                        this.wakeUpScheduled = false;
+                    }
+                    pump();
+                    retireIfIdle();
+                }, Math.max(1, nanos), TimeUnit.NANOSECONDS);
+                return null;
+            } catch (final RejectedExecutionException e) {
+                this.wakeUpScheduled = false;
+                return e;
+            }
+        }
+
+        /**
+         * Drops the queue from the dispatcher if nothing is waiting or in flight. A paced queue
+         * is kept until its bucket has refilled, so that a new queue for the domain does not
+         * start a send sooner than the pacing allows; a check is scheduled for then.
+         */
+        private void retireIfIdle() {
+            final long refill;
+            synchronized (this) {
+                if (this.retired || this.inFlight > 0 || !this.waiting.isEmpty()
+                        || this.wakeUpScheduled) {
+                    return;
+                }
+                refill = this.pacing != null ? this.pacing.estimateWait(this.pacing
+                        .getCapacity()) : 0;
+                if (refill == 0) {
+                    this.retired = true;
+                }
+            }
+            if (refill == 0) {
+                DomainDispatcher.this.queues.remove(this.domain, this);
+                return;
+            }
+            try {
+                DomainDispatcher.this.scheduler.schedule(this::retireIfIdle, refill,
+                        TimeUnit.NANOSECONDS);
+            } catch (final RejectedExecutionException e) {
+                // Closed; the queue goes with the dispatcher
+            }
+        }
+    }
+
+    /**
+     * A message waiting in a domain queue.
+     */
+    private static final class Task {
+
+        /** The email message. */
+        final EmailMessage emailMessage;
+
+        /** The result. */
+        final CompletableFuture<SendResult> result = new CompletableFuture<>();
+
+        /**
+         * Instantiates a new task.
+         * @param emailMessage
+         *            the email message
+         */
+        Task(final EmailMessage emailMessage) {
+            this.emailMessage = emailMessage;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.queue;
+
+/**
+ * Limits on the mail a {@link DomainDispatcher} sends to one recipient domain at a time: how
+ * many sends may be in flight at once, and how many may start per second. Paced sends are
+ * spaced evenly rather than let through in bursts.
+ */
+public class DomainPolicy {
+
+    /** The maximum number of sends in flight at once. */
+    private int maxConcurrentSends = 2;
+
+    /** The maximum number of sends started per second, null for no limit. */
+    private Double maxMessagesPerSecond;
+
+    /**
+     * Gets the maximum number of sends to the domain in flight at once, 2 by default.
+     * @return the maximum number of concurrent sends
+     */
+    public int getMaxConcurrentSends() {
+        return this.maxConcurrentSends;
+    }
+
+    /**
+     * Sets the maximum number of sends to the domain in flight at once.
+     * @param maxConcurrentSends
+     *            the maximum number of concurrent sends
+     */
+    public void setMaxConcurrentSends(final int maxConcurrentSends) {
+        this.maxConcurrentSends = maxConcurrentSends;
+    }
+
+    /**
+     * Gets the maximum number of sends to the domain started per second, null (no limit) by
+     * default.
+     * @return the maximum number of sends per second
+     */
+    public Double getMaxMessagesPerSecond() {
+        return this.maxMessagesPerSecond;
+    }
+
+    /**
+     * Sets the maximum number of sends to the domain started per second, null for no limit.
+     * @param maxMessagesPerSecond
+     *            the maximum number of sends per second
+     */
+    public void setMaxMessagesPerSecond(final Double maxMessagesPerSecond) {
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+    }
+}
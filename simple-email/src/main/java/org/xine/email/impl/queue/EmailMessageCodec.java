@@ -0,0 +1,251 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.queue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.mail.internet.InternetAddress;
+
+import org.xine.email.api.ContentDisposition;
+import org.xine.email.api.ContentType;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.EmailMessageType;
+import org.xine.email.api.Header;
+import org.xine.email.api.MessagePriority;
+import org.xine.email.impl.attachments.BaseAttachment;
+
+/**
+ * Compact binary form of an {@link EmailMessage}, used by the {@link MailSpool}. Much cheaper to
+ * produce and parse than the JAXB XML form. Attachments are stored with their bytes and read
+ * back as {@link BaseAttachment}s.
+ */
+public final class EmailMessageCodec {
+
+    /** The format version, written first so old spool files can still be read. */
+    private static final byte VERSION = 2;
+
+    /**
+     * Instantiates a new email message codec.
+     */
+    private EmailMessageCodec() {}
+
+    /**
+     * Encodes a message.
+     * @param e
+     *            the email message
+     * @return the encoded bytes
+     */
+    public static byte[] encode(final EmailMessage e) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try {
+            write(e, new DataOutputStream(bytes));
+        } catch (final IOException e1) {
+            throw new IllegalStateException("Writing to memory failed", e1);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a message.
+     * @param in
+     *            the encoded bytes
+     * @return the email message
+     * @throws IOException
+     *             if the bytes are not a message written by {@link #encode(EmailMessage)}
+     */
+    public static EmailMessage decode(final InputStream in) throws IOException {
+        return read(new DataInputStream(in));
+    }
+
+    private static void write(final EmailMessage e, final DataOutputStream out)
+            throws IOException {
+        out.writeByte(VERSION);
+        writeString(out, e.getMessageId());
+        writeString(out, e.getImportance() != null ? e.getImportance().name() : null);
+        writeString(out, e.getCharset());
+        writeAddresses(out, e.getFromAddresses());
+        writeAddresses(out, e.getReplyToAddresses());
+        writeAddresses(out, e.getToAddresses());
+        writeAddresses(out, e.getCcAddresses());
+        writeAddresses(out, e.getBccAddresses());
+        writeAddress(out, e.getEnvelopeFrom());
+        writeAddresses(out, e.getDeliveryReceiptAddresses());
+        writeAddresses(out, e.getReadReceiptAddresses());
+        writeString(out, e.getSubject());
+        writeString(out, e.getTextBody());
+        writeString(out, e.getHtmlBody());
+        writeHeaders(out, e.getHeaders());
+        writeString(out, e.getRootContentType() != null ? e.getRootContentType().name() : null);
+        writeString(out, e.getType() != null ? e.getType().name() : null);
+
+        out.writeInt(e.getAttachments().size());
+        for (final BaseAttachment a : e.getAttachments()) {
+            writeString(out, a.getContentId());
+            writeString(out, a.getFileName());
+            writeString(out, a.getMimeType());
+            writeString(out, a.getContentDisposition() != null ? a.getContentDisposition()
+                    .name() : null);
+            writeHeaders(out, a.getHeaders());
+            writeBytes(out, a.getBytes());
+        }
+        writeAddresses(out, e.getEnvelopeRecipients());
+    }
+
+    private static EmailMessage read(final DataInputStream in) throws IOException {
+        final byte version = in.readByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported spool record version " + version);
+        }
+
+        final EmailMessage e = new EmailMessage();
+        e.setMessageId(readString(in));
+        final String importance = readString(in);
+        e.setImportance(importance != null ? MessagePriority.valueOf(importance) : null);
+        e.setCharset(readString(in));
+        e.addFrom(readAddresses(in));
+        e.addReplyTo(readAddresses(in));
+        e.addTo(readAddresses(in));
+        e.addCc(readAddresses(in));
+        e.addBcc(readAddresses(in));
+        e.setEnvelopeFrom(readAddress(in));
+        addAll(e.getDeliveryReceiptAddresses(), readAddresses(in));
+        addAll(e.getReadReceiptAddresses(), readAddresses(in));
+        e.setSubject(readString(in));
+        e.setTextBody(readString(in));
+        e.setHtmlBody(readString(in));
+        final List<Header> headers = readHeaders(in);
+        e.addHeader(headers.toArray(new Header[headers.size()]));
+        final String rootContentType = readString(in);
+        e.setRootContentType(rootContentType != null ? ContentType.valueOf(rootContentType)
+                : null);
+        final String type = readString(in);
+        e.setType(type != null ? EmailMessageType.valueOf(type) : null);
+
+        final int attachments = in.readInt();
+        for (int i = 0; i < attachments; i++) {
+            final BaseAttachment a = new BaseAttachment();
+            a.setContenetId(readString(in));
+            a.setFileName(readString(in));
+            a.setMimeType(readString(in));
+            final String disposition = readString(in);
+            a.setContentDisposition(disposition != null ? ContentDisposition.valueOf(disposition)
+                    : null);
+            a.setHeaders(readHeaders(in));
+            a.setBytes(readBytes(in));
+            e.addAttachment(a);
+        }
+        if (version >= 2) {
+            e.addEnvelopeRecipient(readAddresses(in));
+        }
+        return e;
+    }
+
+    private static void writeString(final DataOutputStream out, final String value)
+            throws IOException {
+        writeBytes(out, value != null ? value.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeAddress(final DataOutputStream out, final InternetAddress address)
+            throws IOException {
+        out.writeBoolean(address != null);
+        if (address != null) {
+            writeString(out, address.getAddress());
+            writeString(out, address.getPersonal());
+        }
+    }
+
+    private static InternetAddress readAddress(final DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        final String address = readString(in);
+        final String personal = readString(in);
+        return new InternetAddress(address, personal, StandardCharsets.UTF_8.name());
+    }
+
+    private static void writeAddresses(final DataOutputStream out,
+            final Collection<InternetAddress> addresses) throws IOException {
+        out.writeInt(addresses.size());
+        for (final InternetAddress address : addresses) {
+            writeAddress(out, address);
+        }
+    }
+
+    private static InternetAddress[] readAddresses(final DataInputStream in) throws IOException {
+        final InternetAddress[] addresses = new InternetAddress[in.readInt()];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = readAddress(in);
+        }
+        return addresses;
+    }
+
+    private static void writeHeaders(final DataOutputStream out, final Collection<Header> headers)
+            throws IOException {
+        out.writeInt(headers.size());
+        for (final Header header : headers) {
+            writeString(out, header.getName());
+            writeString(out, header.getValue());
+        }
+    }
+
+    private static List<Header> readHeaders(final DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        final List<Header> headers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Header header = new Header();
+            header.setName(readString(in));
+            header.setValue(readString(in));
+            headers.add(header);
+        }
+        return headers;
+    }
+
+    private static void addAll(final List<InternetAddress> target, final InternetAddress[] values) {
+        for (final InternetAddress value : values) {
+            target.add(value);
+        }
+    }
+}
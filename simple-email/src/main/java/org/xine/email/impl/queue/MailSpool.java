@@ -0,0 +1,437 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailException;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.impl.util.IdGenerators;
+import org.xine.email.impl.util.MailExecutors;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.impl.util.Strings;
+
+/**
+ * Durable outbound queue. Enqueued messages are written to append-only, memory-mapped segment
+ * files in a spool directory and delivered by worker threads through any
+ * {@link MailTransporter}. An enqueue is a memory copy into the mapped file, so callers are not
+ * held up by the relay, and messages survive a restart of the JVM: on startup every message not
+ * yet delivered is queued again.
+ * <p>
+ * Delivery is at least once. A message whose send was under way when the process stopped is
+ * sent again on restart, with the Message-ID assigned at enqueue so recipients can spot the
+ * duplicate. A failed send is not retried by the spool; wrap the transporter in a
+ * {@link org.xine.email.impl.ResilientMailTransporter} for that, and register a failure handler
+ * to learn about messages that are given up on. Segments whose messages have all been delivered
+ * or given up on are deleted.
+ * <p>
+ * Writes reach the operating system immediately but are left to it to flush, so a JVM crash
+ * loses nothing while a power failure may lose the latest messages. Enable
+ * {@link #setSyncOnAppend(boolean)} to flush every enqueue to the device, at a large cost in
+ * throughput.
+ */
+public class MailSpool implements Closeable {
+
+    /** The default segment size, 16 MB. */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** The segment file name prefix. */
+    private static final String PREFIX = "spool-";
+
+    /** The segment file name suffix. */
+    private static final String SUFFIX = ".seg";
+
+    /** How long an idle worker waits before checking whether the spool was closed. */
+    private static final long POLL_MILLIS = 100;
+
+    /** The spool directory. */
+    private final Path directory;
+
+    /** The segment size. */
+    private final int segmentSize;
+
+    /** The live segments by id. Guarded by this. */
+    private final TreeMap<Long, SpoolSegment> segments = new TreeMap<>();
+
+    /** The records waiting for a worker. */
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+
+    /** The records not yet acked or failed. */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /** The domain of Message-IDs assigned at enqueue. */
+    private final String messageIdDomain;
+
+    /** The segment appended to. Guarded by this. */
+    private SpoolSegment active;
+
+    /** The workers, null until started. */
+    private ExecutorService workers;
+
+    /** The failure handler. */
+    private volatile BiConsumer<EmailMessage, MailException> failureHandler;
+
+    /** Whether every enqueue is flushed to the device. */
+    private volatile boolean syncOnAppend;
+
+    /** Whether the spool is closed. */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates a new mail spool with the default segment size.
+     * @param directory
+     *            the spool directory, created if missing
+     * @throws MailException
+     *             if the directory or its segments can not be opened
+     */
+    public MailSpool(final Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Instantiates a new mail spool, queueing any messages left undelivered in the directory.
+     * @param directory
+     *            the spool directory, created if missing
+     * @param segmentSize
+     *            the size of each segment file; a larger message gets a segment of its own
+     * @throws MailException
+     *             if the directory or its segments can not be opened
+     */
+    public MailSpool(final Path directory, final int segmentSize) {
+        if (segmentSize <= SpoolSegment.HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.messageIdDomain = MailUtility.getHostName();
+        try {
+            Files.createDirectories(directory);
+            recover();
+            synchronized (this) {
+                this.active = newSegment(nextSegmentId(), segmentSize);
+            }
+        } catch (final IOException e) {
+            closeSegments();
+            throw new MailException("Unable to open mail spool " + directory, e);
+        }
+    }
+
+    /**
+     * Writes a message to the spool. It is delivered once the workers are started. A message
+     * without a Message-ID is given one, so a redelivery carries the same ID.
+     * @param emailMessage
+     *            the email message
+     * @throws MailException
+     *             if the spool is closed or the message can not be written
+     */
+    public void enqueue(final EmailMessage emailMessage) {
+        if (Strings.isNullOrBlank(emailMessage.getMessageId())) {
+            emailMessage.setMessageId(IdGenerators.nextMessageId(this.messageIdDomain));
+        }
+        final byte[] payload = EmailMessageCodec.encode(emailMessage);
+
+        final Entry entry;
+        synchronized (this) {
+            if (this.closed) {
+                throw new MailException("Mail spool is closed");
+            }
+            if (!this.active.fits(payload.length)) {
+                roll(payload.length);
+            }
+            entry = new Entry(this.active, this.active.append(payload));
+            if (this.syncOnAppend) {
+                this.active.force();
+            }
+            this.pending.incrementAndGet();
+        }
+        this.queue.add(entry);
+    }
+
+    /**
+     * Starts the workers delivering spooled messages.
+     * @param transporter
+     *            the transporter to deliver through
+     * @param workerCount
+     *            the number of worker threads
+     */
+    public synchronized void start(final MailTransporter transporter, final int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be at least 1");
+        }
+        if (this.closed) {
+            throw new IllegalStateException("Mail spool is closed");
+        }
+        if (this.workers != null) {
+            throw new IllegalStateException("Mail spool already started");
+        }
+        this.workers = Executors.newFixedThreadPool(workerCount, MailExecutors
+                .daemonThreadFactory("mail-spool-"));
+        for (int i = 0; i < workerCount; i++) {
+            this.workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(transporter);
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets the number of messages not yet delivered or given up on.
+     * @return the pending count
+     */
+    public int getPendingCount() {
+        return this.pending.get();
+    }
+
+    /**
+     * Gets the number of segment files in use.
+     * @return the segment count
+     */
+    public synchronized int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * Sets the handler told about messages whose send failed. The spool has given up on them by
+     * the time it is called. The message is null if the record could not be read back.
+     * @param failureHandler
+     *            the failure handler
+     */
+    public void setFailureHandler(final BiConsumer<EmailMessage, MailException> failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Sets whether every enqueue is flushed to the storage device before returning.
+     * @param syncOnAppend
+     *            true to flush on every enqueue
+     */
+    public void setSyncOnAppend(final boolean syncOnAppend) {
+        this.syncOnAppend = syncOnAppend;
+    }
+
+    /**
+     * Stops the workers once their current sends finish and closes the segment files. Messages
+     * not yet delivered stay in the spool for the next run.
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+        final ExecutorService running;
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            running = this.workers;
+        }
+        if (running != null) {
+            running.shutdown();
+            try {
+                running.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (final SpoolSegment segment : this.segments.values()) {
+                segment.force();
+            }
+            closeSegments();
+        }
+    }
+
+    private void drain(final MailTransporter transporter) {
+        while (!this.closed) {
+            final Entry entry;
+            try {
+                entry = this.queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (entry != null) {
+                deliver(transporter, entry);
+            }
+        }
+    }
+
+    private void deliver(final MailTransporter transporter, final Entry entry) {
+        final EmailMessage emailMessage;
+        try {
+            emailMessage = EmailMessageCodec.decode(new ByteArrayInputStream(entry.segment
+                    .read(entry.offset)));
+        } catch (final IOException | RuntimeException e) {
+            fail(null, new MailException("Unable to read spooled message", e));
+            complete(entry, SpoolSegment.FAILED);
+            return;
+        }
+        try {
+            transporter.send(emailMessage);
+        } catch (final MailException e) {
+            fail(emailMessage, e);
+            complete(entry, SpoolSegment.FAILED);
+            return;
+        } catch (final RuntimeException e) {
+            fail(emailMessage, new MailException("Send Failed", e));
+            complete(entry, SpoolSegment.FAILED);
+            return;
+        }
+        complete(entry, SpoolSegment.ACKED);
+    }
+
+    private void fail(final EmailMessage emailMessage, final MailException failure) {
+        final BiConsumer<EmailMessage, MailException> handler = this.failureHandler;
+        if (handler != null) {
+            handler.accept(emailMessage, failure);
+        }
+    }
+
+    private void complete(final Entry entry, final byte state) {
+        final int remaining = entry.segment.complete(entry.offset, state);
+        if (remaining == 0 && entry.segment.isSealed()) {
+            synchronized (this) {
+                compact(entry.segment);
+            }
+        }
+        this.pending.decrementAndGet();
+    }
+
+    /**
+     * Deletes a sealed segment with nothing left to deliver. Called holding the lock.
+     */
+    private void compact(final SpoolSegment segment) {
+        if (this.closed || this.segments.remove(segment.getId()) == null) {
+            return;
+        }
+        try {
+            segment.delete();
+        } catch (final IOException e) {
+            // every record in it is complete, so recovery deletes it on the next run
+        }
+    }
+
+    /**
+     * Seals the active segment and starts a new one big enough for the record. Called holding
+     * the lock.
+     */
+    private void roll(final int payloadLength) {
+        final SpoolSegment sealed = this.active;
+        final int size = Math.max(this.segmentSize, SpoolSegment.HEADER_SIZE + payloadLength);
+        try {
+            this.active = newSegment(sealed.getId() + 1, size);
+        } catch (final IOException e) {
+            throw new MailException("Unable to create spool segment in " + this.directory, e);
+        }
+        sealed.seal();
+        if (sealed.getPending() == 0) {
+            compact(sealed);
+        }
+    }
+
+    private void recover() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, PREFIX + "*"
+                + SUFFIX)) {
+            for (final Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+
+        for (final Path file : files) {
+            final String name = file.getFileName().toString();
+            final long id = Long.parseLong(name.substring(PREFIX.length(), name.length()
+                    - SUFFIX.length()));
+            final SpoolSegment segment = SpoolSegment.open(id, file);
+            final List<Integer> offsets = segment.recover();
+            if (offsets.isEmpty()) {
+                segment.delete();
+                continue;
+            }
+            synchronized (this) {
+                this.segments.put(id, segment);
+            }
+            for (final Integer offset : offsets) {
+                this.pending.incrementAndGet();
+                this.queue.add(new Entry(segment, offset));
+            }
+        }
+    }
+
+    private synchronized long nextSegmentId() {
+        return this.segments.isEmpty() ? 0 : this.segments.lastKey() + 1;
+    }
+
+    /**
+     * Creates a segment file and registers it. Called holding the lock.
+     */
+    private SpoolSegment newSegment(final long id, final int size) throws IOException {
+        final SpoolSegment segment = SpoolSegment.create(id, this.directory.resolve(String
+                .format("%s%020d%s", PREFIX, id, SUFFIX)), size);
+        this.segments.put(id, segment);
+        return segment;
+    }
+
+    private synchronized void closeSegments() {
+        for (final SpoolSegment segment : this.segments.values()) {
+            try {
+                segment.close();
+            } catch (final IOException e) {
+                // nothing more to release
+            }
+        }
+    }
+
+    /**
+     * The location of a spooled record.
+     */
+    private static final class Entry {
+
+        /** The segment. */
+        final SpoolSegment segment;
+
+        /** The offset of the record. */
+        final int offset;
+
+        /**
+         * Instantiates a new entry.
+         * @param segment
+         *            the segment
+         * @param offset
+         *            the offset
+         */
+        Entry(final SpoolSegment segment, final int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.queue;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailException;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.MessagePriority;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.impl.util.MailExecutors;
+
+/**
+ * Scheduler sending queued messages in order of {@link EmailMessage#getImportance()}: HIGH
+ * before NORMAL before LOW, first in first out within a priority.
+ * <p>
+ * Some workers are reserved for HIGH messages and idle rather than take anything else, so a
+ * password reset is picked up at once even while every other worker is busy with a large
+ * newsletter. Pair the scheduler with a transporter that can hold a connection per worker, such
+ * as a {@link org.xine.email.impl.PooledMailTransporter} sized accordingly, so the reserved
+ * workers never wait for a connection either.
+ * <p>
+ * To keep LOW mail from starving, a waiting message rises one priority for every aging interval
+ * it has waited. Among messages of the same effective priority the one waiting longest goes
+ * first.
+ */
+public class PriorityMailScheduler implements MailTransporter, Closeable {
+
+    /** The default aging interval, in milliseconds. */
+    public static final long DEFAULT_AGING_INTERVAL = 60000L;
+
+    /** The delegate. */
+    private final MailTransporter delegate;
+
+    /** The waiting messages by priority. Guarded by lock. */
+    private final Map<MessagePriority, ArrayDeque<Task>> queues = new EnumMap<>(
+            MessagePriority.class);
+
+    /** The lock. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when any message is queued. */
+    private final Condition anyQueued = this.lock.newCondition();
+
+    /** Signalled when a HIGH message is queued. */
+    private final Condition highQueued = this.lock.newCondition();
+
+    /** The time a message takes to rise one priority, in nanoseconds. */
+    private volatile long agingNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_AGING_INTERVAL);
+
+    /** Whether the scheduler is closed. Guarded by lock. */
+    private boolean closed;
+
+    /**
+     * Instantiates a new priority mail scheduler and starts its workers.
+     * @param delegate
+     *            the transporter performing the sends
+     * @param workers
+     *            the number of workers taking messages of any priority
+     * @param reservedHighWorkers
+     *            the number of additional workers taking HIGH messages only
+     */
+    public PriorityMailScheduler(final MailTransporter delegate, final int workers,
+            final int reservedHighWorkers) {
+        if (workers < 1 || reservedHighWorkers < 0) {
+            throw new IllegalArgumentException(
+                    "Need at least one worker and no negative reservation");
+        }
+        this.delegate = delegate;
+        for (final MessagePriority priority : MessagePriority.values()) {
+            this.queues.put(priority, new ArrayDeque<Task>());
+        }
+
+        final ThreadFactory threads = MailExecutors.daemonThreadFactory("simple-email-priority");
+        for (int i = 0; i < workers + reservedHighWorkers; i++) {
+            final boolean highOnly = i >= workers;
+            threads.newThread(() -> work(highOnly)).start();
+        }
+    }
+
+    /**
+     * Sets how long a waiting message takes to rise one priority.
+     * @param agingInterval
+     *            the aging interval, in milliseconds
+     */
+    public void setAgingInterval(final long agingInterval) {
+        if (agingInterval <= 0) {
+            throw new IllegalArgumentException("agingInterval must be positive");
+        }
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingInterval);
+    }
+
+    /**
+     * Queues a message and waits until it has been sent.
+     * @see org.xine.email.api.MailTransporter#send(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public EmailMessage send(final EmailMessage emailMessage) {
+        try {
+            return sendAsync(emailMessage).join();
+        } catch (final CompletionException e) {
+            throw (MailException) e.getCause();
+        }
+    }
+
+    /**
+     * Queues a message by its importance; a message without one counts as NORMAL.
+     * @see org.xine.email.api.MailTransporter#sendAsync(org.xine.email.api.EmailMessage)
+     */
+    @Override
+    public CompletableFuture<EmailMessage> sendAsync(final EmailMessage emailMessage) {
+        final MessagePriority priority = emailMessage.getImportance() != null ? emailMessage
+                .getImportance() : MessagePriority.NORMAL;
+        final Task task = new Task(emailMessage, priority);
+
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                throw new SendFailedException("Scheduler has been closed");
+            }
+            this.queues.get(priority).add(task);
+            this.anyQueued.signal();
+            if (priority == MessagePriority.HIGH) {
+                this.highQueued.signal();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return task.result;
+    }
+
+    /**
+     * Gets the number of messages waiting at a priority.
+     * @param priority
+     *            the priority
+     * @return the queued count
+     */
+    public int getQueuedCount(final MessagePriority priority) {
+        this.lock.lock();
+        try {
+            return this.queues.get(priority).size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the workers once their current sends finish. Messages still queued fail.
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+        final List<Task> abandoned = new ArrayList<>();
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            for (final ArrayDeque<Task> queue : this.queues.values()) {
+                abandoned.addAll(queue);
+                queue.clear();
+            }
+            this.anyQueued.signalAll();
+            this.highQueued.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        for (final Task task : abandoned) {
+            task.result.completeExceptionally(new SendFailedException(
+                    "Scheduler has been closed"));
+        }
+    }
+
+    private void work(final boolean highOnly) {
+        while (true) {
+            final Task task;
+            try {
+                task = take(highOnly);
+            } catch (final InterruptedException e) {
+                return;
+            }
+            if (task == null) {
+                return;
+            }
+            try {
+                task.result.complete(this.delegate.send(task.emailMessage));
+            } catch (final MailException e) {
+                task.result.completeExceptionally(e);
+            } catch (final RuntimeException e) {
+                task.result.completeExceptionally(new SendFailedException("Send Failed", e));
+            }
+        }
+    }
+
+    /**
+     * Waits for the next message a worker may take.
+     * @return the task, or null once closed
+     */
+    private Task take(final boolean highOnly) throws InterruptedException {
+        this.lock.lock();
+        try {
+            while (!this.closed) {
+                final ArrayDeque<Task> queue = highOnly ? nonEmpty(MessagePriority.HIGH)
+                        : next();
+                if (queue != null) {
+                    return queue.poll();
+                }
+                (highOnly ? this.highQueued : this.anyQueued).await();
+            }
+            return null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Picks the queue whose head has the highest effective priority. Called holding the lock.
+     */
+    private ArrayDeque<Task> next() {
+        final long now = System.nanoTime();
+        ArrayDeque<Task> best = null;
+        long bestLevel = -1;
+        for (final ArrayDeque<Task> queue : this.queues.values()) {
+            final Task head = queue.peek();
+            if (head == null) {
+                continue;
+            }
+            final long level = Math.min(MessagePriority.HIGH.ordinal(), head.priority.ordinal()
+                    + (now - head.queuedAt) / this.agingNanos);
+            if (level > bestLevel || level == bestLevel && head.queuedAt < best.peek().queuedAt) {
+                best = queue;
+                bestLevel = level;
+            }
+        }
+        return best;
+    }
+
+    private ArrayDeque<Task> nonEmpty(final MessagePriority priority) {
+        final ArrayDeque<Task> queue = this.queues.get(priority);
+        return queue.isEmpty() ? null : queue;
+    }
+
+    /**
+     * A queued message.
+     */
+    private static final class Task {
+
+        /** The email message. */
+        final EmailMessage emailMessage;
+
+        /** The priority it was queued at. */
+        final MessagePriority priority;
+
+        /** The time it was queued, from {@link System#nanoTime()}. */
+        final long queuedAt = System.nanoTime();
+
+        /** The result. */
+        final CompletableFuture<EmailMessage> result = new CompletableFuture<>();
+
+        /**
+         * Instantiates a new task.
+         * @param emailMessage
+         *            the email message
+         * @param priority
+         *            the priority
+         */
+        Task(final EmailMessage emailMessage, final MessagePriority priority) {
+            this.emailMessage = emailMessage;
+            this.priority = priority;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.queue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * One memory-mapped spool file. Records are appended one after another, each laid out as
+ * {@code [int length][int crc32][byte state][payload]}. The length is written last, so a record
+ * torn by a crash reads as the end of the segment; a zero length marks the end of the data.
+ * Appends are made under the {@link MailSpool} lock; state changes are single byte writes at
+ * distinct offsets and need no lock.
+ */
+class SpoolSegment {
+
+    /** The record header size: length, checksum and state. */
+    static final int HEADER_SIZE = 9;
+
+    /** A record waiting to be delivered. */
+    static final byte PENDING = 1;
+
+    /** A delivered record. */
+    static final byte ACKED = 2;
+
+    /** A record which could not be delivered and was handed to the failure handler. */
+    static final byte FAILED = 3;
+
+    /** The sequence number, which orders the segments. */
+    private final long id;
+
+    /** The file. */
+    private final Path path;
+
+    /** The channel. */
+    private final FileChannel channel;
+
+    /** The mapped file. */
+    private final MappedByteBuffer buffer;
+
+    /** The records not yet acked or failed. */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /** The offset the next record is appended at. */
+    private int writePosition;
+
+    /** Whether appends have moved to a later segment. */
+    private volatile boolean sealed;
+
+    /**
+     * Instantiates a new spool segment.
+     * @param id
+     *            the sequence number
+     * @param path
+     *            the file
+     * @param channel
+     *            the channel
+     * @param buffer
+     *            the mapped file
+     */
+    private SpoolSegment(final long id, final Path path, final FileChannel channel,
+            final MappedByteBuffer buffer) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates a new, empty segment.
+     * @param id
+     *            the sequence number
+     * @param path
+     *            the file, which must not exist
+     * @param size
+     *            the size of the file
+     * @return the segment
+     * @throws IOException
+     *             if the file can not be created or mapped
+     */
+    static SpoolSegment create(final long id, final Path path, final int size) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new SpoolSegment(id, path, channel, channel.map(MapMode.READ_WRITE, 0, size));
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a segment left by an earlier run. It is sealed straight away.
+     * @param id
+     *            the sequence number
+     * @param path
+     *            the file
+     * @return the segment
+     * @throws IOException
+     *             if the file can not be opened or mapped
+     */
+    static SpoolSegment open(final long id, final Path path) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            final SpoolSegment segment = new SpoolSegment(id, path, channel, channel.map(
+                    MapMode.READ_WRITE, 0, channel.size()));
+            segment.sealed = true;
+            return segment;
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Scans the records, stopping at the end of the data or at the first torn record, and
+     * counts the pending ones.
+     * @return the offsets of the pending records
+     */
+    List<Integer> recover() {
+        final List<Integer> offsets = new ArrayList<>();
+        int position = 0;
+        while (position + HEADER_SIZE <= this.buffer.capacity()) {
+            final int length = this.buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > this.buffer.capacity()) {
+                break;
+            }
+            final byte[] payload = read(position, length);
+            if (checksum(payload) != this.buffer.getInt(position + 4)) {
+                break;
+            }
+            if (this.buffer.get(position + 8) == PENDING) {
+                offsets.add(position);
+            }
+            position += HEADER_SIZE + length;
+        }
+        this.writePosition = position;
+        this.pending.set(offsets.size());
+        return offsets;
+    }
+
+    /**
+     * Checks whether a record fits in the space left.
+     * @param length
+     *            the payload length
+     * @return true if it fits
+     */
+    boolean fits(final int length) {
+        return this.writePosition + HEADER_SIZE + length <= this.buffer.capacity();
+    }
+
+    /**
+     * Appends a pending record. The caller checks {@link #fits(int)} first.
+     * @param payload
+     *            the payload
+     * @return the offset of the record
+     */
+    int append(final byte[] payload) {
+        final int offset = this.writePosition;
+        final ByteBuffer target = this.buffer.duplicate();
+        target.position(offset + 4);
+        target.putInt(checksum(payload));
+        target.put(PENDING);
+        target.put(payload);
+        this.buffer.putInt(offset, payload.length);
+        this.writePosition = offset + HEADER_SIZE + payload.length;
+        this.pending.incrementAndGet();
+        return offset;
+    }
+
+    /**
+     * Reads the payload of a record.
+     * @param offset
+     *            the offset of the record
+     * @return the payload
+     */
+    byte[] read(final int offset) {
+        return read(offset, this.buffer.getInt(offset));
+    }
+
+    /**
+     * Records the outcome of a pending record.
+     * @param offset
+     *            the offset of the record
+     * @param state
+     *            {@link #ACKED} or {@link #FAILED}
+     * @return the records still pending in this segment
+     */
+    int complete(final int offset, final byte state) {
+        this.buffer.put(offset + 8, state);
+        return this.pending.decrementAndGet();
+    }
+
+    /**
+     * Flushes the mapped file to the storage device.
+     */
+    void force() {
+        this.buffer.force();
+    }
+
+    /**
+     * Closes the channel. The mapping itself is released when the buffer is collected.
+     * @throws IOException
+     *             if the channel can not be closed
+     */
+    void close() throws IOException {
+        this.channel.close();
+    }
+
+    /**
+     * Closes and deletes the file.
+     * @throws IOException
+     *             if the file can not be deleted
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(this.path);
+    }
+
+    /**
+     * Gets the sequence number.
+     * @return the id
+     */
+    long getId() {
+        return this.id;
+    }
+
+    /**
+     * Gets the records still pending.
+     * @return the pending count
+     */
+    int getPending() {
+        return this.pending.get();
+    }
+
+    /**
+     * Checks whether appends have moved to a later segment.
+     * @return true if sealed
+     */
+    boolean isSealed() {
+        return this.sealed;
+    }
+
+    /**
+     * Seals this segment.
+     */
+    void seal() {
+        this.sealed = true;
+    }
+
+    private byte[] read(final int offset, final int length) {
+        final byte[] payload = new byte[length];
+        final ByteBuffer source = this.buffer.duplicate();
+        source.position(offset + HEADER_SIZE);
+        source.get(payload);
+        return payload;
+    }
+
+    private static int checksum(final byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.smtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes message content for the DATA phase one chunk at a time: line endings are normalized
+ * to CRLF, lines starting with a dot are dot-stuffed and the terminating dot line is appended.
+ * The chunk buffer is reused, so a session holds its rendered content and a single chunk
+ * rather than a second, stuffed copy of the message.
+ * <p>
+ * Not thread safe: each chunk must have been written before the next is encoded.
+ */
+class DataEncoder {
+
+    /** The size of a chunk. */
+    static final int CHUNK_SIZE = 8192;
+
+    /** The end of data line, preceded by CRLF if the content does not end a line. */
+    private static final int TERMINATOR_SIZE = 5;
+
+    /** The message content. */
+    private final byte[] content;
+
+    /** The chunk buffer. */
+    private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+    /** The offset of the next content byte to encode. */
+    private int offset;
+
+    /** Whether the next content byte starts a line. */
+    private boolean lineStart = true;
+
+    /** Whether the terminating dot line has been encoded. */
+    private boolean terminated;
+
+    /**
+     * Instantiates a new data encoder.
+     * @param content
+     *            the message content
+     */
+    DataEncoder(final byte[] content) {
+        this.content = content;
+    }
+
+    /**
+     * Encodes the next chunk, overwriting the previous one.
+     * @return the chunk, ready to be written, or null once the terminating dot line has been
+     *         returned
+     */
+    ByteBuffer next() {
+        if (this.terminated) {
+            return null;
+        }
+        this.chunk.clear();
+        while (this.offset < this.content.length && this.chunk.remaining() >= 2) {
+            final byte b = this.content[this.offset++];
+            if (b == '\r' || b == '\n') {
+                if (b == '\r' && this.offset < this.content.length
+                        && this.content[this.offset] == '\n') {
+                    this.offset++;
+                }
+                this.chunk.put((byte) '\r').put((byte) '\n');
+                this.lineStart = true;
+                continue;
+            }
+            if (this.lineStart && b == '.') {
+                this.chunk.put((byte) '.');
+            }
+            this.chunk.put(b);
+            this.lineStart = false;
+        }
+        if (this.offset == this.content.length && this.chunk.remaining() >= TERMINATOR_SIZE) {
+            if (!this.lineStart) {
+                this.chunk.put((byte) '\r').put((byte) '\n');
+            }
+            this.chunk.put((byte) '.').put((byte) '\r').put((byte) '\n');
+            this.terminated = true;
+        }
+        this.chunk.flip();
+        return this.chunk;
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.smtp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.xine.email.api.MailException;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendTimeoutException.Phase;
+import org.xine.email.impl.transport.SmtpFailures;
+import org.xine.email.impl.transport.SmtpTimeouts;
+import org.xine.email.impl.util.MailExecutors;
+import org.xine.email.impl.util.MailUtility;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * Non-blocking SMTP client built on {@link java.nio.channels.AsynchronousSocketChannel}. Every
+ * delivery is a chain of completion callbacks, so any number of SMTP sessions can be in flight
+ * on the few threads of the client's channel group.
+ * <p>
+ * When the server advertises PIPELINING (RFC 2920) MAIL FROM and every RCPT TO are written in a
+ * single packet and their replies read back together, which saves one round trip per recipient.
+ * DATA is only issued once the envelope replies are known, so a message is never transmitted to
+ * a server that accepted none of its recipients.
+ * <p>
+ * Server, credentials, HELO name, timeouts and {@code mail.smtp.sendpartial} are read from the
+ * {@link Session} properties the same way javax.mail's SMTP transport reads them, along with
+ * the library's own {@link SmtpTimeouts}; each phase of a session is bounded by its budget and
+ * the whole session by the send deadline. STARTTLS and
+ * SSL are not supported; sessions requiring them are rejected. Failures are reported with the
+ * same {@link MessagingException} subclasses the javax.mail transport throws, wrapped in a
+ * {@link SendFailedException}.
+ */
+public class NioSmtpClient implements Closeable {
+
+    /** The timeout of a phase the session sets none for, in milliseconds. */
+    public static final long DEFAULT_TIMEOUT = 300000L;
+
+    /** The channel group whose threads run every session of this client. */
+    private final AsynchronousChannelGroup group;
+
+    /** The server address. */
+    private final InetSocketAddress address;
+
+    /** The name sent with EHLO and HELO. */
+    private final String heloName;
+
+    /** The credentials, or null if the session does not authenticate. */
+    private final PasswordAuthentication credentials;
+
+    /** True if a message is delivered to the accepted recipients when others are rejected. */
+    private final boolean sendPartial;
+
+    /** The time budgets. */
+    private final SmtpTimeouts timeouts;
+
+    /**
+     * Instantiates a new NIO SMTP client.
+     * @param session
+     *            the session whose {@code mail.smtp.*} properties describe the server
+     * @param ioThreads
+     *            the number of threads completing socket I/O
+     * @throws MailException
+     *             if the session requires TLS or SSL, or the channel group can not be created
+     */
+    public NioSmtpClient(final Session session, final int ioThreads) {
+        if (isEnabled(session, "mail.smtp.ssl.enable")
+                || isEnabled(session, "mail.smtp.starttls.enable")
+                || isEnabled(session, "mail.smtp.starttls.required")) {
+            throw new MailException("TLS and SSL are not supported by the NIO SMTP engine");
+        }
+
+        final String host = session.getProperty("mail.smtp.host");
+        final String port = session.getProperty("mail.smtp.port");
+        final String localhost = session.getProperty("mail.smtp.localhost");
+
+        this.address = new InetSocketAddress(host != null ? host : "localhost",
+                port != null ? Integer.parseInt(port) : 25);
+        this.heloName = localhost != null ? localhost : MailUtility.getHostName();
+        this.timeouts = SmtpTimeouts.of(session);
+        this.sendPartial = isEnabled(session, "mail.smtp.sendpartial");
+        this.credentials = isEnabled(session, "mail.smtp.auth")
+                ? session.requestPasswordAuthentication(null, this.address.getPort(), "smtp",
+                        null, session.getProperty("mail.smtp.user"))
+                : null;
+
+        try {
+            this.group = AsynchronousChannelGroup.withFixedThreadPool(ioThreads,
+                    MailExecutors.daemonThreadFactory("simple-email-nio"));
+        } catch (final IOException e) {
+            throw new MailException("Unable to create SMTP channel group", e);
+        }
+    }
+
+    /**
+     * Delivers a message in its own SMTP session. The returned future is completed on one of the
+     * client's I/O threads, so dependent stages should not block.
+     * @param envelopeFrom
+     *            the MAIL FROM address
+     * @param recipients
+     *            the RCPT TO addresses
+     * @param content
+     *            the finalized RFC 822 bytes of the message
+     * @return a future completed once the server has accepted the message, or failed with a
+     *         {@link SendFailedException}
+     */
+    public CompletableFuture<Void> deliver(final String envelopeFrom, final Address[] recipients,
+            final byte[] content) {
+        final SmtpChannel channel;
+        try {
+            channel = new SmtpChannel(this.group, this.timeouts, DEFAULT_TIMEOUT);
+        } catch (final IOException e) {
+            return failed(new SendFailedException("Unable to connect", e));
+        }
+
+        final Delivery delivery = new Delivery(channel, envelopeFrom, recipients, content);
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        delivery.run().whenComplete((v, t) -> {
+            channel.close();
+            if (t == null) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(toMailException(t));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Shuts down the channel group, aborting any session still in flight.
+     */
+    @Override
+    public void close() {
+        try {
+            this.group.shutdownNow();
+        } catch (final IOException e) {
+            // Nothing left to clean up
+        }
+    }
+
+    private static boolean isEnabled(final Session session, final String property) {
+        return Boolean.parseBoolean(session.getProperty(property));
+    }
+
+    private static <T> CompletableFuture<T> failed(final Throwable t) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    private static MailException toMailException(final Throwable t) {
+        final Throwable cause = t instanceof CompletionException && t.getCause() != null ? t
+                .getCause() : t;
+        if (cause instanceof MailException) {
+            return (MailException) cause;
+        }
+        return SmtpFailures.sendFailed("Send Failed", cause);
+    }
+
+    /**
+     * The state of one SMTP session.
+     */
+    private final class Delivery {
+
+        /** The channel. */
+        private final SmtpChannel channel;
+
+        /** The MAIL FROM address. */
+        private final String envelopeFrom;
+
+        /** The RCPT TO addresses. */
+        private final Address[] recipients;
+
+        /** The message content. */
+        private final byte[] content;
+
+        /** The ESMTP extensions advertised in reply to EHLO, keyed by upper case keyword. */
+        private final Map<String, String> extensions = new HashMap<>();
+
+        /** The recipients the server accepted. */
+        private final List<Address> accepted = new ArrayList<>();
+
+        /** The recipients rejected with a transient reply. */
+        private final List<Address> deferred = new ArrayList<>();
+
+        /** The recipients rejected permanently. */
+        private final List<Address> invalid = new ArrayList<>();
+
+        /** The rejections, chained as javax.mail does. */
+        private MessagingException rejections;
+
+        Delivery(final SmtpChannel channel, final String envelopeFrom,
+                final Address[] recipients, final byte[] content) {
+            this.channel = channel;
+            this.envelopeFrom = envelopeFrom;
+            this.recipients = recipients;
+            this.content = content;
+        }
+
+        CompletableFuture<Void> run() {
+            return this.channel.connect(NioSmtpClient.this.address)
+                    .thenCompose(v -> {
+                        this.channel.setPhase(Phase.GREETING);
+                        return this.channel.readReply();
+                    })
+                    .thenCompose(greeting -> {
+                        expect(greeting, 220, "CONNECT");
+                        this.channel.setPhase(Phase.COMMAND);
+                        return hello();
+                    })
+                    .thenCompose(v -> authenticate())
+                    .thenCompose(v -> envelope())
+                    .thenCompose(this::data)
+                    .thenCompose(v -> quit());
+        }
+
+        private CompletableFuture<Void> hello() {
+            return this.channel.command("EHLO " + NioSmtpClient.this.heloName).thenCompose(
+                    ehlo -> {
+                        if (ehlo.getCode() == 250) {
+                            final List<String> lines = ehlo.getLines();
+                            for (int i = 1; i < lines.size(); i++) {
+                                addExtension(lines.get(i));
+                            }
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        return this.channel.command("HELO " + NioSmtpClient.this.heloName)
+                                .thenAccept(helo -> expect(helo, 250, "HELO"));
+                    });
+        }
+
+        private void addExtension(final String line) {
+            if (line.length() <= 4) {
+                return;
+            }
+            final String extension = line.substring(4).trim();
+            int end = 0;
+            while (end < extension.length() && extension.charAt(end) != ' '
+                    && extension.charAt(end) != '=') {
+                end++;
+            }
+            this.extensions.put(extension.substring(0, end).toUpperCase(Locale.ENGLISH),
+                    end < extension.length() ? extension.substring(end + 1).trim() : "");
+        }
+
+        private CompletableFuture<Void> authenticate() {
+            final PasswordAuthentication credentials = NioSmtpClient.this.credentials;
+            final String mechanisms = this.extensions.get("AUTH");
+            if (credentials == null || mechanisms == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            final String user = credentials.getUserName();
+            final String password = credentials.getPassword();
+            if (mechanisms.toUpperCase(Locale.ENGLISH).contains("PLAIN")) {
+                return this.channel.command("AUTH PLAIN " + base64("\0" + user + "\0" + password))
+                        .thenAccept(this::expectAuthenticated);
+            }
+            return this.channel.command("AUTH LOGIN").thenCompose(r -> {
+                expectAuthChallenge(r);
+                return this.channel.command(base64(user));
+            }).thenCompose(r -> {
+                expectAuthChallenge(r);
+                return this.channel.command(base64(password));
+            }).thenAccept(this::expectAuthenticated);
+        }
+
+        private void expectAuthChallenge(final SmtpReply reply) {
+            if (reply.getCode() != 334) {
+                expectAuthenticated(reply);
+            }
+        }
+
+        private void expectAuthenticated(final SmtpReply reply) {
+            if (reply.getCode() != 235) {
+                throw new CompletionException(new AuthenticationFailedException(reply.toString()));
+            }
+        }
+
+        private CompletableFuture<List<SmtpReply>> envelope() {
+            final List<String> commands = new ArrayList<>(this.recipients.length + 1);
+            commands.add("MAIL FROM:<" + (this.envelopeFrom != null ? this.envelopeFrom : "")
+                    + ">");
+            for (final Address recipient : this.recipients) {
+                commands.add("RCPT TO:<" + ((InternetAddress) recipient).getAddress() + ">");
+            }
+
+            if (this.extensions.containsKey("PIPELINING")) {
+                final StringBuilder group = new StringBuilder();
+                for (final String command : commands) {
+                    group.append(command).append("\r\n");
+                }
+                return this.channel.write(
+                        ByteBuffer.wrap(group.toString().getBytes(StandardCharsets.US_ASCII)))
+                        .thenCompose(v -> this.channel.readReplies(commands.size()));
+            }
+
+            CompletableFuture<List<SmtpReply>> replies = CompletableFuture
+                    .completedFuture(new ArrayList<SmtpReply>(commands.size()));
+            for (final String command : commands) {
+                replies = replies.thenCompose(list -> this.channel.command(command).thenApply(
+                        reply -> {
+                            list.add(reply);
+                            return list;
+                        }));
+            }
+            return replies;
+        }
+
+        private CompletableFuture<Void> data(final List<SmtpReply> replies) {
+            final SmtpReply mail = replies.get(0);
+            if (mail.getCode() != 250) {
+                throw new CompletionException(new SMTPSenderFailedException(
+                        address(this.envelopeFrom), "MAIL FROM", mail.getCode(), mail.toString()));
+            }
+
+            for (int i = 0; i < this.recipients.length; i++) {
+                final SmtpReply reply = replies.get(i + 1);
+                final Address recipient = this.recipients[i];
+                if (reply.getCode() == 250 || reply.getCode() == 251) {
+                    this.accepted.add(recipient);
+                    continue;
+                }
+                if (reply.isTransientNegative() || reply.getCode() == 552) {
+                    this.deferred.add(recipient);
+                } else {
+                    this.invalid.add(recipient);
+                }
+                final MessagingException rejection = new SMTPAddressFailedException(
+                        (InternetAddress) recipient, "RCPT TO", reply.getCode(), reply.toString());
+                if (this.rejections == null) {
+                    this.rejections = rejection;
+                } else {
+                    this.rejections.setNextException(rejection);
+                }
+            }
+
+            if (this.accepted.isEmpty() || this.rejections != null
+                    && !NioSmtpClient.this.sendPartial) {
+                this.deferred.addAll(0, this.accepted);
+                final MessagingException failure = new javax.mail.SendFailedException(
+                        "Invalid Addresses", this.rejections, null, toArray(this.deferred),
+                        toArray(this.invalid));
+                return this.channel.command("RSET").handle((r, t) -> {
+                    throw new CompletionException(failure);
+                });
+            }
+
+            return this.channel.command("DATA").thenCompose(reply -> {
+                if (reply.getCode() != 354) {
+                    throw new CompletionException(sendFailed("DATA", reply));
+                }
+                this.channel.setPhase(Phase.DATA);
+                return writeData(new DataEncoder(this.content));
+            }).thenCompose(v -> this.channel.readReply()).thenAccept(reply -> {
+                this.channel.setPhase(Phase.COMMAND);
+                if (reply.getCode() != 250) {
+                    throw new CompletionException(sendFailed("DATA", reply));
+                }
+                if (this.rejections != null) {
+                    throw new CompletionException(new javax.mail.SendFailedException(
+                            "Invalid Addresses", this.rejections, toArray(this.accepted),
+                            toArray(this.deferred), toArray(this.invalid)));
+                }
+            });
+        }
+
+        /**
+         * Writes the encoded content chunk by chunk, encoding each once the previous one has
+         * been written.
+         */
+        private CompletableFuture<Void> writeData(final DataEncoder encoder) {
+            final ByteBuffer chunk = encoder.next();
+            if (chunk == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return this.channel.write(chunk).thenCompose(v -> writeData(encoder));
+        }
+
+        private CompletableFuture<Void> quit() {
+            return this.channel.command("QUIT").handle((r, t) -> null);
+        }
+
+        private void expect(final SmtpReply reply, final int code, final String command) {
+            if (reply.getCode() != code) {
+                throw new CompletionException(new SMTPSendFailedException(command,
+                        reply.getCode(), reply.toString(), null, null, null, null));
+            }
+        }
+
+        private MessagingException sendFailed(final String command, final SmtpReply reply) {
+            return new SMTPSendFailedException(command, reply.getCode(), reply.toString(),
+                    this.rejections, null, toArray(this.accepted), toArray(this.invalid));
+        }
+    }
+
+    private static InternetAddress address(final String address) {
+        final InternetAddress internetAddress = new InternetAddress();
+        internetAddress.setAddress(address);
+        return internetAddress;
+    }
+
+    private static Address[] toArray(final List<Address> addresses) {
+        return addresses.isEmpty() ? null : addresses.toArray(new Address[addresses.size()]);
+    }
+
+    private static String base64(final String value) {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
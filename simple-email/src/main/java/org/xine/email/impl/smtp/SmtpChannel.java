@@ -0,0 +1,393 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.smtp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.xine.email.api.SendTimeoutException.Phase;
+import org.xine.email.impl.transport.PhaseTimeoutException;
+import org.xine.email.impl.transport.SmtpTimeouts;
+import org.xine.email.impl.util.MailExecutors;
+
+/**
+ * One SMTP connection driven by completion handlers. Replies are parsed out of a shared read
+ * buffer, so replies to pipelined commands that arrive in a single segment are consumed without
+ * further reads.
+ * <p>
+ * Every connect, read and write is bounded by the budget of the session's current
+ * {@link Phase}, cut to the time left before the session's deadline, and fails with a
+ * {@link PhaseTimeoutException} when it runs out. A reply line longer than
+ * {@link #MAX_LINE_LENGTH} or a reply larger than {@link #MAX_REPLY_SIZE} fails the session, so
+ * a broken server can not make the read buffer grow without bound.
+ * <p>
+ * Not thread safe: a session issues at most one read and one write at a time, each started from
+ * the completion of the previous step.
+ */
+class SmtpChannel {
+
+    /** The initial read buffer size. */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /** The longest reply line accepted: RFC 5321 allows 512 octets, twice that is tolerated. */
+    static final int MAX_LINE_LENGTH = 1024;
+
+    /** The most bytes a single, possibly multiline, reply may take up in the read buffer. */
+    static final int MAX_REPLY_SIZE = 65536;
+
+    /** The channel. */
+    private final AsynchronousSocketChannel channel;
+
+    /** The time budgets of each phase. */
+    private final SmtpTimeouts timeouts;
+
+    /** The budget of a phase the session properties set none for, in milliseconds. */
+    private final long defaultTimeout;
+
+    /** The time the session's deadline passes, from {@link System#nanoTime()}, if it has one. */
+    private final long expiresAt;
+
+    /** The phase the next operations belong to. */
+    private Phase phase = Phase.CONNECT;
+
+    /** Received bytes not yet parsed, kept in read mode between reads. */
+    private ByteBuffer in;
+
+    /**
+     * Opens a new, unconnected SMTP channel. The session's deadline, if any, starts now.
+     * @param group
+     *            the channel group whose threads complete the I/O
+     * @param timeouts
+     *            the time budgets
+     * @param defaultTimeout
+     *            the budget of phases without one, in milliseconds
+     * @throws IOException
+     *             if the socket can not be opened
+     */
+    SmtpChannel(final AsynchronousChannelGroup group, final SmtpTimeouts timeouts,
+            final long defaultTimeout) throws IOException {
+        this.channel = AsynchronousSocketChannel.open(group);
+        this.timeouts = timeouts;
+        this.defaultTimeout = defaultTimeout;
+        this.expiresAt = timeouts.getSendDeadline() > 0 ? System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeouts.getSendDeadline()) : 0;
+        this.in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.in.flip();
+    }
+
+    /**
+     * Sets the phase the next operations belong to.
+     * @param phase
+     *            the phase
+     */
+    void setPhase(final Phase phase) {
+        this.phase = phase;
+    }
+
+    /**
+     * Connects to the server. The channel API has no connect timeout, so the channel is closed
+     * if the connection is not made within budget.
+     * @param address
+     *            the server address
+     * @return a future completed once connected
+     */
+    CompletableFuture<Void> connect(final InetSocketAddress address) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final Budget budget;
+        try {
+            budget = budget();
+        } catch (final PhaseTimeoutException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        final ScheduledFuture<?> timer = MailExecutors.getTimer().schedule(() -> {
+            if (!result.isDone()) {
+                result.completeExceptionally(budget.timedOut(null));
+                close();
+            }
+        }, budget.timeout, TimeUnit.MILLISECONDS);
+        this.channel.connect(address, null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void v, final Void attachment) {
+                timer.cancel(false);
+                result.complete(null);
+            }
+
+            @Override
+            public void failed(final Throwable exc, final Void attachment) {
+                timer.cancel(false);
+                result.completeExceptionally(exc);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Writes a command line.
+     * @param command
+     *            the command without its line terminator
+     * @return a future completed once the command has been written
+     */
+    CompletableFuture<Void> writeLine(final String command) {
+        return write(ByteBuffer.wrap((command + "\r\n").getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * Writes a buffer completely.
+     * @param buffer
+     *            the bytes to write
+     * @return a future completed once every byte has been written
+     */
+    CompletableFuture<Void> write(final ByteBuffer buffer) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final Budget budget;
+        try {
+            budget = budget();
+        } catch (final PhaseTimeoutException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        this.channel.write(buffer, budget.timeout, TimeUnit.MILLISECONDS, null,
+                new CompletionHandler<Integer, Void>() {
+                    @Override
+                    public void completed(final Integer written, final Void attachment) {
+                        if (!buffer.hasRemaining()) {
+                            result.complete(null);
+                            return;
+                        }
+                        final Budget next;
+                        try {
+                            next = budget();
+                        } catch (final PhaseTimeoutException e) {
+                            result.completeExceptionally(e);
+                            return;
+                        }
+                        SmtpChannel.this.channel.write(buffer, next.timeout,
+                                TimeUnit.MILLISECONDS, null, this);
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        result.completeExceptionally(budget.translate(exc));
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * Writes a command and reads its reply.
+     * @param command
+     *            the command without its line terminator
+     * @return a future for the reply
+     */
+    CompletableFuture<SmtpReply> command(final String command) {
+        return writeLine(command).thenCompose(v -> readReply());
+    }
+
+    /**
+     * Reads the next reply.
+     * @return a future for the reply
+     */
+    CompletableFuture<SmtpReply> readReply() {
+        return readReplies(1).thenApply(replies -> replies.get(0));
+    }
+
+    /**
+     * Reads the replies to a group of pipelined commands.
+     * @param count
+     *            the number of replies expected
+     * @return a future for the replies, in command order
+     */
+    CompletableFuture<List<SmtpReply>> readReplies(final int count) {
+        final CompletableFuture<List<SmtpReply>> result = new CompletableFuture<>();
+        drain(new ArrayList<SmtpReply>(count), count, result);
+        return result;
+    }
+
+    /**
+     * Closes the connection.
+     */
+    void close() {
+        try {
+            this.channel.close();
+        } catch (final IOException e) {
+            // Nothing left to clean up
+        }
+    }
+
+    private void drain(final List<SmtpReply> replies, final int count,
+            final CompletableFuture<List<SmtpReply>> result) {
+        try {
+            while (replies.size() < count) {
+                final SmtpReply reply = parseReply();
+                if (reply == null) {
+                    fill(replies, count, result);
+                    return;
+                }
+                replies.add(reply);
+            }
+            result.complete(replies);
+        } catch (final IOException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void fill(final List<SmtpReply> replies, final int count,
+            final CompletableFuture<List<SmtpReply>> result) {
+        this.in.compact();
+        if (!this.in.hasRemaining()) {
+            if (this.in.capacity() >= MAX_REPLY_SIZE) {
+                this.in.flip();
+                result.completeExceptionally(new IOException("SMTP reply exceeds "
+                        + MAX_REPLY_SIZE + " bytes"));
+                return;
+            }
+            final ByteBuffer larger = ByteBuffer.allocate(this.in.capacity() * 2);
+            this.in.flip();
+            larger.put(this.in);
+            this.in = larger;
+        }
+        final Budget budget;
+        try {
+            budget = budget();
+        } catch (final PhaseTimeoutException e) {
+            this.in.flip();
+            result.completeExceptionally(e);
+            return;
+        }
+        this.channel.read(this.in, budget.timeout, TimeUnit.MILLISECONDS, null,
+                new CompletionHandler<Integer, Void>() {
+                    @Override
+                    public void completed(final Integer read, final Void attachment) {
+                        SmtpChannel.this.in.flip();
+                        if (read < 0) {
+                            result.completeExceptionally(new EOFException(
+                                    "Connection closed by SMTP server"));
+                        } else {
+                            drain(replies, count, result);
+                        }
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc, final Void attachment) {
+                        SmtpChannel.this.in.flip();
+                        result.completeExceptionally(budget.translate(exc));
+                    }
+                });
+    }
+
+    /**
+     * Works out how long the next operation may take: the budget of the current phase, cut to
+     * the time left before the deadline.
+     */
+    private Budget budget() throws PhaseTimeoutException {
+        long timeout = this.timeouts.getTimeout(this.phase);
+        if (timeout <= 0) {
+            timeout = this.defaultTimeout;
+        }
+        if (this.expiresAt == 0) {
+            return new Budget(this.phase, timeout);
+        }
+        final long remaining = TimeUnit.NANOSECONDS.toMillis(this.expiresAt - System.nanoTime());
+        if (remaining <= 0) {
+            throw new PhaseTimeoutException(Phase.DEADLINE, this.timeouts.getSendDeadline());
+        }
+        return remaining < timeout ? new Budget(Phase.DEADLINE, remaining) : new Budget(
+                this.phase, timeout);
+    }
+
+    /**
+     * The time granted to one operation and the phase to blame when it runs out.
+     */
+    private static final class Budget {
+
+        /** The phase, or DEADLINE if the deadline is the tighter limit. */
+        final Phase phase;
+
+        /** The timeout, in milliseconds. */
+        final long timeout;
+
+        Budget(final Phase phase, final long timeout) {
+            this.phase = phase;
+            this.timeout = timeout;
+        }
+
+        PhaseTimeoutException timedOut(final Throwable cause) {
+            final PhaseTimeoutException e = new PhaseTimeoutException(this.phase, this.timeout);
+            if (cause != null) {
+                e.initCause(cause);
+            }
+            return e;
+        }
+
+        Throwable translate(final Throwable exc) {
+            return exc instanceof InterruptedByTimeoutException ? timedOut(exc) : exc;
+        }
+    }
+
+    /**
+     * Parses one complete reply from the buffered bytes.
+     * @return the reply, or null if more bytes are needed
+     * @throws IOException
+     *             if the reply is malformed or a line is too long
+     */
+    private SmtpReply parseReply() throws IOException {
+        final List<String> lines = new ArrayList<>(1);
+        int lineStart = this.in.position();
+        for (int i = lineStart; i < this.in.limit(); i++) {
+            if (this.in.get(i) != '\n') {
+                if (i - lineStart >= MAX_LINE_LENGTH) {
+                    throw new IOException("SMTP reply line exceeds " + MAX_LINE_LENGTH
+                            + " bytes");
+                }
+                continue;
+            }
+            final int lineEnd = i > lineStart && this.in.get(i - 1) == '\r' ? i - 1 : i;
+            final byte[] bytes = new byte[lineEnd - lineStart];
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = this.in.get(lineStart + j);
+            }
+            final String line = new String(bytes, StandardCharsets.ISO_8859_1);
+            lines.add(line);
+            lineStart = i + 1;
+            if (line.length() < 4 || line.charAt(3) != '-') {
+                this.in.position(lineStart);
+                return new SmtpReply(parseCode(line), lines);
+            }
+        }
+        return null;
+    }
+
+    private static int parseCode(final String line) throws IOException {
+        if (line.length() < 3) {
+            throw new IOException("Malformed SMTP reply: " + line);
+        }
+        try {
+            return Integer.parseInt(line.substring(0, 3));
+        } catch (final NumberFormatException e) {
+            throw new IOException("Malformed SMTP reply: " + line);
+        }
+    }
+}
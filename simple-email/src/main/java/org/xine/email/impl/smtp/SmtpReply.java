@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.smtp;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A complete, possibly multi-line, SMTP server reply.
+ */
+public final class SmtpReply {
+
+    /** The reply code. */
+    private final int code;
+
+    /** The reply lines, each including its code prefix. */
+    private final List<String> lines;
+
+    /**
+     * Instantiates a new SMTP reply.
+     * @param code
+     *            the reply code
+     * @param lines
+     *            the reply lines
+     */
+    SmtpReply(final int code, final List<String> lines) {
+        this.code = code;
+        this.lines = Collections.unmodifiableList(lines);
+    }
+
+    /**
+     * Gets the reply code.
+     * @return the reply code
+     */
+    public int getCode() {
+        return this.code;
+    }
+
+    /**
+     * Gets the reply lines.
+     * @return the reply lines, each including its code prefix
+     */
+    public List<String> getLines() {
+        return this.lines;
+    }
+
+    /**
+     * Checks whether the reply is a 2xx completion.
+     * @return true if the command succeeded
+     */
+    public boolean isPositive() {
+        return this.code >= 200 && this.code < 300;
+    }
+
+    /**
+     * Checks whether the reply is a 4xx transient failure.
+     * @return true if the command may succeed when retried later
+     */
+    public boolean isTransientNegative() {
+        return this.code >= 400 && this.code < 500;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (final String line : this.lines) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+}
@@ -28,13 +28,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
-import java.util.HashMap;
 import java.util.Map;
 
 public class FreeMarkerTemplate implements TemplateProvider {
     private final Configuration configuration;
-    private final Map<String, Object> rootMap = new HashMap<>();
     private final InputStream inputStream;
+    private Template template;
 
     public FreeMarkerTemplate(final InputStream inputStream) {
         this.inputStream = inputStream;
@@ -52,14 +51,10 @@ public class FreeMarkerTemplate implements TemplateProvider {
 
     @Override
     public String merge(final Map<String, Object> context) {
-        this.rootMap.putAll(context);
-
         final StringWriter writer = new StringWriter();
 
         try {
-            final Template template = new Template("mailGenerated", new InputStreamReader(
-                    this.inputStream), this.configuration);
-            template.process(this.rootMap, writer);
+            getTemplate().process(context, writer);
         } catch (final IOException e) {
             throw new TemplatingException("Error creating template", e);
         } catch (final TemplateException e) {
@@ -68,4 +63,15 @@ public class FreeMarkerTemplate implements TemplateProvider {
 
         return writer.toString();
     }
+
+    /**
+     * Parses the template on first use, so that later merges, from any thread, only render it.
+     */
+    private synchronized Template getTemplate() throws IOException {
+        if (this.template == null) {
+            this.template = new Template("mailGenerated", new InputStreamReader(this.inputStream),
+                    this.configuration);
+        }
+        return this.template;
+    }
 }
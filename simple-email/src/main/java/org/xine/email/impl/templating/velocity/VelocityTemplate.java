@@ -13,11 +13,16 @@
 package org.xine.email.impl.templating.velocity;
 
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.context.InternalContextAdapterImpl;
 import org.apache.velocity.exception.MethodInvocationException;
 import org.apache.velocity.exception.ParseErrorException;
 import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.TemplateInitException;
 import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.directive.StopCommand;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
 import org.xine.email.api.TemplateProvider;
 import org.xine.email.api.TemplatingException;
 
@@ -25,33 +30,40 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.util.Map;
 
 /**
- * The Class VelocityTemplate.
+ * The Class VelocityTemplate. The template is parsed and initialized once, on the first merge,
+ * and the tree rendered by every merge after it, from any thread. Rendering goes straight to the
+ * tree rather than through {@link RuntimeInstance#render}, which initializes the tree again on
+ * every call and so can not share it between threads.
  */
 public class VelocityTemplate implements TemplateProvider {
 
-    /** The velocity engine. */
-    private final VelocityEngine velocityEngine;
-
-    /** The velocity context. */
-    private VelocityContext velocityContext;
+    /** The velocity runtime. */
+    private final RuntimeInstance runtime;
 
     /** The input stream. */
     private final InputStream inputStream;
 
+    /** The template name, as reported by Velocity. */
+    private static final String TEMPLATE_NAME = "mailGenerated";
+
+    /** The parsed and initialized template. */
+    private SimpleNode template;
+
     /**
      * Instantiates a new velocity template.
      * @param inputStream
      *            the input stream
      */
     public VelocityTemplate(final InputStream inputStream) {
-        this.velocityEngine = new VelocityEngine();
-        this.velocityEngine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
+        this.runtime = new RuntimeInstance();
+        this.runtime.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
                 "org.apache.velocity.runtime.log.NullLogChute");
         this.inputStream = inputStream;
     }
@@ -83,20 +95,54 @@ public class VelocityTemplate implements TemplateProvider {
     @Override
     public String merge(final Map<String, Object> context) {
         final StringWriter writer = new StringWriter();
-
-        this.velocityContext = new VelocityContext(context);
-
+        final SimpleNode tree = getTemplate();
+        final InternalContextAdapterImpl ica = new InternalContextAdapterImpl(
+                new VelocityContext(context));
+        ica.pushCurrentTemplateName(TEMPLATE_NAME);
         try {
-            this.velocityEngine.evaluate(this.velocityContext, writer, "mailGenerated",
-                    new InputStreamReader(this.inputStream));
+            tree.render(ica, writer);
+        } catch (final StopCommand e) {
+            // #stop ends the output where it stands
+        } catch (final IOException e) {
+            throw new TemplatingException("Unable to write template output", e);
         } catch (final ResourceNotFoundException e) {
             throw new TemplatingException("Unable to find template", e);
         } catch (final ParseErrorException e) {
             throw new TemplatingException("Unable to find template", e);
         } catch (final MethodInvocationException e) {
             throw new TemplatingException("Error processing method referenced in context", e);
+        } finally {
+            ica.popCurrentTemplateName();
         }
 
         return writer.toString();
     }
+
+    /**
+     * Gets the template, parsing and initializing it on first use. The tree is only published
+     * once initialized, and is not changed by rendering afterwards.
+     * @return the parsed template
+     */
+    private synchronized SimpleNode getTemplate() {
+        if (this.template == null) {
+            try {
+                final SimpleNode tree = this.runtime.parse(new InputStreamReader(
+                        this.inputStream), TEMPLATE_NAME);
+                final InternalContextAdapterImpl ica = new InternalContextAdapterImpl(
+                        new VelocityContext());
+                ica.pushCurrentTemplateName(TEMPLATE_NAME);
+                try {
+                    tree.init(ica, this.runtime);
+                } finally {
+                    ica.popCurrentTemplateName();
+                }
+                this.template = tree;
+            } catch (final ParseException e) {
+                throw new TemplatingException("Unable to parse template", e);
+            } catch (final TemplateInitException e) {
+                throw new TemplatingException("Unable to initialize template", e);
+            }
+        }
+        return this.template;
+    }
 }
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+/**
+ * Circuit breaker guarding one relay. After a number of consecutive failures the circuit opens
+ * and requests are refused for the open duration. Then a single trial request is let through
+ * (half open): its success closes the circuit, its failure opens it again.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The circuit state.
+     */
+    public enum State {
+        /** Requests flow normally. */
+        CLOSED,
+        /** Requests are refused. */
+        OPEN,
+        /** One trial request is in flight. */
+        HALF_OPEN
+    }
+
+    /** The consecutive failures that open the circuit. */
+    private final int failureThreshold;
+
+    /** How long the circuit stays open, in milliseconds. */
+    private final long openDuration;
+
+    /** The state. */
+    private State state = State.CLOSED;
+
+    /** The consecutive failures while closed. */
+    private int failures;
+
+    /** The time the circuit last opened. */
+    private long openedAt;
+
+    /**
+     * Instantiates a new circuit breaker.
+     * @param failureThreshold
+     *            the consecutive failures that open the circuit
+     * @param openDuration
+     *            how long the circuit stays open before a trial, in milliseconds
+     */
+    public CircuitBreaker(final int failureThreshold, final long openDuration) {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Checks whether a request may go ahead. Moves an open circuit whose open duration has
+     * passed to half open and admits the caller as its trial.
+     * @return true if the request may go ahead
+     */
+    public synchronized boolean allowRequest() {
+        switch (this.state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.currentTimeMillis() - this.openedAt >= this.openDuration) {
+                this.state = State.HALF_OPEN;
+                return true;
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Records a request that reached the relay and got an answer.
+     */
+    public synchronized void recordSuccess() {
+        this.state = State.CLOSED;
+        this.failures = 0;
+    }
+
+    /**
+     * Records a request whose outcome says nothing about the relay, such as a message that could
+     * not be built. A trial request ending this way lets the next request be the trial.
+     */
+    public synchronized void recordIgnored() {
+        if (this.state == State.HALF_OPEN) {
+            this.state = State.OPEN;
+        }
+    }
+
+    /**
+     * Records a request that failed because of the relay.
+     */
+    public synchronized void recordFailure() {
+        if (this.state == State.HALF_OPEN || ++this.failures >= this.failureThreshold) {
+            this.state = State.OPEN;
+            this.openedAt = System.currentTimeMillis();
+            this.failures = 0;
+        }
+    }
+
+    /**
+     * Gets the state.
+     * @return the state
+     */
+    public synchronized State getState() {
+        return this.state;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+import javax.mail.MessagingException;
+
+/**
+ * Marks a send that failed after the server accepted DATA, so the message may have been queued
+ * for delivery all the same. It is chained by {@link SmtpFailures#sendFailed} between the
+ * {@link org.xine.email.api.SendFailedException} and the original failure, which stays
+ * reachable through {@link #getCause()}.
+ */
+public class DataCommittedException extends MessagingException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Instantiates a new data committed exception.
+     * @param cause
+     *            the failure of the send
+     */
+    public DataCommittedException(final Exception cause) {
+        super("Send failed after DATA was accepted", cause);
+    }
+}
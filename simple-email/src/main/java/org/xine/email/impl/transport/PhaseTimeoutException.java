@@ -0,0 +1,49 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+import java.net.SocketTimeoutException;
+
+import org.xine.email.api.SendTimeoutException.Phase;
+
+/**
+ * Socket level timeout which knows the SMTP phase it interrupted. It passes through javax.mail
+ * as the cause of a {@link javax.mail.MessagingException} and is turned into a
+ * {@link org.xine.email.api.SendTimeoutException} by {@link SmtpFailures#sendFailed}.
+ */
+public class PhaseTimeoutException extends SocketTimeoutException {
+    private static final long serialVersionUID = 1L;
+
+    /** The phase. */
+    private final Phase phase;
+
+    /**
+     * Instantiates a new phase timeout exception.
+     * @param phase
+     *            the phase that timed out
+     * @param timeout
+     *            the budget that ran out, in milliseconds
+     */
+    public PhaseTimeoutException(final Phase phase, final long timeout) {
+        super(phase + " timed out after " + timeout + " ms");
+        this.phase = phase;
+    }
+
+    /**
+     * Gets the phase that timed out.
+     * @return the phase
+     */
+    public Phase getPhase() {
+        return this.phase;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * A connected {@link Transport} owned by a {@link SmtpConnectionPool}.
+ */
+public class PooledConnection {
+
+    /** Reply code of a server that is closing the transmission channel. */
+    public static final int SERVICE_NOT_AVAILABLE = 421;
+
+    /** The transport. */
+    private final Transport transport;
+
+    /** The time the connection was opened. */
+    private final long createdAt;
+
+    /** The time the connection was last used. */
+    private long lastUsed;
+
+    /** The number of messages sent over this connection. */
+    private int messageCount;
+
+    /**
+     * Instantiates a new pooled connection around an already connected transport.
+     * @param transport
+     *            the connected transport
+     */
+    public PooledConnection(final Transport transport) {
+        this.transport = transport;
+        this.createdAt = System.currentTimeMillis();
+        this.lastUsed = this.createdAt;
+    }
+
+    /**
+     * Sends a message over this connection.
+     * @param message
+     *            the message, which must already have been saved
+     * @param recipients
+     *            the envelope recipients
+     * @throws MessagingException
+     *             if the server rejects the message or the connection fails
+     */
+    public void send(final Message message, final Address[] recipients)
+            throws MessagingException {
+        this.messageCount++;
+        this.lastUsed = System.currentTimeMillis();
+        this.transport.sendMessage(message, recipients);
+    }
+
+    /**
+     * Probes the connection with a NOOP command.
+     * @return true if the server answered the NOOP
+     */
+    public boolean probe() {
+        if (this.transport instanceof SMTPTransport) {
+            try {
+                return ((SMTPTransport) this.transport).simpleCommand("NOOP") == 250;
+            } catch (final MessagingException e) {
+                return false;
+            }
+        }
+        return this.transport.isConnected();
+    }
+
+    /**
+     * Checks whether the last failure left this connection unusable, either because the server
+     * answered 421 or because the socket was reset.
+     * @return true if the connection must be discarded
+     */
+    public boolean isBroken() {
+        if (this.transport instanceof SMTPTransport
+                && ((SMTPTransport) this.transport).getLastReturnCode() == SERVICE_NOT_AVAILABLE) {
+            return true;
+        }
+        return !this.transport.isConnected();
+    }
+
+    /**
+     * Closes the underlying transport, ignoring any failure.
+     */
+    public void close() {
+        try {
+            this.transport.close();
+        } catch (final MessagingException e) {
+            // The connection is being discarded anyway
+        }
+    }
+
+    /**
+     * Gets the transport.
+     * @return the transport
+     */
+    public Transport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Gets the time the connection was opened.
+     * @return the creation time in milliseconds
+     */
+    public long getCreatedAt() {
+        return this.createdAt;
+    }
+
+    /**
+     * Gets the time the connection was last used.
+     * @return the last use time in milliseconds
+     */
+    public long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    /**
+     * Gets the number of messages sent over this connection.
+     * @return the message count
+     */
+    public int getMessageCount() {
+        return this.messageCount;
+    }
+}
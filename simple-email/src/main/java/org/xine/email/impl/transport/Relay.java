@@ -0,0 +1,214 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.xine.email.api.MailTransporter;
+
+/**
+ * One SMTP relay behind a load balancing transporter, together with the statistics used to pick
+ * it and to decide whether it is healthy.
+ */
+public class Relay {
+
+    /** Weight of the newest sample in the latency moving average. */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    /** The name. */
+    private final String name;
+
+    /** The transporter sending through this relay. */
+    private final MailTransporter transporter;
+
+    /** The session used for active probes, or null if the relay is not probed. */
+    private final Session session;
+
+    /** The number of sends in progress. */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /** The number of relay failures since the last success. */
+    private int consecutiveFailures;
+
+    /** The moving average of successful send times, in milliseconds. */
+    private double averageLatency;
+
+    /** True unless the relay has been taken out of rotation. */
+    private boolean healthy = true;
+
+    /** The time of the last relay failure once the relay is out of rotation. */
+    private long downSince;
+
+    /**
+     * Instantiates a new relay.
+     * @param name
+     *            the name used in logs and errors, typically host:port
+     * @param transporter
+     *            the transporter sending through this relay
+     * @param session
+     *            the session used for active probes, or null to rely on passive checks only
+     */
+    public Relay(final String name, final MailTransporter transporter, final Session session) {
+        this.name = name;
+        this.transporter = transporter;
+        this.session = session;
+    }
+
+    /**
+     * Gets the name.
+     * @return the name
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Gets the transporter.
+     * @return the transporter
+     */
+    public MailTransporter getTransporter() {
+        return this.transporter;
+    }
+
+    /**
+     * Gets the number of sends in progress.
+     * @return the outstanding sends
+     */
+    public int getOutstanding() {
+        return this.outstanding.get();
+    }
+
+    /**
+     * Gets the moving average of successful send times.
+     * @return the average latency in milliseconds, 0 until a send has succeeded
+     */
+    public synchronized double getAverageLatency() {
+        return this.averageLatency;
+    }
+
+    /**
+     * Gets the number of relay failures since the last success.
+     * @return the consecutive failures
+     */
+    public synchronized int getConsecutiveFailures() {
+        return this.consecutiveFailures;
+    }
+
+    /**
+     * Checks whether the relay is in rotation.
+     * @return true if healthy
+     */
+    public synchronized boolean isHealthy() {
+        return this.healthy;
+    }
+
+    /**
+     * Checks whether the relay may take a send. An unhealthy relay becomes available again for a
+     * trial send once the retry interval has passed, so it can recover even without active
+     * probes; a failed trial restarts the interval.
+     * @param retryInterval
+     *            the time, in milliseconds, before an unhealthy relay gets a trial send
+     * @return true if the relay may be used
+     */
+    public synchronized boolean isAvailable(final long retryInterval) {
+        return this.healthy || System.currentTimeMillis() - this.downSince >= retryInterval;
+    }
+
+    /**
+     * Records the start of a send.
+     */
+    public void sendStarted() {
+        this.outstanding.incrementAndGet();
+    }
+
+    /**
+     * Records a successful send.
+     * @param elapsedMillis
+     *            how long the send took
+     */
+    public synchronized void sendSucceeded(final long elapsedMillis) {
+        this.outstanding.decrementAndGet();
+        this.averageLatency = this.averageLatency == 0 ? elapsedMillis : this.averageLatency
+                + LATENCY_SMOOTHING * (elapsedMillis - this.averageLatency);
+        markUp();
+    }
+
+    /**
+     * Records a send which failed because of the message, not the relay.
+     */
+    public void sendRejected() {
+        this.outstanding.decrementAndGet();
+    }
+
+    /**
+     * Records a send which failed because of the relay.
+     * @param failureThreshold
+     *            the consecutive failures after which the relay is taken out of rotation
+     */
+    public synchronized void sendFailed(final int failureThreshold) {
+        this.outstanding.decrementAndGet();
+        relayFailed(failureThreshold);
+    }
+
+    /**
+     * Opens and closes a connection to check that the relay answers.
+     * @param failureThreshold
+     *            the consecutive failures after which the relay is taken out of rotation
+     * @return true if the relay answered, or is not probed
+     */
+    public boolean probe(final int failureThreshold) {
+        if (this.session == null) {
+            return isHealthy();
+        }
+        try {
+            final Transport transport = this.session.getTransport("smtp");
+            transport.connect();
+            transport.close();
+        } catch (final MessagingException e) {
+            synchronized (this) {
+                relayFailed(failureThreshold);
+            }
+            return false;
+        }
+        synchronized (this) {
+            markUp();
+        }
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return this.name;
+    }
+
+    private void relayFailed(final int failureThreshold) {
+        this.consecutiveFailures++;
+        if (!this.healthy || this.consecutiveFailures >= failureThreshold) {
+            this.healthy = false;
+            this.downSince = System.currentTimeMillis();
+        }
+    }
+
+    private void markUp() {
+        this.consecutiveFailures = 0;
+        this.healthy = true;
+    }
+}
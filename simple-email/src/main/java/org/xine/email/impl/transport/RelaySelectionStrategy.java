@@ -0,0 +1,28 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+/**
+ * How a load balancing transporter picks the relay for a send.
+ */
+public enum RelaySelectionStrategy {
+
+    /** Each send goes to the next relay in turn. */
+    ROUND_ROBIN,
+
+    /** Each send goes to the relay with the fewest sends in progress. */
+    LEAST_OUTSTANDING,
+
+    /** Relays are picked at random, weighted by the inverse of their average send time. */
+    LATENCY_WEIGHTED
+}
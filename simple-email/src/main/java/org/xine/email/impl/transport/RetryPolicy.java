@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often and how far apart failed sends are retried. The delay grows exponentially from
+ * the initial delay up to the maximum delay and is randomly shortened by up to the jitter
+ * fraction, so senders that failed together do not retry together.
+ */
+public class RetryPolicy {
+
+    /** The total number of attempts, including the first. */
+    private int maxAttempts = 3;
+
+    /** The delay before the first retry, in milliseconds. */
+    private long initialDelay = 1000L;
+
+    /** The factor applied to the delay after each retry. */
+    private double multiplier = 2.0;
+
+    /** The longest delay, in milliseconds. */
+    private long maxDelay = 60000L;
+
+    /** The fraction of each delay that is randomized, between 0 and 1. */
+    private double jitter = 0.5;
+
+    /**
+     * Gets the delay before a retry.
+     * @param retry
+     *            the retry number, starting at 1
+     * @return the delay in milliseconds
+     */
+    public long getDelay(final int retry) {
+        final double base = Math.min(this.maxDelay,
+                this.initialDelay * Math.pow(this.multiplier, retry - 1));
+        return (long) (base * (1 - this.jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    /**
+     * Gets the total number of attempts, including the first, 3 by default.
+     * @return the maximum number of attempts
+     */
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * Sets the total number of attempts, including the first.
+     * @param maxAttempts
+     *            the maximum number of attempts
+     */
+    public void setMaxAttempts(final int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Gets the delay before the first retry in milliseconds, 1000 by default.
+     * @return the initial delay in milliseconds
+     */
+    public long getInitialDelay() {
+        return this.initialDelay;
+    }
+
+    /**
+     * Sets the delay before the first retry in milliseconds.
+     * @param initialDelay
+     *            the initial delay in milliseconds
+     */
+    public void setInitialDelay(final long initialDelay) {
+        this.initialDelay = initialDelay;
+    }
+
+    /**
+     * Gets the factor applied to the delay after each retry, 2.0 by default.
+     * @return the delay multiplier
+     */
+    public double getMultiplier() {
+        return this.multiplier;
+    }
+
+    /**
+     * Sets the factor applied to the delay after each retry.
+     * @param multiplier
+     *            the delay multiplier
+     */
+    public void setMultiplier(final double multiplier) {
+        this.multiplier = multiplier;
+    }
+
+    /**
+     * Gets the longest delay between attempts in milliseconds, 60000 by default.
+     * @return the maximum delay in milliseconds
+     */
+    public long getMaxDelay() {
+        return this.maxDelay;
+    }
+
+    /**
+     * Sets the longest delay between attempts in milliseconds.
+     * @param maxDelay
+     *            the maximum delay in milliseconds
+     */
+    public void setMaxDelay(final long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Gets the fraction of each delay that is randomized, between 0 and 1, 0.5 by default.
+     * @return the jitter fraction
+     */
+    public double getJitter() {
+        return this.jitter;
+    }
+
+    /**
+     * Sets the fraction of each delay that is randomized, between 0 and 1.
+     * @param jitter
+     *            the jitter fraction
+     */
+    public void setJitter(final double jitter) {
+        this.jitter = jitter;
+    }
+}
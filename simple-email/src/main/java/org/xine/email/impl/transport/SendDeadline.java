@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+
+/**
+ * The overall deadline of the send running on the current thread. Blocking send paths start one
+ * around each message; the sockets of {@link TimeoutSocketFactory} then shorten every connect,
+ * read and write to the time left, so a send fails once its deadline has passed no matter how
+ * many individually timely steps it took.
+ * <p>
+ * Deadlines nest: one started inside another never ends later than the outer one.
+ */
+public final class SendDeadline implements AutoCloseable {
+
+    /** Returned when the remaining time is unlimited. */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    /** The deadline of the send on each thread. */
+    private static final ThreadLocal<SendDeadline> CURRENT = new ThreadLocal<>();
+
+    /** Handed out when the session sets no deadline. */
+    private static final SendDeadline NONE = new SendDeadline(0, null);
+
+    /** The time the deadline passes, from {@link System#nanoTime()}. */
+    private final long expiresAt;
+
+    /** The deadline this one replaced on its thread. */
+    private final SendDeadline previous;
+
+    private SendDeadline(final long expiresAt, final SendDeadline previous) {
+        this.expiresAt = expiresAt;
+        this.previous = previous;
+    }
+
+    /**
+     * Starts the deadline of a send on the current thread.
+     * @param session
+     *            the session whose {@link SmtpTimeouts#SEND_DEADLINE_PROPERTY} gives the deadline
+     * @return the deadline, to be closed when the send is over
+     */
+    public static SendDeadline start(final Session session) {
+        return start(SmtpTimeouts.of(session).getSendDeadline());
+    }
+
+    /**
+     * Starts the deadline of a send on the current thread.
+     * @param deadline
+     *            the time the send may take, in milliseconds, 0 for no limit
+     * @return the deadline, to be closed when the send is over
+     */
+    public static SendDeadline start(final long deadline) {
+        if (deadline <= 0) {
+            return NONE;
+        }
+        final SendDeadline previous = CURRENT.get();
+        long expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline);
+        if (previous != null && previous.expiresAt - expiresAt < 0) {
+            expiresAt = previous.expiresAt;
+        }
+        final SendDeadline current = new SendDeadline(expiresAt, previous);
+        CURRENT.set(current);
+        return current;
+    }
+
+    /**
+     * Gets the time left to the send on the current thread.
+     * @return the remaining milliseconds, at most 0 once passed, or {@link #UNLIMITED}
+     */
+    public static long remaining() {
+        final SendDeadline current = CURRENT.get();
+        if (current == null) {
+            return UNLIMITED;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(current.expiresAt - System.nanoTime());
+    }
+
+    /**
+     * Ends the deadline, restoring the one it replaced.
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close() {
+        if (this == NONE) {
+            return;
+        }
+        if (this.previous != null) {
+            CURRENT.set(this.previous);
+        } else {
+            CURRENT.remove();
+        }
+    }
+}
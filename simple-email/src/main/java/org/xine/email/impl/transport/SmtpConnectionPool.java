@@ -0,0 +1,264 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.xine.email.api.MailException;
+import org.xine.email.api.SendFailedException;
+
+/**
+ * Bounded pool of connected SMTP transports for a single {@link Session}.
+ * <p>
+ * At most {@code maxConnections} connections are handed out at any time. Idle connections are
+ * kept most-recently-used first, evicted once they have been idle for longer than
+ * {@code maxIdleTime} and probed with NOOP before reuse when they have been idle for a while.
+ * A connection is closed instead of returned once it has sent {@code maxMessagesPerConnection}
+ * messages.
+ */
+public class SmtpConnectionPool implements Closeable {
+
+    /** Idle connections older than this are probed with NOOP before being reused. */
+    private static final long VALIDATE_AFTER_IDLE = 5000L;
+
+    /** The session. */
+    private final Session session;
+
+    /** The maximum number of connections. */
+    private final int maxConnections;
+
+    /** The maximum idle time. */
+    private final long maxIdleTime;
+
+    /** The maximum number of messages per connection. */
+    private final int maxMessagesPerConnection;
+
+    /** The borrow timeout. */
+    private final long borrowTimeout;
+
+    /** One permit per connection that may be handed out. */
+    private final Semaphore permits;
+
+    /** The idle connections, most recently used first. Guarded by itself. */
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+
+    /** The number of connections opened over the lifetime of the pool. */
+    private final AtomicLong connectionsCreated = new AtomicLong();
+
+    /** The closed flag. */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates a new SMTP connection pool.
+     * @param session
+     *            the session used to open connections
+     * @param maxConnections
+     *            the maximum number of connections
+     * @param maxIdleTime
+     *            the maximum idle time in milliseconds
+     * @param maxMessagesPerConnection
+     *            the maximum number of messages sent over one connection
+     * @param borrowTimeout
+     *            how long to wait for a free connection in milliseconds
+     */
+    public SmtpConnectionPool(final Session session, final int maxConnections,
+            final long maxIdleTime, final int maxMessagesPerConnection, final long borrowTimeout) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.session = session;
+        this.maxConnections = maxConnections;
+        this.maxIdleTime = maxIdleTime;
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+        this.borrowTimeout = borrowTimeout;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Borrows a connection, reusing an idle one when possible. Every borrowed connection must be
+     * handed back through {@link #release(PooledConnection)} or
+     * {@link #invalidate(PooledConnection)}.
+     * @return a connected transport
+     * @throws SendFailedException
+     *             if no connection becomes available within the borrow timeout
+     * @throws MessagingException
+     *             if a new connection can not be opened
+     */
+    public PooledConnection borrow() throws MessagingException {
+        if (this.closed) {
+            throw new MailException("Connection pool has been closed");
+        }
+
+        try {
+            if (!this.permits.tryAcquire(this.borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SendFailedException("Timed out waiting for a pooled SMTP connection");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SendFailedException("Interrupted waiting for a pooled SMTP connection", e);
+        }
+
+        try {
+            PooledConnection connection;
+            while ((connection = pollIdle()) != null) {
+                final long idleFor = System.currentTimeMillis() - connection.getLastUsed();
+                if (idleFor > this.maxIdleTime
+                        || (idleFor > VALIDATE_AFTER_IDLE && !connection.probe())) {
+                    connection.close();
+                    continue;
+                }
+                return connection;
+            }
+            return connect();
+        } catch (final MessagingException | RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a healthy connection to the pool.
+     * @param connection
+     *            the connection
+     */
+    public void release(final PooledConnection connection) {
+        try {
+            if (this.closed || isRetired(connection)) {
+                connection.close();
+            } else {
+                synchronized (this.idle) {
+                    this.idle.addFirst(connection);
+                }
+            }
+        } finally {
+            this.permits.release();
+        }
+        evictIdle();
+    }
+
+    /**
+     * Checks whether a connection has sent as many messages as it is allowed to.
+     * @param connection
+     *            the connection
+     * @return true if the connection should be released rather than used again
+     */
+    public boolean isRetired(final PooledConnection connection) {
+        return connection.getMessageCount() >= this.maxMessagesPerConnection;
+    }
+
+    /**
+     * Discards a connection that failed, freeing its slot for a new one.
+     * @param connection
+     *            the connection
+     */
+    public void invalidate(final PooledConnection connection) {
+        try {
+            connection.close();
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Closes every idle connection that has exceeded the maximum idle time.
+     */
+    public void evictIdle() {
+        final long now = System.currentTimeMillis();
+        final List<PooledConnection> expired = new ArrayList<>();
+        synchronized (this.idle) {
+            final Iterator<PooledConnection> it = this.idle.descendingIterator();
+            while (it.hasNext()) {
+                final PooledConnection connection = it.next();
+                if (now - connection.getLastUsed() <= this.maxIdleTime) {
+                    break;
+                }
+                it.remove();
+                expired.add(connection);
+            }
+        }
+        for (final PooledConnection connection : expired) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes the pool and every idle connection. Connections in use are closed when released.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        PooledConnection connection;
+        while ((connection = pollIdle()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Gets the number of connections opened over the lifetime of the pool.
+     * @return the number of connections created
+     */
+    public long getConnectionsCreated() {
+        return this.connectionsCreated.get();
+    }
+
+    /**
+     * Gets the number of idle connections.
+     * @return the number of idle connections
+     */
+    public int getIdleConnections() {
+        synchronized (this.idle) {
+            return this.idle.size();
+        }
+    }
+
+    /**
+     * Gets the number of connections currently borrowed.
+     * @return the number of active connections
+     */
+    public int getActiveConnections() {
+        return this.maxConnections - this.permits.availablePermits();
+    }
+
+    /**
+     * Gets the session.
+     * @return the session
+     */
+    public Session getSession() {
+        return this.session;
+    }
+
+    private PooledConnection pollIdle() {
+        synchronized (this.idle) {
+            return this.idle.pollFirst();
+        }
+    }
+
+    private PooledConnection connect() throws MessagingException {
+        final Transport transport = this.session.getTransport("smtp");
+        transport.connect();
+        this.connectionsCreated.incrementAndGet();
+        return new PooledConnection(transport);
+    }
+}
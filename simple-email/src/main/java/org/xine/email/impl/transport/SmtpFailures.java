@@ -0,0 +1,286 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.xine.email.api.CircuitOpenException;
+import org.xine.email.api.RecipientResult;
+import org.xine.email.api.RecipientStatus;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendTimeoutException;
+import org.xine.email.api.SendTimeoutException.Phase;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * Inspects the exception chain of a failed send to tell what went wrong.
+ */
+public final class SmtpFailures {
+
+    /** Limit on the causes inspected, in case a chain loops. */
+    private static final int MAX_DEPTH = 32;
+
+    /**
+     * Instantiates a new SMTP failures.
+     */
+    private SmtpFailures() {}
+
+    /**
+     * Checks whether a failure lies with the relay rather than with the message: the connection
+     * could not be made or was lost, authentication failed, the server is shutting down (421)
+     * or the relay's circuit breaker is open. Such a send may succeed through another relay.
+     * Failures after the server accepted DATA never qualify, as the relay may already have
+     * queued the message (see {@link #isDeliveryUncertain(Throwable)}).
+     * @param failure
+     *            the failure
+     * @return true if the relay is to blame
+     */
+    public static boolean isRelayFailure(final Throwable failure) {
+        if (isDeliveryUncertain(failure)) {
+            return false;
+        }
+        Throwable t = failure;
+        for (int depth = 0; t != null && depth < MAX_DEPTH; depth++, t = t.getCause()) {
+            if (t instanceof IOException || t instanceof AuthenticationFailedException
+                    || t instanceof CircuitOpenException) {
+                return true;
+            }
+        }
+        return getReturnCode(failure) == PooledConnection.SERVICE_NOT_AVAILABLE;
+    }
+
+    /**
+     * Checks whether a failed send may still have delivered the message: it failed after the
+     * server accepted DATA, timed out transferring the content or waiting for it to be accepted,
+     * or the server accepted some of the recipients. Sending it again risks a duplicate.
+     * @param failure
+     *            the failure
+     * @return true if the message may have been delivered
+     */
+    public static boolean isDeliveryUncertain(final Throwable failure) {
+        Throwable t = failure;
+        for (int depth = 0; t != null && depth < MAX_DEPTH; depth++, t = t.getCause()) {
+            if (t instanceof DataCommittedException
+                    || t instanceof SendTimeoutException
+                    && ((SendTimeoutException) t).getPhase() == Phase.DATA
+                    || t instanceof PhaseTimeoutException
+                    && ((PhaseTimeoutException) t).getPhase() == Phase.DATA) {
+                return true;
+            }
+        }
+        final javax.mail.SendFailedException addresses = getAddressFailure(failure);
+        return addresses != null && addresses.getValidSentAddresses() != null
+                && addresses.getValidSentAddresses().length > 0;
+    }
+
+    /**
+     * Checks whether a failure is transient, so the same send may succeed if retried later. A
+     * 4xx reply is transient and a 5xx reply permanent; without a reply code, I/O failures
+     * (refused, reset or timed out connections) and open circuit breakers are transient and
+     * anything else, such as a message that could not be built, is permanent.
+     * @param failure
+     *            the failure
+     * @return true if the send is worth retrying
+     */
+    public static boolean isTransient(final Throwable failure) {
+        final int code = getReturnCode(failure);
+        if (code >= 0) {
+            return code >= 400 && code < 500;
+        }
+        Throwable t = failure;
+        for (int depth = 0; t != null && depth < MAX_DEPTH; depth++, t = t.getCause()) {
+            if (t instanceof IOException || t instanceof CircuitOpenException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wraps the failure of a send, as a {@link SendTimeoutException} if the chain shows the
+     * server ran out of time. A socket timeout that does not name its phase is blamed on the
+     * command being answered.
+     * @param message
+     *            the message
+     * @param failure
+     *            the failure
+     * @return the exception to throw
+     */
+    public static SendFailedException sendFailed(final String message, final Throwable failure) {
+        return sendFailed(message, failure, false);
+    }
+
+    /**
+     * Wraps the failure of a send, as {@link #sendFailed(String, Throwable)} does. If the server
+     * had accepted DATA, a {@link DataCommittedException} is chained in front of the failure and
+     * a socket timeout that does not name its phase is blamed on DATA.
+     * @param message
+     *            the message
+     * @param failure
+     *            the failure
+     * @param dataCommitted
+     *            whether the server had accepted DATA when the send failed
+     * @return the exception to throw
+     */
+    public static SendFailedException sendFailed(final String message, final Throwable failure,
+            final boolean dataCommitted) {
+        final Throwable cause = dataCommitted && failure instanceof Exception
+                ? new DataCommittedException((Exception) failure) : failure;
+        final Phase unnamed = dataCommitted ? Phase.DATA : Phase.COMMAND;
+        Throwable t = failure;
+        for (int depth = 0; t != null && depth < MAX_DEPTH; depth++, t = t.getCause()) {
+            if (t instanceof PhaseTimeoutException) {
+                return new SendTimeoutException(message, ((PhaseTimeoutException) t).getPhase(),
+                        cause);
+            }
+            if (t instanceof SocketTimeoutException) {
+                return new SendTimeoutException(message, t.getMessage() != null
+                        && t.getMessage().startsWith("connect") ? Phase.CONNECT : unnamed,
+                        cause);
+            }
+        }
+        return new SendFailedException(message, cause);
+    }
+
+    /**
+     * Works out what a send did for each recipient. Without a failure every recipient was
+     * accepted. Otherwise the address lists of the javax.mail
+     * {@link javax.mail.SendFailedException} in the chain decide: valid sent addresses were
+     * accepted, valid unsent ones deferred, invalid ones rejected, each with the RCPT TO reply
+     * chained for it if there is one. A recipient the failure does not name shares the fate of
+     * the whole message: deferred if the failure is transient, rejected otherwise.
+     * @param recipients
+     *            the envelope recipients
+     * @param failure
+     *            the failure, or null if the message was sent
+     * @return one result per recipient, in the given order
+     */
+    public static List<RecipientResult> getRecipientResults(
+            final Collection<InternetAddress> recipients, final Throwable failure) {
+        final List<RecipientResult> results = new ArrayList<>(recipients.size());
+        if (failure == null) {
+            for (final InternetAddress recipient : recipients) {
+                results.add(new RecipientResult(recipient, RecipientStatus.ACCEPTED, 250, null));
+            }
+            return results;
+        }
+
+        final javax.mail.SendFailedException addresses = getAddressFailure(failure);
+        final Set<Address> sent = asSet(addresses != null ? addresses.getValidSentAddresses()
+                : null);
+        final Set<Address> unsent = asSet(addresses != null ? addresses
+                .getValidUnsentAddresses() : null);
+        final Set<Address> invalid = asSet(addresses != null ? addresses.getInvalidAddresses()
+                : null);
+        final Map<Address, SMTPAddressFailedException> replies = new HashMap<>();
+        Exception e = addresses;
+        for (int depth = 0; e instanceof MessagingException
+                && depth < MAX_DEPTH + recipients.size(); depth++) {
+            if (e instanceof SMTPAddressFailedException) {
+                replies.put(((SMTPAddressFailedException) e).getAddress(),
+                        (SMTPAddressFailedException) e);
+            }
+            e = ((MessagingException) e).getNextException();
+        }
+
+        // javax.mail lists every recipient as valid unsent when DATA is refused, and the ones
+        // it held back when others were refused at RCPT TO and partial sends are off
+        final int unsentCode = addresses instanceof SMTPSendFailedException
+                ? ((SMTPSendFailedException) addresses).getReturnCode() : -1;
+        final RecipientStatus unsentStatus = unsentCode < 0 || unsentCode >= 400
+                && unsentCode < 500 ? RecipientStatus.DEFERRED : RecipientStatus.REJECTED;
+        final RecipientStatus messageStatus = isTransient(failure) ? RecipientStatus.DEFERRED
+                : RecipientStatus.REJECTED;
+        final int messageCode = getReturnCode(failure);
+        for (final InternetAddress recipient : recipients) {
+            final SMTPAddressFailedException reply = replies.get(recipient);
+            if (sent.contains(recipient)) {
+                results.add(new RecipientResult(recipient, RecipientStatus.ACCEPTED, 250, null));
+            } else if (reply != null) {
+                results.add(new RecipientResult(recipient, invalid.contains(recipient)
+                        ? RecipientStatus.REJECTED : RecipientStatus.DEFERRED, reply
+                        .getReturnCode(), reply.getMessage()));
+            } else if (invalid.contains(recipient)) {
+                results.add(new RecipientResult(recipient, RecipientStatus.REJECTED, -1, null));
+            } else if (unsent.contains(recipient)) {
+                results.add(new RecipientResult(recipient, unsentStatus, unsentCode,
+                        unsentCode >= 0 ? addresses.getMessage() : null));
+            } else {
+                results.add(new RecipientResult(recipient, messageStatus, messageCode,
+                        failure.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Gets the first SMTP reply code found in the exception chain.
+     * @param failure
+     *            the failure
+     * @return the reply code, or -1 if the chain carries none
+     */
+    public static int getReturnCode(final Throwable failure) {
+        Throwable t = failure;
+        for (int depth = 0; t != null && depth < MAX_DEPTH; depth++, t = t.getCause()) {
+            if (t instanceof SMTPSendFailedException) {
+                return ((SMTPSendFailedException) t).getReturnCode();
+            }
+            if (t instanceof SMTPSenderFailedException) {
+                return ((SMTPSenderFailedException) t).getReturnCode();
+            }
+            if (t instanceof SMTPAddressFailedException) {
+                return ((SMTPAddressFailedException) t).getReturnCode();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the javax.mail send failure carrying the address lists, if any.
+     */
+    private static javax.mail.SendFailedException getAddressFailure(final Throwable failure) {
+        Throwable t = failure;
+        for (int depth = 0; t != null && depth < MAX_DEPTH; depth++, t = t.getCause()) {
+            if (t instanceof javax.mail.SendFailedException) {
+                return (javax.mail.SendFailedException) t;
+            }
+        }
+        return null;
+    }
+
+    private static Set<Address> asSet(final Address[] addresses) {
+        final Set<Address> set = new HashSet<>();
+        if (addresses != null) {
+            for (final Address address : addresses) {
+                set.add(address);
+            }
+        }
+        return set;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+import java.util.Properties;
+
+import javax.mail.Session;
+
+import org.xine.email.api.SendTimeoutException.Phase;
+import org.xine.email.api.SessionConfig;
+
+/**
+ * The time budgets of an SMTP exchange, in milliseconds, 0 meaning no limit.
+ * <p>
+ * They travel in the session properties so every transport built from a {@link Session} sees
+ * them: the connect and command timeouts as javax.mail's own {@code mail.smtp.connectiontimeout}
+ * and {@code mail.smtp.timeout}, the DATA timeout also as {@code mail.smtp.writetimeout} for
+ * javax.mail versions that honour it, and the rest under the library's own keys.
+ */
+public final class SmtpTimeouts {
+
+    /** The session property holding the greeting timeout. */
+    public static final String GREETING_TIMEOUT_PROPERTY = "org.xine.email.greetingTimeout";
+
+    /** The session property holding the DATA timeout. */
+    public static final String DATA_TIMEOUT_PROPERTY = "org.xine.email.dataTimeout";
+
+    /** The session property holding the send deadline. */
+    public static final String SEND_DEADLINE_PROPERTY = "org.xine.email.sendDeadline";
+
+    /** The connect timeout. */
+    private final long connectTimeout;
+
+    /** The greeting timeout, 0 to use the command timeout. */
+    private final long greetingTimeout;
+
+    /** The command timeout. */
+    private final long commandTimeout;
+
+    /** The DATA timeout, 0 to use the command timeout. */
+    private final long dataTimeout;
+
+    /** The send deadline. */
+    private final long sendDeadline;
+
+    private SmtpTimeouts(final Properties props) {
+        this.connectTimeout = parse(props, "mail.smtp.connectiontimeout");
+        this.greetingTimeout = parse(props, GREETING_TIMEOUT_PROPERTY);
+        this.commandTimeout = parse(props, "mail.smtp.timeout");
+        this.dataTimeout = parse(props, DATA_TIMEOUT_PROPERTY);
+        this.sendDeadline = parse(props, SEND_DEADLINE_PROPERTY);
+    }
+
+    /**
+     * Reads the time budgets of a session.
+     * @param session
+     *            the session
+     * @return the time budgets
+     */
+    public static SmtpTimeouts of(final Session session) {
+        return new SmtpTimeouts(session.getProperties());
+    }
+
+    /**
+     * Reads the time budgets from session properties.
+     * @param props
+     *            the session properties
+     * @return the time budgets
+     */
+    public static SmtpTimeouts of(final Properties props) {
+        return new SmtpTimeouts(props);
+    }
+
+    /**
+     * Copies the time budgets of a configuration into session properties.
+     * @param mailConfig
+     *            the mail config
+     * @param props
+     *            the session properties
+     */
+    public static void setProperties(final SessionConfig mailConfig, final Properties props) {
+        setProperty(props, "mail.smtp.connectiontimeout", mailConfig.getConnectTimeout());
+        setProperty(props, "mail.smtp.timeout", mailConfig.getCommandTimeout());
+        setProperty(props, "mail.smtp.writetimeout", mailConfig.getDataTimeout());
+        setProperty(props, GREETING_TIMEOUT_PROPERTY, mailConfig.getGreetingTimeout());
+        setProperty(props, DATA_TIMEOUT_PROPERTY, mailConfig.getDataTimeout());
+        setProperty(props, SEND_DEADLINE_PROPERTY, mailConfig.getSendDeadline());
+    }
+
+    /**
+     * Gets the budget of one phase. The greeting and DATA phases fall back to the command
+     * timeout when they have none of their own.
+     * @param phase
+     *            the phase
+     * @return the timeout, 0 for no limit
+     */
+    public long getTimeout(final Phase phase) {
+        switch (phase) {
+        case CONNECT:
+            return this.connectTimeout;
+        case GREETING:
+            return this.greetingTimeout > 0 ? this.greetingTimeout : this.commandTimeout;
+        case DATA:
+            return this.dataTimeout > 0 ? this.dataTimeout : this.commandTimeout;
+        case DEADLINE:
+            return this.sendDeadline;
+        default:
+            return this.commandTimeout;
+        }
+    }
+
+    /**
+     * Gets the send deadline.
+     * @return the send deadline, 0 for no limit
+     */
+    public long getSendDeadline() {
+        return this.sendDeadline;
+    }
+
+    /**
+     * Checks whether any budget is set.
+     * @return true if some phase or the whole send is limited
+     */
+    public boolean isLimited() {
+        return this.connectTimeout > 0 || this.greetingTimeout > 0 || this.commandTimeout > 0
+                || this.dataTimeout > 0 || this.sendDeadline > 0;
+    }
+
+    private static void setProperty(final Properties props, final String key, final Long value) {
+        if (value != null && value > 0) {
+            props.setProperty(key, value.toString());
+        }
+    }
+
+    private static long parse(final Properties props, final String key) {
+        final String value = props.getProperty(key);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+}
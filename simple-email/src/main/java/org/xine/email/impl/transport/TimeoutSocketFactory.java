@@ -0,0 +1,411 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import org.xine.email.api.SendTimeoutException.Phase;
+import org.xine.email.impl.util.MailExecutors;
+
+/**
+ * Socket factory enforcing {@link SmtpTimeouts} on javax.mail's blocking SMTP transport, which
+ * on its own only knows one connect and one read timeout. Installed as
+ * {@code mail.smtp.socketFactory}, it hands out sockets that follow the SMTP exchange passing
+ * through them:
+ * <ul>
+ * <li>the first read waits for the greeting;</li>
+ * <li>bytes written after a 354 reply are message content, and the read following the
+ * terminating dot waits for the server to accept the message, both under the DATA timeout;</li>
+ * <li>everything else is a command and its reply.</li>
+ * </ul>
+ * Reads are bounded through the socket timeout, set afresh before each read. A blocked write can
+ * not time out by itself, so a timer closes the socket if a write stalls past its budget. Every
+ * operation is further cut to the {@link SendDeadline} of the calling thread. Running out of
+ * time raises a {@link PhaseTimeoutException} naming the phase, or {@link Phase#DEADLINE}.
+ * <p>
+ * STARTTLS layers TLS over these sockets, so its reads and writes are still bounded, but the
+ * socket then only sees ciphertext and can no longer tell commands from message content. Once
+ * the TLS handshake starts, every read and write gets the larger of the command and DATA
+ * budgets. SSL from the first byte uses javax.mail's SSL socket factory and only gets the
+ * connect and command timeouts.
+ */
+public class TimeoutSocketFactory extends SocketFactory {
+
+    /** The time budgets. */
+    private final SmtpTimeouts timeouts;
+
+    /**
+     * Instantiates a new timeout socket factory.
+     * @param timeouts
+     *            the time budgets
+     */
+    public TimeoutSocketFactory(final SmtpTimeouts timeouts) {
+        this.timeouts = timeouts;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see javax.net.SocketFactory#createSocket()
+     */
+    @Override
+    public Socket createSocket() {
+        return new TimeoutSocket(this.timeouts);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see javax.net.SocketFactory#createSocket(java.lang.String, int)
+     */
+    @Override
+    public Socket createSocket(final String host, final int port) throws IOException {
+        return connect(new InetSocketAddress(host, port), null);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see javax.net.SocketFactory#createSocket(java.lang.String, int, java.net.InetAddress,
+     * int)
+     */
+    @Override
+    public Socket createSocket(final String host, final int port, final InetAddress localHost,
+            final int localPort) throws IOException {
+        return connect(new InetSocketAddress(host, port), new InetSocketAddress(localHost,
+                localPort));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see javax.net.SocketFactory#createSocket(java.net.InetAddress, int)
+     */
+    @Override
+    public Socket createSocket(final InetAddress host, final int port) throws IOException {
+        return connect(new InetSocketAddress(host, port), null);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see javax.net.SocketFactory#createSocket(java.net.InetAddress, int, java.net.InetAddress,
+     * int)
+     */
+    @Override
+    public Socket createSocket(final InetAddress address, final int port,
+            final InetAddress localAddress, final int localPort) throws IOException {
+        return connect(new InetSocketAddress(address, port), new InetSocketAddress(
+                localAddress, localPort));
+    }
+
+    private Socket connect(final SocketAddress endpoint, final SocketAddress local)
+            throws IOException {
+        final Socket socket = createSocket();
+        try {
+            if (local != null) {
+                socket.bind(local);
+            }
+            socket.connect(endpoint);
+            return socket;
+        } catch (final IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Socket bounding each connect, read and write by the budget of the SMTP phase it belongs
+     * to.
+     */
+    private static final class TimeoutSocket extends Socket {
+
+        /** The last five bytes of the end of data sequence CRLF.CRLF. */
+        private static final long END_OF_DATA = 0x0D0A2E0D0AL;
+
+        /** The content type of a TLS handshake record, which no SMTP command starts with. */
+        private static final byte TLS_HANDSHAKE = 0x16;
+
+        /** The time budgets. */
+        private final SmtpTimeouts timeouts;
+
+        /** The socket timeout requested by the transport, used for phases without a budget. */
+        private volatile int requestedTimeout;
+
+        /** Whether the greeting has been read. */
+        private volatile boolean greeted;
+
+        /** Whether message content is being written. */
+        private volatile boolean inData;
+
+        /** Whether the content has been terminated and its reply is awaited. */
+        private volatile boolean dataSent;
+
+        /** Whether TLS has been started over the connection. */
+        private volatile boolean tls;
+
+        /** The last five bytes written. */
+        private long tail;
+
+        /** The budget that ran out, once an operation has timed out. */
+        private volatile Budget expired;
+
+        /** The wrapped input stream. */
+        private InputStream in;
+
+        /** The wrapped output stream. */
+        private OutputStream out;
+
+        TimeoutSocket(final SmtpTimeouts timeouts) {
+            this.timeouts = timeouts;
+        }
+
+        @Override
+        public void connect(final SocketAddress endpoint, final int timeout) throws IOException {
+            final Budget budget = budget(Phase.CONNECT, timeout);
+            try {
+                super.connect(endpoint, budget.timeout);
+            } catch (final SocketTimeoutException e) {
+                throw budget.timedOut(e);
+            }
+        }
+
+        @Override
+        public synchronized void setSoTimeout(final int timeout) throws SocketException {
+            this.requestedTimeout = timeout;
+            super.setSoTimeout(timeout);
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (this.in == null) {
+                this.in = new TimeoutInputStream(super.getInputStream());
+            }
+            return this.in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (this.out == null) {
+                this.out = new TimeoutOutputStream(super.getOutputStream());
+            }
+            return this.out;
+        }
+
+        /**
+         * Works out how long the next operation of a phase may take: its own budget, or the
+         * given fallback, cut to the time left before the thread's deadline.
+         */
+        private Budget budget(final Phase phase, final int fallback) throws IOException {
+            final Budget spent = this.expired;
+            if (spent != null) {
+                throw spent.timedOut(null);
+            }
+            long timeout = this.timeouts.getTimeout(phase);
+            if (timeout <= 0) {
+                timeout = fallback;
+            }
+            final long remaining = SendDeadline.remaining();
+            if (remaining == SendDeadline.UNLIMITED || timeout > 0 && timeout <= remaining) {
+                return new Budget(phase, (int) Math.min(timeout, Integer.MAX_VALUE));
+            }
+            if (remaining <= 0) {
+                throw new Budget(Phase.DEADLINE, (int) Math.min(this.timeouts.getSendDeadline(),
+                        Integer.MAX_VALUE)).timedOut(null);
+            }
+            return new Budget(Phase.DEADLINE, (int) Math.min(remaining, Integer.MAX_VALUE));
+        }
+
+        private Phase readPhase() {
+            if (!this.greeted) {
+                return Phase.GREETING;
+            }
+            if (this.tls) {
+                return tlsPhase();
+            }
+            return this.dataSent ? Phase.DATA : Phase.COMMAND;
+        }
+
+        private Phase writePhase() {
+            if (this.tls) {
+                return tlsPhase();
+            }
+            return this.inData ? Phase.DATA : Phase.COMMAND;
+        }
+
+        /**
+         * Picks the phase with the larger budget, for traffic that can not be told apart under
+         * TLS. No command timeout means no limit, which is the larger.
+         */
+        private Phase tlsPhase() {
+            final long command = this.timeouts.getTimeout(Phase.COMMAND);
+            return command > 0 && this.timeouts.getTimeout(Phase.DATA) > command ? Phase.DATA
+                    : Phase.COMMAND;
+        }
+
+        private void received(final byte[] b, final int off, final int len) {
+            this.greeted = true;
+            if (!this.tls && !this.dataSent && len >= 3 && b[off] == '3' && b[off + 1] == '5'
+                    && b[off + 2] == '4') {
+                this.inData = true;
+            }
+        }
+
+        private void written(final byte[] b, final int off, final int len) {
+            if (!this.tls && !this.inData && len > 0 && b[off] == TLS_HANDSHAKE) {
+                this.tls = true;
+            }
+            if (this.tls) {
+                return;
+            }
+            this.dataSent = false;
+            for (int i = off; i < off + len; i++) {
+                this.tail = (this.tail << 8 | b[i] & 0xFF) & 0xFFFFFFFFFFL;
+            }
+            if (this.inData && this.tail == END_OF_DATA) {
+                this.inData = false;
+                this.dataSent = true;
+            }
+        }
+
+        private void abort(final Budget budget) {
+            budget.timedOut(null);
+        }
+
+        /**
+         * The time granted to one operation and the phase to blame when it runs out.
+         */
+        private final class Budget {
+
+            /** The phase, or DEADLINE if the deadline is the tighter limit. */
+            final Phase phase;
+
+            /** The timeout, in milliseconds, 0 for none. */
+            final int timeout;
+
+            Budget(final Phase phase, final int timeout) {
+                this.phase = phase;
+                this.timeout = timeout;
+            }
+
+            /**
+             * Reports the budget as spent and closes the socket, which also unblocks a stalled
+             * write. The exchange is out of step with the server from then on, so every later
+             * operation on the socket fails the same way at once rather than wait out its own
+             * budget.
+             */
+            PhaseTimeoutException timedOut(final IOException cause) {
+                TimeoutSocket.this.expired = this;
+                try {
+                    TimeoutSocket.this.close();
+                } catch (final IOException e) {
+                    // Already unusable
+                }
+                final PhaseTimeoutException e = new PhaseTimeoutException(this.phase,
+                        this.timeout);
+                if (cause != null) {
+                    e.initCause(cause);
+                }
+                return e;
+            }
+        }
+
+        /**
+         * Input stream setting the socket timeout of the current phase before each read.
+         */
+        private final class TimeoutInputStream extends FilterInputStream {
+
+            TimeoutInputStream(final InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                final Budget budget = budget(readPhase(), TimeoutSocket.this.requestedTimeout);
+                TimeoutSocket.super.setSoTimeout(budget.timeout);
+                final int read;
+                try {
+                    read = super.read(b, off, len);
+                } catch (final SocketTimeoutException e) {
+                    throw budget.timedOut(e);
+                }
+                if (read > 0) {
+                    received(b, off, read);
+                }
+                return read;
+            }
+        }
+
+        /**
+         * Output stream arming the timer around each write.
+         */
+        private final class TimeoutOutputStream extends FilterOutputStream {
+
+            TimeoutOutputStream(final OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(final int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                final Budget budget = budget(writePhase(), 0);
+                final ScheduledFuture<?> timer = budget.timeout > 0 ? MailExecutors.getTimer()
+                        .schedule(() -> abort(budget), budget.timeout, TimeUnit.MILLISECONDS)
+                        : null;
+                try {
+                    this.out.write(b, off, len);
+                } catch (final IOException e) {
+                    throw timedOutWrite(e);
+                } finally {
+                    if (timer != null) {
+                        timer.cancel(false);
+                    }
+                }
+                written(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                try {
+                    this.out.flush();
+                } catch (final IOException e) {
+                    throw timedOutWrite(e);
+                }
+            }
+
+            private IOException timedOutWrite(final IOException e) {
+                final Budget spent = TimeoutSocket.this.expired;
+                return spent != null ? spent.timedOut(e) : e;
+            }
+        }
+    }
+}
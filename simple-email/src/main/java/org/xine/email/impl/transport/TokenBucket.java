@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket refilled continuously at a fixed rate up to its capacity.
+ * <p>
+ * {@link #acquire(double)} reserves tokens immediately and then sleeps until the reservation is
+ * covered, so the balance may go negative. Callers are served in the order they reserve, a
+ * request larger than the capacity is delayed rather than refused, and no lock is held while
+ * waiting.
+ */
+public class TokenBucket {
+
+    /** The capacity. */
+    private final double capacity;
+
+    /** The tokens added per nanosecond. */
+    private final double tokensPerNano;
+
+    /** The current balance, negative while reservations are outstanding. */
+    private double tokens;
+
+    /** The time the balance was last refilled, from {@link System#nanoTime()}. */
+    private long lastRefill;
+
+    /**
+     * Instantiates a new token bucket which starts full.
+     * @param capacity
+     *            the maximum number of tokens, which is also the largest burst
+     * @param tokens
+     *            the number of tokens added per period
+     * @param period
+     *            the refill period
+     * @param unit
+     *            the unit of the period
+     */
+    public TokenBucket(final double capacity, final double tokens, final long period,
+            final TimeUnit unit) {
+        this(capacity, capacity, tokens, period, unit);
+    }
+
+    /**
+     * Instantiates a new token bucket holding the given tokens to begin with.
+     * @param capacity
+     *            the maximum number of tokens, which is also the largest burst
+     * @param initialTokens
+     *            the number of tokens available at once, 0 for a bucket which starts empty
+     * @param tokens
+     *            the number of tokens added per period
+     * @param period
+     *            the refill period
+     * @param unit
+     *            the unit of the period
+     */
+    public TokenBucket(final double capacity, final double initialTokens, final double tokens,
+            final long period, final TimeUnit unit) {
+        if (capacity <= 0 || tokens <= 0 || period <= 0) {
+            throw new IllegalArgumentException("Capacity and rate must be positive");
+        }
+        if (initialTokens < 0 || initialTokens > capacity) {
+            throw new IllegalArgumentException("Initial tokens must be between 0 and the capacity");
+        }
+        this.capacity = capacity;
+        this.tokensPerNano = tokens / unit.toNanos(period);
+        this.tokens = initialTokens;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes tokens, waiting until they are available.
+     * @param permits
+     *            the number of tokens
+     * @return the time waited, in nanoseconds
+     * @throws InterruptedException
+     *             if interrupted while waiting; the reservation is kept
+     */
+    public long acquire(final double permits) throws InterruptedException {
+        final long wait;
+        synchronized (this) {
+            refill();
+            this.tokens -= permits;
+            wait = nanosUntilCovered(0);
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return wait;
+    }
+
+    /**
+     * Takes tokens only if they are available now.
+     * @param permits
+     *            the number of tokens
+     * @return true if the tokens were taken
+     */
+    public synchronized boolean tryAcquire(final double permits) {
+        refill();
+        if (this.tokens < permits) {
+            return false;
+        }
+        this.tokens -= permits;
+        return true;
+    }
+
+    /**
+     * Gets the tokens available now.
+     * @return the balance, negative while earlier reservations are still waiting
+     */
+    public synchronized double getAvailableTokens() {
+        refill();
+        return this.tokens;
+    }
+
+    /**
+     * Estimates how long a request for tokens would wait if made now.
+     * @param permits
+     *            the number of tokens
+     * @return the wait, in nanoseconds
+     */
+    public synchronized long estimateWait(final double permits) {
+        refill();
+        return nanosUntilCovered(permits);
+    }
+
+    /**
+     * Gets the capacity.
+     * @return the capacity
+     */
+    public double getCapacity() {
+        return this.capacity;
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill)
+                * this.tokensPerNano);
+        this.lastRefill = now;
+    }
+
+    private long nanosUntilCovered(final double permits) {
+        final double deficit = permits - this.tokens;
+        return deficit > 0 ? (long) Math.ceil(deficit / this.tokensPerNano) : 0;
+    }
+}
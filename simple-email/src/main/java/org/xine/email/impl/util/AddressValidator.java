@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.xine.email.api.AddressValidationResult;
+
+/**
+ * Validates addresses in bulk, such as an imported recipient list, reporting an
+ * {@link AddressValidationResult} per address instead of throwing at the first bad one. Large
+ * collections are split across a {@link ForkJoinPool}. An address is valid if
+ * {@link InternetAddress} parses it and {@link InternetAddress#validate()} accepts it, so unlike
+ * {@link MailUtility#internetAddress(String)} a domain is required.
+ * <p>
+ * javax.mail only reports an invalid address by throwing, and filling in the stack trace of an
+ * exception costs more than parsing the address. Plain addresses of the a@b.com form are
+ * therefore checked here first for the faults bad rows usually have, such as a missing or
+ * doubled @, white space or stray dots, the same way javax.mail checks them. Only addresses
+ * passing that check, and addresses in any other form, are parsed by javax.mail, which then
+ * accepts nearly all of them.
+ */
+public final class AddressValidator {
+
+    /** The number of addresses below which a task does not split any further. */
+    private static final int THRESHOLD = 512;
+
+    /** Characters of address forms other than the plain one, left to javax.mail. */
+    private static final String SPECIALS = "\"<>(),;:\\[]";
+
+    /**
+     * Instantiates a new address validator.
+     */
+    private AddressValidator() {}
+
+    /**
+     * Validates addresses on the common fork-join pool.
+     * @param addresses
+     *            the addresses, eg "a@b.com" or "Name&lt;a@b.com&gt;"
+     * @return one result per address, in iteration order
+     */
+    public static List<AddressValidationResult> validateAll(final Collection<String> addresses) {
+        return validateAll(addresses, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Validates addresses on the given pool.
+     * @param addresses
+     *            the addresses
+     * @param pool
+     *            the pool to validate on
+     * @return one result per address, in iteration order
+     */
+    public static List<AddressValidationResult> validateAll(final Collection<String> addresses,
+            final ForkJoinPool pool) {
+        final List<String> input = addresses instanceof List && addresses instanceof RandomAccess
+                ? (List<String>) addresses : new ArrayList<String>(addresses);
+        final AddressValidationResult[] results = new AddressValidationResult[input.size()];
+        pool.invoke(new ValidateTask(input, results, 0, results.length));
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Validates an address.
+     * @param address
+     *            the address
+     * @return the result
+     */
+    public static AddressValidationResult validate(final String address) {
+        if (address == null) {
+            return new AddressValidationResult(null, "Missing address");
+        }
+        final String reason = checkPlainAddress(address);
+        if (reason != null) {
+            return new AddressValidationResult(address, reason);
+        }
+        try {
+            final InternetAddress internetAddress = new InternetAddress(address);
+            internetAddress.validate();
+            return new AddressValidationResult(address, internetAddress);
+        } catch (final AddressException e) {
+            return new AddressValidationResult(address, e.getMessage());
+        } catch (final RuntimeException e) {
+            // javax.mail fails this way on some malformed quoted strings
+            return new AddressValidationResult(address, "Illegal address");
+        }
+    }
+
+    /**
+     * Checks an address of the plain a@b.com form the way {@link InternetAddress#validate()}
+     * does.
+     * @return the reason the address is not valid, null if it is valid or not of the plain form
+     */
+    private static String checkPlainAddress(final String address) {
+        int start = 0;
+        int end = address.length();
+        while (start < end && address.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && address.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return "Illegal address";
+        }
+
+        int at = -1;
+        for (int i = start; i < end; i++) {
+            final char c = address.charAt(i);
+            if (c > 0x7E || SPECIALS.indexOf(c) >= 0) {
+                return null;
+            }
+            if (c == '@' && at < 0) {
+                at = i;
+            }
+        }
+        if (at == start) {
+            return "Missing local name";
+        }
+        if (at == end - 1) {
+            return "Missing domain";
+        }
+        for (int i = start; i < (at < 0 ? end : at); i++) {
+            if (address.charAt(i) <= ' ') {
+                return "Local address contains control or whitespace";
+            }
+        }
+        if (at < 0) {
+            return "Missing final '@domain'";
+        }
+        if (address.charAt(at + 1) == '.') {
+            return "Domain starts with dot";
+        }
+        for (int i = at + 1; i < end; i++) {
+            final char c = address.charAt(i);
+            if (c <= ' ') {
+                return "Domain contains control or whitespace";
+            }
+            if (c == '@') {
+                return "Domain contains illegal character";
+            }
+            if (c == '.' && address.charAt(i - 1) == '.') {
+                return "Domain contains dot-dot";
+            }
+        }
+        if (address.charAt(end - 1) == '.') {
+            return "Domain ends with dot";
+        }
+        return null;
+    }
+
+    /**
+     * Validates a range of the addresses, splitting it in halves while above the threshold.
+     */
+    private static final class ValidateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> addresses;
+        private final AddressValidationResult[] results;
+        private final int from;
+        private final int to;
+
+        ValidateTask(final List<String> addresses, final AddressValidationResult[] results,
+                final int from, final int to) {
+            this.addresses = addresses;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= THRESHOLD) {
+                for (int i = this.from; i < this.to; i++) {
+                    this.results[i] = validate(this.addresses.get(i));
+                }
+                return;
+            }
+            final int middle = (this.from + this.to) >>> 1;
+            invokeAll(new ValidateTask(this.addresses, this.results, this.from, middle),
+                    new ValidateTask(this.addresses, this.results, middle, this.to));
+        }
+    }
+}
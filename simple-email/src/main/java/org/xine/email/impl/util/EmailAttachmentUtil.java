@@ -13,9 +13,12 @@
 package org.xine.email.impl.util;
 
 import org.xine.email.impl.attachments.BaseAttachment;
+import org.xine.email.impl.attachments.SpilledDataSource;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -40,4 +43,58 @@ public class EmailAttachmentUtil {
         }
         return emailAttachmentMap;
     }
+
+    /**
+     * Checks whether any of the attachments is streamed from a data source rather than held in
+     * bytes.
+     * @param attachments
+     *            the attachments
+     * @return true, if one has a data source
+     */
+    public static boolean hasDataSource(final Collection<BaseAttachment> attachments) {
+        for (final BaseAttachment ea : attachments) {
+            if (ea.getDataSource() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes a reference to the content of each attachment spilled to a temporary file, so that
+     * it is kept until given back through {@link #releaseSpilled(Collection)}.
+     * @param attachments
+     *            the attachments
+     * @return the retained contents
+     * @throws org.xine.email.api.AttachmentException
+     *             if the content of one has already been released
+     */
+    public static List<SpilledDataSource> retainSpilled(
+            final Collection<BaseAttachment> attachments) {
+        final List<SpilledDataSource> retained = new ArrayList<>();
+        try {
+            for (final BaseAttachment ea : attachments) {
+                if (ea.getDataSource() instanceof SpilledDataSource) {
+                    final SpilledDataSource spilled = (SpilledDataSource) ea.getDataSource();
+                    spilled.retain();
+                    retained.add(spilled);
+                }
+            }
+        } catch (final RuntimeException e) {
+            releaseSpilled(retained);
+            throw e;
+        }
+        return retained;
+    }
+
+    /**
+     * Gives back one reference to each of the spilled contents.
+     * @param spilled
+     *            the spilled contents
+     */
+    public static void releaseSpilled(final Collection<SpilledDataSource> spilled) {
+        for (final SpilledDataSource s : spilled) {
+            s.release();
+        }
+    }
 }
@@ -0,0 +1,196 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Encodes and folds header values into the form javax.mail gives them with
+ * {@link MimeUtility#encodeText(String, String, String)} and {@link MimeUtility#fold(int, String)},
+ * at a fraction of the cost for the headers every message carries:
+ * <ul>
+ * <li>a value of printable ASCII short enough to fit its line is returned as it is, without
+ * allocating anything;</li>
+ * <li>other values are folded in one pass over the string;</li>
+ * <li>values that need encoding, typically a subject in a national language shared by a whole
+ * campaign, are kept in a bounded cache once encoded and folded.</li>
+ * </ul>
+ */
+public final class HeaderEncoder {
+
+    /** The maximum length of a header line, as javax.mail folds them. */
+    private static final int LINE_LENGTH = 76;
+
+    /** The number of encoded values cached; the cache starts over once it holds this many. */
+    private static final int CACHE_SIZE = 1024;
+
+    /** Whether values are folded, as javax.mail reads it. */
+    private static final boolean FOLD_TEXT = !"false".equalsIgnoreCase(System
+            .getProperty("mail.mime.foldtext"));
+
+    /** The encoded and folded values. */
+    private static final ConcurrentMap<Key, String> CACHE = new ConcurrentHashMap<Key, String>();
+
+    /**
+     * Instantiates a new header encoder.
+     */
+    private HeaderEncoder() {}
+
+    /**
+     * Encodes and folds a header value in the default charset.
+     * @param name
+     *            the header name
+     * @param value
+     *            the value
+     * @return the value as written in the header
+     * @throws UnsupportedEncodingException
+     *             if the default charset is not supported
+     */
+    public static String encode(final String name, final String value)
+            throws UnsupportedEncodingException {
+        return encode(name, value, null);
+    }
+
+    /**
+     * Encodes and folds a header value.
+     * @param name
+     *            the header name
+     * @param value
+     *            the value
+     * @param charset
+     *            the charset of encoded words, null for the default one
+     * @return the value as written in the header
+     * @throws UnsupportedEncodingException
+     *             if the charset is not supported
+     */
+    public static String encode(final String name, final String value, final String charset)
+            throws UnsupportedEncodingException {
+        final int used = name.length() + 2;
+        if (isAscii(value)) {
+            return fold(used, value);
+        }
+        final Key key = new Key(used, value, charset);
+        String encoded = CACHE.get(key);
+        if (encoded == null) {
+            encoded = fold(used, MimeUtility.encodeText(value, charset, null));
+            if (CACHE.size() >= CACHE_SIZE) {
+                CACHE.clear();
+            }
+            CACHE.put(key, encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Folds a header value the way {@link MimeUtility#fold(int, String)} does: trailing white
+     * space is dropped and lines are broken before the last white space that keeps them within
+     * 76 characters, or the first one after if there is none.
+     * @param used
+     *            the characters already used on the first line
+     * @param s
+     *            the value
+     * @return the folded value, the value itself if it fits
+     */
+    public static String fold(final int used, final String s) {
+        if (!FOLD_TEXT) {
+            return s;
+        }
+        int end = s.length();
+        while (end > 0 && isFoldSpace(s.charAt(end - 1))) {
+            end--;
+        }
+        if (used + end <= LINE_LENGTH) {
+            return end == s.length() ? s : s.substring(0, end);
+        }
+
+        final StringBuilder sb = new StringBuilder(end + 8);
+        int start = 0;
+        int lineUsed = used;
+        char lastc = 0;
+        while (lineUsed + end - start > LINE_LENGTH) {
+            int lastspace = -1;
+            for (int i = start; i < end; i++) {
+                if (lastspace != -1 && lineUsed + i - start > LINE_LENGTH) {
+                    break;
+                }
+                final char c = s.charAt(i);
+                if ((c == ' ' || c == '\t') && lastc != ' ' && lastc != '\t') {
+                    lastspace = i;
+                }
+                lastc = c;
+            }
+            if (lastspace == -1) {
+                break;
+            }
+            sb.append(s, start, lastspace).append("\r\n");
+            lastc = s.charAt(lastspace);
+            sb.append(lastc);
+            start = lastspace + 1;
+            lineUsed = 1;
+        }
+        return sb.append(s, start, end).toString();
+    }
+
+    /**
+     * Tells whether a value is left as it is by {@link MimeUtility#encodeText(String)}.
+     */
+    private static boolean isAscii(final String value) {
+        for (int i = 0, length = value.length(); i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0177 || c < 040 && c != '\r' && c != '\n' && c != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFoldSpace(final char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    /**
+     * A value with the line position and charset it was encoded for.
+     */
+    private static final class Key {
+
+        private final int used;
+        private final String value;
+        private final String charset;
+
+        Key(final int used, final String value, final String charset) {
+            this.used = used;
+            this.value = value;
+            this.charset = charset;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.value.hashCode() + this.used;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return this.used == other.used && this.value.equals(other.value)
+                    && (this.charset == null ? other.charset == null : this.charset
+                            .equals(other.charset));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.util;
+
+/**
+ * Generates the Message-IDs of messages and the Content-IDs of attachments. Implementations are
+ * called for every message and attachment built, from any thread, and must return values unique
+ * across all nodes sending mail. Install one through {@link IdGenerators#setDefault(IdGenerator)}.
+ */
+public interface IdGenerator {
+
+    /**
+     * Generates a Message-ID, without the enclosing angle brackets.
+     * @param domain
+     *            the domain part of the ID
+     * @return the message id
+     */
+    String nextMessageId(String domain);
+
+    /**
+     * Generates a Content-ID, without the enclosing angle brackets.
+     * @return the content id
+     */
+    String nextContentId();
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.util;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the {@link IdGenerator} used for Message-IDs and Content-IDs, and provides the default
+ * one.
+ */
+public final class IdGenerators {
+
+    /** The generator in use. */
+    private static volatile IdGenerator defaultGenerator = new NodeIdGenerator();
+
+    /**
+     * Instantiates a new id generators.
+     */
+    private IdGenerators() {}
+
+    /**
+     * Gets the generator in use. Unless replaced through {@link #setDefault(IdGenerator)} this
+     * is a {@link NodeIdGenerator}.
+     * @return the generator
+     */
+    public static IdGenerator getDefault() {
+        return defaultGenerator;
+    }
+
+    /**
+     * Replaces the generator in use.
+     * @param generator
+     *            the generator
+     */
+    public static void setDefault(final IdGenerator generator) {
+        if (generator == null) {
+            throw new IllegalArgumentException("generator must not be null");
+        }
+        defaultGenerator = generator;
+    }
+
+    /**
+     * Generates a Message-ID with the generator in use.
+     * @param domain
+     *            the domain part of the ID
+     * @return the message id
+     */
+    public static String nextMessageId(final String domain) {
+        return defaultGenerator.nextMessageId(domain);
+    }
+
+    /**
+     * Generates a Content-ID with the generator in use.
+     * @return the content id
+     */
+    public static String nextContentId() {
+        return defaultGenerator.nextContentId();
+    }
+
+    /**
+     * Generator built from three parts, none of which is shared mutable state on the hot path:
+     * <ul>
+     * <li>a node part drawn once from {@link SecureRandom} together with the start time, telling
+     * this JVM apart from every other one sending mail;</li>
+     * <li>a thread part, handed out once per thread from a counter, telling the threads of this
+     * JVM apart;</li>
+     * <li>a sequence counted up by each thread on its own.</li>
+     * </ul>
+     * Generating an ID thus takes one thread local lookup and no lock, and the host name of
+     * Message-IDs without a domain is resolved only once.
+     */
+    public static final class NodeIdGenerator implements IdGenerator {
+
+        /** The radix of the ID parts. */
+        private static final int RADIX = 36;
+
+        /** The part identifying this generator among all nodes. */
+        private final String node;
+
+        /** Hands out the thread parts. */
+        private final AtomicLong threads = new AtomicLong();
+
+        /** The ID prefix and sequence of each thread. */
+        private final ThreadLocal<Sequence> sequences = new ThreadLocal<Sequence>() {
+            @Override
+            protected Sequence initialValue() {
+                return new Sequence(NodeIdGenerator.this.node + "."
+                        + Long.toString(NodeIdGenerator.this.threads.incrementAndGet(), RADIX)
+                        + ".");
+            }
+        };
+
+        /**
+         * Instantiates a new node id generator.
+         */
+        public NodeIdGenerator() {
+            final long random = new SecureRandom().nextLong() >>> 1;
+            this.node = Long.toString(System.currentTimeMillis(), RADIX)
+                    + Long.toString(random, RADIX);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.xine.email.impl.util.IdGenerator#nextMessageId(java.lang.String)
+         */
+        @Override
+        public String nextMessageId(final String domain) {
+            return this.sequences.get().next() + "@"
+                    + (Strings.isNullOrBlank(domain) ? MailUtility.getHostName() : domain);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.xine.email.impl.util.IdGenerator#nextContentId()
+         */
+        @Override
+        public String nextContentId() {
+            return this.sequences.get().next();
+        }
+
+        /**
+         * The ID prefix and counter of one thread.
+         */
+        private static final class Sequence {
+
+            /** The node and thread parts. */
+            private final String prefix;
+
+            /** The last value handed out. */
+            private long counter;
+
+            Sequence(final String prefix) {
+                this.prefix = prefix;
+            }
+
+            String next() {
+                return this.prefix + Long.toString(++this.counter, RADIX);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.internet.InternetAddress;
+
+import org.xine.email.api.InvalidAddressException;
+
+/**
+ * Cache of parsed {@link InternetAddress} values, keyed by the address as given and the personal
+ * name, so that the sender, reply-to and receipt addresses every message repeats are parsed and
+ * validated once. {@link InternetAddress} is mutable, so the cached instances are never handed
+ * out: each lookup returns a copy, which costs far less than parsing again. Invalid addresses are
+ * not cached.
+ * <p>
+ * The cache holds at most the given number of addresses and starts over once full, which keeps
+ * the addresses used all the time and lets go of the recipients of past messages. The default
+ * cache holds {@value #DEFAULT_MAX_ENTRIES}; install another through
+ * {@link #setDefault(InternetAddressCache)}, with a maximum of 0 to parse every time.
+ */
+public class InternetAddressCache {
+
+    /** The default number of addresses held. */
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    /** The cache in use. */
+    private static volatile InternetAddressCache defaultCache = new InternetAddressCache(
+            DEFAULT_MAX_ENTRIES);
+
+    /** The number of addresses held. */
+    private final int maxEntries;
+
+    /** The parsed addresses, never handed out. */
+    private final ConcurrentMap<Key, InternetAddress> entries =
+            new ConcurrentHashMap<Key, InternetAddress>();
+
+    /** The lookups answered from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The lookups that had to parse. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Instantiates a new internet address cache.
+     * @param maxEntries
+     *            the number of addresses held, 0 to cache nothing
+     */
+    public InternetAddressCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Gets the cache in use.
+     * @return the cache
+     */
+    public static InternetAddressCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Replaces the cache in use.
+     * @param cache
+     *            the cache
+     */
+    public static void setDefault(final InternetAddressCache cache) {
+        if (cache == null) {
+            throw new IllegalArgumentException("cache must not be null");
+        }
+        defaultCache = cache;
+    }
+
+    /**
+     * Gets an address, parsing it on a miss.
+     * @param address
+     *            the address, eg "a@b.com" or "Name&lt;a@b.com&gt;"
+     * @return a copy of the parsed address, free to be changed
+     * @throws InvalidAddressException
+     *             if the address is in an invalid format
+     */
+    public InternetAddress get(final String address) throws InvalidAddressException {
+        return get(address, null, false);
+    }
+
+    /**
+     * Gets an address with the given personal name, parsing it on a miss.
+     * @param address
+     *            the address
+     * @param name
+     *            the personal name, replacing any the address has
+     * @return a copy of the parsed address, free to be changed
+     * @throws InvalidAddressException
+     *             if the address is in an invalid format
+     */
+    public InternetAddress get(final String address, final String name)
+            throws InvalidAddressException {
+        return get(address, name, true);
+    }
+
+    private InternetAddress get(final String address, final String name, final boolean named) {
+        if (this.maxEntries <= 0 || address == null) {
+            return MailUtility.parseInternetAddress(address, name, named);
+        }
+        final Key key = new Key(address, name, named);
+        InternetAddress parsed = this.entries.get(key);
+        if (parsed != null) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+            parsed = MailUtility.parseInternetAddress(address, name, named);
+            if (this.entries.size() >= this.maxEntries) {
+                this.entries.clear();
+            }
+            this.entries.put(key, parsed);
+        }
+        return (InternetAddress) parsed.clone();
+    }
+
+    /**
+     * Removes every entry. The counters are kept.
+     */
+    public void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     * @return the number of hits
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * Gets the number of lookups that had to parse the address.
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Gets the number of addresses held.
+     * @return the number of entries
+     */
+    public int getEntryCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * Address as given and personal name, if one is set.
+     */
+    private static final class Key {
+
+        private final String address;
+        private final String name;
+        private final boolean named;
+
+        Key(final String address, final String name, final boolean named) {
+            this.address = address;
+            this.name = name;
+            this.named = named;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.address.hashCode() + (this.name != null ? this.name.hashCode() : 0)
+                    + (this.named ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return this.named == other.named && this.address.equals(other.address)
+                    && (this.name == null ? other.name == null : this.name.equals(other.name));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.impl.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the {@link Executor} used for asynchronous sends when the caller does not supply one.
+ */
+public final class MailExecutors {
+
+    /** The default executor, created on first use. */
+    private static volatile Executor defaultExecutor;
+
+    /** The timer, created on first use. */
+    private static volatile ScheduledExecutorService timer;
+
+    /**
+     * Instantiates a new mail executors.
+     */
+    private MailExecutors() {}
+
+    /**
+     * Gets the default executor. Unless replaced through {@link #setDefaultExecutor(Executor)}
+     * this is a pool of daemon threads sized for blocking SMTP I/O rather than the common
+     * fork-join pool.
+     * @return the default executor
+     */
+    public static Executor getDefaultExecutor() {
+        Executor executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (MailExecutors.class) {
+                executor = defaultExecutor;
+                if (executor == null) {
+                    final int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+                    final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L,
+                            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            daemonThreadFactory("simple-email-send"));
+                    pool.allowCoreThreadTimeOut(true);
+                    executor = pool;
+                    defaultExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Replaces the default executor.
+     * @param executor
+     *            the executor to use for asynchronous sends
+     */
+    public static void setDefaultExecutor(final Executor executor) {
+        defaultExecutor = executor;
+    }
+
+    /**
+     * Gets the timer shared by the library's timeouts. It runs short tasks only, such as
+     * closing a connection whose time ran out, on a single daemon thread. Cancelled tasks are
+     * removed from its queue at once, so arming and disarming a timeout per I/O operation does
+     * not build up garbage.
+     * @return the timer
+     */
+    public static ScheduledExecutorService getTimer() {
+        ScheduledExecutorService scheduler = timer;
+        if (scheduler == null) {
+            synchronized (MailExecutors.class) {
+                scheduler = timer;
+                if (scheduler == null) {
+                    final ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1,
+                            daemonThreadFactory("simple-email-timer"));
+                    pool.setRemoveOnCancelPolicy(true);
+                    scheduler = pool;
+                    timer = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Creates a thread factory producing named daemon threads.
+     * @param prefix
+     *            the thread name prefix
+     * @return the thread factory
+     */
+    public static ThreadFactory daemonThreadFactory(final String prefix) {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
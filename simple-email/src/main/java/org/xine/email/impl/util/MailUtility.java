@@ -15,12 +15,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 
 import javax.mail.Address;
+import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Transport;
@@ -37,11 +39,19 @@ import org.xine.email.api.InvalidAddressException;
 import org.xine.email.api.MailException;
 import org.xine.email.api.RecipientType;
 import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendResult;
 import org.xine.email.api.SessionConfig;
 import org.xine.email.impl.BaseMailMessage;
+import org.xine.email.impl.FrozenMessage;
 import org.xine.email.impl.MailSessionAuthenticator;
+import org.xine.email.impl.RootMimeMessage;
+import org.xine.email.impl.transport.SendDeadline;
+import org.xine.email.impl.transport.SmtpFailures;
+import org.xine.email.impl.transport.SmtpTimeouts;
+import org.xine.email.impl.transport.TimeoutSocketFactory;
 
 import com.sun.mail.smtp.SMTPMessage;
+import com.sun.mail.smtp.SMTPTransport;
 
 /**
  * The Class MailUtility.
@@ -66,12 +76,7 @@ public final class MailUtility {
      */
     public static InternetAddress internetAddress(final String address)
             throws InvalidAddressException {
-        try {
-            return new InternetAddress(address);
-        } catch (final AddressException e) {
-            throw new InvalidAddressException(
-                    "Must be in format of a@b.com or Name<a@b.com> but was: \"" + address + "\"", e);
-        }
+        return InternetAddressCache.getDefault().get(address);
     }
 
     /**
@@ -104,6 +109,32 @@ public final class MailUtility {
      */
     public static InternetAddress internetAddress(final String address, final String name)
             throws InvalidAddressException {
+        return InternetAddressCache.getDefault().get(address, name);
+    }
+
+    /**
+     * Parses an address, bypassing the {@link InternetAddressCache}.
+     * @param address
+     *            the address
+     * @param name
+     *            the name to set
+     * @param named
+     *            whether to set the name, otherwise the one of the address is kept
+     * @return the internet address
+     * @throws InvalidAddressException
+     *             the invalid address exception
+     */
+    static InternetAddress parseInternetAddress(final String address, final String name,
+            final boolean named) throws InvalidAddressException {
+        if (!named) {
+            try {
+                return new InternetAddress(address);
+            } catch (final AddressException e) {
+                throw new InvalidAddressException(
+                        "Must be in format of a@b.com or Name<a@b.com> but was: \"" + address
+                                + "\"", e);
+            }
+        }
         InternetAddress internetAddress;
         try {
             internetAddress = new InternetAddress(address);
@@ -177,16 +208,12 @@ public final class MailUtility {
     }
 
     /**
-     * Gets the host name.
+     * Gets the host name. It is looked up once, on first use, as resolving it may go through
+     * DNS.
      * @return the host name
      */
     public static String getHostName() {
-        try {
-            final java.net.InetAddress localMachine = java.net.InetAddress.getLocalHost();
-            return localMachine.getHostName();
-        } catch (final UnknownHostException e) {
-            return "localhost";
-        }
+        return HostName.VALUE;
     }
 
     /**
@@ -266,6 +293,12 @@ public final class MailUtility {
             props.put(MailUtility.DOMAIN_PROPERTY_KEY, mailConfig.getDomainName());
         }
 
+        SmtpTimeouts.setProperties(mailConfig, props);
+        final SmtpTimeouts timeouts = SmtpTimeouts.of(props);
+        if (timeouts.isLimited() && !Boolean.TRUE.equals(mailConfig.getEnableSsl())) {
+            props.put("mail.smtp.socketFactory", new TimeoutSocketFactory(timeouts));
+        }
+
         if (mailConfig.getUsername() != null && mailConfig.getUsername().length() != 0
                 && mailConfig.getPassword() != null && mailConfig.getPassword().length() != 0) {
             final MailSessionAuthenticator authenticator = new MailSessionAuthenticator(
@@ -291,7 +324,32 @@ public final class MailUtility {
         return header;
     }
 
+    /**
+     * Creates the MIME message to send for an email message: its frozen form if it has one,
+     * otherwise one built from its fields.
+     * @param e
+     *            the email message
+     * @param session
+     *            the session
+     * @return the MIME message
+     * @see FrozenMessage
+     */
     public static SMTPMessage createMimeMessage(final EmailMessage e, final Session session) {
+        if (e.getFrozenMessage() != null) {
+            return e.getFrozenMessage().toMimeMessage(session, e);
+        }
+        return buildMimeMessage(e, session);
+    }
+
+    /**
+     * Builds a MIME message from the fields of an email message, ignoring any frozen form.
+     * @param e
+     *            the email message
+     * @param session
+     *            the session
+     * @return the MIME message
+     */
+    public static SMTPMessage buildMimeMessage(final EmailMessage e, final Session session) {
         final BaseMailMessage b = new BaseMailMessage(session, e.getCharset(),
                 e.getRootContentType());
 
@@ -309,6 +367,7 @@ public final class MailUtility {
         b.setImportance(e.getImportance());
         b.addHeaders(e.getHeaders());
         b.setEnvelopeFrom(MailUtility.nullSafeAddress(e.getEnvelopeFrom()));
+        b.setEnvelopeRecipients(e.getEnvelopeRecipients());
 
         if (e.getSubject() != null) {
             b.setSubject(e.getSubject());
@@ -360,16 +419,263 @@ public final class MailUtility {
      */
     public static void send(final EmailMessage e, final Session session) throws SendFailedException {
         final SMTPMessage msg = MailUtility.createMimeMessage(e, session);
+        final SendDeadline deadline = SendDeadline.start(session);
+        Transport transport = null;
         try {
-            Transport.send(msg);
+            msg.saveChanges();
+            transport = session.getTransport("smtp");
+            transport.connect();
+            transport.sendMessage(msg, MailUtility.getEnvelopeRecipients(msg));
         } catch (final MessagingException e1) {
-            throw new SendFailedException("Send Failed", e1);
+            updateMessageIdIfDelivered(e, msg, e1);
+            throw SmtpFailures.sendFailed("Send Failed", e1, isDataCommitted(msg));
+        } finally {
+            // The message is accepted once sendMessage returns, so a failed QUIT is no failure
+            if (transport != null) {
+                MailUtility.closeQuietly(transport);
+            }
+            deadline.close();
         }
 
+        MailUtility.updateMessageId(e, msg);
+    }
+
+    /**
+     * Sends a batch of messages over a single SMTP connection, issuing RSET between messages.
+     * Each MIME message is built just before it is sent so the batch is never held in memory as
+     * a whole. A rejected message is recorded in its {@link SendResult} and the batch continues;
+     * if the connection is lost it is reopened, and if it can not be reopened the remaining
+     * messages are reported as failed.
+     * @param emailMessages
+     *            the email messages
+     * @param session
+     *            the session
+     * @return one {@link SendResult} per message, in iteration order
+     */
+    public static List<SendResult> sendAll(final Collection<EmailMessage> emailMessages,
+            final Session session) {
+        final List<SendResult> results = new ArrayList<>(emailMessages.size());
+        Transport transport = null;
+        boolean dirty = false;
+        SendFailedException connectFailure = null;
+
+        try {
+            for (final EmailMessage e : emailMessages) {
+                if (connectFailure != null) {
+                    results.add(new SendResult(e, connectFailure));
+                    continue;
+                }
+
+                final SMTPMessage msg;
+                try {
+                    msg = MailUtility.createMimeMessage(e, session);
+                    msg.saveChanges();
+                } catch (final MessagingException e1) {
+                    results.add(new SendResult(e, new SendFailedException("Send Failed", e1)));
+                    continue;
+                } catch (final MailException e1) {
+                    results.add(new SendResult(e, e1));
+                    continue;
+                }
+
+                final SendDeadline deadline = SendDeadline.start(session);
+                try {
+                    if (transport != null && dirty && !MailUtility.reset(transport)) {
+                        MailUtility.closeQuietly(transport);
+                        transport = null;
+                    }
+
+                    if (transport == null) {
+                        try {
+                            transport = session.getTransport("smtp");
+                            transport.connect();
+                        } catch (final MessagingException e1) {
+                            transport = null;
+                            connectFailure = SmtpFailures.sendFailed("Unable to connect", e1);
+                            results.add(new SendResult(e, connectFailure));
+                            continue;
+                        }
+                    }
+
+                    try {
+                        dirty = true;
+                        transport.sendMessage(msg, MailUtility.getEnvelopeRecipients(msg));
+                        MailUtility.updateMessageId(e, msg);
+                        results.add(new SendResult(e));
+                    } catch (final MessagingException e1) {
+                        updateMessageIdIfDelivered(e, msg, e1);
+                        results.add(new SendResult(e, SmtpFailures.sendFailed("Send Failed", e1,
+                                isDataCommitted(msg))));
+                        if (!transport.isConnected()) {
+                            MailUtility.closeQuietly(transport);
+                            transport = null;
+                        }
+                    } catch (final MailException e1) {
+                        results.add(new SendResult(e, e1));
+                    }
+                } finally {
+                    deadline.close();
+                }
+            }
+        } finally {
+            if (transport != null) {
+                MailUtility.closeQuietly(transport);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Gets the envelope recipients of a MIME message: those set on it explicitly, otherwise all
+     * its recipients. Fails the way {@link Transport#send} does when there are none.
+     * @param msg
+     *            the MIME message
+     * @return the envelope recipients
+     * @throws MessagingException
+     *             if the message has no recipients
+     */
+    public static Address[] getEnvelopeRecipients(final Message msg) throws MessagingException {
+        if (msg instanceof RootMimeMessage
+                && ((RootMimeMessage) msg).getEnvelopeRecipients() != null) {
+            return ((RootMimeMessage) msg).getEnvelopeRecipients();
+        }
+        final Address[] recipients = msg.getAllRecipients();
+        if (recipients == null || recipients.length == 0) {
+            throw new javax.mail.SendFailedException("No recipient addresses");
+        }
+        return recipients;
+    }
+
+    /**
+     * Gets the envelope recipients of a message, each address once.
+     * @param e
+     *            the email message
+     * @return the envelope recipients if set, otherwise the To, Cc and Bcc addresses
+     */
+    public static List<InternetAddress> getEnvelopeRecipients(final EmailMessage e) {
+        final Set<InternetAddress> recipients = new LinkedHashSet<>();
+        if (!e.getEnvelopeRecipients().isEmpty()) {
+            recipients.addAll(e.getEnvelopeRecipients());
+        } else {
+            recipients.addAll(e.getToAddresses());
+            recipients.addAll(e.getCcAddresses());
+            recipients.addAll(e.getBccAddresses());
+        }
+        return new ArrayList<>(recipients);
+    }
+
+    /**
+     * Counts the envelope recipients of a message.
+     * @param e
+     *            the email message
+     * @return the number of envelope recipients if set, otherwise of To, Cc and Bcc addresses
+     */
+    public static int getRecipientCount(final EmailMessage e) {
+        if (!e.getEnvelopeRecipients().isEmpty()) {
+            return e.getEnvelopeRecipients().size();
+        }
+        return e.getToAddresses().size() + e.getCcAddresses().size()
+                + e.getBccAddresses().size();
+    }
+
+    /**
+     * Issues RSET on an open transport so the next message starts a clean transaction.
+     * @param transport
+     *            the transport
+     * @return true if the server accepted the RSET
+     */
+    public static boolean reset(final Transport transport) {
+        if (!(transport instanceof SMTPTransport)) {
+            return transport.isConnected();
+        }
+        try {
+            return ((SMTPTransport) transport).simpleCommand("RSET") == 250;
+        } catch (final MessagingException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether a transport got as far as writing the content of a MIME message, which it
+     * only does once the server has accepted DATA.
+     * @param msg
+     *            the MIME message
+     * @return true if the content has been written
+     */
+    public static boolean isDataCommitted(final SMTPMessage msg) {
+        return msg instanceof RootMimeMessage && ((RootMimeMessage) msg).isWritten();
+    }
+
+    /**
+     * Closes a transport, ignoring any failure.
+     * @param transport
+     *            the transport
+     */
+    public static void closeQuietly(final Transport transport) {
+        try {
+            transport.close();
+        } catch (final MessagingException e) {
+            // Nothing left to clean up
+        }
+    }
+
+    /**
+     * Copies the Message-ID of a sent MIME message back onto the {@link EmailMessage}.
+     * @param e
+     *            the email message
+     * @param msg
+     *            the sent MIME message
+     * @throws SendFailedException
+     *             if the Message-ID can not be read
+     */
+    public static void updateMessageId(final EmailMessage e, final SMTPMessage msg)
+            throws SendFailedException {
         try {
             e.setMessageId(MailUtility.headerStripper(msg.getMessageID()));
         } catch (final MessagingException e1) {
             throw new SendFailedException("Unable to read Message-ID from sent message");
         }
     }
+
+    /**
+     * Records the Message-ID of a message some recipients were sent before the send failed, so
+     * that resending it to the others keeps the same Message-ID.
+     * @param e
+     *            the email message
+     * @param msg
+     *            the MIME message
+     * @param failure
+     *            the failure
+     */
+    public static void updateMessageIdIfDelivered(final EmailMessage e, final SMTPMessage msg,
+            final Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause() != t ? t.getCause() : null) {
+            if (t instanceof javax.mail.SendFailedException) {
+                final Address[] sent = ((javax.mail.SendFailedException) t)
+                        .getValidSentAddresses();
+                if (sent != null && sent.length > 0) {
+                    updateMessageId(e, msg);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Holds the host name, resolved when first asked for.
+     */
+    private static final class HostName {
+
+        /** The host name. */
+        static final String VALUE = resolve();
+
+        private static String resolve() {
+            try {
+                final java.net.InetAddress localMachine = java.net.InetAddress.getLocalHost();
+                return localMachine.getHostName();
+            } catch (final UnknownHostException e) {
+                return "localhost";
+            }
+        }
+    }
 }
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xine.email.api.AddressValidationResult;
+import org.xine.email.impl.util.AddressValidator;
+
+/**
+ */
+public class AddressValidatorTest {
+
+    @Test
+    public void testResultsFollowInputOrder() {
+        final List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++) {
+            addresses.add(i % 7 == 0 ? "user" + i + "@@domain.test" : "User " + i + " <user" + i
+                    + "@domain.test>");
+        }
+
+        final List<AddressValidationResult> results = AddressValidator.validateAll(addresses);
+
+        Assert.assertEquals(addresses.size(), results.size());
+        for (int i = 0; i < addresses.size(); i++) {
+            final AddressValidationResult result = results.get(i);
+            Assert.assertEquals(addresses.get(i), result.getInput());
+            Assert.assertEquals(i % 7 != 0, result.isValid());
+            if (result.isValid()) {
+                Assert.assertEquals("user" + i + "@domain.test", result.getAddress().getAddress());
+                Assert.assertNull(result.getReason());
+            } else {
+                Assert.assertNull(result.getAddress());
+                Assert.assertNotNull(result.getReason());
+            }
+        }
+    }
+
+    @Test
+    public void testReasons() {
+        final List<AddressValidationResult> results = AddressValidator.validateAll(Arrays.asList(
+                "seam.domain.test", "@domain.test", "seam@", "woo foo @bar.com", "  ", null,
+                "Seam Seamerson<seam@domain.test>"));
+
+        Assert.assertEquals("Missing final '@domain'", results.get(0).getReason());
+        Assert.assertEquals("Missing local name", results.get(1).getReason());
+        Assert.assertEquals("Missing domain", results.get(2).getReason());
+        Assert.assertEquals("Local address contains control or whitespace", results.get(3)
+                .getReason());
+        Assert.assertFalse(results.get(4).isValid());
+        Assert.assertFalse(results.get(5).isValid());
+        Assert.assertTrue(results.get(6).isValid());
+    }
+
+    @Test
+    public void testAgreesWithInternetAddress() {
+        final Random random = new Random(7);
+        final char[] alphabet = "ab..-_@@  \t\u0001<>\"(),;:x1".toCharArray();
+        for (int n = 0; n < 50000; n++) {
+            final char[] chars = new char[random.nextInt(12)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            final String address = new String(chars);
+            Assert.assertEquals(address, isValid(address), AddressValidator.validate(address)
+                    .isValid());
+        }
+    }
+
+    private static boolean isValid(final String address) {
+        try {
+            new InternetAddress(address).validate();
+            return true;
+        } catch (final AddressException | RuntimeException e) {
+            return false;
+        }
+    }
+}
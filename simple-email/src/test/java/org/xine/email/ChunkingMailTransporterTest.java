@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.mail.MessagingException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+import org.xine.email.api.ContentDisposition;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.SendResult;
+import org.xine.email.impl.ChunkingMailTransporter;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.SimpleMailConfig;
+import org.xine.email.impl.attachments.StreamingFileAttachment;
+
+/**
+ */
+public class ChunkingMailTransporterTest {
+
+    String fromAddress = "seam@jboss.org";
+
+    @Test
+    public void testRecipientsAreSentInChunks() throws MessagingException {
+        final SimpleMailConfig mailConfig = chunkingConfig();
+        mailConfig.setMaxRecipientsPerMessage(2);
+
+        final Wiser wiser = startWiser(mailConfig);
+        final List<SendResult> results;
+        final EmailMessage e = message(5);
+        try {
+            results = new ChunkingMailTransporter(mailConfig).sendChunked(e);
+        } finally {
+            stop(wiser);
+        }
+
+        Assert.assertEquals(3, results.size());
+        for (final SendResult result : results) {
+            Assert.assertTrue(result.isSuccess());
+        }
+        Assert.assertEquals(1, results.get(2).getEmailMessage().getEnvelopeRecipients().size());
+        assertDeliveredOnce(wiser, 5, e.getMessageId());
+    }
+
+    @Test
+    public void testCapIsLearnedFromServer() throws MessagingException {
+        final SimpleMailConfig mailConfig = chunkingConfig();
+        mailConfig.setMaxRecipientsPerMessage(10);
+
+        final Wiser wiser = startWiser(mailConfig);
+        wiser.getServer().setMaxRecipients(3);
+        final ChunkingMailTransporter transporter = new ChunkingMailTransporter(mailConfig);
+        final List<SendResult> results;
+        final EmailMessage e = message(7);
+        try {
+            results = transporter.sendChunked(e);
+        } finally {
+            stop(wiser);
+        }
+
+        Assert.assertEquals(3, transporter.getMaxRecipients());
+        for (final SendResult result : results) {
+            Assert.assertTrue(result.isSuccess());
+        }
+        assertDeliveredOnce(wiser, 7, e.getMessageId());
+    }
+
+    @Test
+    public void testDuplicateRecipientsAreSentOnce() throws MessagingException {
+        final SimpleMailConfig mailConfig = chunkingConfig();
+
+        final Wiser wiser = startWiser(mailConfig);
+        final EmailMessage e = new MailMessageImpl(mailConfig).from(this.fromAddress)
+                .to("user0@seam-mail.test", "user1@seam-mail.test").bcc("user0@seam-mail.test")
+                .subject("Duplicates").bodyText("Duplicates").getEmailMessage();
+        try {
+            new ChunkingMailTransporter(mailConfig).send(e);
+        } finally {
+            stop(wiser);
+        }
+
+        assertDeliveredOnce(wiser, 2, e.getMessageId());
+    }
+
+    private SimpleMailConfig chunkingConfig() {
+        final SimpleMailConfig mailConfig = new SimpleMailConfig();
+        mailConfig.setServerPort(25259);
+        return mailConfig;
+    }
+
+    @Test
+    public void testStreamedAttachmentIsSentInEveryChunk() throws Exception {
+        final SimpleMailConfig mailConfig = chunkingConfig();
+        mailConfig.setMaxRecipientsPerMessage(1);
+        final Path file = Files.createTempFile("chunked", ".txt");
+        final List<SendResult> results;
+        final EmailMessage e = message(3);
+        final Wiser wiser = startWiser(mailConfig);
+        try {
+            Files.write(file, "Streamed content".getBytes(StandardCharsets.US_ASCII));
+            e.addAttachment(new StreamingFileAttachment(ContentDisposition.ATTACHMENT, file));
+            results = new ChunkingMailTransporter(mailConfig).sendChunked(e);
+        } finally {
+            stop(wiser);
+            Files.deleteIfExists(file);
+        }
+
+        Assert.assertEquals(3, results.size());
+        assertDeliveredOnce(wiser, 3, e.getMessageId());
+        for (final WiserMessage received : wiser.getMessages()) {
+            Assert.assertTrue(new String(received.getData(), StandardCharsets.US_ASCII)
+                    .contains("Streamed content"));
+        }
+    }
+
+    private EmailMessage message(final int recipients) {
+        final String[] to = new String[recipients];
+        for (int i = 0; i < recipients; i++) {
+            to[i] = "user" + i + "@seam-mail.test";
+        }
+        return new MailMessageImpl(chunkingConfig()).from(this.fromAddress).bcc(to)
+                .subject("Chunked").bodyText("Chunked").getEmailMessage();
+    }
+
+    private static void assertDeliveredOnce(final Wiser wiser, final int recipients,
+            final String messageId) throws MessagingException {
+        Assert.assertEquals(recipients, wiser.getMessages().size());
+        final Set<String> receivers = new HashSet<>();
+        final List<String> messageIds = new ArrayList<>();
+        for (final WiserMessage message : wiser.getMessages()) {
+            receivers.add(message.getEnvelopeReceiver());
+            messageIds.add(message.getMimeMessage().getMessageID());
+        }
+        Assert.assertEquals(recipients, receivers.size());
+        for (final String id : messageIds) {
+            Assert.assertEquals("<" + messageId + ">", id);
+        }
+    }
+
+    private static Wiser startWiser(final SimpleMailConfig mailConfig) {
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.start();
+        return wiser;
+    }
+
+    private static void stop(final Wiser wiser) {
+        try {
+            wiser.stop();
+            Thread.sleep(100);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
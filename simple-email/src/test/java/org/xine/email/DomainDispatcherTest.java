@@ -0,0 +1,249 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendResult;
+import org.xine.email.impl.MailTransporterImpl;
+import org.xine.email.impl.SimpleMailConfig;
+import org.xine.email.impl.queue.DomainDispatcher;
+import org.xine.email.impl.queue.DomainPolicy;
+import org.xine.email.impl.util.MailUtility;
+
+/**
+ */
+public class DomainDispatcherTest {
+
+    String fromAddress = "seam@jboss.org";
+
+    private final List<EmailMessage> sent = Collections
+            .synchronizedList(new ArrayList<EmailMessage>());
+
+    private final MailTransporter recordingTransporter = new MailTransporter() {
+        @Override
+        public EmailMessage send(final EmailMessage emailMessage) {
+            DomainDispatcherTest.this.sent.add(emailMessage);
+            return emailMessage;
+        }
+    };
+
+    @Test
+    public void testMessageIsSplitByDomain() {
+        final DomainDispatcher dispatcher = new DomainDispatcher(this.recordingTransporter);
+        try {
+            final EmailMessage e = message("Split", "a@one.test", "b@two.test");
+            e.addCc(MailUtility.internetAddress("c@ONE.test"));
+
+            final List<SendResult> results = dispatcher.dispatch(e).join();
+
+            Assert.assertEquals(2, results.size());
+            Assert.assertEquals(2, this.sent.size());
+            final Set<String> messageIds = new HashSet<>();
+            for (final SendResult result : results) {
+                Assert.assertTrue(result.isSuccess());
+                final EmailMessage part = result.getEmailMessage();
+                messageIds.add(part.getMessageId());
+                Assert.assertEquals(e.getToAddresses(), part.getToAddresses());
+                Assert.assertEquals(e.getCcAddresses(), part.getCcAddresses());
+            }
+            Assert.assertEquals(Collections.singleton(e.getMessageId()), messageIds);
+            Assert.assertEquals(2, results.get(0).getEmailMessage().getEnvelopeRecipients()
+                    .size());
+            Assert.assertEquals("b@two.test", results.get(1).getEmailMessage()
+                    .getEnvelopeRecipients().get(0).getAddress());
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void testSlowDomainDoesNotHoldUpOthers() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger slowInFlight = new AtomicInteger();
+        final AtomicInteger slowMaxInFlight = new AtomicInteger();
+        final MailTransporter transporter = new MailTransporter() {
+            @Override
+            public EmailMessage send(final EmailMessage emailMessage) {
+                if (emailMessage.getToAddresses().get(0).getAddress().endsWith("@slow.test")) {
+                    final int inFlight = slowInFlight.incrementAndGet();
+                    slowMaxInFlight.accumulateAndGet(inFlight, Math::max);
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    slowInFlight.decrementAndGet();
+                }
+                return emailMessage;
+            }
+        };
+
+        final DomainPolicy slowPolicy = new DomainPolicy();
+        slowPolicy.setMaxConcurrentSends(1);
+        final DomainDispatcher dispatcher = new DomainDispatcher(transporter);
+        dispatcher.setPolicy("slow.test", slowPolicy);
+        try {
+            final List<CompletableFuture<List<SendResult>>> slow = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                slow.add(dispatcher.dispatch(message("Slow " + i, "user" + i + "@slow.test")));
+            }
+            for (int i = 0; i < 5; i++) {
+                dispatcher.dispatch(message("Fast " + i, "user" + i + "@fast.test")).join();
+            }
+
+            Assert.assertEquals(1, dispatcher.getInFlightCount("slow.test"));
+            Assert.assertEquals(2, dispatcher.getQueuedCount("slow.test"));
+
+            release.countDown();
+            for (final CompletableFuture<List<SendResult>> future : slow) {
+                Assert.assertTrue(future.join().get(0).isSuccess());
+            }
+            Assert.assertEquals(1, slowMaxInFlight.get());
+        } finally {
+            release.countDown();
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void testPacingSpacesSends() {
+        final DomainPolicy policy = new DomainPolicy();
+        policy.setMaxMessagesPerSecond(10.0);
+        final DomainDispatcher dispatcher = new DomainDispatcher(this.recordingTransporter,
+                policy);
+        try {
+            final long start = System.nanoTime();
+            final List<CompletableFuture<List<SendResult>>> futures = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                futures.add(dispatcher.dispatch(message("Paced " + i, "user@paced.test")));
+            }
+            for (final CompletableFuture<List<SendResult>> future : futures) {
+                future.join();
+            }
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            Assert.assertEquals(6, this.sent.size());
+            Assert.assertTrue("Five paced sends take half a second, took " + elapsed,
+                    elapsed >= 450);
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void testClosedDispatcherFailsMessages() throws Exception {
+        final DomainPolicy policy = new DomainPolicy();
+        policy.setMaxMessagesPerSecond(1.0);
+        final DomainDispatcher dispatcher = new DomainDispatcher(this.recordingTransporter,
+                policy);
+        final List<CompletableFuture<List<SendResult>>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(dispatcher.dispatch(message("Closed " + i, "user@paced.test")));
+        }
+        dispatcher.close();
+
+        Assert.assertTrue(futures.get(0).get(1, TimeUnit.SECONDS).get(0).isSuccess());
+        Assert.assertFalse(futures.get(2).get(1, TimeUnit.SECONDS).get(0).isSuccess());
+        try {
+            dispatcher.dispatch(message("After close", "user@paced.test"));
+            Assert.fail("A closed dispatcher should refuse messages");
+        } catch (final SendFailedException e) {
+            // Expected
+        }
+        Assert.assertEquals(1, this.sent.size());
+    }
+
+    @Test
+    public void testIdleQueuesAreDropped() throws InterruptedException {
+        final DomainPolicy policy = new DomainPolicy();
+        policy.setMaxMessagesPerSecond(20.0);
+        final DomainDispatcher dispatcher = new DomainDispatcher(this.recordingTransporter,
+                policy);
+        try {
+            for (int i = 0; i < 20; i++) {
+                dispatcher.dispatch(message("Idle " + i, "user@domain" + i + ".test")).join();
+            }
+            for (int i = 0; i < 50 && dispatcher.getDomainCount() > 0; i++) {
+                Thread.sleep(20);
+            }
+
+            Assert.assertEquals(0, dispatcher.getDomainCount());
+            Assert.assertTrue(dispatcher.dispatch(message("Again", "user@domain0.test")).join()
+                    .get(0).isSuccess());
+        } finally {
+            dispatcher.close();
+        }
+        Assert.assertEquals(21, this.sent.size());
+    }
+
+    @Test
+    public void testEnvelopeRecipientsLimitDelivery() {
+        final SimpleMailConfig mailConfig = new SimpleMailConfig();
+        mailConfig.setServerPort(25258);
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.start();
+        final DomainDispatcher dispatcher = new DomainDispatcher(new MailTransporterImpl(
+                MailUtility.createSession(mailConfig)));
+        try {
+            dispatcher.send(message("Envelope", "a@one.test", "b@two.test"));
+        } finally {
+            dispatcher.close();
+            stop(wiser);
+        }
+
+        Assert.assertEquals(2, wiser.getMessages().size());
+        final Set<String> receivers = new HashSet<>();
+        for (final WiserMessage message : wiser.getMessages()) {
+            receivers.add(message.getEnvelopeReceiver());
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a@one.test", "b@two.test")),
+                receivers);
+    }
+
+    private EmailMessage message(final String subject, final String... to) {
+        final EmailMessage e = new EmailMessage();
+        e.addFrom(MailUtility.internetAddress(this.fromAddress));
+        e.addTo(MailUtility.internetAddress(to));
+        e.setSubject(subject);
+        e.setTextBody(subject);
+        return e;
+    }
+
+    private static void stop(final Wiser wiser) {
+        try {
+            wiser.stop();
+            Thread.sleep(100);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
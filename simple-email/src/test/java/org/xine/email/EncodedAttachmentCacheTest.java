@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.mail.Session;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xine.email.api.ContentDisposition;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.MimeStreamWriter;
+import org.xine.email.impl.attachments.BaseAttachment;
+import org.xine.email.impl.attachments.EncodedAttachmentCache;
+import org.xine.email.impl.attachments.EncodedContent;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.util.TestMailConfigs;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ */
+public class EncodedAttachmentCacheTest {
+
+    private final Session session = MailUtility.createSession(TestMailConfigs.standardConfig());
+
+    @Test
+    public void testSameContentIsEncodedOnce() throws Exception {
+        final EncodedAttachmentCache cache = new EncodedAttachmentCache(1024 * 1024, 1024);
+
+        final EncodedContent first = cache.get(attachment("a.pdf", "application/pdf", 4096, 1));
+        final EncodedContent second = cache.get(attachment("b.pdf", "application/pdf", 4096, 1));
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals("base64", first.getEncoding());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getEntryCount());
+        Assert.assertEquals(first.getSize(), cache.getSize());
+
+        Assert.assertNull(cache.get(attachment("small.pdf", "application/pdf", 100, 1)));
+        Assert.assertNull(new EncodedAttachmentCache(0, 0).get(attachment("c.pdf",
+                "application/pdf", 4096, 1)));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        final EncodedAttachmentCache cache = new EncodedAttachmentCache(4000, 0);
+        final BaseAttachment a = attachment("a.bin", "application/octet-stream", 1200, 1);
+        final BaseAttachment b = attachment("b.bin", "application/octet-stream", 1200, 2);
+        final BaseAttachment c = attachment("c.bin", "application/octet-stream", 1200, 3);
+
+        cache.get(a);
+        cache.get(b);
+        cache.get(a);
+        cache.get(c);
+
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertEquals(2, cache.getEntryCount());
+        Assert.assertTrue(cache.getSize() <= 4000);
+        cache.get(a);
+        Assert.assertEquals(2, cache.getHits());
+        cache.get(b);
+        Assert.assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testCachedAttachmentsAreWrittenAsEncoded() throws Exception {
+        final EncodedAttachmentCache previous = EncodedAttachmentCache.getDefault();
+        final EncodedAttachmentCache cache = new EncodedAttachmentCache(1024 * 1024, 0);
+        final EmailMessage e = message();
+        try {
+            EncodedAttachmentCache.setDefault(new EncodedAttachmentCache(0, 0));
+            final String uncached = render(e);
+
+            EncodedAttachmentCache.setDefault(cache);
+            Assert.assertEquals(uncached, render(e));
+            Assert.assertEquals(uncached, render(e));
+
+            final ByteArrayOutputStream written = new ByteArrayOutputStream();
+            new MimeStreamWriter(this.session).writeTo(e, written);
+            Assert.assertEquals(uncached, MimeStreamWriterTest.normalize(written.toByteArray()));
+        } finally {
+            EncodedAttachmentCache.setDefault(previous);
+        }
+        Assert.assertEquals(3, cache.getEntryCount());
+        Assert.assertEquals(6, cache.getHits());
+    }
+
+    private EmailMessage message() {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("Line ").append(i).append(" caf\u00e9\n");
+        }
+        final EmailMessage e = new MailMessageImpl(this.session).from("Seam <seam@jboss.org>")
+                .to("seamy.seamerson@seam-mail.test").subject("Cached")
+                .bodyHtml("<img src=\"cid:logo\"/>")
+                .addAttachment(attachment("logo.png", "image/png", 3000, 7))
+                .addAttachment(new BaseAttachment("notes.txt", "text/plain; charset=utf-8",
+                        ContentDisposition.ATTACHMENT, text.toString().getBytes(
+                                StandardCharsets.UTF_8)))
+                .addAttachment(new BaseAttachment("readme.txt", "text/plain",
+                        ContentDisposition.ATTACHMENT, "Read me".getBytes(
+                                StandardCharsets.US_ASCII))).getEmailMessage();
+        e.setMessageId("cache-test@xine.test");
+        return e;
+    }
+
+    private String render(final EmailMessage e) throws Exception {
+        final SMTPMessage msg = MailUtility.buildMimeMessage(e, this.session);
+        msg.saveChanges();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        msg.writeTo(bytes);
+        return MimeStreamWriterTest.normalize(bytes.toByteArray());
+    }
+
+    private static BaseAttachment attachment(final String fileName, final String mimeType,
+            final int size, final int seed) {
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return new BaseAttachment(fileName, mimeType, ContentDisposition.INLINE, bytes);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.util.Random;
+
+import javax.mail.internet.MimeUtility;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xine.email.api.Header;
+import org.xine.email.api.MessagePriority;
+import org.xine.email.impl.util.HeaderEncoder;
+
+/**
+ */
+public class HeaderEncoderTest {
+
+    @Test
+    public void testFoldMatchesMimeUtility() {
+        final Random random = new Random(42);
+        final char[] alphabet = "abcdefghij  \t\t\r\n-=".toCharArray();
+        for (int n = 0; n < 5000; n++) {
+            final char[] chars = new char[random.nextInt(300)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = random.nextInt(8) == 0 ? alphabet[10 + random.nextInt(8)]
+                        : alphabet[random.nextInt(10)];
+            }
+            final String s = new String(chars);
+            final int used = random.nextInt(40);
+            Assert.assertEquals(MimeUtility.fold(used, s), HeaderEncoder.fold(used, s));
+        }
+    }
+
+    @Test
+    public void testEncodeMatchesMimeUtility() throws Exception {
+        final String[] values = { "Spring campaign",
+                "Les soldes d'\u00e9t\u00e9 commencent aujourd'hui dans tous nos magasins partout",
+                "\u65e5\u672c\u8a9e\u306e\u4ef6\u540d", "<seam@jboss.org>",
+                "A rather long plain subject line that does not fit into the first header line" };
+        for (final String value : values) {
+            Assert.assertEquals(MimeUtility.fold(9, MimeUtility.encodeText(value, "UTF-8", null)),
+                    HeaderEncoder.encode("Subject", value, "UTF-8"));
+            Assert.assertEquals(MimeUtility.fold(12, MimeUtility.encodeText(value)),
+                    HeaderEncoder.encode("X-Campaign", value));
+        }
+    }
+
+    @Test
+    public void testConstantHeadersAreNotCopied() {
+        final String value = MessagePriority.HIGH.getImportance();
+        Assert.assertSame(value, new Header("Importance", value).getValue());
+    }
+}
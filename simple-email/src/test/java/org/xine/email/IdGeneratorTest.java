@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xine.email.impl.util.IdGenerator;
+import org.xine.email.impl.util.IdGenerators;
+import org.xine.email.impl.util.MailUtility;
+
+/**
+ */
+public class IdGeneratorTest {
+
+    @Test
+    public void testIdsAreUniqueAcrossThreads() throws InterruptedException {
+        final IdGenerator generator = new IdGenerators.NodeIdGenerator();
+        final Set<String> ids = ConcurrentHashMap.newKeySet();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    ids.add(generator.nextContentId());
+                }
+            }));
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(80000, ids.size());
+    }
+
+    @Test
+    public void testGeneratorsDoNotCollide() {
+        final String first = new IdGenerators.NodeIdGenerator().nextContentId();
+        final String second = new IdGenerators.NodeIdGenerator().nextContentId();
+        Assert.assertFalse(first.equals(second));
+    }
+
+    @Test
+    public void testMessageIdDomain() {
+        final IdGenerator generator = new IdGenerators.NodeIdGenerator();
+        Assert.assertTrue(generator.nextMessageId("xine.test").endsWith("@xine.test"));
+        Assert.assertTrue(generator.nextMessageId(null).endsWith("@" + MailUtility.getHostName()));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import javax.mail.internet.InternetAddress;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xine.email.api.InvalidAddressException;
+import org.xine.email.impl.util.InternetAddressCache;
+
+/**
+ */
+public class InternetAddressCacheTest {
+
+    @Test
+    public void testCachedAddressesAreCopies() throws Exception {
+        final InternetAddressCache cache = new InternetAddressCache(16);
+
+        final InternetAddress first = cache.get("Seam Seamerson<seam@domain.test>");
+        first.setPersonal("Changed");
+        final InternetAddress second = cache.get("Seam Seamerson<seam@domain.test>");
+
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals("Seam Seamerson", second.getPersonal());
+        Assert.assertEquals("seam@domain.test", second.getAddress());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testPersonalNameIsPartOfTheKey() {
+        final InternetAddressCache cache = new InternetAddressCache(16);
+
+        Assert.assertEquals("Seam", cache.get("seam@domain.test", "Seam").getPersonal());
+        Assert.assertEquals("Other", cache.get("seam@domain.test", "Other").getPersonal());
+        Assert.assertNull(cache.get("Seam<seam@domain.test>", null).getPersonal());
+        Assert.assertEquals("Seam", cache.get("Seam<seam@domain.test>").getPersonal());
+        Assert.assertEquals(4, cache.getEntryCount());
+    }
+
+    @Test
+    public void testCacheIsBoundedAndSkipsInvalidAddresses() {
+        final InternetAddressCache cache = new InternetAddressCache(3);
+        for (int i = 0; i < 10; i++) {
+            cache.get("user" + i + "@domain.test");
+            Assert.assertTrue(cache.getEntryCount() <= 3);
+        }
+        try {
+            cache.get("woo foo @bar.com");
+            Assert.fail();
+        } catch (final InvalidAddressException e) {
+            Assert.assertTrue(e.getMessage().contains("woo foo @bar.com"));
+        }
+
+        final InternetAddressCache disabled = new InternetAddressCache(0);
+        Assert.assertEquals("Seam", disabled.get("seam@domain.test", "Seam").getPersonal());
+        Assert.assertEquals(0, disabled.getEntryCount());
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+import org.xine.email.api.MailException;
+import org.xine.email.api.SendTimeoutException;
+import org.xine.email.api.SendTimeoutException.Phase;
+import org.xine.email.impl.LoadBalancingMailTransporter;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.SimpleMailConfig;
+import org.xine.email.impl.transport.Relay;
+import org.xine.email.impl.transport.RelaySelectionStrategy;
+
+/**
+ */
+public class LoadBalancingMailTransporterTest {
+
+    String fromAddress = "seam@jboss.org";
+    String toAddress = "seamy.seamerson@seam-mail.test";
+
+    @Test
+    public void testRoundRobinSpreadsSends() {
+        final SimpleMailConfig first = relayConfig(25256);
+        final SimpleMailConfig second = relayConfig(25257);
+
+        final Wiser firstWiser = new Wiser(first.getServerPort());
+        final Wiser secondWiser = new Wiser(second.getServerPort());
+        final LoadBalancingMailTransporter transporter = new LoadBalancingMailTransporter(
+                Arrays.asList(first, second), RelaySelectionStrategy.ROUND_ROBIN);
+        try {
+            firstWiser.start();
+            secondWiser.start();
+            for (int i = 0; i < 10; i++) {
+                send(transporter, "Round robin " + i);
+            }
+        } finally {
+            transporter.close();
+            stop(firstWiser);
+            stop(secondWiser);
+        }
+
+        Assert.assertEquals(5, firstWiser.getMessages().size());
+        Assert.assertEquals(5, secondWiser.getMessages().size());
+    }
+
+    @Test
+    public void testFailoverToHealthyRelay() {
+        final SimpleMailConfig first = relayConfig(25256);
+        final SimpleMailConfig dead = relayConfig(25257);
+
+        final Wiser firstWiser = new Wiser(first.getServerPort());
+        final LoadBalancingMailTransporter transporter = new LoadBalancingMailTransporter(
+                Arrays.asList(first, dead), RelaySelectionStrategy.LEAST_OUTSTANDING);
+        final Relay deadRelay = transporter.getRelays().get(1);
+        try {
+            firstWiser.start();
+            for (int i = 0; i < 6; i++) {
+                send(transporter, "Failover " + i);
+            }
+        } finally {
+            transporter.close();
+            stop(firstWiser);
+        }
+
+        Assert.assertEquals(6, firstWiser.getMessages().size());
+        Assert.assertFalse(deadRelay.isHealthy());
+        Assert.assertTrue(transporter.getRelays().get(0).isHealthy());
+    }
+
+    @Test
+    public void testProbeRestoresRelay() {
+        final SimpleMailConfig first = relayConfig(25256);
+        final SimpleMailConfig second = relayConfig(25257);
+
+        final Wiser firstWiser = new Wiser(first.getServerPort());
+        final Wiser secondWiser = new Wiser(second.getServerPort());
+        final LoadBalancingMailTransporter transporter = new LoadBalancingMailTransporter(
+                Arrays.asList(first, second), RelaySelectionStrategy.LATENCY_WEIGHTED);
+        transporter.setFailureThreshold(1);
+        final Relay secondRelay = transporter.getRelays().get(1);
+        try {
+            firstWiser.start();
+            transporter.probe();
+            Assert.assertFalse(secondRelay.isHealthy());
+
+            for (int i = 0; i < 4; i++) {
+                send(transporter, "Probe " + i);
+            }
+            Assert.assertEquals(4, firstWiser.getMessages().size());
+
+            secondWiser.start();
+            transporter.probe();
+            Assert.assertTrue(secondRelay.isHealthy());
+        } finally {
+            transporter.close();
+            stop(firstWiser);
+            stop(secondWiser);
+        }
+    }
+
+    @Test
+    public void testMessageRejectionIsNotFailedOver() {
+        final SimpleMailConfig first = relayConfig(25256);
+        final SimpleMailConfig second = relayConfig(25257);
+
+        final Wiser firstWiser = new Wiser(first.getServerPort());
+        final Wiser secondWiser = new Wiser(second.getServerPort());
+        final LoadBalancingMailTransporter transporter = new LoadBalancingMailTransporter(
+                Arrays.asList(first, second), RelaySelectionStrategy.ROUND_ROBIN);
+        try {
+            firstWiser.start();
+            secondWiser.start();
+            transporter.send(new MailMessageImpl(first).from(this.fromAddress)
+                    .subject("No recipients").bodyText("No recipients").getEmailMessage());
+            Assert.fail("A message without recipients should fail");
+        } catch (final MailException e) {
+            Assert.assertEquals(0, transporter.getRelays().get(0).getConsecutiveFailures());
+            Assert.assertEquals(0, transporter.getRelays().get(1).getConsecutiveFailures());
+        } finally {
+            transporter.close();
+            stop(firstWiser);
+            stop(secondWiser);
+        }
+    }
+
+    @Test
+    public void testTimeoutAfterDataIsNotFailedOver() {
+        final SimpleMailConfig first = relayConfig(25256);
+        final SimpleMailConfig second = relayConfig(25257);
+        first.setDataTimeout(300L);
+        second.setDataTimeout(300L);
+
+        final Wiser stalledWiser = new Wiser(first.getServerPort()) {
+            @Override
+            public void deliver(final String from, final String recipient,
+                    final InputStream data) {
+                try {
+                    Thread.sleep(1500);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final Wiser secondWiser = new Wiser(second.getServerPort());
+        final LoadBalancingMailTransporter transporter = new LoadBalancingMailTransporter(
+                Arrays.asList(first, second), RelaySelectionStrategy.ROUND_ROBIN);
+        try {
+            stalledWiser.start();
+            secondWiser.start();
+            send(transporter, "Stalled after DATA");
+            Assert.fail("A send timing out after DATA should fail");
+        } catch (final SendTimeoutException e) {
+            Assert.assertEquals(Phase.DATA, e.getPhase());
+            Assert.assertEquals(1, transporter.getRelays().get(0).getConsecutiveFailures());
+        } finally {
+            transporter.close();
+            stop(stalledWiser);
+            stop(secondWiser);
+        }
+
+        Assert.assertEquals(0, secondWiser.getMessages().size());
+    }
+
+    private void send(final LoadBalancingMailTransporter transporter, final String subject) {
+        transporter.send(new MailMessageImpl(relayConfig(25256)).from(this.fromAddress)
+                .to(this.toAddress).subject(subject).bodyText(subject).getEmailMessage());
+    }
+
+    private static SimpleMailConfig relayConfig(final int port) {
+        final SimpleMailConfig mailConfig = new SimpleMailConfig();
+        mailConfig.setServerPort(port);
+        return mailConfig;
+    }
+
+    /**
+     * Wiser takes a fraction of a second to shutdown, so let it finish.
+     */
+    protected void stop(final Wiser wiser) {
+        wiser.stop();
+        try {
+            Thread.sleep(100);
+        } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
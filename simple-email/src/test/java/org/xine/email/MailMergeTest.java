@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+import org.xine.email.api.ContentDisposition;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailMerge;
+import org.xine.email.api.MailMergeEntry;
+import org.xine.email.api.SendResult;
+import org.xine.email.api.SessionConfig;
+import org.xine.email.api.TemplatingException;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.MailTransporterImpl;
+import org.xine.email.impl.templating.freemarker.FreeMarkerTemplate;
+import org.xine.email.impl.templating.velocity.VelocityTemplate;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.util.TestMailConfigs;
+
+/**
+ */
+public class MailMergeTest {
+
+    @Test
+    public void testPersonalizedMessagesShareTheRest() {
+        final MailMerge merge = new MailMessageImpl(TestMailConfigs.standardConfig())
+                .from("seam@jboss.org").bcc("archive@seam-mail.test")
+                .subject(new VelocityTemplate("Hello $name"))
+                .bodyHtml(new FreeMarkerTemplate("<p>${greeting}, ${name}</p>"))
+                .bodyText("Plain").put("greeting", "Welcome").put("name", "nobody")
+                .addAttachment("logo.png", "image/png", ContentDisposition.INLINE,
+                        new byte[] { 1, 2, 3 }).mailMerge();
+
+        final List<EmailMessage> messages = merge.personalize(
+                Stream.of(entry("ann@seam-mail.test", "Ann"), entry("bob@seam-mail.test", "Bob"),
+                        new MailMergeEntry("eve@seam-mail.test", null))).collect(
+                Collectors.toList());
+
+        Assert.assertEquals(3, messages.size());
+        Assert.assertEquals("Hello Ann", messages.get(0).getSubject());
+        Assert.assertEquals("<p>Welcome, Bob</p>", messages.get(1).getHtmlBody());
+        Assert.assertEquals("Hello nobody", messages.get(2).getSubject());
+        Assert.assertEquals("Plain", messages.get(2).getTextBody());
+        Assert.assertEquals("bob@seam-mail.test", messages.get(1).getToAddresses().get(0)
+                .getAddress());
+        Assert.assertEquals(1, messages.get(1).getToAddresses().size());
+        Assert.assertEquals(1, messages.get(1).getBccAddresses().size());
+        Assert.assertNull(messages.get(0).getMessageId());
+        Assert.assertSame(messages.get(0).getAttachments().get(0), messages.get(2)
+                .getAttachments().get(0));
+    }
+
+    @Test
+    public void testTemplatesMergeConcurrently() throws Exception {
+        final VelocityTemplate template = new VelocityTemplate(
+                "#set($n = $items.size())#foreach($i in $items)${name}:$i #end$n");
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<Boolean>> futures = new ArrayList<>();
+        try {
+            for (int t = 0; t < 8; t++) {
+                final String name = "T" + t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        final Map<String, Object> context = new HashMap<>();
+                        context.put("name", name);
+                        context.put("items", Arrays.asList(i, i + 1));
+                        final String expected = name + ":" + i + " " + name + ":" + (i + 1)
+                                + " 2";
+                        if (!expected.equals(template.merge(context))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (final Future<Boolean> future : futures) {
+                Assert.assertTrue(future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSendKeepsAtMostMaxInFlight() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final List<SendResult> results = Collections.synchronizedList(new ArrayList<SendResult>());
+        final MailMerge merge = new MailMessageImpl(TestMailConfigs.standardConfig())
+                .from("seam@jboss.org").subject(new VelocityTemplate("Hello $name"))
+                .bodyText(context -> {
+                    if ("Mallory".equals(context.get("name"))) {
+                        throw new TemplatingException("No mail for Mallory");
+                    }
+                    return "Hi";
+                }).mailMerge();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final long sent;
+        try {
+            sent = merge.send(e -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(2);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                return e;
+            }, IntStream.range(0, 50).mapToObj(
+                    i -> entry("user" + i + "@seam-mail.test", i == 7 ? "Mallory" : "User " + i)),
+                    results::add, 3, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(50, sent);
+        Assert.assertEquals(50, results.size());
+        Assert.assertTrue(maxInFlight.get() <= 3);
+        int failed = 0;
+        for (final SendResult result : results) {
+            if (!result.isSuccess()) {
+                failed++;
+                Assert.assertTrue(result.getFailure() instanceof TemplatingException);
+            }
+        }
+        Assert.assertEquals(1, failed);
+    }
+
+    @Test
+    public void testSendDeliversEachRecipient() {
+        final SessionConfig mailConfig = TestMailConfigs.standardConfig();
+        final MailMerge merge = new MailMessageImpl(mailConfig).from("seam@jboss.org")
+                .subject(new FreeMarkerTemplate("Report for ${name}")).bodyText("See attached")
+                .addAttachment("report.csv", "text/csv", ContentDisposition.ATTACHMENT,
+                        "a,b\n1,2\n".getBytes(StandardCharsets.US_ASCII)).mailMerge();
+        final List<SendResult> results = new ArrayList<SendResult>();
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        try {
+            wiser.start();
+            merge.send(new MailTransporterImpl(MailUtility.createSession(mailConfig)), Stream.of(
+                    entry("ann@seam-mail.test", "Ann"), entry("bob@seam-mail.test", "Bob")),
+                    results::add);
+        } finally {
+            wiser.stop();
+        }
+
+        Assert.assertEquals(2, results.size());
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertTrue(results.get(1).isSuccess());
+        Assert.assertEquals(2, wiser.getMessages().size());
+        Assert.assertEquals("bob@seam-mail.test", wiser.getMessages().get(1).getEnvelopeReceiver());
+        Assert.assertTrue(new String(wiser.getMessages().get(1).getData(),
+                StandardCharsets.US_ASCII).contains("Subject: Report for Bob"));
+    }
+
+    private static MailMergeEntry entry(final String address, final String name) {
+        final Map<String, Object> context = Collections.<String, Object> singletonMap("name",
+                name);
+        return new MailMergeEntry(address, context);
+    }
+}
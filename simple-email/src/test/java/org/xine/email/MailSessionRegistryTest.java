@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import javax.mail.Session;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xine.email.impl.MailSessionRegistry;
+import org.xine.email.impl.SimpleMailConfig;
+
+/**
+ */
+public class MailSessionRegistryTest {
+
+    @Test
+    public void testEqualConfigsShareSession() {
+        final MailSessionRegistry registry = new MailSessionRegistry();
+
+        final Session session = registry.getSession(config("localhost", 2525));
+        Assert.assertSame(session, registry.getSession(config(" LocalHost ", 2525)));
+        Assert.assertEquals(1, registry.size());
+
+        Assert.assertNotSame(session, registry.getSession(config("localhost", 2526)));
+        Assert.assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void testChangedConfigGetsNewSession() {
+        final MailSessionRegistry registry = new MailSessionRegistry();
+        final SimpleMailConfig mailConfig = config("localhost", 2525);
+
+        final Session session = registry.getSession(mailConfig);
+        mailConfig.setUsername("user");
+        mailConfig.setPassword("secret");
+        mailConfig.setAuth(true);
+
+        final Session authenticated = registry.getSession(mailConfig);
+        Assert.assertNotSame(session, authenticated);
+        Assert.assertEquals("true", authenticated.getProperty("mail.smtp.auth"));
+    }
+
+    @Test
+    public void testInvalidateAndRefresh() {
+        final MailSessionRegistry registry = new MailSessionRegistry();
+        final SimpleMailConfig mailConfig = config("localhost", 2525);
+
+        final Session session = registry.getSession(mailConfig);
+        final Session refreshed = registry.refresh(mailConfig);
+        Assert.assertNotSame(session, refreshed);
+        Assert.assertSame(refreshed, registry.getSession(mailConfig));
+
+        registry.invalidate(mailConfig);
+        Assert.assertEquals(0, registry.size());
+        Assert.assertNotSame(refreshed, registry.getSession(mailConfig));
+
+        registry.invalidateAll();
+        Assert.assertEquals(0, registry.size());
+    }
+
+    private static SimpleMailConfig config(final String host, final int port) {
+        final SimpleMailConfig mailConfig = new SimpleMailConfig();
+        mailConfig.setServerHost(host);
+        mailConfig.setServerPort(port);
+        return mailConfig;
+    }
+}
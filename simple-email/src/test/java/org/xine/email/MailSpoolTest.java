@@ -0,0 +1,183 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xine.email.api.ContentDisposition;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailException;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.MessagePriority;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.attachments.BaseAttachment;
+import org.xine.email.impl.queue.EmailMessageCodec;
+import org.xine.email.impl.queue.MailSpool;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.util.TestMailConfigs;
+
+/**
+ */
+public class MailSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    String fromAddress = "seam@jboss.org";
+    String toAddress = "seamy.seamerson@seam-mail.test";
+
+    private final List<EmailMessage> delivered = Collections
+            .synchronizedList(new ArrayList<EmailMessage>());
+
+    private final MailTransporter recordingTransporter = new MailTransporter() {
+        @Override
+        public EmailMessage send(final EmailMessage emailMessage) {
+            MailSpoolTest.this.delivered.add(emailMessage);
+            return emailMessage;
+        }
+    };
+
+    @Test
+    public void testCodecRoundTrip() throws IOException {
+        final EmailMessage e = new MailMessageImpl(TestMailConfigs.standardConfig())
+                .from(MailUtility.internetAddress(this.fromAddress, "Seam Framework"))
+                .to(this.toAddress).cc("cc@seam-mail.test").bcc("bcc@seam-mail.test").subject("Spooled é")
+                .bodyHtmlTextAlt("<b>Spooled</b>", "Spooled").importance(MessagePriority.HIGH)
+                .addHeader("X-Spool", "yes").getEmailMessage();
+        e.addAttachment(new BaseAttachment("spool.txt", "text/plain", ContentDisposition.INLINE,
+                "spooled".getBytes()));
+        e.setMessageId("spool-1@seam-mail.test");
+
+        final EmailMessage copy = EmailMessageCodec.decode(new ByteArrayInputStream(
+                EmailMessageCodec.encode(e)));
+
+        Assert.assertEquals(e.getMessageId(), copy.getMessageId());
+        Assert.assertEquals(e.getFromAddresses(), copy.getFromAddresses());
+        Assert.assertEquals("Seam Framework", copy.getFromAddresses().get(0).getPersonal());
+        Assert.assertEquals(e.getToAddresses(), copy.getToAddresses());
+        Assert.assertEquals(e.getCcAddresses(), copy.getCcAddresses());
+        Assert.assertEquals(e.getBccAddresses(), copy.getBccAddresses());
+        Assert.assertEquals(e.getSubject(), copy.getSubject());
+        Assert.assertEquals(e.getTextBody(), copy.getTextBody());
+        Assert.assertEquals(e.getHtmlBody(), copy.getHtmlBody());
+        Assert.assertEquals(e.getHeaders(), copy.getHeaders());
+        Assert.assertEquals(MessagePriority.HIGH, copy.getImportance());
+        Assert.assertEquals(e.getType(), copy.getType());
+        Assert.assertEquals(e.getRootContentType(), copy.getRootContentType());
+        Assert.assertEquals(1, copy.getAttachments().size());
+        Assert.assertEquals("spool.txt", copy.getAttachments().get(0).getFileName());
+        Assert.assertEquals(e.getAttachments().get(0).getContentId(), copy.getAttachments()
+                .get(0).getContentId());
+        Assert.assertEquals("spooled", new String(copy.getAttachments().get(0).getBytes()));
+    }
+
+    @Test
+    public void testUndeliveredMessagesSurviveRestart() throws InterruptedException {
+        final Path directory = this.folder.getRoot().toPath();
+        final List<String> messageIds = new ArrayList<>();
+
+        final MailSpool spool = new MailSpool(directory);
+        for (int i = 0; i < 3; i++) {
+            final EmailMessage e = message("Restart " + i);
+            spool.enqueue(e);
+            messageIds.add(e.getMessageId());
+        }
+        spool.close();
+
+        final MailSpool reopened = new MailSpool(directory);
+        try {
+            Assert.assertEquals(3, reopened.getPendingCount());
+            reopened.start(this.recordingTransporter, 2);
+            awaitDrained(reopened);
+
+            Assert.assertEquals(3, this.delivered.size());
+            for (final EmailMessage e : this.delivered) {
+                Assert.assertTrue(messageIds.contains(e.getMessageId()));
+            }
+        } finally {
+            reopened.close();
+        }
+
+        final MailSpool drained = new MailSpool(directory);
+        Assert.assertEquals(0, drained.getPendingCount());
+        drained.close();
+    }
+
+    @Test
+    public void testDeliveredSegmentsAreDeleted() throws InterruptedException {
+        final MailSpool spool = new MailSpool(this.folder.getRoot().toPath(), 2048);
+        try {
+            for (int i = 0; i < 50; i++) {
+                spool.enqueue(message("Compaction " + i));
+            }
+            Assert.assertTrue(spool.getSegmentCount() > 1);
+
+            spool.start(this.recordingTransporter, 4);
+            awaitDrained(spool);
+
+            Assert.assertEquals(50, this.delivered.size());
+            Assert.assertEquals(1, spool.getSegmentCount());
+            Assert.assertEquals(1, this.folder.getRoot().list().length);
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void testFailedSendIsHandedToFailureHandler() throws InterruptedException {
+        final List<MailException> failures = Collections
+                .synchronizedList(new ArrayList<MailException>());
+        final MailSpool spool = new MailSpool(this.folder.getRoot().toPath());
+        try {
+            spool.setFailureHandler((e, failure) -> failures.add(failure));
+            spool.enqueue(message("Failing"));
+            spool.start(new MailTransporter() {
+                @Override
+                public EmailMessage send(final EmailMessage emailMessage) {
+                    throw new SendFailedException("Rejected");
+                }
+            }, 1);
+            awaitDrained(spool);
+
+            Assert.assertEquals(1, failures.size());
+            Assert.assertEquals("Rejected", failures.get(0).getMessage());
+        } finally {
+            spool.close();
+        }
+    }
+
+    private EmailMessage message(final String subject) {
+        return new MailMessageImpl(TestMailConfigs.standardConfig()).from(this.fromAddress)
+                .to(this.toAddress).subject(subject).bodyText(subject).getEmailMessage();
+    }
+
+    private static void awaitDrained(final MailSpool spool) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (spool.getPendingCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, spool.getPendingCount());
+    }
+}
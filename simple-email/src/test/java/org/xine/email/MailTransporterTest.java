@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendResult;
+import org.xine.email.api.SessionConfig;
+import org.xine.email.impl.FrozenMessage;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.MailTransporterImpl;
+import org.xine.email.impl.VirtualThreadMailTransporter;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.util.TestMailConfigs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.Assert;
+
+/**
+ */
+public class MailTransporterTest {
+
+    String fromAddress = "seam@jboss.org";
+    String toAddress = "seamy.seamerson@seam-mail.test";
+
+    @Test
+    public void testSendAllReportsEachMessage() {
+        final SessionConfig mailConfig = TestMailConfigs.standardConfig();
+
+        final List<EmailMessage> batch = new ArrayList<EmailMessage>();
+        batch.add(message("First"));
+        batch.add(new MailMessageImpl(mailConfig).from(this.fromAddress).subject("No recipients")
+                .bodyText("No recipients").getEmailMessage());
+        batch.add(message("Third"));
+
+        List<SendResult> results;
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        try {
+            wiser.start();
+            results = new MailTransporterImpl(MailUtility.createSession(mailConfig))
+                    .sendAll(batch);
+        } finally {
+            stop(wiser);
+        }
+
+        Assert.assertEquals(3, results.size());
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertFalse(results.get(1).isSuccess());
+        Assert.assertNotNull(results.get(1).getFailure());
+        Assert.assertTrue(results.get(2).isSuccess());
+        Assert.assertNotNull(results.get(2).getEmailMessage().getMessageId());
+        Assert.assertEquals(2, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testSendAsyncUsesConfiguredExecutor() throws InterruptedException,
+            ExecutionException {
+        final SessionConfig mailConfig = TestMailConfigs.standardConfig();
+        final AtomicInteger executions = new AtomicInteger();
+        final Executor executor = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executions.incrementAndGet();
+                new Thread(command).start();
+            }
+        };
+
+        EmailMessage e;
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        try {
+            wiser.start();
+            final MailMessageImpl m = new MailMessageImpl(mailConfig);
+            m.setExecutor(executor);
+            final CompletableFuture<EmailMessage> future = m.from(this.fromAddress)
+                    .to(this.toAddress).subject("Async").bodyText("Async").sendAsync();
+            e = future.get();
+        } finally {
+            stop(wiser);
+        }
+
+        Assert.assertEquals(1, executions.get());
+        Assert.assertNotNull(e.getMessageId());
+        Assert.assertEquals(1, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testSendAsyncFailure() throws InterruptedException {
+        final CompletableFuture<EmailMessage> future = new MailMessageImpl(
+                TestMailConfigs.standardConfig()).from(this.fromAddress).to(this.toAddress)
+                .subject("Nobody listening").bodyText("Nobody listening").sendAsync();
+        try {
+            future.get();
+            Assert.fail("Send should have failed without a server");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SendFailedException);
+        }
+    }
+
+    @Test
+    public void testVirtualThreadTransporterRespectsCeiling() {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final MailTransporter slowTransporter = new MailTransporter() {
+            @Override
+            public EmailMessage send(final EmailMessage emailMessage) {
+                final int current = inFlight.incrementAndGet();
+                maxInFlight.accumulateAndGet(current, Math::max);
+                try {
+                    Thread.sleep(20);
+                } catch (final InterruptedException e) {
+                    throw new SendFailedException(e);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+                return emailMessage;
+            }
+        };
+
+        final List<EmailMessage> batch = new ArrayList<EmailMessage>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(message("Ceiling " + i));
+        }
+
+        final VirtualThreadMailTransporter transporter = new VirtualThreadMailTransporter(
+                slowTransporter, 3);
+        try {
+            final List<SendResult> results = transporter.sendAll(batch);
+            Assert.assertEquals(20, results.size());
+            for (final SendResult result : results) {
+                Assert.assertTrue(result.isSuccess());
+            }
+        } finally {
+            transporter.close();
+        }
+
+        Assert.assertTrue(maxInFlight.get() <= 3);
+        Assert.assertEquals(3, transporter.getAvailableSlots());
+    }
+
+    @Test
+    public void testFrozenMessageIsSentAsRendered() throws MessagingException {
+        final SessionConfig mailConfig = TestMailConfigs.standardConfig();
+        final Session session = MailUtility.createSession(mailConfig);
+
+        final EmailMessage e = message("Frozen");
+        e.addBcc(MailUtility.internetAddress("hidden@seam-mail.test"));
+        final FrozenMessage frozen = FrozenMessage.freeze(e, session);
+        e.setSubject("Changed after freezing");
+
+        final EmailMessage copy = new EmailMessage(e);
+        copy.setEnvelopeRecipients(Arrays.asList(MailUtility.internetAddress(this.toAddress)));
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        try {
+            wiser.start();
+            final MailTransporterImpl transporter = new MailTransporterImpl(session);
+            transporter.send(e);
+            transporter.send(copy);
+        } finally {
+            stop(wiser);
+        }
+
+        Assert.assertEquals(frozen.getMessageId(), e.getMessageId());
+        Assert.assertEquals(frozen.getMessageId(), copy.getMessageId());
+        Assert.assertEquals(3, wiser.getMessages().size());
+        for (final WiserMessage received : wiser.getMessages()) {
+            final MimeMessage mime = received.getMimeMessage();
+            Assert.assertEquals("Frozen", mime.getSubject());
+            Assert.assertEquals("<" + frozen.getMessageId() + ">", mime.getMessageID());
+            Assert.assertNull(mime.getHeader("Bcc"));
+        }
+        Assert.assertEquals(this.toAddress, wiser.getMessages().get(2).getEnvelopeReceiver());
+    }
+
+    private EmailMessage message(final String subject) {
+        return new MailMessageImpl(TestMailConfigs.standardConfig()).from(this.fromAddress)
+                .to(this.toAddress).subject(subject).bodyText(subject).getEmailMessage();
+    }
+
+    /**
+     * Wiser takes a fraction of a second to shutdown, so let it finish.
+     */
+    protected void stop(final Wiser wiser) {
+        wiser.stop();
+        try {
+            Thread.sleep(100);
+        } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
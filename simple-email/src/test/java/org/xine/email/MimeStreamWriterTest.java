@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xine.email.api.ContentDisposition;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailMessage;
+import org.xine.email.api.MessagePriority;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.MimeStreamWriter;
+import org.xine.email.impl.attachments.BaseAttachment;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.util.TestMailConfigs;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * Checks that {@link MimeStreamWriter} renders messages exactly as javax.mail builds them.
+ */
+public class MimeStreamWriterTest {
+
+    private static final Pattern BOUNDARY = Pattern.compile("----=_Part_[0-9]+_[0-9]+\\.[0-9]+");
+
+    private final Session session = MailUtility.createSession(TestMailConfigs.standardConfig());
+
+    @Test
+    public void testText() throws Exception {
+        assertSameAsMimeMessage(message().bodyText("Plain text\nsecond line"));
+    }
+
+    @Test
+    public void testHtmlTextAlternative() throws Exception {
+        assertSameAsMimeMessage(message().bodyHtmlTextAlt("<html><body>Hi</body></html>",
+                "Hi \u00e9t\u00e9"));
+    }
+
+    @Test
+    public void testRelatedWithInlineImages() throws Exception {
+        assertSameAsMimeMessage(message().bodyHtml("<img src=\"cid:logo\"/>")
+                .addAttachment(new BaseAttachment("logo.png", "image/png",
+                        ContentDisposition.INLINE, new byte[] { 1, 2, (byte) 0x89, 4 }))
+                .addAttachment(new BaseAttachment("notes.txt", "text/plain",
+                        ContentDisposition.ATTACHMENT, "notes".getBytes(
+                                StandardCharsets.US_ASCII))));
+    }
+
+    @Test
+    public void testHeadersAndPriority() throws Exception {
+        assertSameAsMimeMessage(message().bodyText("Headers").cc("cc@seam-mail.test")
+                .bcc("bcc@seam-mail.test").replyTo("reply@seam-mail.test")
+                .importance(MessagePriority.HIGH).deliveryReceipt("seam@jboss.org")
+                .addHeader("X-Campaign", "spring"));
+    }
+
+    @Test
+    public void testWriterBufferIsReused() {
+        final MimeStreamWriter writer = new MimeStreamWriter(this.session);
+        final EmailMessage first = message().bodyText("First").getEmailMessage();
+        final EmailMessage second = message().bodyText("Second").getEmailMessage();
+
+        writer.write(first);
+        final String firstId = writer.getMessageId();
+        final ByteBuffer written = writer.write(second);
+
+        Assert.assertFalse(firstId.equals(writer.getMessageId()));
+        Assert.assertTrue(written.isReadOnly());
+        Assert.assertTrue(StandardCharsets.US_ASCII.decode(written).toString().contains("Second"));
+    }
+
+    private MailMessage message() {
+        return new MailMessageImpl(this.session).from("Seam <seam@jboss.org>")
+                .to("seamy.seamerson@seam-mail.test").subject("Stream \u00fc writer");
+    }
+
+    private void assertSameAsMimeMessage(final MailMessage m) throws IOException,
+            MessagingException {
+        final EmailMessage e = m.getEmailMessage();
+        e.setMessageId("writer-test@xine.test");
+        Assert.assertTrue(MimeStreamWriter.supports(e));
+
+        final SMTPMessage msg = MailUtility.buildMimeMessage(e, this.session);
+        msg.saveChanges();
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        msg.writeTo(expected);
+
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        new MimeStreamWriter(this.session).writeTo(e, actual);
+
+        Assert.assertEquals(normalize(expected.toByteArray()), normalize(actual.toByteArray()));
+    }
+
+    /** Replaces boundaries by their order of appearance and drops the Date header. */
+    static String normalize(final byte[] bytes) {
+        final String s = new String(bytes, StandardCharsets.ISO_8859_1).replaceFirst(
+                "Date: [^\r]*\r\n", "");
+        final Map<String, String> names = new LinkedHashMap<String, String>();
+        final Matcher matcher = BOUNDARY.matcher(s);
+        final StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            String name = names.get(matcher.group());
+            if (name == null) {
+                name = "boundary-" + names.size();
+                names.put(matcher.group(), name);
+            }
+            matcher.appendReplacement(sb, name);
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+}
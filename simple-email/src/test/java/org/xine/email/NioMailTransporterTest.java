@@ -0,0 +1,364 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendResult;
+import org.xine.email.impl.FrozenMessage;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.NioMailTransporter;
+import org.xine.email.impl.SimpleMailConfig;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.util.PipeliningSmtpServer;
+
+/**
+ */
+public class NioMailTransporterTest {
+
+    String fromAddress = "seam@jboss.org";
+    String toAddress = "seamy.seamerson@seam-mail.test";
+    String ccAddress = "cc@seam-mail.test";
+    String bccAddress = "bcc@seam-mail.test";
+
+    @Test
+    public void testSendToWiser() throws MessagingException, IOException {
+        final SimpleMailConfig mailConfig = nioConfig();
+        final String subject = "NIO text message";
+
+        EmailMessage e;
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        final NioMailTransporter transporter = new NioMailTransporter(mailConfig);
+        try {
+            wiser.start();
+            e = new MailMessageImpl(transporter).from(this.fromAddress).to(this.toAddress)
+                    .cc(this.ccAddress).bcc(this.bccAddress).subject(subject)
+                    .bodyText("First line\n.dotted line\nLast line").send();
+        } finally {
+            transporter.close();
+            stop(wiser);
+        }
+
+        Assert.assertNotNull(e.getMessageId());
+        Assert.assertEquals("One message per envelope recipient", 3, wiser.getMessages().size());
+
+        final MimeMessage mess = wiser.getMessages().get(0).getMimeMessage();
+        Assert.assertEquals(subject, mess.getHeader("Subject", null));
+        Assert.assertEquals("<" + e.getMessageId() + ">", mess.getHeader("Message-ID", null));
+        Assert.assertTrue(new String(wiser.getMessages().get(0).getData()).contains(
+                "\r\n.dotted line\r\n"));
+
+        for (int i = 0; i < wiser.getMessages().size(); i++) {
+            Assert.assertFalse(new String(wiser.getMessages().get(i).getData()).contains(
+                    "Bcc:"));
+        }
+    }
+
+    @Test
+    public void testFrozenMessageIsSentWithoutBcc() {
+        final SimpleMailConfig mailConfig = nioConfig();
+        final EmailMessage e = new MailMessageImpl(mailConfig).from(this.fromAddress)
+                .to(this.toAddress).cc(this.ccAddress).bcc(this.bccAddress).subject("Frozen")
+                .bodyText("Frozen").getEmailMessage();
+        FrozenMessage.freeze(e, MailUtility.createSession(mailConfig));
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        final NioMailTransporter transporter = new NioMailTransporter(mailConfig);
+        try {
+            wiser.start();
+            transporter.send(e);
+        } finally {
+            transporter.close();
+            stop(wiser);
+        }
+
+        Assert.assertEquals(3, wiser.getMessages().size());
+        final List<String> receivers = new ArrayList<>();
+        for (int i = 0; i < wiser.getMessages().size(); i++) {
+            receivers.add(wiser.getMessages().get(i).getEnvelopeReceiver());
+            final String data = new String(wiser.getMessages().get(i).getData());
+            Assert.assertFalse(data.contains("Bcc:"));
+            Assert.assertTrue(data.contains("Subject: Frozen"));
+        }
+        Assert.assertTrue(receivers.contains(this.bccAddress));
+    }
+
+    @Test
+    public void testSendAllBoundsMessagesInFlight() {
+        final SimpleMailConfig mailConfig = nioConfig();
+        final List<EmailMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            messages.add(new MailMessageImpl(mailConfig).from(this.fromAddress)
+                    .to(this.toAddress).subject("Batch " + i).bodyText("Batch " + i)
+                    .getEmailMessage());
+        }
+        final List<SendResult> results;
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        final NioMailTransporter transporter = new NioMailTransporter(
+                MailUtility.createSession(mailConfig), 1, 2);
+        try {
+            wiser.start();
+            results = transporter.sendAll(messages);
+        } finally {
+            transporter.close();
+            stop(wiser);
+        }
+
+        Assert.assertEquals(10, results.size());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(results.get(i).isSuccess());
+            Assert.assertSame(messages.get(i), results.get(i).getEmailMessage());
+        }
+        Assert.assertEquals(10, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testSendAllReportsMessagesThatFailToBuild() {
+        final SimpleMailConfig mailConfig = nioConfig();
+        final EmailMessage valid = new MailMessageImpl(mailConfig).from(this.fromAddress)
+                .to(this.toAddress).subject("Valid").bodyText("Valid").getEmailMessage();
+        final EmailMessage broken = new EmailMessage(valid) {
+            @Override
+            public String getSubject() {
+                throw new IllegalStateException("Broken");
+            }
+        };
+        final List<SendResult> results;
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        final NioMailTransporter transporter = new NioMailTransporter(
+                MailUtility.createSession(mailConfig), 1, 1);
+        try {
+            wiser.start();
+            results = transporter.sendAll(Arrays.asList(valid, broken, new EmailMessage(valid)));
+        } finally {
+            transporter.close();
+            stop(wiser);
+        }
+
+        Assert.assertEquals(3, results.size());
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertFalse(results.get(1).isSuccess());
+        Assert.assertTrue(results.get(1).getFailure().getCause() instanceof IllegalStateException);
+        Assert.assertTrue(results.get(2).isSuccess());
+        Assert.assertEquals(2, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testLargeContentIsDotStuffedAcrossChunks() {
+        final SimpleMailConfig mailConfig = nioConfig();
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            body.append(".line ").append(i).append("\r\n");
+        }
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        final NioMailTransporter transporter = new NioMailTransporter(mailConfig);
+        try {
+            wiser.start();
+            new MailMessageImpl(transporter).from(this.fromAddress).to(this.toAddress)
+                    .subject("Chunked").bodyText(body.toString()).send();
+        } finally {
+            transporter.close();
+            stop(wiser);
+        }
+
+        Assert.assertEquals(1, wiser.getMessages().size());
+        final String data = new String(wiser.getMessages().get(0).getData(),
+                StandardCharsets.US_ASCII);
+        Assert.assertTrue(data.contains(body.toString()));
+        Assert.assertFalse(data.contains(".."));
+    }
+
+    @Test
+    public void testEndlessReplyLineFailsTheSession() throws IOException {
+        final SimpleMailConfig mailConfig = nioConfig();
+        final ServerSocket server = new ServerSocket(mailConfig.getServerPort());
+        final Thread flooder = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                final OutputStream out = socket.getOutputStream();
+                out.write("220 ".getBytes(StandardCharsets.US_ASCII));
+                final byte[] flood = new byte[4096];
+                Arrays.fill(flood, (byte) 'x');
+                for (int i = 0; i < 1024; i++) {
+                    out.write(flood);
+                }
+            } catch (final IOException e) {
+                // Client gave up
+            }
+        }, "flooding-smtp-server");
+        flooder.setDaemon(true);
+
+        final NioMailTransporter transporter = new NioMailTransporter(mailConfig);
+        try {
+            flooder.start();
+            transporter.send(new MailMessageImpl(mailConfig).from(this.fromAddress)
+                    .to(this.toAddress).subject("Flooded").bodyText("Flooded").getEmailMessage());
+            Assert.fail("An endless reply line should fail the send");
+        } catch (final SendFailedException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("exceeds"));
+        } finally {
+            transporter.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testManySessionsOnOneIoThread() {
+        final SimpleMailConfig mailConfig = nioConfig();
+        final List<CompletableFuture<EmailMessage>> futures = new ArrayList<>();
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        final NioMailTransporter transporter = new NioMailTransporter(
+                MailUtility.createSession(mailConfig), 1);
+        try {
+            wiser.start();
+            for (int i = 0; i < 20; i++) {
+                futures.add(transporter.sendAsync(new MailMessageImpl(mailConfig)
+                        .from(this.fromAddress).to(this.toAddress).subject("Concurrent " + i)
+                        .bodyText("Concurrent " + i).getEmailMessage()));
+            }
+            for (final CompletableFuture<EmailMessage> future : futures) {
+                Assert.assertNotNull(future.join().getMessageId());
+            }
+        } finally {
+            transporter.close();
+            stop(wiser);
+        }
+
+        Assert.assertEquals(20, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testEnvelopeIsPipelined() throws IOException {
+        final SimpleMailConfig mailConfig = pipeliningConfig();
+
+        final PipeliningSmtpServer server = new PipeliningSmtpServer(mailConfig.getServerPort(), 3);
+        final NioMailTransporter transporter = new NioMailTransporter(mailConfig);
+        try {
+            server.start();
+            new MailMessageImpl(transporter).from(this.fromAddress).to(this.toAddress)
+                    .cc(this.ccAddress).bcc(this.bccAddress).subject("Pipelined")
+                    .bodyText("Pipelined").send();
+        } finally {
+            transporter.close();
+            server.stop();
+        }
+
+        Assert.assertTrue(server.isPipelined());
+        Assert.assertEquals(1, server.getMessages().size());
+    }
+
+    @Test
+    public void testRejectedRecipientAbortsMessage() throws IOException {
+        final SimpleMailConfig mailConfig = pipeliningConfig();
+
+        final PipeliningSmtpServer server = new PipeliningSmtpServer(mailConfig.getServerPort(), 3);
+        final NioMailTransporter transporter = new NioMailTransporter(mailConfig);
+        try {
+            server.start();
+            transporter.send(new MailMessageImpl(mailConfig).from(this.fromAddress)
+                    .to(this.toAddress).cc("reject@seam-mail.test").bcc(this.bccAddress)
+                    .subject("Rejected").bodyText("Rejected").getEmailMessage());
+            Assert.fail("A rejected recipient should fail the send");
+        } catch (final SendFailedException e) {
+            final javax.mail.SendFailedException cause = (javax.mail.SendFailedException) e
+                    .getCause();
+            Assert.assertEquals(1, cause.getInvalidAddresses().length);
+            Assert.assertEquals(2, cause.getValidUnsentAddresses().length);
+        } finally {
+            transporter.close();
+            server.stop();
+        }
+
+        Assert.assertTrue(server.getCommands().contains("RSET"));
+        Assert.assertEquals(0, server.getMessages().size());
+    }
+
+    @Test
+    public void testSendPartial() throws IOException {
+        final SimpleMailConfig mailConfig = pipeliningConfig();
+        final Session session = MailUtility.createSession(mailConfig);
+        session.getProperties().setProperty("mail.smtp.sendpartial", "true");
+
+        final PipeliningSmtpServer server = new PipeliningSmtpServer(mailConfig.getServerPort(), 3);
+        final NioMailTransporter transporter = new NioMailTransporter(session, 1);
+        try {
+            server.start();
+            transporter.send(new MailMessageImpl(mailConfig).from(this.fromAddress)
+                    .to(this.toAddress).cc("reject@seam-mail.test").bcc(this.bccAddress)
+                    .subject("Partial").bodyText("Partial").getEmailMessage());
+            Assert.fail("A rejected recipient should still be reported");
+        } catch (final SendFailedException e) {
+            final javax.mail.SendFailedException cause = (javax.mail.SendFailedException) e
+                    .getCause();
+            Assert.assertEquals(2, cause.getValidSentAddresses().length);
+            Assert.assertEquals(1, cause.getInvalidAddresses().length);
+        } finally {
+            transporter.close();
+            server.stop();
+        }
+
+        Assert.assertEquals(1, server.getMessages().size());
+    }
+
+    private static SimpleMailConfig nioConfig() {
+        final SimpleMailConfig mailConfig = new SimpleMailConfig();
+        mailConfig.setServerPort(25254);
+        return mailConfig;
+    }
+
+    private static SimpleMailConfig pipeliningConfig() {
+        final SimpleMailConfig mailConfig = new SimpleMailConfig();
+        mailConfig.setServerPort(25255);
+        return mailConfig;
+    }
+
+    /**
+     * Wiser takes a fraction of a second to shutdown, so let it finish.
+     */
+    protected void stop(final Wiser wiser) {
+        wiser.stop();
+        try {
+            Thread.sleep(100);
+        } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.SendResult;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.PooledMailTransporter;
+import org.xine.email.impl.SimpleMailConfig;
+import org.xine.email.util.TestMailConfigs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+/**
+ */
+public class PooledMailTransporterTest {
+
+    String fromAddress = "seam@jboss.org";
+    String toAddress = "seamy.seamerson@seam-mail.test";
+
+    @Test
+    public void testConnectionIsReused() {
+        final SimpleMailConfig mailConfig = TestMailConfigs.pooledConfig();
+
+        final Wiser wiser = startWiser(mailConfig);
+        final PooledMailTransporter transporter = new PooledMailTransporter(mailConfig);
+        try {
+            for (int i = 0; i < 5; i++) {
+                send(transporter, "Pooled message " + i);
+            }
+        } finally {
+            transporter.close();
+            stop(wiser);
+        }
+
+        Assert.assertEquals(5, wiser.getMessages().size());
+        Assert.assertEquals(1, transporter.getPool().getConnectionsCreated());
+    }
+
+    @Test
+    public void testConnectionIsReplacedAfterMessageCap() {
+        final SimpleMailConfig mailConfig = TestMailConfigs.pooledConfig();
+        mailConfig.setPoolMaxMessagesPerConnection(2);
+
+        final Wiser wiser = startWiser(mailConfig);
+        final PooledMailTransporter transporter = new PooledMailTransporter(mailConfig);
+        try {
+            for (int i = 0; i < 5; i++) {
+                send(transporter, "Capped message " + i);
+            }
+        } finally {
+            transporter.close();
+            stop(wiser);
+        }
+
+        Assert.assertEquals(5, wiser.getMessages().size());
+        Assert.assertEquals(3, transporter.getPool().getConnectionsCreated());
+    }
+
+    @Test
+    public void testReconnectAfterServerRestart() {
+        final SimpleMailConfig mailConfig = TestMailConfigs.pooledConfig();
+
+        final PooledMailTransporter transporter = new PooledMailTransporter(mailConfig);
+        final Wiser first = startWiser(mailConfig);
+        try {
+            send(transporter, "Before restart");
+        } finally {
+            stop(first);
+        }
+
+        final Wiser second = startWiser(mailConfig);
+        try {
+            send(transporter, "After restart");
+        } finally {
+            transporter.close();
+            stop(second);
+        }
+
+        Assert.assertEquals(1, second.getMessages().size());
+        Assert.assertEquals(2, transporter.getPool().getConnectionsCreated());
+    }
+
+    @Test
+    public void testSendAllUsesOneConnection() {
+        final SimpleMailConfig mailConfig = TestMailConfigs.pooledConfig();
+
+        final List<EmailMessage> batch = new ArrayList<EmailMessage>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(new MailMessageImpl(mailConfig).from(this.fromAddress).to(this.toAddress)
+                    .subject("Batch message " + i).bodyText("Batch").getEmailMessage());
+        }
+
+        List<SendResult> results;
+
+        final Wiser wiser = startWiser(mailConfig);
+        final PooledMailTransporter transporter = new PooledMailTransporter(mailConfig);
+        try {
+            results = transporter.sendAll(batch);
+        } finally {
+            transporter.close();
+            stop(wiser);
+        }
+
+        for (final SendResult result : results) {
+            Assert.assertTrue(result.isSuccess());
+        }
+        Assert.assertEquals(10, wiser.getMessages().size());
+        Assert.assertEquals(1, transporter.getPool().getConnectionsCreated());
+    }
+
+    private void send(final PooledMailTransporter transporter, final String subject) {
+        new MailMessageImpl(transporter).from(this.fromAddress).to(this.toAddress)
+                .subject(subject).bodyText(subject).send();
+    }
+
+    private Wiser startWiser(final SimpleMailConfig mailConfig) {
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        wiser.start();
+        return wiser;
+    }
+
+    /**
+     * Wiser takes a fraction of a second to shutdown, so let it finish.
+     */
+    protected void stop(final Wiser wiser) {
+        wiser.stop();
+        try {
+            Thread.sleep(100);
+        } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.MessagePriority;
+import org.xine.email.impl.queue.PriorityMailScheduler;
+import org.xine.email.impl.util.MailUtility;
+
+/**
+ */
+public class PriorityMailSchedulerTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+    /** Blocks on messages with subject "Blocker" until released, recording the rest. */
+    private final MailTransporter blockingTransporter = new MailTransporter() {
+        @Override
+        public EmailMessage send(final EmailMessage emailMessage) {
+            if ("Blocker".equals(emailMessage.getSubject())) {
+                try {
+                    PriorityMailSchedulerTest.this.release.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                PriorityMailSchedulerTest.this.sent.add(emailMessage.getSubject());
+            }
+            return emailMessage;
+        }
+    };
+
+    @Test
+    public void testHigherPriorityGoesFirst() throws InterruptedException {
+        final PriorityMailScheduler scheduler = new PriorityMailScheduler(
+                this.blockingTransporter, 1, 0);
+        try {
+            final CompletableFuture<EmailMessage> blocker = scheduler.sendAsync(message(
+                    "Blocker", MessagePriority.LOW));
+            awaitQueueEmpty(scheduler);
+
+            final List<CompletableFuture<EmailMessage>> futures = new ArrayList<>();
+            futures.add(scheduler.sendAsync(message("Low", MessagePriority.LOW)));
+            futures.add(scheduler.sendAsync(message("Normal", MessagePriority.NORMAL)));
+            futures.add(scheduler.sendAsync(message("High", MessagePriority.HIGH)));
+            this.release.countDown();
+            blocker.join();
+            for (final CompletableFuture<EmailMessage> future : futures) {
+                future.join();
+            }
+
+            Assert.assertEquals(Arrays.asList("High", "Normal", "Low"), this.sent);
+        } finally {
+            this.release.countDown();
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void testReservedWorkerSendsHighWhileOthersAreBusy() throws Exception {
+        final PriorityMailScheduler scheduler = new PriorityMailScheduler(
+                this.blockingTransporter, 1, 1);
+        try {
+            scheduler.sendAsync(message("Blocker", MessagePriority.LOW));
+            awaitQueueEmpty(scheduler);
+            scheduler.sendAsync(message("Newsletter", MessagePriority.LOW));
+
+            scheduler.sendAsync(message("Password reset", MessagePriority.HIGH)).get(5,
+                    TimeUnit.SECONDS);
+
+            Assert.assertEquals(Collections.singletonList("Password reset"), this.sent);
+            Assert.assertEquals(1, scheduler.getQueuedCount(MessagePriority.LOW));
+        } finally {
+            this.release.countDown();
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void testWaitingLowMessageAges() throws InterruptedException {
+        final PriorityMailScheduler scheduler = new PriorityMailScheduler(
+                this.blockingTransporter, 1, 0);
+        scheduler.setAgingInterval(50);
+        try {
+            final CompletableFuture<EmailMessage> blocker = scheduler.sendAsync(message(
+                    "Blocker", MessagePriority.LOW));
+            awaitQueueEmpty(scheduler);
+
+            final CompletableFuture<EmailMessage> low = scheduler.sendAsync(message("Low",
+                    MessagePriority.LOW));
+            Thread.sleep(150);
+            final CompletableFuture<EmailMessage> high = scheduler.sendAsync(message("High",
+                    MessagePriority.HIGH));
+            this.release.countDown();
+            blocker.join();
+            low.join();
+            high.join();
+
+            Assert.assertEquals(Arrays.asList("Low", "High"), this.sent);
+        } finally {
+            this.release.countDown();
+            scheduler.close();
+        }
+    }
+
+    private static EmailMessage message(final String subject, final MessagePriority priority) {
+        final EmailMessage e = new EmailMessage();
+        e.addFrom(MailUtility.internetAddress("seam@jboss.org"));
+        e.addTo(MailUtility.internetAddress("seamy.seamerson@seam-mail.test"));
+        e.setSubject(subject);
+        e.setImportance(priority);
+        return e;
+    }
+
+    private static void awaitQueueEmpty(final PriorityMailScheduler scheduler)
+            throws InterruptedException {
+        for (int i = 0; i < 500 && scheduler.getQueuedCount(MessagePriority.LOW) > 0; i++) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.RateLimitedMailTransporter;
+import org.xine.email.impl.SimpleMailConfig;
+import org.xine.email.impl.transport.TokenBucket;
+import org.xine.email.util.TestMailConfigs;
+
+/**
+ */
+public class RateLimitedMailTransporterTest {
+
+    String fromAddress = "seam@jboss.org";
+    String toAddress = "seamy.seamerson@seam-mail.test";
+
+    private final AtomicInteger sent = new AtomicInteger();
+
+    private final MailTransporter countingTransporter = new MailTransporter() {
+        @Override
+        public EmailMessage send(final EmailMessage emailMessage) {
+            RateLimitedMailTransporterTest.this.sent.incrementAndGet();
+            return emailMessage;
+        }
+    };
+
+    @Test
+    public void testBurstIsSmoothed() {
+        final SimpleMailConfig mailConfig = new SimpleMailConfig();
+        mailConfig.setMaxMessagesPerSecond(20.0);
+        final RateLimitedMailTransporter transporter = new RateLimitedMailTransporter(
+                this.countingTransporter, mailConfig);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 30; i++) {
+            transporter.send(message(this.toAddress));
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertEquals(30, this.sent.get());
+        Assert.assertTrue("Thirty messages at twenty a second take over a second, took " + elapsed,
+                elapsed >= 1000);
+    }
+
+    @Test
+    public void testRecipientBudget() {
+        final RateLimitedMailTransporter transporter = new RateLimitedMailTransporter(
+                this.countingTransporter, null, new TokenBucket(3, 1, 1, TimeUnit.DAYS));
+
+        Assert.assertEquals(Double.POSITIVE_INFINITY, transporter.getAvailableMessages());
+        Assert.assertEquals(3, (int) transporter.getAvailableRecipients());
+
+        final EmailMessage twoRecipients = message(this.toAddress, "second@seam-mail.test");
+        Assert.assertEquals(0, transporter.estimateDelay(twoRecipients));
+        transporter.send(twoRecipients);
+
+        Assert.assertEquals(1, (int) transporter.getAvailableRecipients());
+        Assert.assertTrue(transporter.estimateDelay(twoRecipients) > TimeUnit.HOURS.toMillis(1));
+    }
+
+    @Test
+    public void testDailyQuotaStartsWithoutBurst() {
+        final SimpleMailConfig mailConfig = new SimpleMailConfig();
+        mailConfig.setMaxRecipientsPerDay(3L);
+        final RateLimitedMailTransporter transporter = new RateLimitedMailTransporter(
+                this.countingTransporter, mailConfig);
+
+        Assert.assertEquals(0, (int) transporter.getAvailableRecipients());
+        Assert.assertTrue(transporter.estimateDelay(message(this.toAddress)) > TimeUnit.HOURS
+                .toMillis(7));
+
+        try {
+            transporter.send(message(this.toAddress, "second@seam-mail.test",
+                    "third@seam-mail.test", "fourth@seam-mail.test"));
+            Assert.fail("Sent more recipients than the daily quota");
+        } catch (final SendFailedException e) {
+            // Expected
+        }
+        Assert.assertEquals(0, this.sent.get());
+    }
+
+    @Test
+    public void testUnlimitedConfig() {
+        final RateLimitedMailTransporter transporter = new RateLimitedMailTransporter(
+                this.countingTransporter, TestMailConfigs.standardConfig());
+        for (int i = 0; i < 100; i++) {
+            transporter.send(message(this.toAddress));
+        }
+        Assert.assertEquals(100, this.sent.get());
+        Assert.assertEquals(0, transporter.estimateDelay(message(this.toAddress)));
+    }
+
+    @Test
+    public void testTokenBucketTryAcquire() {
+        final TokenBucket bucket = new TokenBucket(2, 1, 1, TimeUnit.HOURS);
+        Assert.assertTrue(bucket.tryAcquire(2));
+        Assert.assertFalse(bucket.tryAcquire(1));
+        Assert.assertTrue(bucket.estimateWait(1) > TimeUnit.MINUTES.toNanos(59));
+    }
+
+    private EmailMessage message(final String... to) {
+        return new MailMessageImpl(TestMailConfigs.standardConfig()).from(this.fromAddress)
+                .to(to).subject("Rate limited").bodyText("Rate limited").getEmailMessage();
+    }
+}
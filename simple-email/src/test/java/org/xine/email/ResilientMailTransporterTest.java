@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xine.email.api.CircuitOpenException;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.RecipientResult;
+import org.xine.email.api.RecipientStatus;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendResult;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.ResilientMailTransporter;
+import org.xine.email.impl.transport.CircuitBreaker;
+import org.xine.email.impl.transport.RetryPolicy;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.util.TestMailConfigs;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ */
+public class ResilientMailTransporterTest {
+
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @Test
+    public void testTransientFailureIsRetried() {
+        final ResilientMailTransporter transporter = new ResilientMailTransporter(
+                failing(2, replyFailure(451)), fastRetries(3), new CircuitBreaker(5, 60000L));
+
+        transporter.send(message());
+
+        Assert.assertEquals(3, this.attempts.get());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, transporter.getCircuitBreaker()
+                .getState());
+    }
+
+    @Test
+    public void testPermanentFailureIsNotRetried() {
+        final ResilientMailTransporter transporter = new ResilientMailTransporter(
+                failing(5, replyFailure(550)), fastRetries(3), new CircuitBreaker(5, 60000L));
+        try {
+            transporter.send(message());
+            Assert.fail("A 550 reply should fail the send");
+        } catch (final SendFailedException e) {
+            Assert.assertFalse(e instanceof CircuitOpenException);
+        }
+        Assert.assertEquals(1, this.attempts.get());
+    }
+
+    @Test
+    public void testCircuitOpensAndRecovers() throws InterruptedException {
+        final SendFailedException connectFailure = new SendFailedException("Send Failed",
+                new MessagingException("Could not connect", new ConnectException()));
+        final ResilientMailTransporter transporter = new ResilientMailTransporter(
+                failing(2, connectFailure), fastRetries(1), new CircuitBreaker(2, 200L));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                transporter.send(message());
+                Assert.fail("The relay is down");
+            } catch (final SendFailedException e) {
+                Assert.assertFalse(e instanceof CircuitOpenException);
+            }
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, transporter.getCircuitBreaker()
+                .getState());
+
+        try {
+            transporter.send(message());
+            Assert.fail("The circuit is open");
+        } catch (final CircuitOpenException e) {
+            Assert.assertEquals("The relay is not called while open", 2, this.attempts.get());
+        }
+
+        Thread.sleep(250);
+        transporter.send(message());
+        Assert.assertEquals(3, this.attempts.get());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, transporter.getCircuitBreaker()
+                .getState());
+    }
+
+    @Test
+    public void testOnlyDeferredRecipientsAreRetried() {
+        final InternetAddress accepted = MailUtility.internetAddress("accepted@seam-mail.test");
+        final InternetAddress deferred = MailUtility.internetAddress("deferred@seam-mail.test");
+        final InternetAddress rejected = MailUtility.internetAddress("rejected@seam-mail.test");
+        final List<List<InternetAddress>> envelopes = new ArrayList<>();
+
+        final MailTransporter partial = new MailTransporter() {
+            @Override
+            public EmailMessage send(final EmailMessage emailMessage) {
+                envelopes.add(MailUtility.getEnvelopeRecipients(emailMessage));
+                if (envelopes.size() > 1) {
+                    return emailMessage;
+                }
+                final MessagingException replies = new SMTPAddressFailedException(deferred,
+                        "RCPT TO", 452, "452 Mailbox full");
+                replies.setNextException(new SMTPAddressFailedException(rejected, "RCPT TO",
+                        550, "550 No such user"));
+                throw new SendFailedException("Send Failed", new javax.mail.SendFailedException(
+                        "Invalid Addresses", replies, new Address[] { accepted },
+                        new Address[] { deferred }, new Address[] { rejected }));
+            }
+        };
+        final ResilientMailTransporter transporter = new ResilientMailTransporter(partial,
+                fastRetries(3), new CircuitBreaker(5, 60000L));
+
+        final EmailMessage e = message();
+        e.setEnvelopeRecipients(Arrays.asList(accepted, deferred, rejected));
+        final SendResult result = transporter.sendForResult(e);
+
+        Assert.assertEquals(2, envelopes.size());
+        Assert.assertEquals(Collections.singletonList(deferred), envelopes.get(1));
+        Assert.assertFalse("A rejected recipient fails the send", result.isSuccess());
+        Assert.assertEquals(Arrays.asList(accepted, deferred), result
+                .getRecipients(RecipientStatus.ACCEPTED));
+        final RecipientResult rejection = result.getRecipientResults().get(2);
+        Assert.assertEquals(rejected, rejection.getAddress());
+        Assert.assertEquals(RecipientStatus.REJECTED, rejection.getStatus());
+        Assert.assertEquals(550, rejection.getReplyCode());
+    }
+
+    @Test
+    public void testBackoffGrowsWithinBounds() {
+        final RetryPolicy policy = new RetryPolicy();
+        policy.setInitialDelay(100);
+        policy.setMultiplier(2);
+        policy.setMaxDelay(1000);
+        policy.setJitter(0.5);
+
+        for (int i = 0; i < 100; i++) {
+            final long first = policy.getDelay(1);
+            Assert.assertTrue(first >= 50 && first <= 100);
+            final long third = policy.getDelay(3);
+            Assert.assertTrue(third >= 200 && third <= 400);
+            final long capped = policy.getDelay(10);
+            Assert.assertTrue(capped >= 500 && capped <= 1000);
+        }
+    }
+
+    private MailTransporter failing(final int failures, final SendFailedException failure) {
+        return new MailTransporter() {
+            @Override
+            public EmailMessage send(final EmailMessage emailMessage) {
+                if (ResilientMailTransporterTest.this.attempts.incrementAndGet() <= failures) {
+                    throw failure;
+                }
+                return emailMessage;
+            }
+        };
+    }
+
+    private static SendFailedException replyFailure(final int code) {
+        return new SendFailedException("Send Failed", new SMTPSendFailedException("DATA", code,
+                code + " Rejected", null, null, null, null));
+    }
+
+    private static RetryPolicy fastRetries(final int maxAttempts) {
+        final RetryPolicy policy = new RetryPolicy();
+        policy.setMaxAttempts(maxAttempts);
+        policy.setInitialDelay(10);
+        return policy;
+    }
+
+    private static EmailMessage message() {
+        return new MailMessageImpl(TestMailConfigs.standardConfig()).from("seam@jboss.org")
+                .to("seamy.seamerson@seam-mail.test").subject("Resilient").bodyText("Resilient")
+                .getEmailMessage();
+    }
+}
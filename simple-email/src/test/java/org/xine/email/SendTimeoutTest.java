@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xine.email.api.MailTransporter;
+import org.xine.email.api.SendTimeoutException;
+import org.xine.email.api.SendTimeoutException.Phase;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.MailTransporterImpl;
+import org.xine.email.impl.NioMailTransporter;
+import org.xine.email.impl.SimpleMailConfig;
+import org.xine.email.impl.transport.SmtpTimeouts;
+import org.xine.email.impl.transport.TimeoutSocketFactory;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.util.StallingSmtpServer;
+
+/**
+ */
+public class SendTimeoutTest {
+
+    String fromAddress = "seam@jboss.org";
+    String toAddress = "seamy.seamerson@seam-mail.test";
+
+    @Test
+    public void testGreetingTimeout() throws IOException {
+        final SimpleMailConfig mailConfig = timeoutConfig();
+        mailConfig.setGreetingTimeout(200L);
+
+        assertTimesOut(StallingSmtpServer.GREETING, mailConfig, false, Phase.GREETING);
+    }
+
+    @Test
+    public void testDataTimeout() throws IOException {
+        final SimpleMailConfig mailConfig = timeoutConfig();
+        mailConfig.setDataTimeout(200L);
+
+        assertTimesOut(StallingSmtpServer.END_OF_DATA, mailConfig, false, Phase.DATA);
+    }
+
+    @Test
+    public void testSendDeadline() throws IOException {
+        final SimpleMailConfig mailConfig = timeoutConfig();
+        mailConfig.setSendDeadline(300L);
+
+        assertTimesOut("MAIL", mailConfig, false, Phase.DEADLINE);
+    }
+
+    @Test
+    public void testNioGreetingTimeout() throws IOException {
+        final SimpleMailConfig mailConfig = timeoutConfig();
+        mailConfig.setGreetingTimeout(200L);
+
+        assertTimesOut(StallingSmtpServer.GREETING, mailConfig, true, Phase.GREETING);
+    }
+
+    @Test
+    public void testTrafficAfterTlsGetsTheDataBudget() throws Exception {
+        final SimpleMailConfig mailConfig = timeoutConfig();
+        mailConfig.setCommandTimeout(200L);
+        mailConfig.setDataTimeout(5000L);
+        final Properties props = new Properties();
+        SmtpTimeouts.setProperties(mailConfig, props);
+
+        try (ServerSocket server = new ServerSocket(mailConfig.getServerPort())) {
+            final Thread peer = new Thread(() -> {
+                try (Socket s = server.accept()) {
+                    s.getOutputStream().write("220 ready\r\n".getBytes(StandardCharsets.US_ASCII));
+                    s.getInputStream().read();
+                    Thread.sleep(600);
+                    s.getOutputStream().write(0x16);
+                } catch (final IOException | InterruptedException e) {
+                    // The client fails the test
+                }
+            });
+            peer.start();
+            try (Socket socket = new TimeoutSocketFactory(SmtpTimeouts.of(props)).createSocket(
+                    "localhost", mailConfig.getServerPort())) {
+                final InputStream in = socket.getInputStream();
+                Assert.assertTrue(in.read(new byte[64]) > 0);
+                socket.getOutputStream().write(new byte[] { 0x16, 0x03, 0x01 });
+                Assert.assertEquals(0x16, in.read());
+            }
+            peer.join();
+        }
+    }
+
+    private SimpleMailConfig timeoutConfig() {
+        final SimpleMailConfig mailConfig = new SimpleMailConfig();
+        mailConfig.setServerPort(25261);
+        mailConfig.setCommandTimeout(10000L);
+        return mailConfig;
+    }
+
+    private void assertTimesOut(final String stallAt, final SimpleMailConfig mailConfig,
+            final boolean nio, final Phase phase) throws IOException {
+        final StallingSmtpServer server = new StallingSmtpServer(mailConfig.getServerPort(),
+                stallAt);
+        final MailTransporter transporter = nio ? new NioMailTransporter(MailUtility
+                .createSession(mailConfig), 1) : new MailTransporterImpl(MailUtility
+                .createSession(mailConfig));
+        final long start = System.currentTimeMillis();
+        try {
+            server.start();
+            new MailMessageImpl(transporter).from(this.fromAddress).to(this.toAddress)
+                    .subject("Timeout").bodyText("Timeout").send();
+            Assert.fail("Send should have timed out");
+        } catch (final SendTimeoutException e) {
+            Assert.assertEquals(phase, e.getPhase());
+            Assert.assertTrue("Timed out well before the command timeout",
+                    System.currentTimeMillis() - start < 5000);
+        } finally {
+            if (transporter instanceof NioMailTransporter) {
+                ((NioMailTransporter) transporter).close();
+            }
+            server.stop();
+        }
+    }
+}
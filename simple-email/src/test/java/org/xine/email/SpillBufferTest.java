@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+import org.xine.email.api.ContentDisposition;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailMergeEntry;
+import org.xine.email.api.SendFailedException;
+import org.xine.email.api.SendResult;
+import org.xine.email.api.SessionConfig;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.MailTransporterImpl;
+import org.xine.email.impl.attachments.InputStreamAttachment;
+import org.xine.email.impl.attachments.SpillBuffer;
+import org.xine.email.impl.attachments.SpilledDataSource;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.impl.util.Streams;
+import org.xine.email.util.TestMailConfigs;
+
+/**
+ */
+public class SpillBufferTest {
+
+    @Test
+    public void testSmallContentStaysInMemory() throws Exception {
+        final byte[] content = content(4096, 1);
+        final InputStreamAttachment attachment = new InputStreamAttachment("small.bin",
+                "application/octet-stream", ContentDisposition.ATTACHMENT,
+                new ByteArrayInputStream(content), 4096);
+
+        Assert.assertNull(attachment.getDataSource());
+        Assert.assertTrue(Arrays.equals(content, attachment.getBytes()));
+    }
+
+    @Test
+    public void testLargeContentIsSpilledAndReplayable() throws Exception {
+        final byte[] content = content(100000, 2);
+        final InputStreamAttachment attachment = new InputStreamAttachment("large.bin",
+                "application/octet-stream", ContentDisposition.ATTACHMENT,
+                new ByteArrayInputStream(content), 4096);
+
+        final SpilledDataSource spilled = (SpilledDataSource) attachment.getDataSource();
+        Assert.assertTrue(Files.exists(spilled.getPath()));
+        Assert.assertEquals(content.length, Files.size(spilled.getPath()));
+        for (int i = 0; i < 2; i++) {
+            try (InputStream in = spilled.getInputStream()) {
+                Assert.assertTrue(Arrays.equals(content, Streams.toByteArray(in)));
+            }
+        }
+
+        spilled.release();
+        Assert.assertFalse(Files.exists(spilled.getPath()));
+        try {
+            spilled.getInputStream();
+            Assert.fail("Released content was read");
+        } catch (final IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSpilledContentIsKeptUntilTheMessageIsClosed() throws Exception {
+        final int threshold = SpillBuffer.getDefaultThreshold();
+        final SessionConfig mailConfig = TestMailConfigs.standardConfig();
+        final byte[] content = content(50000, 3);
+        final MailMessageImpl message;
+        try {
+            SpillBuffer.setDefaultThreshold(1024);
+            message = new MailMessageImpl(mailConfig);
+            message.reusable().from("Seam <seam@jboss.org>").to("seamy.seamerson@seam-mail.test")
+                    .subject("Spilled").bodyText("See attached").addAttachment("large.bin",
+                            "application/octet-stream", ContentDisposition.ATTACHMENT,
+                            new ByteArrayInputStream(content));
+        } finally {
+            SpillBuffer.setDefaultThreshold(threshold);
+        }
+        final SpilledDataSource spilled = (SpilledDataSource) message.getEmailMessage()
+                .getAttachments().get(0).getDataSource();
+
+        try {
+            message.send();
+            Assert.fail("Sent without a server");
+        } catch (final SendFailedException e) {
+            // Expected
+        }
+        Assert.assertFalse(spilled.isReleased());
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        final List<SendResult> results = new ArrayList<>();
+        final EmailMessage sent;
+        try {
+            wiser.start();
+            sent = message.send();
+            Assert.assertFalse(spilled.isReleased());
+            message.send();
+            message.mailMerge().send(
+                    new MailTransporterImpl(MailUtility.createSession(mailConfig)),
+                    Stream.of(new MailMergeEntry("merged@seam-mail.test", null)), results::add);
+        } finally {
+            wiser.stop();
+        }
+
+        Assert.assertFalse(spilled.isReleased());
+        Assert.assertEquals(1, results.size());
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertEquals("merged@seam-mail.test", wiser.getMessages().get(wiser.getMessages()
+                .size() - 1).getEnvelopeReceiver());
+        Assert.assertEquals("Spilled", sent.getSubject());
+
+        message.close();
+        Assert.assertTrue(spilled.isReleased());
+        Assert.assertFalse(Files.exists(spilled.getPath()));
+        message.close();
+    }
+
+    @Test
+    public void testSpilledContentIsReleasedOnceSent() throws Exception {
+        final int threshold = SpillBuffer.getDefaultThreshold();
+        final SessionConfig mailConfig = TestMailConfigs.standardConfig();
+        final MailMessageImpl message;
+        try {
+            SpillBuffer.setDefaultThreshold(1024);
+            message = new MailMessageImpl(mailConfig);
+            message.from("Seam <seam@jboss.org>").to("seamy.seamerson@seam-mail.test")
+                    .subject("Spilled").bodyText("See attached").addAttachment("large.bin",
+                            "application/octet-stream", ContentDisposition.ATTACHMENT,
+                            new ByteArrayInputStream(content(50000, 4)));
+        } finally {
+            SpillBuffer.setDefaultThreshold(threshold);
+        }
+        final SpilledDataSource spilled = (SpilledDataSource) message.getEmailMessage()
+                .getAttachments().get(0).getDataSource();
+
+        try {
+            message.send();
+            Assert.fail("Sent without a server");
+        } catch (final SendFailedException e) {
+            // Expected
+        }
+        Assert.assertFalse(spilled.isReleased());
+
+        final Wiser wiser = new Wiser(mailConfig.getServerPort());
+        wiser.setHostname(mailConfig.getServerHost());
+        try {
+            wiser.start();
+            message.send();
+        } finally {
+            wiser.stop();
+        }
+
+        Assert.assertEquals(1, wiser.getMessages().size());
+        Assert.assertTrue(spilled.isReleased());
+        Assert.assertFalse(Files.exists(spilled.getPath()));
+    }
+
+    private static byte[] content(final int size, final int seed) {
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+}
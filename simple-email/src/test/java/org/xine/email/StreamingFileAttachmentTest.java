@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xine.email.api.ContentDisposition;
+import org.xine.email.api.EmailAttachment;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.MimeStreamWriter;
+import org.xine.email.impl.attachments.StreamingFileAttachment;
+import org.xine.email.impl.util.MailUtility;
+import org.xine.email.impl.util.Streams;
+import org.xine.email.util.TestMailConfigs;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ */
+public class StreamingFileAttachmentTest {
+
+    private final Session session = MailUtility.createSession(TestMailConfigs.standardConfig());
+
+    private Path file;
+
+    @Before
+    public void createFile() throws Exception {
+        this.file = Files.createTempFile("streaming", ".bin");
+    }
+
+    @After
+    public void deleteFile() throws Exception {
+        Files.deleteIfExists(this.file);
+    }
+
+    @Test
+    public void testFileIsReadWhenMessageIsWritten() throws Exception {
+        Files.write(this.file, content(1000, 1));
+        final EmailMessage e = message(new StreamingFileAttachment(ContentDisposition.ATTACHMENT,
+                this.file));
+        Assert.assertFalse(MimeStreamWriter.supports(e));
+        Assert.assertNotNull(e.getAttachments().get(0).getDataSource());
+
+        final byte[] sent = content(200000, 2);
+        Files.write(this.file, sent);
+        Assert.assertTrue(Arrays.equals(sent, attachmentOf(render(e))));
+        Assert.assertTrue(Arrays.equals(sent, e.getAttachments().get(0).getBytes()));
+    }
+
+    @Test
+    public void testCopiedAttachmentKeepsStreaming() throws Exception {
+        final byte[] sent = content(5000, 3);
+        Files.write(this.file, sent);
+        final EmailAttachment attachment = new StreamingFileAttachment(
+                ContentDisposition.ATTACHMENT, this.file.toFile());
+        final EmailMessage e = new EmailMessage();
+        e.addAttachment(attachment);
+
+        Assert.assertSame(attachment.getDataSource(), e.getAttachments().get(0).getDataSource());
+        Assert.assertTrue(Arrays.equals(sent, e.getAttachments().get(0).getBytes()));
+    }
+
+    private EmailMessage message(final StreamingFileAttachment attachment) {
+        final EmailMessage e = new MailMessageImpl(this.session).from("Seam <seam@jboss.org>")
+                .to("seamy.seamerson@seam-mail.test").subject("Streamed").bodyText("See attached")
+                .addAttachment(attachment).getEmailMessage();
+        e.setMessageId("streaming-test@xine.test");
+        return e;
+    }
+
+    private byte[] render(final EmailMessage e) throws Exception {
+        final SMTPMessage msg = MailUtility.buildMimeMessage(e, this.session);
+        msg.saveChanges();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        msg.writeTo(bytes);
+        return bytes.toByteArray();
+    }
+
+    private byte[] attachmentOf(final byte[] rendered) throws Exception {
+        final MimeMessage parsed = new MimeMessage(this.session, new ByteArrayInputStream(
+                rendered));
+        final Multipart multipart = (Multipart) parsed.getContent();
+        for (int i = 0; i < multipart.getCount(); i++) {
+            final Part part = multipart.getBodyPart(i);
+            if (Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition())) {
+                try (InputStream in = part.getInputStream()) {
+                    return Streams.toByteArray(in);
+                }
+            }
+        }
+        throw new AssertionError("No attachment");
+    }
+
+    private static byte[] content(final int size, final int seed) {
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+}
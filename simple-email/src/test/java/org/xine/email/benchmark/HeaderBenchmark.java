@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeUtility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xine.email.impl.util.HeaderEncoder;
+
+/**
+ * Compares header values encoded and folded through {@link HeaderEncoder} with
+ * {@link MimeUtility}, for a constant priority header, a plain subject long enough to be folded
+ * and a campaign subject needing encoded words. Run with {@code main} from the test classpath;
+ * the GC profiler reports the bytes allocated per header.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HeaderBenchmark {
+
+    @Param({ "constant", "folded", "encoded" })
+    private String shape;
+
+    private String value;
+
+    @Setup
+    public void setUp() {
+        switch (this.shape) {
+        case "constant":
+            this.value = "1 (Highest)";
+            break;
+        case "folded":
+            this.value = "Our spring collection is here, with new arrivals in every store and "
+                    + "free delivery on all orders this week";
+            break;
+        default:
+            this.value = "Les soldes d'\u00e9t\u00e9 commencent aujourd'hui dans tous nos "
+                    + "magasins";
+            break;
+        }
+    }
+
+    @Benchmark
+    public String headerEncoder() throws UnsupportedEncodingException {
+        return HeaderEncoder.encode("Subject", this.value, "UTF-8");
+    }
+
+    @Benchmark
+    public String mimeUtility() throws UnsupportedEncodingException {
+        return MimeUtility.fold(9, MimeUtility.encodeText(this.value, "UTF-8", null));
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(HeaderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+}
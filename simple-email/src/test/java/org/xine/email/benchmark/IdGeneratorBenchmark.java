@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.benchmark;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xine.email.impl.util.IdGenerator;
+import org.xine.email.impl.util.IdGenerators;
+import org.xine.email.impl.util.MailUtility;
+
+/**
+ * Compares Message-ID generation through {@link IdGenerators.NodeIdGenerator} with the former
+ * {@link UUID#randomUUID()} based IDs, from many threads at once so contention on the shared
+ * {@code SecureRandom} shows. Run with {@code main} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(16)
+@Fork(1)
+public class IdGeneratorBenchmark {
+
+    private final IdGenerator generator = new IdGenerators.NodeIdGenerator();
+    private final String domain = MailUtility.getHostName();
+
+    @Benchmark
+    public String nodeIdGenerator() {
+        return this.generator.nextMessageId(this.domain);
+    }
+
+    @Benchmark
+    public String randomUuid() {
+        return UUID.randomUUID().toString() + "@" + this.domain;
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(IdGeneratorBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
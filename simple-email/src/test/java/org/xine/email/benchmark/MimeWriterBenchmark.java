@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xine.email.api.ContentDisposition;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.MailMessage;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.MimeStreamWriter;
+import org.xine.email.impl.SimpleMailConfig;
+import org.xine.email.impl.attachments.BaseAttachment;
+import org.xine.email.impl.util.MailUtility;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * Compares {@link MimeStreamWriter} with building the message through
+ * {@link MailUtility#createMimeMessage} and writing it with javax.mail, for the three message
+ * shapes the writer covers. Run with {@code main} from the test classpath; the GC profiler
+ * reports the bytes allocated per message next to the latency.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MimeWriterBenchmark {
+
+    /** The message shape. */
+    @Param({"text", "alternative", "related" })
+    public String shape;
+
+    private Session session;
+    private EmailMessage emailMessage;
+    private MimeStreamWriter writer;
+    private ByteArrayOutputStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.session = MailUtility.createSession(new SimpleMailConfig());
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            text.append("Line ").append(i).append(" of the benchmark message body.\n");
+        }
+        final MailMessage m = new MailMessageImpl(this.session).from("bench@xine.test")
+                .to("rcpt@xine.test").subject("Benchmark");
+        if ("text".equals(this.shape)) {
+            m.bodyText(text.toString());
+        } else if ("alternative".equals(this.shape)) {
+            m.bodyHtmlTextAlt("<html><body><pre>" + text + "</pre></body></html>",
+                    text.toString());
+        } else {
+            final byte[] image = new byte[16 * 1024];
+            for (int i = 0; i < image.length; i++) {
+                image[i] = (byte) i;
+            }
+            m.bodyHtml("<html><body><img src=\"cid:logo\"/><pre>" + text + "</pre></body></html>")
+                    .addAttachment(new BaseAttachment("logo.png", "image/png",
+                            ContentDisposition.INLINE, image));
+        }
+        this.emailMessage = m.getEmailMessage();
+        this.emailMessage.setMessageId("benchmark@xine.test");
+        this.writer = new MimeStreamWriter(this.session);
+        this.out = new ByteArrayOutputStream(32 * 1024);
+    }
+
+    @Benchmark
+    public int mimeMessage() throws MessagingException, IOException {
+        final SMTPMessage msg = MailUtility.createMimeMessage(this.emailMessage, this.session);
+        msg.saveChanges();
+        this.out.reset();
+        msg.writeTo(this.out);
+        return this.out.size();
+    }
+
+    @Benchmark
+    public int streamWriter() {
+        final ByteBuffer written = this.writer.write(this.emailMessage);
+        return written.remaining();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MimeWriterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.subethamail.wiser.Wiser;
+import org.xine.email.api.EmailMessage;
+import org.xine.email.api.SendResult;
+import org.xine.email.impl.MailMessageImpl;
+import org.xine.email.impl.MailTransporterImpl;
+import org.xine.email.impl.SimpleMailConfig;
+import org.xine.email.impl.VirtualThreadMailTransporter;
+import org.xine.email.impl.util.MailUtility;
+
+/**
+ * Compares {@link VirtualThreadMailTransporter} with a fixed platform thread pool wrapping
+ * {@link MailTransporterImpl}, both sending a batch to a local Wiser that delays every delivery
+ * to imitate a remote relay. Run with {@code main} from the test classpath; on Java 21 or later
+ * the virtual variant uses virtual threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransporterConcurrencyBenchmark {
+
+    /** Number of messages per batch. */
+    @Param({"500" })
+    public int batchSize;
+
+    /** Virtual send ceiling and platform pool size. */
+    @Param({"16", "256" })
+    public int concurrency;
+
+    /** Simulated relay latency per message. */
+    @Param({"20" })
+    public int latencyMillis;
+
+    private Wiser wiser;
+    private List<EmailMessage> batch;
+    private MailTransporterImpl transporter;
+    private VirtualThreadMailTransporter virtualTransporter;
+    private ExecutorService platformPool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final SimpleMailConfig mailConfig = new SimpleMailConfig();
+        mailConfig.setServerPort(25260);
+
+        this.wiser = new Wiser(mailConfig.getServerPort()) {
+            @Override
+            public void deliver(final String from, final String recipient,
+                    final java.io.InputStream data) {
+                try {
+                    Thread.sleep(TransporterConcurrencyBenchmark.this.latencyMillis);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        this.wiser.start();
+
+        this.batch = new ArrayList<>(this.batchSize);
+        for (int i = 0; i < this.batchSize; i++) {
+            this.batch.add(new MailMessageImpl(mailConfig).from("bench@xine.test")
+                    .to("rcpt" + i + "@xine.test").subject("Benchmark " + i)
+                    .bodyText("Benchmark body").getEmailMessage());
+        }
+
+        this.transporter = new MailTransporterImpl(MailUtility.createSession(mailConfig));
+        this.virtualTransporter = new VirtualThreadMailTransporter(this.transporter,
+                this.concurrency);
+        this.platformPool = Executors.newFixedThreadPool(this.concurrency);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.virtualTransporter.close();
+        this.platformPool.shutdown();
+        this.wiser.stop();
+    }
+
+    @Benchmark
+    public List<SendResult> virtualThreads() {
+        return this.virtualTransporter.sendAll(this.batch);
+    }
+
+    @Benchmark
+    public List<EmailMessage> platformThreadPool() {
+        final List<CompletableFuture<EmailMessage>> futures = new ArrayList<>(this.batch.size());
+        for (final EmailMessage emailMessage : this.batch) {
+            futures.add(this.transporter.sendAsync(emailMessage, this.platformPool));
+        }
+        final List<EmailMessage> sent = new ArrayList<>(futures.size());
+        for (final CompletableFuture<EmailMessage> future : futures) {
+            sent.add(future.join());
+        }
+        return sent;
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(
+                TransporterConcurrencyBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Minimal SMTP server advertising PIPELINING, used where Wiser can not be: Wiser does not
+ * advertise the extension. After MAIL FROM the server withholds every reply until it has read
+ * the number of RCPT TO commands it was told to expect, so a client that waits for each reply
+ * before the next command times out instead of passing. Recipients whose address contains
+ * "reject" are refused with 550.
+ */
+public class PipeliningSmtpServer implements Runnable {
+
+    private final ServerSocket serverSocket;
+    private final int expectedRecipients;
+    private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean pipelined = true;
+    private Thread thread;
+
+    public PipeliningSmtpServer(final int port, final int expectedRecipients) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.expectedRecipients = expectedRecipients;
+    }
+
+    public void start() {
+        this.thread = new Thread(this, "pipelining-smtp-server");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void stop() {
+        try {
+            this.serverSocket.close();
+            this.thread.join(1000);
+        } catch (final IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public List<String> getCommands() {
+        return this.commands;
+    }
+
+    public List<String> getMessages() {
+        return this.messages;
+    }
+
+    public boolean isPipelined() {
+        return this.pipelined;
+    }
+
+    @Override
+    public void run() {
+        while (!this.serverSocket.isClosed()) {
+            try (Socket socket = this.serverSocket.accept()) {
+                socket.setSoTimeout(2000);
+                converse(socket);
+            } catch (final IOException e) {
+                // Server closed or client went away
+            }
+        }
+    }
+
+    private void converse(final Socket socket) throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.US_ASCII));
+        final OutputStream out = socket.getOutputStream();
+
+        reply(out, "220 localhost ESMTP");
+        String line;
+        while ((line = in.readLine()) != null) {
+            this.commands.add(line);
+            final String command = line.toUpperCase();
+            if (command.startsWith("EHLO")) {
+                reply(out, "250-localhost\r\n250-PIPELINING\r\n250 8BITMIME");
+            } else if (command.startsWith("MAIL FROM")) {
+                final StringBuilder replies = new StringBuilder("250 OK");
+                try {
+                    for (int i = 0; i < this.expectedRecipients; i++) {
+                        final String rcpt = in.readLine();
+                        this.commands.add(rcpt);
+                        replies.append(rcpt.contains("reject") ? "\r\n550 No such user"
+                                : "\r\n250 OK");
+                    }
+                } catch (final SocketTimeoutException e) {
+                    this.pipelined = false;
+                    return;
+                }
+                reply(out, replies.toString());
+            } else if (command.startsWith("DATA")) {
+                reply(out, "354 Go ahead");
+                final StringBuilder data = new StringBuilder();
+                while (!".".equals(line = in.readLine())) {
+                    data.append(line).append("\r\n");
+                }
+                this.messages.add(data.toString());
+                reply(out, "250 Queued");
+            } else if (command.startsWith("QUIT")) {
+                reply(out, "221 Bye");
+                return;
+            } else {
+                reply(out, "250 OK");
+            }
+        }
+    }
+
+    private static void reply(final OutputStream out, final String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
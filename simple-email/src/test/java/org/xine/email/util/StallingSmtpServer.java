@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.xine.email.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal SMTP server which stops answering at a chosen point of the exchange, to exercise
+ * client timeouts. It goes silent before its greeting when told to stall at
+ * {@link #GREETING}, on the first command starting with the given prefix otherwise, and before
+ * accepting the content when told to stall at {@link #END_OF_DATA}.
+ */
+public class StallingSmtpServer implements Runnable {
+
+    public static final String GREETING = "";
+    public static final String END_OF_DATA = ".";
+
+    private final ServerSocket serverSocket;
+    private final String stallAt;
+    private Thread thread;
+
+    public StallingSmtpServer(final int port, final String stallAt) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.stallAt = stallAt;
+    }
+
+    public void start() {
+        this.thread = new Thread(this, "stalling-smtp-server");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void stop() {
+        try {
+            this.serverSocket.close();
+            this.thread.join(1000);
+        } catch (final IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!this.serverSocket.isClosed()) {
+            try (Socket socket = this.serverSocket.accept()) {
+                converse(socket);
+            } catch (final IOException e) {
+                // Server closed or client went away
+            }
+        }
+    }
+
+    private void converse(final Socket socket) throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.US_ASCII));
+        final OutputStream out = socket.getOutputStream();
+
+        if (GREETING.equals(this.stallAt)) {
+            stall(in);
+            return;
+        }
+        reply(out, "220 localhost ESMTP");
+        String line;
+        while ((line = in.readLine()) != null) {
+            final String command = line.toUpperCase();
+            if (!END_OF_DATA.equals(this.stallAt) && command.startsWith(this.stallAt)) {
+                stall(in);
+                return;
+            }
+            if (command.startsWith("EHLO")) {
+                reply(out, "250-localhost\r\n250 8BITMIME");
+            } else if (command.startsWith("DATA")) {
+                reply(out, "354 Go ahead");
+                while (!".".equals(in.readLine())) {
+                    continue;
+                }
+                if (END_OF_DATA.equals(this.stallAt)) {
+                    stall(in);
+                    return;
+                }
+                reply(out, "250 Queued");
+            } else if (command.startsWith("QUIT")) {
+                reply(out, "221 Bye");
+                return;
+            } else {
+                reply(out, "250 OK");
+            }
+        }
+    }
+
+    /** Reads without answering until the client gives up. */
+    private static void stall(final BufferedReader in) throws IOException {
+        while (in.readLine() != null) {
+            continue;
+        }
+    }
+
+    private static void reply(final OutputStream out, final String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
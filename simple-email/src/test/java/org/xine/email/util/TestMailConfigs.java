@@ -27,6 +27,13 @@ public class TestMailConfigs {
         return mailConfig;
     }
 
+    public static SimpleMailConfig pooledConfig() {
+        final SimpleMailConfig mailConfig = new SimpleMailConfig();
+        mailConfig.setServerPort(25253);
+        mailConfig.setPoolMaxConnections(2);
+        return mailConfig;
+    }
+
     public static SimpleMailConfig gmailConfig() {
         final SimpleMailConfig mailConfig = new SimpleMailConfig();
         mailConfig.setServerHost("localhost");